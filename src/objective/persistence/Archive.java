@@ -0,0 +1,73 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+/**
+ * A closed year whose Transactions and Entries have been moved out of the
+ * book into a database file of their own. It covers Transactions dated from
+ * <code>opening</code> up to but not including <code>closing</code>.
+ * 
+ * <p>
+ * The file has <code>transactions</code> and <code>entries</code> tables
+ * like the book's, and is attached to a connection under
+ * <code>schema</code> when a query reaches into its dates.
+ * 
+ * @author Andrew Cowie
+ */
+final class Archive
+{
+    private final long opening;
+
+    private final long closing;
+
+    private final String filename;
+
+    private final String schema;
+
+    Archive(long opening, long closing, String filename, String schema) {
+        this.opening = opening;
+        this.closing = closing;
+        this.filename = filename;
+        this.schema = schema;
+    }
+
+    long getOpening() {
+        return opening;
+    }
+
+    long getClosing() {
+        return closing;
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    String getSchema() {
+        return schema;
+    }
+
+    /**
+     * Does this archive hold any of the dates from <code>from</code> to
+     * <code>to</code> inclusive?
+     */
+    boolean overlaps(long from, long to) {
+        return (from < closing) && (to >= opening);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * Copy a book somewhere else while it is open and in use. The copy is made
+ * on a background thread from a read transaction, so it is of the book as
+ * it was when the copy started, and neither blocks nor is blocked by
+ * Transactions being posted in the meantime.
+ * 
+ * <p>
+ * The copy is written alongside the target and only renamed into place once
+ * it is complete, so an interrupted or failed copy never leaves a truncated
+ * file where the backup is expected.
+ * 
+ * <pre>
+ * backup = new OnlineBackup(data, file);
+ * backup.connect(new Backup.Progress() {
+ *     public void onProgress(Backup source, long done, long total) {
+ *         ...
+ *     }
+ * });
+ * backup.start();
+ * ...
+ * backup.await();
+ * </pre>
+ * 
+ * @author Andrew Cowie
+ */
+public abstract class Backup
+{
+    /**
+     * How many rows to copy between reports of progress.
+     */
+    static final int STEP = 1000;
+
+    private final DataStore store;
+
+    private final File target;
+
+    private final ArrayList<Backup.Progress> handlers;
+
+    private volatile long done;
+
+    private volatile long total;
+
+    private volatile boolean cancelled;
+
+    private Thread thread;
+
+    private Throwable problem;
+
+    Backup(DataStore store, File target) {
+        this.store = store;
+        this.target = target;
+        this.handlers = new ArrayList<Backup.Progress>(1);
+        this.done = 0;
+        this.total = 0;
+        this.cancelled = false;
+    }
+
+    /**
+     * Report on how far along the copy is. This is called on the thread
+     * doing the copying, so a handler updating the user interface will need
+     * to hand over to the main loop.
+     */
+    public interface Progress
+    {
+        /**
+         * @param done
+         *            The number of rows copied so far.
+         * @param total
+         *            The number of rows in the book.
+         */
+        public void onProgress(Backup source, long done, long total);
+    }
+
+    public synchronized void connect(Backup.Progress handler) {
+        handlers.add(handler);
+    }
+
+    /**
+     * Make the copy on a new thread. Use {@link #await() await()} to find
+     * out how it went.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("\n" + "Backup already started");
+        }
+
+        thread = new Thread("Backup") {
+            public void run() {
+                try {
+                    Backup.this.run();
+                } catch (RuntimeException re) {
+                    problem = re;
+                } catch (Error e) {
+                    problem = e;
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for the copy started by {@link #start() start()} to finish. If
+     * it failed, the problem is thrown here.
+     */
+    public void await() {
+        final Thread t;
+
+        synchronized (this) {
+            t = thread;
+        }
+        if (t == null) {
+            throw new IllegalStateException("\n" + "Backup not started");
+        }
+
+        try {
+            t.join();
+        } catch (InterruptedException ie) {
+            throw new IllegalStateException("\n" + "Interrupted waiting for backup");
+        }
+
+        if (problem instanceof RuntimeException) {
+            throw (RuntimeException) problem;
+        } else if (problem instanceof Error) {
+            throw (Error) problem;
+        }
+    }
+
+    /**
+     * Make the copy, on this thread.
+     */
+    public void run() {
+        final File tmp;
+
+        tmp = new File(target.getPath() + ".tmp");
+        tmp.delete();
+
+        try {
+            copy(tmp);
+        } catch (RuntimeException re) {
+            tmp.delete();
+            throw re;
+        }
+
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IllegalStateException("\n" + "Can't move backup into place at " + target);
+        }
+    }
+
+    /**
+     * Stop copying at the next opportunity. The copy in progress is
+     * discarded and {@link #await() await()} throws.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Write the whole book to the given file.
+     */
+    abstract void copy(File tmp);
+
+    DataStore getStore() {
+        return store;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    public long getDone() {
+        return done;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    void setTotal(long rows) {
+        total = rows;
+    }
+
+    /**
+     * Record that another <code>rows</code> have been copied, and tell the
+     * Progress handlers.
+     */
+    void advance(long rows) {
+        final Backup.Progress[] list;
+
+        if (cancelled) {
+            throw new IllegalStateException("\n" + "Backup cancelled");
+        }
+
+        done += rows;
+
+        synchronized (this) {
+            list = handlers.toArray(new Backup.Progress[handlers.size()]);
+        }
+        for (Backup.Progress handler : list) {
+            handler.onProgress(this, done, total);
+        }
+    }
+
+    /**
+     * Run a statement which doesn't return rows of interest.
+     */
+    static void execute(StatementCache conn, String sql) {
+        final Statement stmt;
+
+        stmt = conn.prepare(sql);
+        stmt.step();
+        conn.finish(stmt);
+    }
+
+    /**
+     * Quote a name for use as an SQL identifier.
+     */
+    static String quote(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Get the type, name and SQL of each object in the book's schema, tables
+     * first. Internal tables, and the indexes SQLite makes for constraints,
+     * are left out. Virtual tables have the type "virtual", and the tables
+     * they keep their data in have the type "shadow".
+     */
+    /*
+     * Shadow tables are the ones named for a virtual table followed by an
+     * underscore, which is the convention FTS5 and the other modules that
+     * ship with SQLite follow.
+     */
+    static ArrayList<String[]> readSchema(StatementCache conn) {
+        final ArrayList<String[]> result;
+        final Statement stmt;
+        final String[] sql;
+
+        sql = new String[] {
+            "SELECT CASE",
+            "WHEN m.sql LIKE 'CREATE VIRTUAL TABLE %' THEN 'virtual'",
+            "WHEN m.type = 'table' AND EXISTS (SELECT 1 FROM main.sqlite_master v",
+            "WHERE v.sql LIKE 'CREATE VIRTUAL TABLE %' AND m.name LIKE v.name || '\\_%' ESCAPE '\\')",
+            "THEN 'shadow'",
+            "ELSE m.type END, m.name, m.sql",
+            "FROM main.sqlite_master m",
+            "WHERE m.sql NOTNULL AND m.name NOT LIKE 'sqlite_%'",
+            "ORDER BY m.type != 'table', m.rowid"
+        };
+
+        result = new ArrayList<String[]>();
+
+        stmt = conn.prepare(DataStore.combine(sql));
+        while (stmt.step()) {
+            result.add(new String[] {
+                stmt.columnText(0), stmt.columnText(1), stmt.columnText(2)
+            });
+        }
+        conn.finish(stmt);
+
+        return result;
+    }
+
+    /**
+     * Count the rows in all the tables in the given schema, and the
+     * statistics table if there is one. The rows of virtual tables are
+     * counted in their shadow tables.
+     */
+    static long countRows(StatementCache conn, ArrayList<String[]> schema) {
+        long result;
+
+        result = 0;
+        for (String[] item : schema) {
+            if (item[0].equals("table") || item[0].equals("shadow")) {
+                result += count(conn, "main." + quote(item[1]));
+            }
+        }
+        if (hasStatistics(conn)) {
+            result += count(conn, "main.sqlite_stat1");
+        }
+        return result;
+    }
+
+    static long count(StatementCache conn, String table) {
+        final Statement stmt;
+        final long result;
+
+        stmt = conn.prepare("SELECT count() FROM " + table);
+        stmt.step();
+        result = stmt.columnInteger(0);
+        conn.finish(stmt);
+
+        return result;
+    }
+
+    /**
+     * Has ANALYZE been run on the book?
+     */
+    static boolean hasStatistics(StatementCache conn) {
+        final Statement stmt;
+        final boolean result;
+
+        stmt = conn.prepare("SELECT count() FROM main.sqlite_master WHERE name = 'sqlite_stat1'");
+        stmt.step();
+        result = stmt.columnInteger(0) > 0;
+        conn.finish(stmt);
+
+        return result;
+    }
+}
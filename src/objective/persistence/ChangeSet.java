@@ -0,0 +1,303 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import objective.domain.Entry;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+
+/**
+ * The Transactions, Entries and Ledgers that were created, updated, or
+ * deleted by one database transaction. Passed to
+ * {@link DataStore.Changed Changed} handlers once it has been committed.
+ * 
+ * <p>
+ * Changes to the same object are coalesced, so each object appears at most
+ * once: something created and then updated shows up as created, something
+ * updated and then deleted as deleted, and something created and deleted
+ * again not at all. Within each array objects are in the order they were
+ * first touched.
+ * 
+ * @author Andrew Cowie
+ */
+public final class ChangeSet
+{
+    static final int CREATED = 1;
+
+    static final int UPDATED = 2;
+
+    static final int DELETED = 3;
+
+    private static final Transaction[] NO_TRANSACTIONS = new Transaction[0];
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private static final Ledger[] NO_LEDGERS = new Ledger[0];
+
+    /*
+     * The raw log, in the order things happened. Kept as such until the
+     * batch is committed so that rolling back to a savepoint is a matter of
+     * truncating it.
+     */
+
+    private final ArrayList<DomainObject> objects;
+
+    private int[] kinds;
+
+    private Transaction[] createdTransactions, updatedTransactions, deletedTransactions;
+
+    private Entry[] createdEntries, updatedEntries, deletedEntries;
+
+    private Ledger[] createdLedgers, updatedLedgers, deletedLedgers;
+
+    ChangeSet() {
+        objects = new ArrayList<DomainObject>(16);
+        kinds = new int[16];
+    }
+
+    void add(int kind, DomainObject obj) {
+        final int[] old;
+        final int i;
+
+        i = objects.size();
+        if (i == kinds.length) {
+            old = kinds;
+            kinds = new int[i * 2];
+            System.arraycopy(old, 0, kinds, 0, i);
+        }
+
+        objects.add(obj);
+        kinds[i] = kind;
+    }
+
+    /**
+     * How many changes have been logged so far. Use as a mark to
+     * {@link #truncate(int) truncate()} back to.
+     */
+    int size() {
+        return objects.size();
+    }
+
+    /**
+     * Discard everything logged since the given mark.
+     */
+    void truncate(int mark) {
+        int i;
+
+        for (i = objects.size() - 1; i >= mark; i--) {
+            objects.remove(i);
+        }
+    }
+
+    /**
+     * Reduce the log to the net change for each object, and sort the
+     * results out by kind and type. After this the ChangeSet is read-only.
+     */
+    void coalesce() {
+        final IdentityHashMap<DomainObject, Integer> net;
+        final ArrayList<DomainObject> order;
+        final ArrayList<Transaction> ct, ut, dt;
+        final ArrayList<Entry> ce, ue, de;
+        final ArrayList<Ledger> cl, ul, dl;
+        DomainObject obj;
+        Integer previous;
+        int i, kind;
+
+        net = new IdentityHashMap<DomainObject, Integer>(objects.size() * 2);
+        order = new ArrayList<DomainObject>(objects.size());
+
+        for (i = 0; i < objects.size(); i++) {
+            obj = objects.get(i);
+            kind = kinds[i];
+            previous = net.get(obj);
+
+            if (previous == null) {
+                order.add(obj);
+            } else if (previous == CREATED) {
+                if (kind == DELETED) {
+                    kind = 0;
+                } else {
+                    kind = CREATED;
+                }
+            } else if (previous == DELETED) {
+                if (kind == CREATED) {
+                    kind = UPDATED;
+                }
+            }
+
+            net.put(obj, kind);
+        }
+
+        ct = new ArrayList<Transaction>();
+        ut = new ArrayList<Transaction>();
+        dt = new ArrayList<Transaction>();
+        ce = new ArrayList<Entry>();
+        ue = new ArrayList<Entry>();
+        de = new ArrayList<Entry>();
+        cl = new ArrayList<Ledger>();
+        ul = new ArrayList<Ledger>();
+        dl = new ArrayList<Ledger>();
+
+        for (DomainObject each : order) {
+            kind = net.get(each);
+
+            if (each instanceof Transaction) {
+                sort(kind, (Transaction) each, ct, ut, dt);
+            } else if (each instanceof Entry) {
+                sort(kind, (Entry) each, ce, ue, de);
+            } else if (each instanceof Ledger) {
+                sort(kind, (Ledger) each, cl, ul, dl);
+            } else {
+                throw new AssertionError();
+            }
+        }
+
+        createdTransactions = ct.toArray(NO_TRANSACTIONS);
+        updatedTransactions = ut.toArray(NO_TRANSACTIONS);
+        deletedTransactions = dt.toArray(NO_TRANSACTIONS);
+        createdEntries = ce.toArray(NO_ENTRIES);
+        updatedEntries = ue.toArray(NO_ENTRIES);
+        deletedEntries = de.toArray(NO_ENTRIES);
+        createdLedgers = cl.toArray(NO_LEDGERS);
+        updatedLedgers = ul.toArray(NO_LEDGERS);
+        deletedLedgers = dl.toArray(NO_LEDGERS);
+
+        objects.clear();
+    }
+
+    private static <T> void sort(int kind, T obj, ArrayList<T> created, ArrayList<T> updated,
+            ArrayList<T> deleted) {
+        if (kind == CREATED) {
+            created.add(obj);
+        } else if (kind == UPDATED) {
+            updated.add(obj);
+        } else if (kind == DELETED) {
+            deleted.add(obj);
+        }
+    }
+
+    /**
+     * Did this commit change nothing (that anyone could see)?
+     */
+    public boolean isEmpty() {
+        return (createdTransactions.length + updatedTransactions.length + deletedTransactions.length
+                + createdEntries.length + updatedEntries.length + deletedEntries.length
+                + createdLedgers.length + updatedLedgers.length + deletedLedgers.length) == 0;
+    }
+
+    public Transaction[] getCreatedTransactions() {
+        return createdTransactions.clone();
+    }
+
+    /**
+     * The Transactions created that are dated from <code>from</code> to
+     * <code>to</code> inclusive, in order of date and then ID. If
+     * <code>upto</code> is given, only those up to and including it in that
+     * order; this is for a view showing a range a page at a time, which will
+     * get any later ones with its next page.
+     */
+    public Transaction[] getCreatedTransactions(long from, long to, Transaction upto) {
+        final ArrayList<Transaction> list;
+        final Transaction[] result;
+        long date;
+
+        list = new ArrayList<Transaction>();
+
+        for (Transaction t : createdTransactions) {
+            date = t.getDate();
+            if ((date < from) || (date > to)) {
+                continue;
+            }
+            if (upto != null) {
+                if (date > upto.getDate()) {
+                    continue;
+                }
+                if ((date == upto.getDate()) && (t.getID() > upto.getID())) {
+                    continue;
+                }
+            }
+            list.add(t);
+        }
+
+        result = list.toArray(NO_TRANSACTIONS);
+
+        Arrays.sort(result, new Comparator<Transaction>() {
+            public int compare(Transaction a, Transaction b) {
+                if (a.getDate() != b.getDate()) {
+                    return a.getDate() < b.getDate() ? -1 : 1;
+                }
+                if (a.getID() != b.getID()) {
+                    return a.getID() < b.getID() ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+
+        return result;
+    }
+
+    public Transaction[] getUpdatedTransactions() {
+        return updatedTransactions.clone();
+    }
+
+    public Transaction[] getDeletedTransactions() {
+        return deletedTransactions.clone();
+    }
+
+    public Entry[] getCreatedEntries() {
+        return createdEntries.clone();
+    }
+
+    public Entry[] getUpdatedEntries() {
+        return updatedEntries.clone();
+    }
+
+    public Entry[] getDeletedEntries() {
+        return deletedEntries.clone();
+    }
+
+    /**
+     * Ledgers are reported as updated when an Entry against them was
+     * created, changed, or deleted, since their balance will have moved.
+     */
+    public Ledger[] getUpdatedLedgers() {
+        return updatedLedgers.clone();
+    }
+
+    public Ledger[] getCreatedLedgers() {
+        return createdLedgers.clone();
+    }
+
+    public Ledger[] getDeletedLedgers() {
+        return deletedLedgers.clone();
+    }
+
+    public String toString() {
+        return createdTransactions.length + "/" + updatedTransactions.length + "/"
+                + deletedTransactions.length + " Transactions, " + createdEntries.length + "/"
+                + updatedEntries.length + "/" + deletedEntries.length + " Entries, "
+                + createdLedgers.length + "/" + updatedLedgers.length + "/" + deletedLedgers.length
+                + " Ledgers created/updated/deleted";
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+/**
+ * A Transaction or Entry couldn't be written because the row in the
+ * database has been changed, or deleted, by another program since it was
+ * read. Nothing was written. Show the user, and have them look at the
+ * book as it is now before trying again.
+ * 
+ * @author Andrew Cowie
+ */
+public class ConflictException extends IllegalStateException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final DomainObject obj;
+
+    ConflictException(DomainObject obj) {
+        super("\n" + obj.getClass().getSimpleName() + " " + obj + " has been changed elsewhere since it was read");
+        this.obj = obj;
+    }
+
+    /**
+     * The Transaction or Entry that couldn't be written.
+     */
+    public DomainObject getObject() {
+        return obj;
+    }
+}
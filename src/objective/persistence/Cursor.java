@@ -0,0 +1,135 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.Closeable;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * Results of a query, handed over one at a time as the underlying Statement
+ * is stepped, rather than all collected into an array first. Call
+ * {@link #next() next()} until it returns <code>null</code>, which also
+ * closes the Cursor. If you stop early, you must call {@link #close()
+ * close()} yourself:
+ * 
+ * <pre>
+ * cursor = data.iterateTransactions(from, to);
+ * try {
+ *     while ((t = cursor.next()) != null) {
+ *         ...
+ *     }
+ * } finally {
+ *     cursor.close();
+ * }
+ * </pre>
+ * 
+ * <p>
+ * A Cursor reads over one of the DataStore's read-only connections, which it
+ * holds until it is closed, and sees the book as it was when it was opened.
+ * Objects deleted since are skipped. Use a Cursor from one thread only.
+ * 
+ * @author Andrew Cowie
+ */
+public abstract class Cursor<T> implements Closeable
+{
+    private final DataStore store;
+
+    private StatementCache reader;
+
+    private Statement stmt;
+
+    Cursor(DataStore store, String sql) {
+        this.store = store;
+        this.reader = store.borrowReader();
+        try {
+            this.stmt = reader.prepare(sql);
+        } catch (RuntimeException re) {
+            store.returnReader(reader);
+            throw re;
+        }
+    }
+
+    /**
+     * A Cursor over a query reaching into the archives holding any of the
+     * dates from <code>from</code> to <code>to</code>, which are attached to
+     * the connection first.
+     */
+    Cursor(DataStore store, String sql, long from, long to) {
+        this.store = store;
+        this.reader = store.borrowReader();
+        try {
+            store.attachArchives(reader, from, to);
+            this.stmt = reader.prepare(sql);
+        } catch (RuntimeException re) {
+            store.returnReader(reader);
+            throw re;
+        }
+    }
+
+    /**
+     * The Statement, for binding parameters to before the first call to
+     * next().
+     */
+    Statement getStatement() {
+        return stmt;
+    }
+
+    /**
+     * Get the object for the current row, or <code>null</code> to skip it.
+     */
+    abstract T make(Statement stmt);
+
+    /**
+     * Get the next object, or <code>null</code> if there are no more.
+     */
+    public T next() {
+        T result;
+
+        while (stmt != null) {
+            if (!stmt.step()) {
+                close();
+                return null;
+            }
+
+            result = make(stmt);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finish with the query, handing the connection back. Calling this more
+     * than once is harmless.
+     */
+    public void close() {
+        if (stmt == null) {
+            return;
+        }
+
+        reader.finish(stmt);
+        store.returnReader(reader);
+
+        stmt = null;
+        reader = null;
+    }
+}
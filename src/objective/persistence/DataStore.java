@@ -18,9 +18,15 @@
  */
 package objective.persistence;
 
+import generic.util.Environment;
+
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 import objective.domain.Account;
 import objective.domain.AccountsPayableAccount;
@@ -61,880 +67,4212 @@ public class DataStore
     private Database db;
 
     /**
-     * Operations using this connection.
+     * Prepared Statements on this connection, shared with the Operations
+     * using it.
      */
-    private ArrayList<Operation> operations;
+    private StatementCache statements;
 
-    public DataStore(String filename) {
-        db = new Database(filename);
-        operations = new ArrayList<Operation>();
+    /**
+     * Are Transactions and Entries faulted in from the database on demand,
+     * rather than all being loaded when the book is opened?
+     */
+    private final boolean lazy;
 
-        setupCaches();
-        loadCurrencies();
-        loadAccounts();
-        loadLedgers();
-        loadWorkers();
-        loadTransactions();
-    }
+    private final String filename;
 
     /**
-     * Gain access to the database connection. This registers, so that we can
-     * clean up later.
+     * The stamp of the snapshot the objects were loaded from, or 0 if they
+     * were loaded from the database.
      */
-    public Database gainConnection(Operation op) {
-        operations.add(op);
-        return db;
-    }
+    private long loaded;
 
-    public void begin() {
-        final Statement stmt;
+    /**
+     * How many read-only connections to open at most.
+     */
+    private static final int READERS = 4;
 
-        stmt = db.prepare("BEGIN");
-        stmt.step();
-        stmt.finish();
-    }
+    /**
+     * Reader connections not currently lent out.
+     */
+    private final ArrayList<StatementCache> readers;
 
-    public void commit() {
-        final Statement stmt;
+    /**
+     * How many reader connections have been opened, whether idle or lent.
+     */
+    private int opened;
 
-        stmt = db.prepare("COMMIT");
-        stmt.step();
-        stmt.finish();
+    /**
+     * Has the user asked for books to be opened lazily? This is the
+     * <code>LOADING</code> setting, which is either <code>lazy</code> or
+     * <code>eager</code>; the default is eager. Pass the result to
+     * {@link #DataStore(String, boolean) DataStore()} when starting up.
+     */
+    public static boolean isLazyLoading() {
+        final String setting;
+
+        setting = Environment.getenv("LOADING");
+
+        if ((setting == null) || (setting.equals("eager"))) {
+            return false;
+        } else if (setting.equals("lazy")) {
+            return true;
+        } else {
+            throw new IllegalArgumentException("\n" + "LOADING must be lazy or eager, not " + setting);
+        }
     }
 
-    public void rollback() {
-        final Statement stmt;
+    /**
+     * Open the given book, loading everything in it into memory.
+     */
+    public DataStore(String filename) {
+        this(filename, false);
+    }
 
-        stmt = db.prepare("ROLLBACK");
-        stmt.step();
-        stmt.finish();
+    /**
+     * Open the given book. Currencies, Accounts, Ledgers and Workers are
+     * always preloaded. If <code>lazy</code> is <code>true</code> then
+     * Transactions and Entries are left in the database and only loaded as
+     * they are looked up; otherwise they are all loaded now, which is slow
+     * for books with a long history.
+     *
+     * <p>
+     * When everything is loaded, a snapshot of it is written alongside the
+     * book when it is closed, and used to open it quickly next time if the
+     * book hasn't changed in the meantime.
+     */
+    public DataStore(String filename, boolean lazy) {
+        this(filename, lazy, 1);
     }
 
-    public void close() {
-        for (Operation op : operations) {
-            op.release();
+    /**
+     * Open the given book, as above. If everything is being loaded and
+     * <code>threads</code> is more than one, the Transactions and Entries
+     * are read in parallel over that many additional read-only connections.
+     */
+    public DataStore(String filename, boolean lazy, int threads) {
+        final long stamp;
+
+        db = new Database(filename);
+        statements = new StatementCache(db);
+        this.lazy = lazy;
+        this.filename = filename;
+        this.loaded = 0;
+        this.readers = new ArrayList<StatementCache>(READERS);
+        this.opened = 0;
+        this.editing = new HashSet<Long>();
+        this.deferredTransactions = new HashMap<Long, Long>();
+        this.deferredEntries = new HashMap<Long, Long>();
+
+        execute("PRAGMA journal_mode = WAL");
+
+        Migrations.run(this);
+        loadArchives();
+        versions = new RowVersions(statements);
+        setupCaches();
+
+        if (!lazy) {
+            stamp = Snapshot.stamp(filename);
+            if ((stamp != 0) && Snapshot.read(this, filename, stamp)) {
+                loaded = stamp;
+                return;
+            }
+            setupCaches();
         }
-        db.close();
-    }
 
-    private HashMap<Long, Account> accounts;
+        loadCurrencies();
+        loadAccounts();
+        loadLedgers();
+        loadWorkers();
 
-    private void cache(Account a) {
-        accounts.put(a.getID(), a);
+        if (lazy) {
+            return;
+        } else if (threads > 1) {
+            new ParallelLoader(this, filename, threads).load();
+        } else {
+            loadTransactions();
+        }
     }
 
-    private HashMap<Long, Ledger> ledgers;
+    String getFilename() {
+        return filename;
+    }
 
-    private void cache(Ledger l) {
-        ledgers.put(l.getID(), l);
+    /**
+     * Were the Transactions and Entries loaded from a snapshot, rather than
+     * from the database?
+     */
+    boolean isFromSnapshot() {
+        return loaded != 0;
     }
 
-    private HashMap<Long, Transaction> transactions;
+    /**
+     * Gain access to the database connection. Statements prepared through
+     * the returned cache are finalized when this DataStore is closed.
+     */
+    StatementCache gainConnection(Operation op) {
+        return statements;
+    }
 
-    private void cache(Transaction t) {
-        transactions.put(t.getID(), t);
+    /**
+     * Something to be done when a DataStore is closed, before its database
+     * connection goes away.
+     *
+     * @author Andrew Cowie
+     */
+    public interface Closing
+    {
+        public void onClosing(DataStore source);
     }
 
-    private HashMap<Long, Entry> entries;
+    private final ArrayList<DataStore.Closing> closing = new ArrayList<DataStore.Closing>(1);
 
-    private void cache(Entry e) {
-        entries.put(e.getID(), e);
+    public void connect(DataStore.Closing handler) {
+        closing.add(handler);
     }
 
-    private HashMap<String, Currency> currencies;
-
-    private void cache(Currency c) {
-        currencies.put(c.getCode(), c);
+    /**
+     * Notification that Transactions, Entries or Ledgers have changed in the
+     * book. Called once per committed database transaction, with everything
+     * it did coalesced into one ChangeSet, so a batch of thousands of
+     * postings results in one call rather than thousands.
+     * 
+     * <p>
+     * This is called on whichever thread did the commit, which for posting
+     * from the user interface is <i>not</i> the main loop.
+     * 
+     * @author Andrew Cowie
+     */
+    public interface Changed
+    {
+        public void onChanged(DataStore source, ChangeSet changes);
     }
 
-    private HashMap<Long, Worker> workers;
+    private final ArrayList<DataStore.Changed> changed = new ArrayList<DataStore.Changed>(2);
 
-    private void cache(Worker w) {
-        workers.put(w.getID(), w);
+    public synchronized void connect(DataStore.Changed handler) {
+        changed.add(handler);
     }
 
-    private void setupCaches() {
-        accounts = new HashMap<Long, Account>();
-        ledgers = new HashMap<Long, Ledger>();
-        transactions = new HashMap<Long, Transaction>();
-        entries = new HashMap<Long, Entry>();
-        currencies = new HashMap<String, Currency>();
-        workers = new HashMap<Long, Worker>();
+    /**
+     * Stop notifying the given handler of changes; do this when a view is
+     * going away.
+     */
+    public synchronized void disconnect(DataStore.Changed handler) {
+        changed.remove(handler);
     }
 
     /**
-     * Load and cache Currency objects.
+     * Changes made so far in the current database transaction.
      */
-    private void loadCurrencies() {
-        final Statement stmt;
-        String code, name, symbol;
-        Currency currency;
+    private ChangeSet pending = new ChangeSet();
 
-        stmt = db.prepare("SELECT c.code, c.name, c.symbol FROM currencies c");
+    /**
+     * Where the log of pending changes was when the current savepoint was
+     * taken.
+     */
+    private int mark;
 
-        while (stmt.step()) {
-            code = stmt.columnText(0);
-            name = stmt.columnText(1);
-            symbol = stmt.columnText(2);
+    /**
+     * Is there a database transaction open? If not, changes are committed
+     * (and so notified) as each is made.
+     */
+    private boolean open;
 
-            currency = makeCurrency(code, name, symbol);
+    /**
+     * Entries deleted in the current database transaction, which are
+     * dropped from memory straight away and have to be put back if it is
+     * rolled back.
+     */
+    private ArrayList<Entry> deleted = new ArrayList<Entry>();
 
-            this.cache(currency);
-        }
+    /**
+     * How many Entries had been deleted when the current savepoint was
+     * taken.
+     */
+    private int deletedMark;
 
-        stmt.finish();
+    /**
+     * Log a change to be notified when the current database transaction is
+     * committed.
+     */
+    private synchronized void changed(int kind, DomainObject obj) {
+        pending.add(kind, obj);
     }
 
-    private static Currency makeCurrency(String code, String name, String symbol) {
-        if (code == null) {
-            throw new IllegalArgumentException();
-        }
-        if (name == null) {
-            throw new IllegalArgumentException();
+    /**
+     * Notify the changes made outside of a database transaction, which have
+     * already been committed.
+     */
+    private void settle() {
+        if (!open) {
+            notifyChanged();
         }
-        if (symbol == null) {
-            throw new IllegalArgumentException();
+    }
+
+    private void notifyChanged() {
+        final ChangeSet changes;
+
+        synchronized (this) {
+            if (pending.size() == 0) {
+                return;
+            }
+            changes = pending;
+            pending = new ChangeSet();
+            mark = 0;
         }
 
-        return new Currency(code, name, symbol);
+        deliver(changes);
     }
 
-    /**
-     * Load and cache all Account objects from the database.
-     */
-    private void loadAccounts() {
-        final Statement stmt;
-        long accountId, direction;
-        String type, title;
-        Account account;
-
-        stmt = db.prepare("SELECT a.account_id, a.title, y.class, a.direction FROM accounts a, types y WHERE a.type_id = y.type_id");
+    private void deliver(ChangeSet changes) {
+        final DataStore.Changed[] handlers;
 
-        while (stmt.step()) {
-            accountId = stmt.columnInteger(0);
-            title = stmt.columnText(1);
-            type = stmt.columnText(2);
-            direction = stmt.columnInteger(3);
+        synchronized (this) {
+            handlers = changed.toArray(new DataStore.Changed[changed.size()]);
+        }
 
-            account = makeAccount(accountId, type, title, direction);
+        changes.coalesce();
 
-            this.cache(account);
+        for (DataStore.Changed handler : handlers) {
+            try {
+                handler.onChanged(this, changes);
+            } catch (RuntimeException re) {
+                report(re);
+            }
         }
+    }
+
+    /*
+     * By the time handlers are told, the changes are committed. One of them
+     * failing mustn't make it look to the writer as though they weren't, nor
+     * keep the rest from being told, so say what happened the way the thread
+     * would have had it died, and carry on.
+     */
+    private static void report(Throwable t) {
+        final Thread current;
 
-        stmt.finish();
+        current = Thread.currentThread();
+        current.getUncaughtExceptionHandler().uncaughtException(current, t);
     }
 
     /**
-     * Load and cache all Ledgers from the database. Requires that Accounts
-     * and Currencies already be loaded.
+     * The versions of the Transaction and Entry rows, and how far through
+     * change_log we have caught up with what other programs have done.
      */
-    private void loadLedgers() {
-        final Statement stmt;
-        long ledgerId, accountId, direction;
-        String name, code;
-        Account parent;
-        Currency currency;
-        Ledger ledger;
-
-        stmt = db.prepare("SELECT l.ledger_id, l.account_id, l.name, l.currency, l.direction FROM ledgers l");
+    private RowVersions versions;
 
-        while (stmt.step()) {
-            ledgerId = stmt.columnInteger(0);
-            accountId = stmt.columnInteger(1);
-            name = stmt.columnText(2);
-            code = stmt.columnText(3);
-            direction = stmt.columnInteger(4);
+    /**
+     * IDs of the Transactions being edited, which are left as they are
+     * when catching up.
+     */
+    private final HashSet<Long> editing;
 
-            parent = lookupAccount(accountId);
-            currency = lookupCurrency(code);
+    /**
+     * Changes to Transactions, and to Entries, which were being edited at
+     * the time, to be caught up with once they no longer are. The value is
+     * the row's version, or <code>null</code> if it was deleted.
+     */
+    private final HashMap<Long, Long> deferredTransactions;
 
-            ledger = makeLedger(ledgerId, parent, name, currency, direction);
+    private final HashMap<Long, Long> deferredEntries;
 
-            this.cache(ledger);
+    /**
+     * Drop old change_log entries. This is done on closing rather than
+     * opening: writing to the book before the snapshot is checked would
+     * leave a non-empty write-ahead log, and the snapshot would never be
+     * used.
+     */
+    private void pruneChanges() {
+        enter();
+        try {
+            synchronized (this) {
+                versions.prune();
+            }
+        } finally {
+            leave();
         }
+    }
 
-        stmt.finish();
+    /**
+     * Throw if the row for the given object no longer has the version the
+     * object was read at.
+     */
+    private synchronized void checkVersion(String table, String column, DomainObject obj) {
+        versions.check(table, column, obj);
     }
 
     /**
-     * Construct a Ledger object corresponding to the given rowid.
+     * Throw if the conditional UPDATE or DELETE just run didn't match the
+     * row. Having checked the version beforehand this only happens if
+     * another program got in between, which it can't inside a database
+     * transaction. Anything already done in memory is thrown away; the
+     * caller rolls back the rest.
      */
-    private static Ledger makeLedger(long ledgerId, Account parent, String name, Currency currency,
-            long direction) {
-        final Ledger result;
+    private void checkChanged(DomainObject obj) {
+        final Statement stmt;
+        final long num;
 
-        if (direction == 1) {
-            result = new DebitPositiveLedger(ledgerId);
-        } else if (direction == -1) {
-            result = new CreditPositiveLedger(ledgerId);
-        } else {
-            throw new IllegalArgumentException("\n" + "Can't have directionless Entries");
-        }
+        stmt = statements.prepare("SELECT changes()");
+        stmt.step();
+        num = stmt.columnInteger(0);
+        statements.finish(stmt);
 
-        if (name == null) {
-            throw new IllegalArgumentException();
+        if (num == 0) {
+            discardIndexes();
+            throw new ConflictException(obj);
         }
-
-        result.setName(name);
-        result.setParentAccount(parent);
-        result.setCurrency(currency);
-
-        return result;
     }
 
     /**
-     * Get the specified Account object.
+     * The given object has been written, incrementing its row's version.
      */
-    public Account lookupAccount(final long accountId) {
-        final Account result;
-
-        result = accounts.get(accountId);
-        if (result == null) {
-            throw new IllegalStateException("We require all Accounts to be preloaded");
-        }
+    private synchronized void written(DomainObject obj) {
+        checkChanged(obj);
+        versions.written(obj, open);
+    }
 
-        return result;
+    /**
+     * The row for the given object has been deleted.
+     */
+    private synchronized void removed(DomainObject obj) {
+        checkChanged(obj);
+        versions.removed(obj, open);
     }
 
     /**
-     * Change the title (and what else?) of an Account.
+     * Bring the Transactions and Entries in memory up to date with any
+     * changes other programs have committed to the book. This is done by
+     * begin(), and by the reads that list or search or add up many rows,
+     * but not by those looking up one object or the Entries of one
+     * Transaction, which are called for every row on display. Call it when
+     * about to show something which has been held on to for a while.
      */
+    public synchronized void refresh() {
+        checkStale();
+    }
+
     /*
-     * TODO
+     * Rows are read as they are now. Rows not in memory need nothing doing
+     * beyond noting their versions, except that when everything is loaded
+     * new ones are. If every row was listed, because the log couldn't be
+     * followed, anything in memory that wasn't has been deleted. Any change
+     * at all means the in-memory indexes have to be rebuilt.
      */
-    public void updateAccount(Account account) {
-        final Statement stmt;
-        final long accountId;
-        final String title;
+    private synchronized void checkStale() {
+        final RowVersions.Changes changes;
+        final ChangeSet external;
 
-        stmt = db.prepare("UPDATE accounts SET title = ? WHERE account_id = ?");
+        /*
+         * This is the first thing every read does, so it is also where
+         * readers wait for another thread's transaction to finish.
+         */
 
-        title = account.getTitle();
-        stmt.bindText(1, title);
+        claim();
 
-        accountId = account.getID();
-        stmt.bindInteger(2, accountId);
+        if (versions == null) {
+            return;
+        }
 
-        stmt.step();
-        stmt.finish();
-    }
+        changes = versions.read();
+        if (changes == null) {
+            return;
+        }
 
-    /**
-     * Delete the given Account. All referring Ledgers must have been deleted!
-     */
-    /*
-     * TODO
-     */
-    public void deleteAccount(Account account) {
-        final Statement stmt;
-        final long accountId;
+        if (changes.complete) {
+            for (long id : cachedTransactionIds()) {
+                if (!changes.transactions.containsKey(id)) {
+                    changes.transactions.put(id, null);
+                }
+            }
+            for (long id : cachedEntryIds()) {
+                if (!changes.entries.containsKey(id)) {
+                    changes.entries.put(id, null);
+                }
+            }
+        }
 
-        stmt = db.prepare("DELETE FROM accounts WHERE account_id = ?");
+        if (changes.isEmpty()) {
+            return;
+        }
 
-        accountId = account.getID();
-        stmt.bindInteger(1, accountId);
+        external = new ChangeSet();
 
-        stmt.step();
-        stmt.finish();
-    }
+        for (Map.Entry<Long, Long> change : changes.transactions.entrySet()) {
+            catchUpTransaction(change.getKey(), change.getValue(), external);
+        }
+        for (Map.Entry<Long, Long> change : changes.entries.entrySet()) {
+            catchUpEntry(change.getKey(), change.getValue(), external);
+        }
 
-    /**
-     * Get the specified Ledger object.
-     */
-    public Ledger lookupLedger(final long ledgerId) {
-        final Ledger result;
+        discardIndexes();
 
-        result = ledgers.get(ledgerId);
-        if (result == null) {
-            throw new IllegalStateException("We require all Ledgers to be preloaded");
+        if (external.size() > 0) {
+            deliver(external);
         }
-
-        return result;
     }
 
     /**
-     * Get the Currency object corresponding to the specified currency code.
+     * Catch up with the changes to the given Transaction, and its Entries,
+     * put off while it was being edited.
      */
-    public Currency lookupCurrency(final String code) {
-        final Currency result;
-
-        /*
-         * Special handling for the "home currency" case.
-         */
-
-        if (code == null) {
-            return null;
+    private void catchUpDeferred(long transactionId) {
+        final ChangeSet external;
+        final ArrayList<Long> entryIds;
+        Entry cached;
+
+        external = new ChangeSet();
+
+        entryIds = new ArrayList<Long>();
+        for (Long entryId : deferredEntries.keySet()) {
+            cached = cachedEntry(entryId);
+            if ((cached == null) || (cached.getParentTransaction().getID() == transactionId)) {
+                entryIds.add(entryId);
+            }
         }
 
-        result = currencies.get(code);
-        if (result == null) {
-            throw new IllegalStateException("We require all Currencies to be preloaded");
+        if (deferredTransactions.containsKey(transactionId)) {
+            catchUpTransaction(transactionId, deferredTransactions.remove(transactionId), external);
+        }
+        for (Long entryId : entryIds) {
+            catchUpEntry(entryId, deferredEntries.remove(entryId), external);
         }
 
-        return result;
+        if (external.size() > 0) {
+            discardIndexes();
+            deliver(external);
+        }
     }
 
-    /**
+    private Transaction cachedTransaction(long transactionId) {
+        if (lazy) {
+            return recentTransactions.get(transactionId);
+        } else {
+            return transactions.get(transactionId);
+        }
+    }
+
+    private Entry cachedEntry(long entryId) {
+        if (lazy) {
+            return recentEntries.get(entryId);
+        } else {
+            return entries.get(entryId);
+        }
+    }
+
+    private long[] cachedTransactionIds() {
+        final Transaction[] all;
+        final long[] result;
+        int i;
+
+        if (lazy) {
+            return recentTransactions.ids();
+        }
+
+        all = transactions.toArray(new Transaction[transactions.size()]);
+        result = new long[all.length];
+        for (i = 0; i < all.length; i++) {
+            result[i] = all[i].getID();
+        }
+
+        return result;
+    }
+
+    private long[] cachedEntryIds() {
+        final Entry[] all;
+        final long[] result;
+        int i;
+
+        if (lazy) {
+            return recentEntries.ids();
+        }
+
+        all = entries.toArray(new Entry[entries.size()]);
+        result = new long[all.length];
+        for (i = 0; i < all.length; i++) {
+            result[i] = all[i].getID();
+        }
+
+        return result;
+    }
+
+    /**
+     * Bring the given Transaction up to date with its row, which is now at
+     * <code>version</code>, or <code>null</code> if it has been deleted.
+     */
+    private void catchUpTransaction(long transactionId, Long version, ChangeSet external) {
+        final Transaction cached;
+        final Transaction fresh;
+
+        cached = cachedTransaction(transactionId);
+
+        versions.setTransaction(transactionId, version);
+
+        if ((cached != null) && editing.contains(transactionId)) {
+            if ((version == null) || (cached.getVersion() != version)) {
+                deferredTransactions.put(transactionId, version);
+            }
+            return;
+        }
+
+        if (version == null) {
+            if (cached != null) {
+                forget(cached);
+                external.add(ChangeSet.DELETED, cached);
+            }
+            return;
+        }
+
+        if (cached == null) {
+            if (!lazy) {
+                fresh = fetchTransaction(transactionId);
+                cache(fresh);
+                external.add(ChangeSet.CREATED, fresh);
+            }
+            return;
+        }
+
+        if (cached.getVersion() == version) {
+            return;
+        }
+
+        fresh = fetchTransaction(transactionId);
+
+        cached.setDate(fresh.getDate());
+        cached.setDescription(fresh.getDescription());
+        cached.setReference(fresh.getReference());
+        ((DomainObject) cached).setVersion(version);
+
+        external.add(ChangeSet.UPDATED, cached);
+    }
+
+    /**
+     * Bring the given Entry up to date with its row, as above.
+     */
+    private void catchUpEntry(long entryId, Long version, ChangeSet external) {
+        final Entry cached;
+        final Entry fresh;
+
+        cached = cachedEntry(entryId);
+
+        versions.setEntry(entryId, version);
+
+        if ((cached != null) && editing.contains(cached.getParentTransaction().getID())) {
+            if ((version == null) || (cached.getVersion() != version)) {
+                deferredEntries.put(entryId, version);
+            }
+            return;
+        }
+
+        if (version == null) {
+            if (cached != null) {
+                forget(cached);
+                external.add(ChangeSet.DELETED, cached);
+            }
+            return;
+        }
+
+        if (cached == null) {
+            if (!lazy) {
+                fresh = fetchEntry(entryId);
+                cache(fresh);
+                external.add(ChangeSet.CREATED, fresh);
+            }
+            return;
+        }
+
+        if (cached.getVersion() == version) {
+            return;
+        }
+
+        fresh = fetchEntry(entryId);
+
+        /*
+         * A Debit can't become a Credit in place; swap in the new object.
+         */
+
+        if (fresh.getClass() != cached.getClass()) {
+            forget(cached);
+            cache(fresh);
+            external.add(ChangeSet.DELETED, cached);
+            external.add(ChangeSet.CREATED, fresh);
+            return;
+        }
+
+        cached.setParentLedger(fresh.getParentLedger());
+        cached.setAmount(fresh.getAmount());
+        cached.setCurrency(fresh.getCurrency());
+        cached.setValue(fresh.getValue());
+        ((DomainObject) cached).setVersion(version);
+
+        external.add(ChangeSet.UPDATED, cached);
+    }
+
+    /**
+     * Lend out a read-only connection to the book. Readers are opened as
+     * needed, up to a limit; beyond that this blocks until one is returned
+     * with {@link #returnReader(StatementCache) returnReader()}. Can be
+     * called from any thread.
+     */
+    /*
+     * In WAL mode readers see the last committed state of the database and
+     * don't block, or get blocked by, the writer connection.
+     */
+    synchronized StatementCache borrowReader() {
+        final Database conn;
+        final StatementCache result;
+        final Statement stmt;
+        final int num;
+
+        while ((readers.size() == 0) && (opened == READERS)) {
+            try {
+                this.wait();
+            } catch (InterruptedException ie) {
+                throw new IllegalStateException("\n" + "Interrupted waiting for a reader connection");
+            }
+        }
+
+        num = readers.size();
+        if (num > 0) {
+            return readers.remove(num - 1);
+        }
+
+        conn = new Database(filename);
+        result = new StatementCache(conn);
+
+        stmt = result.prepare("PRAGMA query_only = 1");
+        stmt.step();
+        result.finish(stmt);
+
+        opened++;
+        return result;
+    }
+
+    synchronized void returnReader(StatementCache reader) {
+        readers.add(reader);
+        this.notify();
+    }
+
+    /**
+     * Get the cache of prepared Statements, in order to see how effective it
+     * is being.
+     */
+    public StatementCache getStatements() {
+        return statements;
+    }
+
+    /*
+     * There is one writer connection, and a database transaction on it is
+     * shared by everything using it. So that one thread's writes don't end
+     * up inside (and rolled back with) another thread's transaction, and its
+     * reads don't see another's uncommitted rows, the connection is held by
+     * one thread at a time: from begin() until commit() or rollback(), or
+     * for the duration of a single write outside a transaction. Readers
+     * wanting the connection wait until it is free.
+     */
+
+    /**
+     * The thread holding the writer connection, if any.
+     */
+    private Thread writer;
+
+    /**
+     * How many times the writer has entered without leaving.
+     */
+    private int holds;
+
+    /**
+     * The holds outstanding when the current transaction began, to go back
+     * to when it ends.
+     */
+    private int outside;
+
+    /**
+     * Take the writer connection, waiting for another thread to finish
+     * with it if necessary. Reentrant; each call must be paired with
+     * {@link #leave() leave()}.
+     */
+    synchronized void enter() {
+        final Thread current;
+
+        current = Thread.currentThread();
+
+        while ((writer != null) && (writer != current)) {
+            try {
+                this.wait();
+            } catch (InterruptedException ie) {
+                throw new IllegalStateException("\n" + "Interrupted waiting for the database");
+            }
+        }
+
+        writer = current;
+        holds++;
+    }
+
+    synchronized void leave() {
+        relinquish(holds - 1);
+    }
+
+    private synchronized void relinquish(int remaining) {
+        holds = remaining;
+        if (holds == 0) {
+            writer = null;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until no other thread holds the writer connection. The caller
+     * must be synchronized on this DataStore, and then has the connection
+     * (and the caches) to itself until it returns, since taking the
+     * connection requires the lock.
+     */
+    private synchronized void claim() {
+        final Thread current;
+
+        current = Thread.currentThread();
+
+        while ((writer != null) && (writer != current)) {
+            try {
+                this.wait();
+            } catch (InterruptedException ie) {
+                throw new IllegalStateException("\n" + "Interrupted waiting for the database");
+            }
+        }
+    }
+
+    /*
+     * Lists and searches, which are what windows show, go ahead over a
+     * reader connection while another thread has the writer, rather than
+     * waiting for its transaction to finish. They see what was last
+     * committed, and don't catch up; the Changed handlers are told about
+     * the rest once it is committed. A row another program has committed
+     * since we last caught up isn't in memory yet, and is left out until
+     * then. Otherwise they use the writer connection, and so see the
+     * current thread's own changes.
+     */
+    private synchronized StatementCache borrowForReading() {
+        final Thread current;
+
+        current = Thread.currentThread();
+
+        if ((writer == null) || (writer == current)) {
+            return statements;
+        }
+        return borrowReader();
+    }
+
+    private synchronized void returnFromReading(StatementCache conn) {
+        if (conn != statements) {
+            returnReader(conn);
+        }
+    }
+
+    /**
+     * Start a database transaction. We take the write lock immediately,
+     * since the only reason we do this is to write. Other threads wanting
+     * to use the writer connection wait until the transaction is committed
+     * or rolled back.
+     */
+    public void begin() {
+        final Statement stmt;
+        final int was;
+
+        enter();
+
+        synchronized (this) {
+            was = holds - 1;
+        }
+
+        try {
+            stmt = statements.prepare("BEGIN IMMEDIATE");
+            stmt.step();
+            statements.finish(stmt);
+        } catch (RuntimeException re) {
+            relinquish(was);
+            throw re;
+        }
+
+        outside = was;
+        open = true;
+
+        /*
+         * Holding the write lock, nobody else can change anything until we
+         * commit, so once caught up every change logged from here on is
+         * ours.
+         */
+
+        checkStale();
+    }
+
+    /**
+     * Commit the current database transaction, then tell the
+     * {@link DataStore.Changed Changed} handlers what it did.
+     */
+    public void commit() {
+        final long last;
+        Statement stmt;
+
+        if (open && (versions != null)) {
+            last = versions.latest();
+        } else {
+            last = 0;
+        }
+
+        stmt = statements.prepare("COMMIT");
+        stmt.step();
+        statements.finish(stmt);
+
+        synchronized (this) {
+            if (versions != null) {
+                versions.commit(last);
+            }
+            deleted.clear();
+        }
+
+        open = false;
+
+        try {
+            notifyChanged();
+        } finally {
+            relinquish(outside);
+        }
+    }
+
+    public void rollback() {
+        final Statement stmt;
+
+        /*
+         * Nothing to do if begin() failed, and certainly nothing to do to
+         * someone else's transaction.
+         */
+
+        synchronized (this) {
+            if ((writer != Thread.currentThread()) || !open) {
+                return;
+            }
+        }
+
+        try {
+            stmt = statements.prepare("ROLLBACK");
+            stmt.step();
+            statements.finish(stmt);
+        } finally {
+            open = false;
+            synchronized (this) {
+                pending = new ChangeSet();
+                mark = 0;
+                if (versions != null) {
+                    versions.rollback();
+                }
+                restoreDeleted(0);
+            }
+
+            discardIndexes();
+            relinquish(outside);
+        }
+    }
+
+    /**
+     * Mark a point inside the current database transaction that can be
+     * rolled back to without losing the work done before it.
+     */
+    public void savepoint() {
+        final Statement stmt;
+
+        stmt = statements.prepare("SAVEPOINT posting");
+        stmt.step();
+        statements.finish(stmt);
+
+        synchronized (this) {
+            mark = pending.size();
+            deletedMark = deleted.size();
+            versions.savepoint();
+        }
+    }
+
+    /**
+     * Keep the work done since {@link #savepoint() savepoint()}; it will be
+     * committed along with the rest of the transaction.
+     */
+    public void release() {
+        final Statement stmt;
+
+        stmt = statements.prepare("RELEASE posting");
+        stmt.step();
+        statements.finish(stmt);
+    }
+
+    /**
+     * Discard the work done since {@link #savepoint() savepoint()}, leaving
+     * the enclosing transaction open. Objects written since then go back to
+     * the versions they had.
+     */
+    public void rollbackSavepoint() {
+        Statement stmt;
+
+        stmt = statements.prepare("ROLLBACK TO posting");
+        stmt.step();
+        statements.finish(stmt);
+
+        stmt = statements.prepare("RELEASE posting");
+        stmt.step();
+        statements.finish(stmt);
+
+        synchronized (this) {
+            pending.truncate(mark);
+            versions.rollbackSavepoint();
+            restoreDeleted(deletedMark);
+        }
+
+        discardIndexes();
+    }
+
+    /*
+     * Once versions have gone back, so that the Entries are cached at the
+     * versions their rows are at again.
+     */
+    private void restoreDeleted(int from) {
+        int i;
+
+        for (i = deleted.size() - 1; i >= from; i--) {
+            cache(deleted.remove(i));
+        }
+    }
+
+    /*
+     * If nothing has been committed since the snapshot was read, it's still
+     * good and there's no need to write it again.
+     */
+    public void close() {
+        final long stamp;
+        Statement stmt;
+
+        for (DataStore.Closing handler : closing) {
+            handler.onClosing(this);
+        }
+
+        synchronized (this) {
+            for (StatementCache reader : readers) {
+                reader.close();
+                reader.getDatabase().close();
+            }
+            readers.clear();
+            opened = 0;
+        }
+
+        pruneChanges();
+
+        /*
+         * Move everything in the write-ahead log into the database proper,
+         * leaving the book as a single file (and the snapshot stamp valid).
+         */
+
+        stmt = statements.prepare("PRAGMA wal_checkpoint(TRUNCATE)");
+        stmt.step();
+        statements.finish(stmt);
+
+        if (!lazy) {
+            stamp = Snapshot.stamp(filename);
+            if ((stamp != 0) && (stamp != loaded)) {
+                Snapshot.write(this, filename, stamp);
+            }
+        }
+
+        statements.close();
+        db.close();
+    }
+
+    private IdentityMap<Account> accounts;
+
+    synchronized void cache(Account a) {
+        accounts.put(a.getID(), a);
+        names.add(a);
+    }
+
+    private IdentityMap<Ledger> ledgers;
+
+    /**
+     * The Ledgers by Account title and Ledger name.
+     */
+    private LedgerNames names;
+
+    synchronized void cache(Ledger l) {
+        ledgers.put(l.getID(), l);
+        names.add(l);
+    }
+
+    /**
+     * All the Transactions, when everything is loaded.
+     */
+    private IdentityMap<Transaction> transactions;
+
+    /**
+     * The Transactions most recently used, when they are loaded lazily.
+     */
+    private ObjectCache<Transaction> recentTransactions;
+
+    synchronized void cache(Transaction t) {
+        ((DomainObject) t).setVersion(versions.ofTransaction(t.getID()));
+        if (lazy) {
+            recentTransactions.put(t.getID(), t);
+        } else {
+            transactions.put(t.getID(), t);
+        }
+    }
+
+    private IdentityMap<Entry> entries;
+
+    private ObjectCache<Entry> recentEntries;
+
+    synchronized void cache(Entry e) {
+        ((DomainObject) e).setVersion(versions.ofEntry(e.getID()));
+        if (lazy) {
+            recentEntries.put(e.getID(), e);
+        } else {
+            entries.put(e.getID(), e);
+            link(e);
+        }
+    }
+
+    /**
+     * How many bytes of Transactions and Entries a lazy DataStore keeps in
+     * memory by default.
+     */
+    private static final long BUDGET = 16 * 1024 * 1024;
+
+    /*
+     * Rough sizes, for a 64 bit VM: an object header and fields, plus
+     * Strings at 40 bytes each and two per character.
+     */
+
+    private static long sizeOf(String str) {
+        if (str == null) {
+            return 0;
+        }
+        return 40 + 2 * str.length();
+    }
+
+    private void setupRecent() {
+        recentTransactions = new ObjectCache<Transaction>(BUDGET / 2) {
+            long sizeOf(Transaction t) {
+                return 48 + DataStore.sizeOf(t.getDescription()) + DataStore.sizeOf(t.getReference());
+            }
+        };
+
+        /*
+         * An Entry is kept as long as its Transaction is pinned, so the
+         * editor working on a Transaction sees the same Entries as everyone
+         * else.
+         */
+
+        recentEntries = new ObjectCache<Entry>(BUDGET / 2) {
+            long sizeOf(Entry e) {
+                return 56;
+            }
+
+            boolean isEvictable(Entry e) {
+                return !recentTransactions.isPinned(e.getParentTransaction().getID());
+            }
+        };
+    }
+
+    /**
+     * Change how many bytes of Transactions and Entries are kept in memory,
+     * split evenly between the two. Only meaningful if the DataStore is
+     * lazy; otherwise everything is in memory regardless.
+     */
+    public void setCacheBudget(long bytes) {
+        if (!lazy) {
+            return;
+        }
+        recentTransactions.setBudget(bytes / 2);
+        recentEntries.setBudget(bytes / 2);
+    }
+
+    /**
+     * Get the cache of recently used Transactions, in order to see how
+     * effective it is being. Returns <code>null</code> if the DataStore
+     * isn't lazy.
+     */
+    public ObjectCache<Transaction> getTransactionCache() {
+        return recentTransactions;
+    }
+
+    /**
+     * Get the cache of recently used Entries, or <code>null</code> if the
+     * DataStore isn't lazy.
+     */
+    public ObjectCache<Entry> getEntryCache() {
+        return recentEntries;
+    }
+
+    /**
+     * Keep the given Transaction, and its Entries, in memory until
+     * {@link #unpin(Transaction) unpin()} is called. Do this while editing
+     * it, so that nobody else gets a different copy in the meantime. While
+     * pinned it, and its Entries, are also left alone when catching up with
+     * changes made by other programs, so that what is being edited isn't
+     * changed underneath the editor; saving it will then fail with a
+     * {@link ConflictException}. Does nothing if the Transaction hasn't been
+     * written to the database yet.
+     */
+    public synchronized void pin(Transaction t) {
+        if (t.getID() == 0) {
+            return;
+        }
+        editing.add(t.getID());
+        if (lazy) {
+            recentTransactions.pin(t.getID(), t);
+        }
+    }
+
+    public synchronized void unpin(Transaction t) {
+        if (t.getID() == 0) {
+            return;
+        }
+        editing.remove(t.getID());
+        if (lazy) {
+            recentTransactions.unpin(t.getID());
+        }
+        catchUpDeferred(t.getID());
+    }
+
+    /**
+     * The Entries of each Transaction, by Transaction ID, in Entry ID
+     * order. Only kept when everything is loaded; a lazy DataStore asks the
+     * database instead.
+     */
+    private IdentityMap<Entry[]> siblings;
+
+    private static final Entry[] NONE = new Entry[0];
+
+    /*
+     * Transactions have two or three Entries, so a plain array copied on
+     * change is smaller than any collection would be.
+     */
+    private void link(Entry e) {
+        final long transactionId, entryId;
+        final Entry[] existing, replacement;
+        int i, j;
+
+        transactionId = e.getParentTransaction().getID();
+        entryId = e.getID();
+
+        existing = siblings.get(transactionId);
+        if (existing == null) {
+            siblings.put(transactionId, new Entry[] {
+                e
+            });
+            return;
+        }
+
+        for (i = 0; i < existing.length; i++) {
+            if (existing[i] == e) {
+                return;
+            }
+        }
+
+        replacement = new Entry[existing.length + 1];
+        j = 0;
+        for (i = 0; i < existing.length; i++) {
+            if ((j == i) && (existing[i].getID() > entryId)) {
+                replacement[j++] = e;
+            }
+            replacement[j++] = existing[i];
+        }
+        if (j == existing.length) {
+            replacement[j] = e;
+        }
+
+        siblings.put(transactionId, replacement);
+    }
+
+    private void unlink(Entry e) {
+        final long transactionId;
+        final Entry[] existing, replacement;
+        int i, j;
+
+        transactionId = e.getParentTransaction().getID();
+
+        existing = siblings.get(transactionId);
+        if (existing == null) {
+            return;
+        }
+
+        if ((existing.length == 1) && (existing[0] == e)) {
+            siblings.remove(transactionId);
+            return;
+        }
+
+        replacement = new Entry[existing.length - 1];
+        j = 0;
+        for (i = 0; i < existing.length; i++) {
+            if (existing[i] == e) {
+                continue;
+            }
+            if (j == replacement.length) {
+                return;
+            }
+            replacement[j++] = existing[i];
+        }
+
+        siblings.put(transactionId, replacement);
+    }
+
+    private HashMap<String, Currency> currencies;
+
+    synchronized void cache(Currency c) {
+        currencies.put(c.getCode(), c);
+    }
+
+    private IdentityMap<Worker> workers;
+
+    synchronized void cache(Worker w) {
+        workers.put(w.getID(), w);
+    }
+
+    /*
+     * The caches are sized up front from the number of rows, to save them
+     * growing (and rehashing) repeatedly as a big book is loaded.
+     */
+    private void setupCaches() {
+        accounts = new IdentityMap<Account>(count("accounts"));
+        ledgers = new IdentityMap<Ledger>(count("ledgers"));
+        names = new LedgerNames(count("ledgers"));
+        currencies = new HashMap<String, Currency>();
+        workers = new IdentityMap<Worker>(count("workers"));
+        registers = new IdentityMap<LedgerIndex>();
+
+        if (lazy) {
+            transactions = null;
+            entries = null;
+            siblings = null;
+            setupRecent();
+        } else {
+            transactions = new IdentityMap<Transaction>(count("transactions"));
+            entries = new IdentityMap<Entry>(count("entries"));
+            siblings = new IdentityMap<Entry[]>(count("transactions"));
+        }
+    }
+
+    /**
+     * How many rows are in the given table?
+     */
+    int count(String table) {
+        final Statement stmt;
+        final int result;
+
+        stmt = statements.prepare("SELECT count() FROM " + table);
+        stmt.step();
+        result = (int) stmt.columnInteger(0);
+        statements.finish(stmt);
+
+        return result;
+    }
+
+    /**
+     * Describe how much memory the object caches are taking, for diagnostic
+     * purposes. This is the caches' own overhead, not the domain objects
+     * they hold.
+     */
+    public String reportFootprint() {
+        final StringBuilder buf;
+
+        buf = new StringBuilder();
+        buf.append("Accounts:     ").append(accounts).append('\n');
+        buf.append("Ledgers:      ").append(ledgers).append('\n');
+        buf.append("Workers:      ").append(workers).append('\n');
+        if (lazy) {
+            buf.append("Transactions: ").append(recentTransactions).append('\n');
+            buf.append("Entries:      ").append(recentEntries).append('\n');
+        } else {
+            buf.append("Transactions: ").append(transactions).append('\n');
+            buf.append("Entries:      ").append(entries).append('\n');
+        }
+        if (columns != null) {
+            buf.append("EntryIndex:   ").append(columns).append('\n');
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Load and cache Currency objects.
+     */
+    private void loadCurrencies() {
+        final Statement stmt;
+        String code, name, symbol;
+        Currency currency;
+
+        stmt = statements.prepare("SELECT c.code, c.name, c.symbol FROM currencies c");
+
+        while (stmt.step()) {
+            code = stmt.columnText(0);
+            name = stmt.columnText(1);
+            symbol = stmt.columnText(2);
+
+            currency = makeCurrency(code, name, symbol);
+
+            this.cache(currency);
+        }
+
+        statements.finish(stmt);
+    }
+
+    static Currency makeCurrency(String code, String name, String symbol) {
+        if (code == null) {
+            throw new IllegalArgumentException();
+        }
+        if (name == null) {
+            throw new IllegalArgumentException();
+        }
+        if (symbol == null) {
+            throw new IllegalArgumentException();
+        }
+
+        return new Currency(code, name, symbol);
+    }
+
+    /**
+     * Load and cache all Account objects from the database.
+     */
+    private void loadAccounts() {
+        final Statement stmt;
+        long accountId, direction;
+        String type, title;
+        Account account;
+
+        stmt = statements.prepare("SELECT a.account_id, a.title, y.class, a.direction FROM accounts a, types y WHERE a.type_id = y.type_id");
+
+        while (stmt.step()) {
+            accountId = stmt.columnInteger(0);
+            title = stmt.columnText(1);
+            type = stmt.columnText(2);
+            direction = stmt.columnInteger(3);
+
+            account = makeAccount(accountId, type, title, direction);
+
+            this.cache(account);
+        }
+
+        statements.finish(stmt);
+    }
+
+    /**
+     * Load and cache all Ledgers from the database. Requires that Accounts
+     * and Currencies already be loaded.
+     */
+    private void loadLedgers() {
+        final Statement stmt;
+        long ledgerId, accountId, direction;
+        String name, code;
+        Account parent;
+        Currency currency;
+        Ledger ledger;
+
+        stmt = statements.prepare("SELECT l.ledger_id, l.account_id, l.name, l.currency, l.direction FROM ledgers l");
+
+        while (stmt.step()) {
+            ledgerId = stmt.columnInteger(0);
+            accountId = stmt.columnInteger(1);
+            name = stmt.columnText(2);
+            code = stmt.columnText(3);
+            direction = stmt.columnInteger(4);
+
+            parent = lookupAccount(accountId);
+            currency = lookupCurrency(code);
+
+            ledger = makeLedger(ledgerId, parent, name, currency, direction);
+
+            this.cache(ledger);
+        }
+
+        statements.finish(stmt);
+    }
+
+    /**
+     * Construct a Ledger object corresponding to the given rowid.
+     */
+    static Ledger makeLedger(long ledgerId, Account parent, String name, Currency currency,
+            long direction) {
+        final Ledger result;
+
+        if (direction == 1) {
+            result = new DebitPositiveLedger(ledgerId);
+        } else if (direction == -1) {
+            result = new CreditPositiveLedger(ledgerId);
+        } else {
+            throw new IllegalArgumentException("\n" + "Can't have directionless Entries");
+        }
+
+        if (name == null) {
+            throw new IllegalArgumentException();
+        }
+
+        result.setName(name);
+        result.setParentAccount(parent);
+        result.setCurrency(currency);
+
+        return result;
+    }
+
+    /**
+     * Get the specified Account object.
+     */
+    public Account lookupAccount(final long accountId) {
+        final Account result;
+
+        result = accounts.get(accountId);
+        if (result == null) {
+            throw new IllegalStateException("We require all Accounts to be preloaded");
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the Accounts with the given title. There is usually exactly one;
+     * an empty array if there are none.
+     */
+    public synchronized Account[] lookupAccounts(String title) {
+        return names.titled(title);
+    }
+
+    /**
+     * Change the title (and what else?) of an Account. Its Ledgers are
+     * reported as updated, since they are known by their Account's title.
+     */
+    /*
+     * TODO
+     */
+    public void updateAccount(Account account) {
+        final Statement stmt;
+        final long accountId;
+        final String title;
+
+        enter();
+        try {
+            stmt = statements.prepare("UPDATE accounts SET title = ? WHERE account_id = ?");
+
+            title = account.getTitle();
+            stmt.bindText(1, title);
+
+            accountId = account.getID();
+            stmt.bindInteger(2, accountId);
+
+            stmt.step();
+            statements.finish(stmt);
+
+            for (Ledger ledger : refile(account)) {
+                changed(ChangeSet.UPDATED, ledger);
+            }
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * File the given Account, and its Ledgers, under its new title.
+     */
+    private synchronized Ledger[] refile(Account account) {
+        final Ledger[] result;
+
+        names.add(account);
+
+        result = names.ledgersOf(account);
+        for (Ledger ledger : result) {
+            names.add(ledger);
+        }
+
+        return result;
+    }
+
+    /**
+     * Delete the given Account. All referring Ledgers must have been deleted!
+     */
+    /*
+     * TODO
+     */
+    public void deleteAccount(Account account) {
+        final Statement stmt;
+        final long accountId;
+
+        enter();
+        try {
+            stmt = statements.prepare("DELETE FROM accounts WHERE account_id = ?");
+
+            accountId = account.getID();
+            stmt.bindInteger(1, accountId);
+
+            stmt.step();
+            statements.finish(stmt);
+
+            synchronized (this) {
+                accounts.remove(accountId);
+                names.remove(account);
+            }
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Add a new Ledger to the database. Its Account must already exist.
+     */
+    public void createLedger(Ledger ledger) {
+        final Statement stmt;
+        final long ledgerId;
+
+        enter();
+        try {
+            stmt = statements.prepare("INSERT INTO ledgers (account_id, name, currency, direction) VALUES (?, ?, ?, ?)");
+
+            stmt.bindInteger(1, ledger.getParentAccount().getID());
+            stmt.bindText(2, ledger.getName());
+            bindCurrency(stmt, 3, ledger.getCurrency());
+            stmt.bindInteger(4, naturalDirection(ledger));
+
+            stmt.step();
+            statements.finish(stmt);
+
+            ledgerId = db.lastInsertRowID();
+            ledger.setID(ledgerId);
+
+            synchronized (this) {
+                this.cache(ledger);
+                cache = null;
+            }
+
+            changed(ChangeSet.CREATED, ledger);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Write a Ledger's name, Account and currency back to the database.
+     */
+    public void updateLedger(Ledger ledger) {
+        final Statement stmt;
+
+        enter();
+        try {
+            stmt = statements.prepare("UPDATE ledgers SET account_id = ?, name = ?, currency = ? WHERE ledger_id = ?");
+
+            stmt.bindInteger(1, ledger.getParentAccount().getID());
+            stmt.bindText(2, ledger.getName());
+            bindCurrency(stmt, 3, ledger.getCurrency());
+            stmt.bindInteger(4, ledger.getID());
+
+            stmt.step();
+            statements.finish(stmt);
+
+            synchronized (this) {
+                names.add(ledger);
+                cache = null;
+            }
+
+            changed(ChangeSet.UPDATED, ledger);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Delete the given Ledger. All Entries against it must have been
+     * deleted!
+     */
+    public void deleteLedger(Ledger ledger) {
+        final long ledgerId;
+        Statement stmt;
+
+        enter();
+        try {
+            ledgerId = ledger.getID();
+
+            stmt = statements.prepare("DELETE FROM ledger_balances WHERE ledger_id = ?");
+            stmt.bindInteger(1, ledgerId);
+            stmt.step();
+            statements.finish(stmt);
+
+            stmt = statements.prepare("DELETE FROM period_checkpoints WHERE ledger_id = ?");
+            stmt.bindInteger(1, ledgerId);
+            stmt.step();
+            statements.finish(stmt);
+
+            stmt = statements.prepare("DELETE FROM ledgers WHERE ledger_id = ?");
+            stmt.bindInteger(1, ledgerId);
+            stmt.step();
+            statements.finish(stmt);
+
+            synchronized (this) {
+                ledgers.remove(ledgerId);
+                names.remove(ledger);
+                registers.remove(ledgerId);
+                cache = null;
+            }
+
+            changed(ChangeSet.DELETED, ledger);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    private static void bindCurrency(Statement stmt, int index, Currency currency) {
+        if (currency == null) {
+            stmt.bindNull(index);
+        } else {
+            stmt.bindText(index, currency.getCode());
+        }
+    }
+
+    /**
+     * Get the specified Ledger object.
+     */
+    public Ledger lookupLedger(final long ledgerId) {
+        final Ledger result;
+
+        result = ledgers.get(ledgerId);
+        if (result == null) {
+            throw new IllegalStateException("We require all Ledgers to be preloaded");
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the Ledgers with the given name in an Account with the given
+     * title. There is usually exactly one; an empty array if there are
+     * none.
+     */
+    public synchronized Ledger[] lookupLedgers(String title, String name) {
+        return names.get(title, name);
+    }
+
+    /**
+     * Get the Ledgers with the given name, whatever Account they are in.
+     */
+    public synchronized Ledger[] lookupLedgers(String name) {
+        return names.get(name);
+    }
+
+    /**
+     * Get the Ledgers whose name, or whose Account's title, begins with the
+     * given text, ignoring case. This is for completing what someone has
+     * started typing.
+     */
+    public synchronized Ledger[] completeLedgers(String prefix) {
+        return names.complete(prefix);
+    }
+
+    /**
+     * Get the Currency object corresponding to the specified currency code.
+     */
+    public Currency lookupCurrency(final String code) {
+        final Currency result;
+
+        /*
+         * Special handling for the "home currency" case.
+         */
+
+        if (code == null) {
+            return null;
+        }
+
+        result = currencies.get(code);
+        if (result == null) {
+            throw new IllegalStateException("We require all Currencies to be preloaded");
+        }
+
+        return result;
+    }
+
+    /**
      * Given values, build an Account object.
      */
     /*
-     * Could have used reflection, of course but this is just as simple and
-     * much more strongly typed.
+     * Could have used reflection, of course but this is just as simple and
+     * much more strongly typed.
+     */
+    static Account makeAccount(long accountId, String type, String title, long direction) {
+        final Account result;
+
+        if (direction == 1) {
+            if (type.equals("BankAccount")) {
+                result = new BankAccount(accountId);
+            } else if (type.equals("Cash")) {
+                result = new CashAccount(accountId);
+            } else if (type.equals("AccountsReceivable")) {
+                result = new AccountsReceivableAccount(accountId);
+            } else if (type.equals("DepreciatingAsset")) {
+                result = new DepreciatingAssetAccount(accountId);
+            } else if (type.equals("GenericExpense")) {
+                result = new GenericExpenseAccount(accountId);
+            } else {
+                result = null;
+            }
+        } else if (direction == -1) {
+            if (type.equals("AccountsPayable")) {
+                result = new AccountsPayableAccount(accountId);
+            } else if (type.equals("ReimbursableExpensesPayable")) {
+                result = new ReimbursableExpensesPayableAccount(accountId);
+            } else if (type.equals("SalesTaxPayable")) {
+                result = new SalesTaxPayableAccount(accountId);
+            } else if (type.equals("PayrollTaxPayable")) {
+                result = new PayrollTaxPayableAccount(accountId);
+            } else if (type.equals("LoanPayable")) {
+                result = new LoanPayableAccount(accountId);
+            } else if (type.equals("OwnersEquity")) {
+                result = new OwnersEquityAccount(accountId);
+            } else if (type.equals("ProfessionalRevenue")) {
+                result = new ProfessionalRevenueAccount(accountId);
+            } else if (type.equals("CurrencyGainLoss")) {
+                throw new UnsupportedOperationException(); // well?
+            } else {
+                result = null;
+            }
+        } else {
+            throw new IllegalStateException("Can't have directionless Accounts " + accountId);
+        }
+
+        if (result == null) {
+            throw new IllegalArgumentException("\n" + "Unknown Account type " + type + " for ("
+                    + accountId + ")");
+        }
+
+        if (title == null) {
+            throw new IllegalArgumentException();
+        }
+
+        result.setTitle(title);
+        return result;
+    }
+
+    /*
+     * This is not ideal; once we get up to speed we are NOT going to want to
+     * load the entire list of Transactions, especially just to do normal data
+     * entry. Open the DataStore lazily if you want to avoid this.
+     */
+    private void loadTransactions() {
+        Statement stmt;
+        String[] sql;
+        long transactionId, timestamp, entryId, ledgerId, amount, value, direction;
+        String type, description, reference, code;
+        Transaction transaction;
+        Ledger ledger;
+        Entry entry;
+        Currency currency;
+
+        sql = new String[] {
+            "SELECT t.transaction_id, y.class, t.datestamp, t.description, t.reference",
+            "FROM transactions t, types y",
+            "WHERE t.type_id = y.type_id"
+        };
+
+        stmt = statements.prepare(combine(sql));
+
+        while (stmt.step()) {
+            transactionId = stmt.columnInteger(0);
+            type = stmt.columnText(1);
+            timestamp = stmt.columnInteger(2);
+            description = stmt.columnText(3);
+            reference = stmt.columnText(4);
+
+            transaction = makeTransaction(transactionId, type, timestamp, description, reference);
+
+            this.cache(transaction);
+        }
+
+        statements.finish(stmt);
+
+        sql = new String[] {
+            "SELECT e.entry_id, e.transaction_id, e.ledger_id, e.amount, e.currency, e.value, e.direction",
+            "FROM entries e"
+        };
+
+        stmt = statements.prepare(combine(sql));
+
+        while (stmt.step()) {
+            entryId = stmt.columnInteger(0);
+            transactionId = stmt.columnInteger(1);
+            ledgerId = stmt.columnInteger(2);
+            amount = stmt.columnInteger(3);
+            code = stmt.columnText(4);
+            value = stmt.columnInteger(5);
+            direction = stmt.columnInteger(6);
+
+            transaction = findTransaction(transactionId);
+            ledger = lookupLedger(ledgerId);
+            currency = lookupCurrency(code);
+
+            entry = makeEntry(entryId, transaction, ledger, amount, currency, value, direction);
+
+            this.cache(entry);
+        }
+
+        statements.finish(stmt);
+    }
+
+    /**
+     * Get the specified Transaction. If the DataStore is lazy, it will be
+     * loaded from the database if it isn't already in memory. This doesn't
+     * catch up with changes made by other programs; see
+     * {@link #refresh() refresh()}.
+     */
+    public synchronized Transaction lookupTransaction(final long transactionId) {
+        claim();
+        return findTransaction(transactionId);
+    }
+
+    /**
+     * Get the specified Transaction as for
+     * {@link #lookupTransaction(long) lookupTransaction()}, without first
+     * catching up with changes made by other programs. For use while
+     * loading, and by methods that have already done so.
+     */
+    synchronized Transaction findTransaction(final long transactionId) {
+        Transaction result;
+
+        if (!lazy) {
+            result = transactions.get(transactionId);
+            if (result == null) {
+                throw new IllegalStateException("\n" + "Transaction (" + transactionId + ") isn't loaded");
+            }
+            return result;
+        }
+
+        result = recentTransactions.get(transactionId);
+        if (result == null) {
+            result = fetchTransaction(transactionId);
+
+            this.cache(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Load a single Transaction from the database.
+     */
+    private Transaction fetchTransaction(final long transactionId) {
+        final Statement stmt;
+        final String[] sql;
+        final long timestamp;
+        final String type, description, reference;
+
+        sql = new String[] {
+            "SELECT y.class, t.datestamp, t.description, t.reference",
+            "FROM transactions t, types y",
+            "WHERE t.transaction_id = ? AND t.type_id = y.type_id"
+        };
+
+        stmt = statements.prepare(combine(sql));
+        stmt.bindInteger(1, transactionId);
+
+        if (!stmt.step()) {
+            statements.finish(stmt);
+            throw new IllegalStateException("\n" + "Transaction (" + transactionId + ") doesn't exist");
+        }
+
+        type = stmt.columnText(0);
+        timestamp = stmt.columnInteger(1);
+        description = stmt.columnText(2);
+        reference = stmt.columnText(3);
+
+        statements.finish(stmt);
+
+        return makeTransaction(transactionId, type, timestamp, description, reference);
+    }
+
+    /**
+     * Get a list of all known Transactions.
+     */
+    /*
+     * If the DataStore is lazy this will force all Transactions into memory,
+     * which rather defeats the laziness.
+     */
+    public synchronized Transaction[] listTransactions() {
+        final Transaction[] result;
+        final int num;
+        int i;
+        long transactionId;
+        Transaction transaction;
+        Statement stmt;
+
+        checkStale();
+
+        stmt = statements.prepare("SELECT count() FROM transactions");
+        stmt.step();
+        num = (int) stmt.columnInteger(0);
+        statements.finish(stmt);
+
+        result = new Transaction[num];
+
+        stmt = statements.prepare("SELECT transaction_id FROM transactions ORDER BY datestamp");
+
+        i = 0;
+        while (stmt.step()) {
+            transactionId = stmt.columnInteger(0);
+            transaction = findTransaction(transactionId);
+            result[i] = transaction;
+            i++;
+        }
+        statements.finish(stmt);
+
+        return result;
+    }
+
+    /**
+     * Get up to <code>limit</code> Transactions dated from <code>from</code>
+     * to <code>to</code> inclusive, in order of date and then ID. If
+     * <code>after</code> is given, the list starts with the Transaction
+     * following it in that order; pass the last Transaction of one page to
+     * get the next. An array shorter than <code>limit</code> means there are
+     * no more.
+     */
+    /*
+     * Keyset pagination: each page starts where the last left off by
+     * seeking in the index on (datestamp, rowid) rather than by skipping an
+     * ever growing OFFSET, so every page costs the same however deep into
+     * the book it is. The rows are read in full so a lazy DataStore doesn't
+     * go back to the database for each Transaction. Pages reaching into
+     * archived years are read over a reader connection with the archives
+     * attached.
+     */
+    public synchronized Transaction[] listTransactions(long from, long to, int limit, Transaction after) {
+        final Statement stmt;
+        final String[] sql;
+        final ArrayList<Transaction> list;
+        final Transaction[] result;
+        final long afterDate, afterId;
+        StatementCache conn;
+        Transaction transaction;
+
+        if (limit < 1) {
+            throw new IllegalArgumentException("\n" + "Page must have room for at least one Transaction");
+        }
+
+        if (after == null) {
+            afterDate = from;
+            afterId = 0;
+        } else {
+            afterDate = Math.max(from, after.getDate());
+            afterId = after.getDate() < from ? 0 : after.getID();
+        }
+
+        sql = new String[] {
+            "SELECT t.transaction_id, y.class, t.datestamp, t.description, t.reference",
+            "FROM main.transactions t, types y",
+            "WHERE t.datestamp BETWEEN ? AND ?",
+            "AND (t.datestamp > ? OR t.transaction_id > ?)",
+            "AND t.type_id = y.type_id"
+        };
+
+        conn = borrowForReading();
+        if (conn == statements) {
+            checkStale();
+            if (isArchived(afterDate)) {
+                conn = borrowReader();
+            }
+        }
+
+        list = new ArrayList<Transaction>(limit);
+
+        try {
+            if (isArchived(afterDate)) {
+                attachArchives(conn, afterDate, to);
+            }
+
+            stmt = conn.prepare(acrossArchives(sql, new String[] {
+                "ORDER BY 3, 1",
+                "LIMIT ?"
+            }, afterDate, to));
+            stmt.bindInteger(1, afterDate);
+            stmt.bindInteger(2, to);
+            stmt.bindInteger(3, afterDate);
+            stmt.bindInteger(4, afterId);
+            stmt.bindInteger(5, limit);
+
+            while (stmt.step()) {
+                transaction = resolveTransaction(stmt, 0);
+                if (transaction == null) {
+                    continue;
+                }
+                list.add(transaction);
+            }
+
+            conn.finish(stmt);
+        } finally {
+            returnFromReading(conn);
+        }
+
+        result = new Transaction[list.size()];
+        return list.toArray(result);
+    }
+
+    /**
+     * Turn what someone typed into a full text query matching rows that
+     * contain all of its words. Punctuation is taken literally rather than
+     * as query syntax. If <code>prefix</code> is set the last word need only
+     * be the start of one, which is what you want as they are typing.
+     * Returns <code>null</code> if there are no words to look for.
+     */
+    public static String toSearch(String text, boolean prefix) {
+        final String[] words;
+        final StringBuilder buf;
+        int i;
+
+        if (text == null) {
+            return null;
+        }
+
+        words = text.trim().split("\\s+");
+        if (words[0].length() == 0) {
+            return null;
+        }
+
+        buf = new StringBuilder();
+        for (i = 0; i < words.length; i++) {
+            if (i > 0) {
+                buf.append(' ');
+            }
+            buf.append('"');
+            buf.append(words[i].replace("\"", "\"\""));
+            buf.append('"');
+        }
+        if (prefix) {
+            buf.append('*');
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Get up to <code>limit</code> Transactions whose description or
+     * reference contain the given words, best match first. Only the
+     * Transactions in the book itself are searched, not those in archived
+     * years.
+     */
+    /*
+     * FTS5's rank is bm25(), so rarer words and shorter descriptions count
+     * for more. Only the matching rows are read from transactions, and
+     * they're read in full so a lazy DataStore needn't go back for them.
+     */
+    public synchronized Transaction[] search(String query, int limit) {
+        final String match;
+        final StatementCache conn;
+        final Statement stmt;
+        final String[] sql;
+        final ArrayList<Transaction> list;
+        final Transaction[] result;
+        Transaction transaction;
+
+        if (limit < 1) {
+            throw new IllegalArgumentException("\n" + "Must ask for at least one Transaction");
+        }
+
+        match = toSearch(query, true);
+        if (match == null) {
+            return new Transaction[] {};
+        }
+
+        sql = new String[] {
+            "SELECT t.transaction_id, y.class, t.datestamp, t.description, t.reference",
+            "FROM search_transactions s, transactions t, types y",
+            "WHERE search_transactions MATCH ?",
+            "AND t.transaction_id = s.rowid AND t.type_id = y.type_id",
+            "ORDER BY s.rank",
+            "LIMIT ?"
+        };
+
+        conn = borrowForReading();
+        if (conn == statements) {
+            checkStale();
+        }
+
+        list = new ArrayList<Transaction>();
+
+        try {
+            stmt = conn.prepare(combine(sql));
+            stmt.bindText(1, match);
+            stmt.bindInteger(2, limit);
+
+            while (stmt.step()) {
+                transaction = resolveTransaction(stmt, 0);
+                if (transaction == null) {
+                    continue;
+                }
+                list.add(transaction);
+            }
+
+            conn.finish(stmt);
+        } finally {
+            returnFromReading(conn);
+        }
+
+        result = new Transaction[list.size()];
+        return list.toArray(result);
+    }
+
+    /**
+     * Get up to <code>limit</code> Ledgers whose name, or whose Account's
+     * title, contain the given words, best match first.
+     */
+    public synchronized Ledger[] searchLedgers(String query, int limit) {
+        final String match;
+        final Statement stmt;
+        final String[] sql;
+        final ArrayList<Ledger> list;
+        final Ledger[] result;
+
+        checkStale();
+
+        if (limit < 1) {
+            throw new IllegalArgumentException("\n" + "Must ask for at least one Ledger");
+        }
+
+        match = toSearch(query, true);
+        if (match == null) {
+            return new Ledger[] {};
+        }
+
+        sql = new String[] {
+            "SELECT rowid FROM search_ledgers",
+            "WHERE search_ledgers MATCH ?",
+            "ORDER BY rank",
+            "LIMIT ?"
+        };
+
+        stmt = statements.prepare(combine(sql));
+        stmt.bindText(1, match);
+        stmt.bindInteger(2, limit);
+
+        list = new ArrayList<Ledger>();
+
+        while (stmt.step()) {
+            list.add(lookupLedger(stmt.columnInteger(0)));
+        }
+
+        statements.finish(stmt);
+
+        result = new Ledger[list.size()];
+        return list.toArray(result);
+    }
+
+    /**
+     * Get the Transaction for the current row of a query returning
+     * transaction_id, class, datestamp, description and reference, in that
+     * order, starting at column <code>i</code>. If the DataStore is lazy
+     * and the Transaction isn't in memory it is made from the row, saving
+     * going back to the database for it. Returns <code>null</code> if the
+     * Transaction has been deleted since the row was read.
+     */
+    synchronized Transaction resolveTransaction(Statement stmt, int i) {
+        final long transactionId;
+        Transaction result;
+
+        transactionId = stmt.columnInteger(i);
+
+        if (!lazy) {
+            result = transactions.get(transactionId);
+            if ((result != null) || !isArchived(stmt.columnInteger(i + 2))) {
+                return result;
+            }
+        } else {
+            result = recentTransactions.get(transactionId);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        result = makeTransaction(transactionId, stmt.columnText(i + 1), stmt.columnInteger(i + 2),
+                stmt.columnText(i + 3), stmt.columnText(i + 4));
+
+        /*
+         * Archived Transactions aren't part of "everything" when everything
+         * is loaded; they're made afresh each time they are read.
+         */
+
+        if (lazy) {
+            this.cache(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the Entry for the current row of a query returning entry_id,
+     * ledger_id, amount, currency, value and direction, followed by the
+     * columns of its Transaction as for
+     * {@link #resolveTransaction(Statement, int) resolveTransaction()}.
+     */
+    synchronized Entry resolveEntry(Statement stmt) {
+        final long entryId;
+        final Transaction transaction;
+        Entry result;
+
+        entryId = stmt.columnInteger(0);
+
+        if (!lazy) {
+            result = entries.get(entryId);
+            if ((result != null) || !isArchived(stmt.columnInteger(8))) {
+                return result;
+            }
+        } else {
+            result = recentEntries.get(entryId);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        transaction = resolveTransaction(stmt, 6);
+
+        result = makeEntry(entryId, transaction, lookupLedger(stmt.columnInteger(1)), stmt.columnInteger(2),
+                lookupCurrency(stmt.columnText(3)), stmt.columnInteger(4), stmt.columnInteger(5));
+
+        if (lazy) {
+            this.cache(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Go through the Transactions dated from <code>from</code> to
+     * <code>to</code> inclusive, in order of date and then ID, without
+     * holding them all in memory at once (if the DataStore is lazy). This
+     * includes those in archived years.
+     */
+    public Cursor<Transaction> iterateTransactions(long from, long to) {
+        final String[] sql;
+        final Cursor<Transaction> result;
+        final Statement stmt;
+
+        sql = new String[] {
+            "SELECT t.transaction_id, y.class, t.datestamp, t.description, t.reference",
+            "FROM main.transactions t, types y",
+            "WHERE t.datestamp BETWEEN ? AND ? AND t.type_id = y.type_id"
+        };
+
+        result = new Cursor<Transaction>(this, acrossArchives(sql, new String[] {
+            "ORDER BY 3, 1"
+        }, from, to), from, to) {
+            Transaction make(Statement stmt) {
+                return resolveTransaction(stmt, 0);
+            }
+        };
+
+        stmt = result.getStatement();
+        stmt.bindInteger(1, from);
+        stmt.bindInteger(2, to);
+
+        return result;
+    }
+
+    private static final String[] ENTRY_COLUMNS = new String[] {
+        "SELECT e.entry_id, e.ledger_id, e.amount, e.currency, e.value, e.direction,",
+        "t.transaction_id, y.class, t.datestamp, t.description, t.reference",
+        "FROM main.entries e, main.transactions t, types y",
+        "WHERE t.transaction_id = e.transaction_id AND t.type_id = y.type_id"
+    };
+
+    /**
+     * Make a Cursor over Entries, with the given conditions, ordered by the
+     * given columns of ENTRY_COLUMNS (by position), reaching into any
+     * archives holding dates from <code>from</code> to <code>to</code>.
+     */
+    private Cursor<Entry> iterateEntries(String where, String order, long from, long to) {
+        final String[] query;
+
+        query = new String[ENTRY_COLUMNS.length + 1];
+        System.arraycopy(ENTRY_COLUMNS, 0, query, 0, ENTRY_COLUMNS.length);
+        query[ENTRY_COLUMNS.length] = where;
+
+        return new Cursor<Entry>(this, acrossArchives(query, new String[] {
+            order
+        }, from, to), from, to) {
+            Entry make(Statement stmt) {
+                return resolveEntry(stmt);
+            }
+        };
+    }
+
+    /**
+     * Go through the Entries of Transactions dated from <code>from</code> to
+     * <code>to</code> inclusive, in order of date, then Transaction, then
+     * Entry. Suitable for exporting the journal.
+     */
+    public Cursor<Entry> iterateEntries(long from, long to) {
+        final Cursor<Entry> result;
+        final Statement stmt;
+
+        result = iterateEntries("AND t.datestamp BETWEEN ? AND ?", "ORDER BY 9, 7, 1", from, to);
+
+        stmt = result.getStatement();
+        stmt.bindInteger(1, from);
+        stmt.bindInteger(2, to);
+
+        return result;
+    }
+
+    /**
+     * Go through the Entries against the given Ledger, in order of date and
+     * then ID, from the beginning (including archived years).
+     */
+    public Cursor<Entry> iterateEntries(Ledger ledger) {
+        final Cursor<Entry> result;
+        final Statement stmt;
+
+        result = iterateEntries("AND e.ledger_id = ?", "ORDER BY 9, 1", Long.MIN_VALUE, Long.MAX_VALUE);
+
+        stmt = result.getStatement();
+        stmt.bindInteger(1, ledger.getID());
+
+        return result;
+    }
+
+    /**
+     * Get the list of all known Workers.
+     */
+    /*
+     * This short circuits the database, because they're already all loaded.
+     * If we need them in a certain order, then we should query. See
+     * implementation in listTransactions().
+     */
+    public Worker[] listWorkers() {
+        Worker[] result;
+        final int num;
+
+        num = workers.size();
+        result = new Worker[num];
+
+        return workers.toArray(result);
+    }
+
+    /*
+     * If we need this, do it along the lines of listLedgers().
+     */
+    public Account[] listAccounts() {
+        throw new UnsupportedOperationException();
+    }
+
+    private Ledger[] cache;
+
+    /**
+     * Get a list of Ledgers, internally ordered in an order suitable for
+     * display.
+     */
+    public synchronized Ledger[] listLedgers() {
+        Ledger[] result;
+        final Statement stmt;
+        final int num;
+        long ledgerId;
+        Ledger ledger;
+        int i;
+
+        claim();
+
+        if (cache == null) {
+            num = ledgers.size();
+            result = new Ledger[num];
+
+            /*
+             * We can make this more sophisticated if we have to, perhaps
+             * adding an optional [sub]ordering column to accounts and
+             * ledgers.
+             */
+
+            stmt = statements.prepare("SELECT l.ledger_id FROM ledgers l, accounts a, types y WHERE l.account_id = a.account_id AND a.type_id = y.type_id ORDER BY y.type_id");
+
+            i = 0;
+            while (stmt.step()) {
+                ledgerId = stmt.columnInteger(0);
+                ledger = lookupLedger(ledgerId);
+                result[i] = ledger;
+                i++;
+            }
+            statements.finish(stmt);
+
+            cache = result;
+        }
+
+        return cache;
+    }
+
+    public Currency[] listCurrencies() {
+        Currency[] result;
+        final int num;
+        Collection<Currency> list;
+
+        num = workers.size();
+        result = new Currency[num];
+
+        list = currencies.values();
+        result = list.toArray(result);
+
+        return result;
+    }
+
+    /**
+     * Get the Entry object proxying the specified rowid. If the DataStore is
+     * lazy, it (and its parent Transaction) will be loaded from the database
+     * if not already in memory. As with
+     * {@link #lookupTransaction(long) lookupTransaction()}, this doesn't
+     * catch up with changes made by other programs.
+     */
+    public synchronized Entry lookupEntry(final long entryId) {
+        claim();
+        return findEntry(entryId);
+    }
+
+    /**
+     * Get the specified Entry without first catching up with changes made by
+     * other programs.
+     */
+    synchronized Entry findEntry(final long entryId) {
+        Entry result;
+
+        if (!lazy) {
+            result = entries.get(entryId);
+            if (result == null) {
+                throw new IllegalStateException("Entry (" + entryId + ") isn't loaded");
+            }
+            return result;
+        }
+
+        result = recentEntries.get(entryId);
+        if (result == null) {
+            result = fetchEntry(entryId);
+
+            this.cache(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Load a single Entry from the database. The Transaction it belongs to
+     * will be looked up (and so loaded, if necessary) too.
+     */
+    private Entry fetchEntry(final long entryId) {
+        final Statement stmt;
+        final String[] sql;
+        final long transactionId, ledgerId, amount, value, direction;
+        final String code;
+        final Transaction transaction;
+        final Ledger ledger;
+        final Currency currency;
+
+        sql = new String[] {
+            "SELECT e.transaction_id, e.ledger_id, e.amount, e.currency, e.value, e.direction",
+            "FROM entries e",
+            "WHERE e.entry_id = ?"
+        };
+
+        stmt = statements.prepare(combine(sql));
+        stmt.bindInteger(1, entryId);
+
+        if (!stmt.step()) {
+            statements.finish(stmt);
+            throw new IllegalStateException("Entry (" + entryId + ") doesn't exist");
+        }
+
+        transactionId = stmt.columnInteger(0);
+        ledgerId = stmt.columnInteger(1);
+        amount = stmt.columnInteger(2);
+        code = stmt.columnText(3);
+        value = stmt.columnInteger(4);
+        direction = stmt.columnInteger(5);
+
+        statements.finish(stmt);
+
+        transaction = findTransaction(transactionId);
+        ledger = lookupLedger(ledgerId);
+        currency = lookupCurrency(code);
+
+        return makeEntry(entryId, transaction, ledger, amount, currency, value, direction);
+    }
+
+    /*
+     * Again, could have used reflection but this is cleaner and much more
+     * strongly typed.
+     */
+    static Transaction makeTransaction(long transactionId, String type, long datestamp,
+            String description, String reference) {
+        final Transaction result;
+
+        if (type.equals("Generic")) {
+            result = new GenericTransaction(transactionId);
+        } else if (type.equals("Reimbursable")) {
+            result = new ReimbursableTransaction(transactionId);
+
+        } else if (type.equals("SalesInvoice")) {
+            result = new SalesInvoiceTransaction(transactionId);
+        } else if (type.equals("SalesPayment")) {
+            result = new SalesPaymentTransaction(transactionId);
+        } else if (type.equals("BillInvoice")) {
+            result = new BillInvoiceTransaction(transactionId);
+        } else if (type.equals("BillPayment")) {
+            result = new BillPaymentTransaction(transactionId);
+        } else {
+            throw new IllegalStateException("\n" + "Unknown Account type " + type + " for ("
+                    + transactionId + ")");
+        }
+
+        if (description == null) {
+            description = "";
+        }
+        if (reference == null) {
+            reference = "";
+        }
+
+        result.setDate(datestamp);
+        result.setDescription(description);
+        result.setReference(reference);
+
+        return result;
+    }
+
+    /**
+     * Given queried values and existing proxy objects, construct an Entry
+     * object representing the given rowid.
+     */
+    static Entry makeEntry(long rowid, Transaction transaction, Ledger ledger, long amount,
+            Currency currency, long value, long direction) {
+        final Entry result;
+
+        if (direction == 1) {
+            result = new Debit(rowid);
+        } else if (direction == -1) {
+            result = new Credit(rowid);
+        } else {
+            throw new IllegalArgumentException();
+        }
+
+        result.setParentTransaction(transaction);
+        result.setParentLedger(ledger);
+
+        result.setAmount(amount);
+        result.setCurrency(currency);
+        result.setValue(value);
+
+        return result;
+    }
+
+    /**
+     * Combine an array of Strings into a single String. Use this for
+     * constructing SQL statements.
+     */
+    static String combine(String[] sql) {
+        StringBuilder buf;
+        int len, i;
+
+        len = 0;
+
+        for (i = 0; i < sql.length; i++) {
+            len += sql[i].length();
+        }
+
+        buf = new StringBuilder(len);
+
+        for (i = 0; i < sql.length; i++) {
+            if (i > 0) {
+                buf.append(' ');
+            }
+
+            buf.append(sql[i]);
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Insert a newly formed Transaction object into the database. If it has
+     * already been given an ID (as is done when posting a batch) then that is
+     * used as its rowid, otherwise the database allocates one.
+     */
+    public void createTransaction(Transaction t) {
+        final Statement stmt;
+        final long typeId, datestamp;
+        long rowId;
+
+        enter();
+        try {
+            checkArchived(t.getDate());
+
+            /*
+             * Left to itself SQLite would hand out IDs above the highest still
+             * in the book, which might be ones already used by archived rows.
+             */
+
+            rowId = t.getID();
+            if ((rowId == 0) && (archives.size() > 0)) {
+                rowId = nextTransactionID();
+                t.setID(rowId);
+            }
+
+            stmt = statements.prepare("INSERT INTO transactions (transaction_id, type_id, datestamp, description, reference) VALUES (?, ?, ?, ?, ?)");
+
+            if (rowId == 0) {
+                stmt.bindNull(1);
+            } else {
+                stmt.bindInteger(1, rowId);
+            }
+
+            typeId = t.getType();
+            stmt.bindInteger(2, typeId);
+
+            datestamp = t.getDate();
+            stmt.bindInteger(3, datestamp);
+
+            bindOptional(stmt, 4, t.getDescription());
+            bindOptional(stmt, 5, t.getReference());
+
+            stmt.step();
+            statements.finish(stmt);
+
+            if (rowId == 0) {
+                rowId = db.lastInsertRowID();
+                t.setID(rowId);
+            }
+
+            /*
+             * Now that a new Transaction exists, cache our reference to it.
+             */
+
+            this.cache(t);
+
+            changed(ChangeSet.CREATED, t);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Update a Transaction in the database.
+     */
+    public void updateTransaction(Transaction t) {
+        final Statement stmt;
+        final long transactionId, datestamp;
+        final String description, reference;
+
+        enter();
+        try {
+            checkArchived(t.getDate());
+            checkVersion("transactions", "transaction_id", t);
+
+            stmt = statements.prepare("UPDATE transactions SET datestamp = ?, description = ?, reference = ?, version = version + 1 WHERE transaction_id = ? AND version = ?");
+
+            datestamp = t.getDate();
+            stmt.bindInteger(1, datestamp);
+
+            description = t.getDescription();
+            bindOptional(stmt, 2, description);
+
+            reference = t.getReference();
+            bindOptional(stmt, 3, reference);
+
+            transactionId = t.getID();
+            stmt.bindInteger(4, transactionId);
+            stmt.bindInteger(5, t.getVersion());
+
+            moveCheckpoints(transactionId, datestamp);
+
+            if ((columns != null) || (registers.size() > 0)) {
+                moveEntries(transactionId, datestamp, reference, description);
+            }
+
+            stmt.step();
+            statements.finish(stmt);
+
+            written(t);
+
+            changed(ChangeSet.UPDATED, t);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Invalidate the checkpoints of the Ledgers a Transaction has Entries in
+     * that fall between its old date and its new one, ahead of the date
+     * being changed in the database.
+     */
+    private void moveCheckpoints(long transactionId, long datestamp) {
+        final Statement stmt;
+        final String[] sql;
+
+        sql = new String[] {
+            "DELETE FROM period_checkpoints",
+            "WHERE ledger_id IN (SELECT ledger_id FROM entries WHERE transaction_id = ?)",
+            "AND datestamp > min(?, (SELECT datestamp FROM transactions WHERE transaction_id = ?))",
+            "AND datestamp <= max(?, (SELECT datestamp FROM transactions WHERE transaction_id = ?))"
+        };
+
+        stmt = statements.prepare(combine(sql));
+        stmt.bindInteger(1, transactionId);
+        stmt.bindInteger(2, datestamp);
+        stmt.bindInteger(3, transactionId);
+        stmt.bindInteger(4, datestamp);
+        stmt.bindInteger(5, transactionId);
+        stmt.step();
+        statements.finish(stmt);
+    }
+
+    /**
+     * Move a Transaction's Entries to their new places in the in-memory
+     * indexes ahead of its date, reference, or description being changed in
+     * the database.
+     */
+    private synchronized void moveEntries(long transactionId, long datestamp, String reference,
+            String description) {
+        final Statement stmt;
+        final String[] sql;
+        long entryId, ledgerId, previous, value, direction;
+        String oldReference, oldDescription;
+        LedgerIndex register;
+
+        sql = new String[] {
+            "SELECT e.entry_id, e.ledger_id, t.datestamp, e.value, e.direction, t.reference, t.description",
+            "FROM entries e, transactions t",
+            "WHERE e.transaction_id = ? AND t.transaction_id = e.transaction_id"
+        };
+
+        stmt = statements.prepare(combine(sql));
+        stmt.bindInteger(1, transactionId);
+
+        while (stmt.step()) {
+            entryId = stmt.columnInteger(0);
+            ledgerId = stmt.columnInteger(1);
+            previous = stmt.columnInteger(2);
+            value = stmt.columnInteger(3);
+            direction = stmt.columnInteger(4);
+            oldReference = stmt.columnText(5);
+            oldDescription = stmt.columnText(6);
+
+            if ((columns != null) && (previous != datestamp)) {
+                columns.remove(entryId, ledgerId, previous);
+                columns.insert(entryId, ledgerId, transactionId, datestamp, value, direction);
+            }
+
+            register = registers.get(ledgerId);
+            if (register != null) {
+                register.remove(entryId, previous, oldReference, oldDescription);
+                register.insert(entryId, datestamp, reference, description, value * direction);
+            }
+        }
+
+        statements.finish(stmt);
+    }
+
+    /**
+     * Delete a Transaction from the database. You need to have deleted the
+     * Entries of this Transaction first!
+     * 
+     * @param transaction
+     */
+    public void deleteTransaction(Transaction transaction) {
+        final Statement stmt;
+        final long transactionId;
+
+        enter();
+        try {
+            checkVersion("transactions", "transaction_id", transaction);
+
+            stmt = statements.prepare("DELETE FROM transactions WHERE transaction_id = ? AND version = ?");
+
+            transactionId = transaction.getID();
+            stmt.bindInteger(1, transactionId);
+            stmt.bindInteger(2, transaction.getVersion());
+
+            stmt.step();
+            statements.finish(stmt);
+
+            removed(transaction);
+
+            changed(ChangeSet.DELETED, transaction);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Update an Entry in the database.
+     */
+    public void updateEntry(Entry e) {
+        final String[] sql;
+        final Statement stmt;
+        final Ledger l;
+        final long ledgerId, amount, value, entryId;
+        final Currency currency;
+        final String code;
+
+        enter();
+        try {
+            checkVersion("entries", "entry_id", e);
+
+            sql = new String[] {
+                "UPDATE entries",
+                "SET ledger_id = ?, amount = ?, currency = ?, value = ?, version = version + 1",
+                "WHERE entry_id = ? AND version = ?"
+            };
+
+            stmt = statements.prepare(combine(sql));
+
+            l = e.getParentLedger();
+            ledgerId = l.getID();
+            stmt.bindInteger(1, ledgerId);
+
+            currency = e.getCurrency();
+            if (currency == null) {
+                throw new AssertionError();
+            }
+
+            amount = e.getAmount();
+            stmt.bindInteger(2, amount);
+
+            code = currency.getCode();
+            stmt.bindText(3, code);
+
+            value = e.getValue();
+            stmt.bindInteger(4, value);
+
+            entryId = e.getID();
+            stmt.bindInteger(5, entryId);
+            stmt.bindInteger(6, e.getVersion());
+
+            retractBalance(entryId);
+
+            stmt.step();
+            statements.finish(stmt);
+
+            written(e);
+
+            applyBalance(e);
+
+            changed(ChangeSet.UPDATED, e);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    public void deleteEntry(Entry e) {
+        final String[] sql;
+        final Statement stmt;
+        final long entryId;
+
+        enter();
+        try {
+            checkVersion("entries", "entry_id", e);
+
+            sql = new String[] {
+                "DELETE FROM entries",
+                "WHERE entry_id = ? AND version = ?"
+            };
+
+            stmt = statements.prepare(combine(sql));
+
+            entryId = e.getID();
+            stmt.bindInteger(1, entryId);
+            stmt.bindInteger(2, e.getVersion());
+
+            retractBalance(entryId);
+
+            stmt.step();
+            statements.finish(stmt);
+
+            removed(e);
+
+            forget(e);
+
+            if (open) {
+                synchronized (this) {
+                    deleted.add(e);
+                }
+            }
+
+            changed(ChangeSet.DELETED, e);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Get the Entries making up the given Transaction, in the order they
+     * were created. The array returned is yours.
+     */
+    public synchronized Entry[] listEntries(Transaction t) {
+        final Entry[] result;
+
+        if (lazy) {
+            return fetchEntries(t);
+        }
+
+        result = siblings.get(t.getID());
+        if (result == null) {
+            return NONE;
+        }
+
+        return result.clone();
+    }
+
+    /*
+     * Only some of the Entries are in memory, so ask the database which ones
+     * belong to this Transaction, faulting them in if need be. The rows are
+     * read in full so that doesn't take another query each.
      */
-    private static Account makeAccount(long accountId, String type, String title, long direction) {
-        final Account result;
+    private Entry[] fetchEntries(Transaction t) {
+        final String[] sql;
+        final StatementCache conn;
+        final Statement stmt;
+        final ArrayList<Entry> list;
+        final Entry[] result;
 
-        if (direction == 1) {
-            if (type.equals("BankAccount")) {
-                result = new BankAccount(accountId);
-            } else if (type.equals("Cash")) {
-                result = new CashAccount(accountId);
-            } else if (type.equals("AccountsReceivable")) {
-                result = new AccountsReceivableAccount(accountId);
-            } else if (type.equals("DepreciatingAsset")) {
-                result = new DepreciatingAssetAccount(accountId);
-            } else if (type.equals("GenericExpense")) {
-                result = new GenericExpenseAccount(accountId);
+        sql = new String[ENTRY_COLUMNS.length + 2];
+        System.arraycopy(ENTRY_COLUMNS, 0, sql, 0, ENTRY_COLUMNS.length);
+        sql[ENTRY_COLUMNS.length] = "AND e.transaction_id = ?";
+        sql[ENTRY_COLUMNS.length + 1] = "ORDER BY 1";
+
+        conn = borrowForReading();
+
+        list = new ArrayList<Entry>(4);
+
+        try {
+            stmt = conn.prepare(combine(sql));
+            stmt.bindInteger(1, t.getID());
+
+            while (stmt.step()) {
+                list.add(resolveEntry(stmt));
+            }
+
+            conn.finish(stmt);
+        } finally {
+            returnFromReading(conn);
+        }
+
+        result = new Entry[list.size()];
+        return list.toArray(result);
+    }
+
+    /**
+     * Insert the given newly constructed Entry into the database. As with
+     * Transactions, an ID already set on the Entry is used as its rowid,
+     * otherwise the database allocates one.
+     */
+    public void createEntry(Entry e) {
+        final Statement stmt;
+        final Transaction transaction;
+        final Ledger ledger;
+        final Currency currency;
+        final long transactionId, ledgerId, amount, value, direction;
+        final String code;
+        long rowId;
+
+        enter();
+        try {
+            transaction = e.getParentTransaction();
+            if (transaction == null) {
+                throw new AssertionError();
+            }
+            transactionId = transaction.getID();
+
+            ledger = e.getParentLedger();
+            if (ledger == null) {
+                throw new AssertionError();
+            }
+            ledgerId = ledger.getID();
+
+            currency = e.getCurrency();
+            if (currency == null) {
+                throw new AssertionError();
+            }
+            code = currency.getCode();
+
+            if (e instanceof Debit) {
+                direction = 1;
+            } else if (e instanceof Credit) {
+                direction = -1;
             } else {
-                result = null;
+                throw new AssertionError();
             }
-        } else if (direction == -1) {
-            if (type.equals("AccountsPayable")) {
-                result = new AccountsPayableAccount(accountId);
-            } else if (type.equals("ReimbursableExpensesPayable")) {
-                result = new ReimbursableExpensesPayableAccount(accountId);
-            } else if (type.equals("SalesTaxPayable")) {
-                result = new SalesTaxPayableAccount(accountId);
-            } else if (type.equals("PayrollTaxPayable")) {
-                result = new PayrollTaxPayableAccount(accountId);
-            } else if (type.equals("LoanPayable")) {
-                result = new LoanPayableAccount(accountId);
-            } else if (type.equals("OwnersEquity")) {
-                result = new OwnersEquityAccount(accountId);
-            } else if (type.equals("ProfessionalRevenue")) {
-                result = new ProfessionalRevenueAccount(accountId);
-            } else if (type.equals("CurrencyGainLoss")) {
-                throw new UnsupportedOperationException(); // well?
+
+            rowId = e.getID();
+            if ((rowId == 0) && (archives.size() > 0)) {
+                rowId = nextEntryID();
+                e.setID(rowId);
+            }
+
+            stmt = statements.prepare("INSERT INTO entries (entry_id, transaction_id, ledger_id, amount, currency, value, direction) VALUES (?, ?, ?, ?, ?, ?, ?)");
+
+            if (rowId == 0) {
+                stmt.bindNull(1);
             } else {
-                result = null;
+                stmt.bindInteger(1, rowId);
+            }
+
+            stmt.bindInteger(2, transactionId);
+            stmt.bindInteger(3, ledgerId);
+
+            amount = e.getAmount();
+            stmt.bindInteger(4, amount);
+            stmt.bindText(5, code);
+
+            value = e.getValue();
+            stmt.bindInteger(6, value);
+            stmt.bindInteger(7, direction);
+
+            stmt.step();
+            statements.finish(stmt);
+
+            if (rowId == 0) {
+                rowId = db.lastInsertRowID();
+                e.setID(rowId);
             }
+
+            applyBalance(e);
+
+            /*
+             * Cache our reference to the new Entry.
+             */
+
+            this.cache(e);
+
+            changed(ChangeSet.CREATED, e);
+            settle();
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Get the next available Transaction rowid. Only meaningful inside a
+     * database transaction, which will be holding the write lock.
+     */
+    public long nextTransactionID() {
+        return nextID("SELECT max(transaction_id) FROM transactions", archivedTransactionID);
+    }
+
+    /**
+     * Get the next available Entry rowid. Again, only meaningful inside a
+     * database transaction.
+     */
+    public long nextEntryID() {
+        return nextID("SELECT max(entry_id) FROM entries", archivedEntryID);
+    }
+
+    /**
+     * One more than the highest ID in the book, or than the highest
+     * archived, whichever is greater.
+     */
+    private long nextID(String sql, long archived) {
+        final Statement stmt;
+        final long max;
+
+        stmt = statements.prepare(sql);
+        stmt.step();
+        max = stmt.columnInteger(0);
+        statements.finish(stmt);
+
+        return Math.max(max, archived) + 1;
+    }
+
+    /**
+     * Drop our reference to a Transaction which turned out not to be created
+     * after all, as when its part of a batch was rolled back.
+     */
+    public synchronized void forget(Transaction t) {
+        if (lazy) {
+            recentTransactions.remove(t.getID());
+        } else {
+            transactions.remove(t.getID());
+        }
+    }
+
+    /**
+     * Drop our reference to an Entry which was rolled back.
+     */
+    public synchronized void forget(Entry e) {
+        if (lazy) {
+            recentEntries.remove(e.getID());
+        } else {
+            unlink(e);
+            entries.remove(e.getID());
+        }
+    }
+
+    /**
+     * Bind a String which can be absent, storing blank as NULL.
+     */
+    private static void bindOptional(Statement stmt, int index, String str) {
+        if ((str == null) || (str.equals(""))) {
+            stmt.bindNull(index);
         } else {
-            throw new IllegalStateException("Can't have directionless Accounts " + accountId);
+            stmt.bindText(index, str);
         }
+    }
 
-        if (result == null) {
-            throw new IllegalArgumentException("\n" + "Unknown Account type " + type + " for ("
-                    + accountId + ")");
+    /*
+     * Ledger balances are kept in the ledger_balances table, adjusted by each
+     * Entry as it is created, changed, or deleted. The amount and value
+     * columns there are the raw sums of Debits less Credits; multiply by the
+     * Ledger's direction to get its balance. The balances view does just
+     * that. Both are created by the first of the schema Migrations.
+     */
+
+    /**
+     * Run a statement which returns no results.
+     */
+    void execute(String sql) {
+        final Statement stmt;
+
+        stmt = statements.prepare(sql);
+        stmt.step();
+        statements.finish(stmt);
+    }
+
+    /**
+     * Get a Statement from this connection's cache. Hand it back with
+     * {@link #finish(Statement) finish()}.
+     */
+    Statement prepare(String sql) {
+        return statements.prepare(sql);
+    }
+
+    void finish(Statement stmt) {
+        statements.finish(stmt);
+    }
+
+    /**
+     * Add the given amounts to a Ledger's running balance.
+     */
+    private void adjustBalance(long ledgerId, long amount, long value) {
+        Statement stmt;
+
+        stmt = statements.prepare("INSERT OR IGNORE INTO ledger_balances VALUES (?, 0, 0)");
+        stmt.bindInteger(1, ledgerId);
+        stmt.step();
+        statements.finish(stmt);
+
+        stmt = statements.prepare("UPDATE ledger_balances SET amount = amount + ?, value = value + ? WHERE ledger_id = ?");
+        stmt.bindInteger(1, amount);
+        stmt.bindInteger(2, value);
+        stmt.bindInteger(3, ledgerId);
+        stmt.step();
+        statements.finish(stmt);
+
+        changed(ChangeSet.UPDATED, lookupLedger(ledgerId));
+    }
+
+    /**
+     * Add an Entry's contribution to its Ledger's balance, and to the
+     * EntryIndex and its Ledger's LedgerIndex if they have been built.
+     */
+    private synchronized void applyBalance(Entry e) {
+        final long ledgerId, direction;
+        final Transaction transaction;
+        final LedgerIndex register;
+
+        ledgerId = e.getParentLedger().getID();
+
+        if (e instanceof Debit) {
+            direction = 1;
+        } else if (e instanceof Credit) {
+            direction = -1;
+        } else {
+            throw new AssertionError();
         }
 
-        if (title == null) {
-            throw new IllegalArgumentException();
+        transaction = e.getParentTransaction();
+        checkArchived(transaction.getDate());
+
+        adjustBalance(ledgerId, e.getAmount() * direction, e.getValue() * direction);
+        invalidateCheckpoints(ledgerId, transaction.getDate());
+
+        if (columns != null) {
+            columns.insert(e.getID(), ledgerId, transaction.getID(), transaction.getDate(), e.getValue(),
+                    direction);
         }
 
-        result.setTitle(title);
-        return result;
+        register = registers.get(ledgerId);
+        if (register != null) {
+            register.insert(e.getID(), transaction.getDate(), transaction.getReference(),
+                    transaction.getDescription(), e.getValue() * direction);
+        }
     }
 
-    /*
-     * This is not ideal; once we get up to speed we are NOT going to want to
-     * load the entire list of Transactions, especially just to do normal data
-     * entry.
+    /**
+     * Take away an Entry's contribution to its Ledger's balance (and remove
+     * it from the in-memory indexes), as it currently stands in the
+     * database. Call this before changing or deleting
+     * the row, since the in-memory Entry may already have been modified.
      */
-    private void loadTransactions() {
-        Statement stmt;
-        String[] sql;
-        long transactionId, timestamp, entryId, ledgerId, amount, value, direction;
-        String type, description, reference, code;
-        Transaction transaction;
-        Ledger ledger;
-        Entry entry;
-        Currency currency;
+    private synchronized void retractBalance(long entryId) {
+        final Statement stmt;
+        final String[] sql;
+        final long ledgerId, amount, value, datestamp;
+        final String reference, description;
+        final LedgerIndex register;
 
         sql = new String[] {
-            "SELECT t.transaction_id, y.class, t.datestamp, t.description, t.reference",
-            "FROM transactions t, types y",
-            "WHERE t.type_id = y.type_id"
+            "SELECT e.ledger_id, (e.currency NOTNULL) * e.amount * e.direction, e.value * e.direction, t.datestamp, t.reference, t.description",
+            "FROM entries e, transactions t",
+            "WHERE e.entry_id = ? AND t.transaction_id = e.transaction_id"
         };
 
-        stmt = db.prepare(combine(sql));
+        stmt = statements.prepare(combine(sql));
+        stmt.bindInteger(1, entryId);
 
-        while (stmt.step()) {
-            transactionId = stmt.columnInteger(0);
-            type = stmt.columnText(1);
-            timestamp = stmt.columnInteger(2);
-            description = stmt.columnText(3);
-            reference = stmt.columnText(4);
+        if (!stmt.step()) {
+            statements.finish(stmt);
+            return;
+        }
 
-            transaction = makeTransaction(transactionId, type, timestamp, description, reference);
+        ledgerId = stmt.columnInteger(0);
+        amount = stmt.columnInteger(1);
+        value = stmt.columnInteger(2);
+        datestamp = stmt.columnInteger(3);
+        reference = stmt.columnText(4);
+        description = stmt.columnText(5);
 
-            this.cache(transaction);
+        statements.finish(stmt);
+
+        adjustBalance(ledgerId, -amount, -value);
+        invalidateCheckpoints(ledgerId, datestamp);
+
+        if (columns != null) {
+            columns.remove(entryId, ledgerId, datestamp);
+        }
+
+        register = registers.get(ledgerId);
+        if (register != null) {
+            register.remove(entryId, datestamp, reference, description);
         }
+    }
+
+    /**
+     * Get the balance of the given Ledger, in home currency terms. Positive
+     * is in the Ledger's natural direction.
+     */
+    public synchronized long lookupBalance(Ledger ledger) {
+        final Statement stmt;
+        final String[] sql;
+        final long result;
 
-        stmt.finish();
+        claim();
 
         sql = new String[] {
-            "SELECT e.entry_id, e.transaction_id, e.ledger_id, e.amount, e.currency, e.value, e.direction",
-            "FROM entries e"
+            "SELECT b.value * l.direction",
+            "FROM ledger_balances b, ledgers l",
+            "WHERE b.ledger_id = ? AND l.ledger_id = b.ledger_id"
         };
 
-        stmt = db.prepare(combine(sql));
+        stmt = statements.prepare(combine(sql));
+        stmt.bindInteger(1, ledger.getID());
 
-        while (stmt.step()) {
-            entryId = stmt.columnInteger(0);
-            transactionId = stmt.columnInteger(1);
-            ledgerId = stmt.columnInteger(2);
-            amount = stmt.columnInteger(3);
-            code = stmt.columnText(4);
-            value = stmt.columnInteger(5);
-            direction = stmt.columnInteger(6);
+        if (stmt.step()) {
+            result = stmt.columnInteger(0);
+        } else {
+            result = 0;
+        }
 
-            transaction = lookupTransaction(transactionId);
-            ledger = lookupLedger(ledgerId);
-            currency = lookupCurrency(code);
+        statements.finish(stmt);
 
-            entry = makeEntry(entryId, transaction, ledger, amount, currency, value, direction);
+        return result;
+    }
 
-            this.cache(entry);
+    /**
+     * Columnar copy of the entries table, for reports. Built the first time
+     * it is needed, and thrown away if a rollback leaves it out of step
+     * with the database.
+     */
+    private EntryIndex columns;
+
+    private synchronized void discardIndexes() {
+        columns = null;
+        registers.clear();
+    }
+
+    synchronized EntryIndex getEntryIndex() {
+        if (columns == null) {
+            columns = EntryIndex.load(this);
+        }
+        return columns;
+    }
+
+    /**
+     * Get the total of the given Ledger's Entries dated between
+     * <code>from</code> and <code>to</code> inclusive, in home currency
+     * terms. Positive is in the Ledger's natural direction. This is worked
+     * out from the EntryIndex, so no Entries need be loaded; any part of the
+     * period in archived years is summed from the archives.
+     */
+    public synchronized long sumLedger(Ledger ledger, long from, long to) {
+        long result;
+
+        checkStale();
+
+        result = getEntryIndex().sum(ledger.getID(), from, to);
+
+        if (isArchived(from)) {
+            result += sumArchived(ledger.getID(), from, isArchived(to) ? to + 1 : horizon);
         }
 
-        stmt.finish();
+        return result * naturalDirection(ledger);
     }
 
     /**
-     * Get the specified Transaction.
+     * Each Ledger's register, built when first asked for. Like the
+     * EntryIndex these are discarded by a rollback.
      */
-    public Transaction lookupTransaction(final long transactionId) {
-        final Transaction result;
+    private IdentityMap<LedgerIndex> registers;
+
+    private LedgerIndex getLedgerIndex(Ledger ledger) {
+        final long ledgerId;
+        LedgerIndex result;
 
-        result = transactions.get(transactionId);
+        ledgerId = ledger.getID();
+
+        result = registers.get(ledgerId);
         if (result == null) {
-            /*
-             * FUTURE There's no reason we couldn't do lazy loading here.
-             */
-            throw new IllegalStateException("\n" + "Transaction (" + transactionId + ") isn't loaded");
+            result = LedgerIndex.load(this, ledgerId);
+            registers.put(ledgerId, result);
         }
 
         return result;
     }
 
+    private static long naturalDirection(Ledger ledger) {
+        if (ledger instanceof DebitPositiveLedger) {
+            return 1;
+        } else if (ledger instanceof CreditPositiveLedger) {
+            return -1;
+        } else {
+            throw new AssertionError();
+        }
+    }
+
     /**
-     * Get a list of all known Transactions.
+     * Get the balance of the given Ledger as at the end of the given day,
+     * in home currency terms. Positive is in the Ledger's natural
+     * direction.
      */
     /*
-     * FUTURE This currently implicilty relies on the Transactions all already
-     * being loaded; if we switch to lazy loading then, this will force all
-     * Transactions into memory, which would defeat the laziness.
+     * If the Ledger's register is already in memory it has the answer;
+     * otherwise rather than load it, start from the nearest period
+     * checkpoint.
      */
-    public Transaction[] listTransactions() {
-        final Transaction[] result;
-        final int num;
-        int i;
-        long transactionId;
-        Transaction transaction;
+    public synchronized long lookupBalance(Ledger ledger, long datestamp) {
+        final LedgerIndex register;
+        final int n;
+
+        checkStale();
+
+        register = registers.get(ledger.getID());
+        if ((register == null) || isArchived(datestamp + 86400)) {
+            return balanceBefore(ledger.getID(), datestamp + 86400) * naturalDirection(ledger);
+        }
+
+        n = register.position(datestamp + 86400);
+
+        return (openingBalance(ledger.getID()) + register.prefix(n)) * naturalDirection(ledger);
+    }
+
+    /**
+     * Close the accounting period ending just before <code>end</code>
+     * (usually the first day of a month or year), recording each Ledger's
+     * balance as at that point. Balances as at later dates then start from
+     * these checkpoints.
+     * 
+     * <p>
+     * Posting, changing or removing an Entry dated before a checkpoint
+     * invalidates the checkpoints of that Ledger from there on. They are
+     * worked out again as balances needing them are asked for, or by
+     * closing the period again.
+     */
+    public synchronized void closePeriod(long end) {
+        final Statement stmt;
+
+        enter();
+        try {
+            checkStale();
+
+            stmt = statements.prepare("INSERT OR REPLACE INTO closed_periods VALUES (?, strftime('%s', 'now'))");
+            stmt.bindInteger(1, end);
+            stmt.step();
+            statements.finish(stmt);
+
+            for (Ledger ledger : listLedgers()) {
+                balanceBefore(ledger.getID(), end);
+            }
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Get the home currency balance of the given Ledger from Entries dated
+     * before <code>boundary</code>, positive for a net debit.
+     */
+    /*
+     * Start from the nearest checkpoint at or before the boundary. If there
+     * is a closed period after it, that checkpoint is missing (invalidated,
+     * or the Ledger is newer than the closing) so write it on the way past.
+     */
+    private synchronized long balanceBefore(long ledgerId, long boundary) {
+        final long start, period;
+        long result;
         Statement stmt;
 
-        stmt = db.prepare("SELECT count() FROM transactions");
+        stmt = statements.prepare("SELECT datestamp, value FROM period_checkpoints WHERE ledger_id = ? AND datestamp <= ? ORDER BY datestamp DESC LIMIT 1");
+        stmt.bindInteger(1, ledgerId);
+        stmt.bindInteger(2, boundary);
+
+        if (stmt.step()) {
+            start = stmt.columnInteger(0);
+            result = stmt.columnInteger(1);
+        } else {
+            start = Long.MIN_VALUE;
+            result = 0;
+        }
+        statements.finish(stmt);
+
+        if (start == boundary) {
+            return result;
+        }
+
+        stmt = statements.prepare("SELECT count(), max(datestamp) FROM closed_periods WHERE datestamp > ? AND datestamp <= ?");
+        stmt.bindInteger(1, start);
+        stmt.bindInteger(2, boundary);
         stmt.step();
-        num = (int) stmt.columnInteger(0);
-        stmt.finish();
 
-        result = new Transaction[num];
+        if (stmt.columnInteger(0) > 0) {
+            period = stmt.columnInteger(1);
+        } else {
+            period = start;
+        }
+        statements.finish(stmt);
 
-        stmt = db.prepare("SELECT transaction_id FROM transactions ORDER BY datestamp");
+        if (period != start) {
+            result += sumBetween(ledgerId, start, period);
 
-        i = 0;
-        while (stmt.step()) {
-            transactionId = stmt.columnInteger(0);
-            transaction = lookupTransaction(transactionId);
-            result[i] = transaction;
-            i++;
+            stmt = statements.prepare("INSERT OR REPLACE INTO period_checkpoints VALUES (?, ?, ?)");
+            stmt.bindInteger(1, ledgerId);
+            stmt.bindInteger(2, period);
+            stmt.bindInteger(3, result);
+            stmt.step();
+            statements.finish(stmt);
+        }
+
+        return result + sumBetween(ledgerId, period, boundary);
+    }
+
+    /**
+     * Sum the given Ledger's Entries dated from <code>from</code> up to but
+     * not including <code>to</code>. The Transactions in the period are
+     * found by date and their Entries in the Ledger looked up from there, so
+     * the cost is in proportion to the length of the period, not of the
+     * Ledger's history. From the start of the book, it is better the other
+     * way around.
+     */
+    private long sumBetween(long ledgerId, long from, long to) {
+        final Statement stmt;
+        final String[] sql;
+        long result;
+
+        if (from >= to) {
+            return 0;
+        }
+
+        result = 0;
+
+        if (isArchived(from)) {
+            result += sumArchived(ledgerId, from, Math.min(to, horizon));
+            from = horizon;
+            if (from >= to) {
+                return result;
+            }
+        }
+
+        if (from <= horizon) {
+            sql = new String[] {
+                "SELECT coalesce(sum(e.value * e.direction), 0)",
+                "FROM entries e, transactions t",
+                "WHERE e.ledger_id = ? AND t.transaction_id = e.transaction_id AND t.datestamp < ?"
+            };
+
+            stmt = statements.prepare(combine(sql));
+            stmt.bindInteger(1, ledgerId);
+            stmt.bindInteger(2, to);
+        } else {
+            sql = new String[] {
+                "SELECT coalesce(sum(e.value * e.direction), 0)",
+                "FROM transactions t CROSS JOIN entries e",
+                "WHERE t.datestamp >= ? AND t.datestamp < ?",
+                "AND e.ledger_id = ? AND e.transaction_id = t.transaction_id"
+            };
+
+            stmt = statements.prepare(combine(sql));
+            stmt.bindInteger(1, from);
+            stmt.bindInteger(2, to);
+            stmt.bindInteger(3, ledgerId);
         }
-        stmt.finish();
+
+        stmt.step();
+        result += stmt.columnInteger(0);
+        statements.finish(stmt);
 
         return result;
     }
 
     /**
-     * Get the list of all known Workers.
+     * Throw away the given Ledger's checkpoints that include an Entry dated
+     * <code>datestamp</code>, which is being added, changed or removed.
+     */
+    private void invalidateCheckpoints(long ledgerId, long datestamp) {
+        final Statement stmt;
+
+        stmt = statements.prepare("DELETE FROM period_checkpoints WHERE ledger_id = ? AND datestamp > ?");
+        stmt.bindInteger(1, ledgerId);
+        stmt.bindInteger(2, datestamp);
+        stmt.step();
+        statements.finish(stmt);
+    }
+
+    /**
+     * The archived years, earliest first.
+     */
+    private ArrayList<Archive> archives;
+
+    /**
+     * The date archived years run up to; Transactions dated before this
+     * are no longer in the book. Long.MIN_VALUE if nothing is archived.
+     */
+    private long horizon;
+
+    /**
+     * The highest Transaction and Entry IDs archived.
+     */
+    private long archivedTransactionID;
+
+    private long archivedEntryID;
+
+    private void loadArchives() {
+        final Statement stmt;
+        final File dir;
+        long closing;
+
+        archives = new ArrayList<Archive>(2);
+        horizon = Long.MIN_VALUE;
+        archivedTransactionID = 0;
+        archivedEntryID = 0;
+
+        dir = new File(filename).getAbsoluteFile().getParentFile();
+
+        stmt = statements.prepare("SELECT opening, closing, filename, last_transaction, last_entry FROM archives ORDER BY opening");
+
+        while (stmt.step()) {
+            closing = stmt.columnInteger(1);
+
+            archives.add(new Archive(stmt.columnInteger(0), closing, new File(dir, stmt.columnText(2)).getPath(),
+                    "archive_" + archives.size()));
+
+            horizon = closing;
+            archivedTransactionID = Math.max(archivedTransactionID, stmt.columnInteger(3));
+            archivedEntryID = Math.max(archivedEntryID, stmt.columnInteger(4));
+        }
+
+        statements.finish(stmt);
+    }
+
+    /**
+     * Is the given date in an archived year?
+     */
+    public boolean isArchived(long datestamp) {
+        return datestamp < horizon;
+    }
+
+    private void checkArchived(long datestamp) {
+        if (isArchived(datestamp)) {
+            throw new IllegalStateException("\n" + "Can't post into an archived year");
+        }
+    }
+
+    /**
+     * The file the year starting on the given date is archived to: the
+     * book's filename with the year added.
+     */
+    private File archiveFile(long opening) {
+        final Calendar cal;
+        final String base;
+
+        cal = Calendar.getInstance();
+        cal.setTimeInMillis(opening * 1000);
+
+        if (filename.endsWith(".db")) {
+            base = filename.substring(0, filename.length() - 3);
+        } else {
+            base = filename;
+        }
+
+        return new File(base + "-" + cal.get(Calendar.YEAR) + ".db");
+    }
+
+    /**
+     * Move the Transactions dated from <code>opening</code> up to but not
+     * including <code>closing</code>, and their Entries, out of the book into
+     * a database file of their own alongside it. The period ending at
+     * <code>closing</code> must have been closed, and years must be archived
+     * in order, earliest first.
+     *
+     * <p>
+     * The period checkpoints stay in the book, so balances as at later
+     * dates carry on from the one at <code>closing</code> as an opening
+     * balance. Queries reaching into an archived year attach its file as
+     * they need to. Nothing can be posted into an archived year.
+     *
+     * <p>
+     * This needs the write connection to itself; don't call it while
+     * postings are in progress.
      */
     /*
-     * This short circuits the database, because they're already all loaded.
-     * If we need them in a certain order, then we should query. See
-     * implementation in listTransactions().
+     * In WAL mode a transaction spanning attached databases isn't atomic
+     * across them, so this is done in two: first the rows are copied to the
+     * archive, then they are deleted from the book and the archive
+     * recorded. If anything goes wrong before the second commits, the
+     * archive file is thrown away and the book is as it was.
      */
-    public Worker[] listWorkers() {
-        Worker[] result;
-        final int num;
-        Collection<Worker> list;
+    public synchronized void archiveYear(long opening, long closing) {
+        final File file;
+        final String schema;
+        final long lastTransaction, lastEntry;
+        final ArrayList<Long> periods;
+        final ArrayList<Long> transactionIds, entryIds;
+        Statement stmt;
+        long earlier;
+        boolean done;
+
+        enter();
+        try {
+            if (closing <= opening) {
+                throw new IllegalArgumentException("\n" + "Archived year must end after it opens");
+            }
+            if (open) {
+                throw new IllegalStateException("\n" + "Can't archive inside a database transaction");
+            }
+
+            if (archives.size() > 0) {
+                if (opening != horizon) {
+                    throw new IllegalStateException("\n" + "Archive years in order; the next one opens at " + horizon);
+                }
+            } else {
+                stmt = statements.prepare("SELECT count() FROM transactions WHERE datestamp < ?");
+                stmt.bindInteger(1, opening);
+                stmt.step();
+                earlier = stmt.columnInteger(0);
+                statements.finish(stmt);
+
+                if (earlier > 0) {
+                    throw new IllegalStateException("\n" + "There are Transactions before " + opening
+                            + ", archive those first");
+                }
+            }
 
-        num = workers.size();
-        result = new Worker[num];
+            periods = new ArrayList<Long>();
 
-        list = workers.values();
-        result = list.toArray(result);
+            stmt = statements.prepare("SELECT datestamp FROM closed_periods WHERE datestamp <= ? ORDER BY datestamp");
+            stmt.bindInteger(1, closing);
+            while (stmt.step()) {
+                periods.add(stmt.columnInteger(0));
+            }
+            statements.finish(stmt);
 
-        return result;
-    }
+            if ((periods.size() == 0) || (periods.get(periods.size() - 1) != closing)) {
+                throw new IllegalStateException("\n" + "Close the period ending at " + closing + " before archiving it");
+            }
 
-    /*
-     * If we need this, do it along the lines of listLedgers().
-     */
-    public Account[] listAccounts() {
-        throw new UnsupportedOperationException();
-    }
+            file = archiveFile(opening);
+            if (file.exists()) {
+                throw new IllegalStateException("\n" + "Archive " + file + " already exists");
+            }
 
-    private Ledger[] cache;
+            /*
+             * The checkpoints are worked out from the Entries that are about to
+             * leave, so make sure all of them up to the closing are there.
+             */
 
-    /**
-     * Get a list of Ledgers, internally ordered in an order suitable for
-     * display.
-     */
-    public Ledger[] listLedgers() {
-        Ledger[] result;
-        final Statement stmt;
-        final int num;
-        long ledgerId;
-        Ledger ledger;
-        int i;
+            for (Long period : periods) {
+                for (Ledger ledger : listLedgers()) {
+                    balanceBefore(ledger.getID(), period);
+                }
+            }
 
-        if (cache == null) {
-            num = ledgers.size();
-            result = new Ledger[num];
+            schema = "archive_" + archives.size();
+
+            stmt = statements.prepare("ATTACH DATABASE ? AS " + schema);
+            stmt.bindText(1, file.getPath());
+            stmt.step();
+            statements.finish(stmt);
+            statements.setAttached(schema, true);
+
+            done = false;
+            try {
+                execute("CREATE TABLE " + schema + ".transactions (transaction_id INTEGER PRIMARY KEY, type_id INTEGER, datestamp INTEGER, description TEXT, reference TEXT)");
+                execute("CREATE TABLE " + schema + ".entries (entry_id INTEGER PRIMARY KEY, transaction_id INTEGER, ledger_id INTEGER, amount INTEGER, currency TEXT, value INTEGER, direction INTEGER)");
+
+                begin();
+
+                stmt = statements.prepare("INSERT INTO " + schema + ".transactions SELECT transaction_id, type_id, datestamp, description, reference FROM main.transactions WHERE datestamp >= ? AND datestamp < ?");
+                stmt.bindInteger(1, opening);
+                stmt.bindInteger(2, closing);
+                stmt.step();
+                statements.finish(stmt);
+
+                execute("INSERT INTO " + schema + ".entries SELECT e.entry_id, e.transaction_id, e.ledger_id, e.amount, e.currency, e.value, e.direction FROM main.entries e, "
+                        + schema + ".transactions t WHERE e.transaction_id = t.transaction_id");
+
+                execute("CREATE INDEX " + schema + ".transactions_datestamp ON transactions (datestamp)");
+                execute("CREATE INDEX " + schema + ".entries_transaction ON entries (transaction_id)");
+                execute("CREATE INDEX " + schema + ".entries_ledger ON entries (ledger_id, transaction_id, currency, amount, value, direction)");
+
+                commit();
+
+                transactionIds = listIDs("SELECT transaction_id FROM " + schema + ".transactions");
+                entryIds = listIDs("SELECT entry_id FROM " + schema + ".entries");
+
+                lastTransaction = Math.max(archivedTransactionID, max(transactionIds));
+                lastEntry = Math.max(archivedEntryID, max(entryIds));
+
+                begin();
+
+                execute("DELETE FROM main.entries WHERE transaction_id IN (SELECT transaction_id FROM " + schema
+                        + ".transactions)");
+
+                stmt = statements.prepare("DELETE FROM main.transactions WHERE datestamp >= ? AND datestamp < ?");
+                stmt.bindInteger(1, opening);
+                stmt.bindInteger(2, closing);
+                stmt.step();
+                statements.finish(stmt);
+
+                stmt = statements.prepare("INSERT INTO archives VALUES (NULL, ?, ?, ?, ?, ?)");
+                stmt.bindInteger(1, opening);
+                stmt.bindInteger(2, closing);
+                stmt.bindText(3, file.getName());
+                stmt.bindInteger(4, lastTransaction);
+                stmt.bindInteger(5, lastEntry);
+                stmt.step();
+                statements.finish(stmt);
+
+                commit();
+                done = true;
+            } finally {
+                if (!done) {
+                    if (open) {
+                        rollback();
+                    }
+                    execute("DETACH DATABASE " + schema);
+                    statements.setAttached(schema, false);
+                    file.delete();
+                }
+            }
+
+            archives.add(new Archive(opening, closing, file.getPath(), schema));
+            horizon = closing;
+            archivedTransactionID = lastTransaction;
+            archivedEntryID = lastEntry;
 
             /*
-             * We can make this more sophisticated if we have to, perhaps
-             * adding an optional [sub]ordering column to accounts and
-             * ledgers.
+             * Let go of the objects that moved, and the indexes built with them.
              */
 
-            stmt = db.prepare("SELECT l.ledger_id FROM ledgers l, accounts a, types y WHERE l.account_id = a.account_id AND a.type_id = y.type_id ORDER BY y.type_id");
-
-            i = 0;
-            while (stmt.step()) {
-                ledgerId = stmt.columnInteger(0);
-                ledger = lookupLedger(ledgerId);
-                result[i] = ledger;
-                i++;
+            for (Long id : entryIds) {
+                if (lazy) {
+                    recentEntries.remove(id);
+                } else if (entries.get(id) != null) {
+                    forget(entries.get(id));
+                }
+            }
+            for (Long id : transactionIds) {
+                if (lazy) {
+                    recentTransactions.remove(id);
+                } else {
+                    transactions.remove(id);
+                }
             }
-            stmt.finish();
 
-            cache = result;
+            discardIndexes();
+        } finally {
+            leave();
         }
-
-        return cache;
     }
 
-    public Currency[] listCurrencies() {
-        Currency[] result;
-        final int num;
-        Collection<Currency> list;
+    private ArrayList<Long> listIDs(String sql) {
+        final ArrayList<Long> result;
+        final Statement stmt;
 
-        num = workers.size();
-        result = new Currency[num];
+        result = new ArrayList<Long>();
 
-        list = currencies.values();
-        result = list.toArray(result);
+        stmt = statements.prepare(sql);
+        while (stmt.step()) {
+            result.add(stmt.columnInteger(0));
+        }
+        statements.finish(stmt);
 
         return result;
     }
 
-    /**
-     * Get the Entry object proxying the specified rowid.
-     */
-    public Entry lookupEntry(final long entryId) {
-        final Entry result;
+    private static long max(ArrayList<Long> ids) {
+        long result;
 
-        result = entries.get(entryId);
-        if (result == null) {
-            /*
-             * There's no reason we couldn't do lazy loading here.
-             */
-            throw new IllegalStateException("Entry (" + entryId + ") isn't loaded");
+        result = 0;
+        for (Long id : ids) {
+            result = Math.max(result, id);
         }
 
         return result;
     }
 
-    /*
-     * Again, could have used reflection but this is cleaner and much more
-     * strongly typed.
+    /**
+     * Attach, to the given connection, the archives holding any of the
+     * dates from <code>from</code> to <code>to</code> that aren't already.
+     * This must be done before the connection starts a transaction.
      */
-    private static Transaction makeTransaction(long transactionId, String type, long datestamp,
-            String description, String reference) {
-        final Transaction result;
+    synchronized void attachArchives(StatementCache conn, long from, long to) {
+        Statement stmt;
+        String schema;
 
-        if (type.equals("Generic")) {
-            result = new GenericTransaction(transactionId);
-        } else if (type.equals("Reimbursable")) {
-            result = new ReimbursableTransaction(transactionId);
+        for (Archive archive : archives) {
+            schema = archive.getSchema();
+            if (!archive.overlaps(from, to) || conn.isAttached(schema)) {
+                continue;
+            }
 
-        } else if (type.equals("SalesInvoice")) {
-            result = new SalesInvoiceTransaction(transactionId);
-        } else if (type.equals("SalesPayment")) {
-            result = new SalesPaymentTransaction(transactionId);
-        } else if (type.equals("BillInvoice")) {
-            result = new BillInvoiceTransaction(transactionId);
-        } else if (type.equals("BillPayment")) {
-            result = new BillPaymentTransaction(transactionId);
-        } else {
-            throw new IllegalStateException("\n" + "Unknown Account type " + type + " for ("
-                    + transactionId + ")");
-        }
+            /*
+             * ATTACH would quietly make an empty database.
+             */
 
-        if (description == null) {
-            description = "";
-        }
-        if (reference == null) {
-            reference = "";
-        }
+            if (!new File(archive.getFilename()).exists()) {
+                throw new IllegalStateException("\n" + "Archive " + archive.getFilename() + " is missing");
+            }
 
-        result.setDate(datestamp);
-        result.setDescription(description);
-        result.setReference(reference);
+            stmt = conn.prepare("ATTACH DATABASE ? AS " + schema);
+            stmt.bindText(1, archive.getFilename());
+            stmt.step();
+            conn.finish(stmt);
 
-        return result;
+            conn.setAttached(schema, true);
+        }
     }
 
     /**
-     * Given queried values and existing proxy objects, construct an Entry
-     * object representing the given rowid.
+     * Make a query over Transactions dated from <code>from</code> to
+     * <code>to</code> that reaches into any archives holding those dates as
+     * well as the book. The body refers to <code>main.transactions</code>
+     * and <code>main.entries</code>; it is repeated for each archive with
+     * those replaced, the copies are joined with UNION ALL, and then the
+     * tail (ORDER BY, by column position, and any LIMIT) is added. The
+     * parameters are numbered so each copy takes the same values, and so
+     * they are bound just as if there were only the one.
      */
-    private static Entry makeEntry(long rowid, Transaction transaction, Ledger ledger, long amount,
-            Currency currency, long value, long direction) {
-        final Entry result;
+    private String acrossArchives(String[] body, String[] tail, long from, long to) {
+        final StringBuilder buf;
+        final String query;
+        final int num;
+        String schema;
 
-        if (direction == 1) {
-            result = new Debit(rowid);
-        } else if (direction == -1) {
-            result = new Credit(rowid);
-        } else {
-            throw new IllegalArgumentException();
+        query = numberParameters(combine(body), 1);
+        num = countParameters(query);
+
+        buf = new StringBuilder();
+
+        for (Archive archive : archives) {
+            if (!archive.overlaps(from, to)) {
+                continue;
+            }
+            schema = archive.getSchema();
+
+            if (buf.length() > 0) {
+                buf.append(" UNION ALL ");
+            }
+            buf.append(query.replace("main.transactions", schema + ".transactions").replace("main.entries",
+                    schema + ".entries"));
         }
 
-        result.setParentTransaction(transaction);
-        result.setParentLedger(ledger);
+        if ((buf.length() == 0) || !isArchived(to)) {
+            if (buf.length() > 0) {
+                buf.append(" UNION ALL ");
+            }
+            buf.append(query);
+        }
 
-        result.setAmount(amount);
-        result.setCurrency(currency);
-        result.setValue(value);
+        buf.append(' ');
+        buf.append(numberParameters(combine(tail), num + 1));
 
-        return result;
+        return buf.toString();
     }
 
-    /**
-     * Combine an array of Strings into a single String. Use this for
-     * constructing SQL statements.
-     */
-    private static String combine(String[] sql) {
-        StringBuilder buf;
-        int len, i;
-
-        len = 0;
+    private static int countParameters(String sql) {
+        int result, i;
 
-        for (i = 0; i < sql.length; i++) {
-            len += sql[i].length();
+        result = 0;
+        for (i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                result++;
+            }
         }
 
-        buf = new StringBuilder(len);
+        return result;
+    }
 
-        for (i = 0; i < sql.length; i++) {
-            if (i > 0) {
-                buf.append(' ');
+    /**
+     * Replace each ? in the given SQL with ?NNN, counting from
+     * <code>first</code>.
+     */
+    private static String numberParameters(String sql, int first) {
+        final StringBuilder buf;
+        int i, n;
+        char ch;
+
+        buf = new StringBuilder(sql.length() + 16);
+        n = first;
+
+        for (i = 0; i < sql.length(); i++) {
+            ch = sql.charAt(i);
+            buf.append(ch);
+            if (ch == '?') {
+                buf.append(n);
+                n++;
             }
-
-            buf.append(sql[i]);
         }
 
         return buf.toString();
     }
 
     /**
-     * Insert a newly formed Transaction object into the database. You should
-     * immediately follow this with a call to
-     * {@link DataStore#updateTransaction(Transaction) updateTransaction()}.
+     * Sum the given Ledger's archived Entries dated from <code>from</code>
+     * up to but not including <code>to</code>, over a reader connection.
      */
-    public void createTransaction(Transaction t) {
+    private long sumArchived(long ledgerId, long from, long to) {
+        final StatementCache reader;
         Statement stmt;
-        final long typeId, rowId;
-
-        typeId = t.getType();
-
-        stmt = db.prepare("INSERT INTO transactions VALUES (NULL, ?, -1, NULL, NULL)");
-        stmt.bindInteger(1, typeId);
-        stmt.step();
-        stmt.finish();
-
-        rowId = db.lastInsertRowID();
-        t.setID(rowId);
-
-        /*
-         * Now that a new Transaction exists, cache our reference to it.
-         */
+        String[] sql;
+        String schema;
+        long result;
+
+        result = 0;
+
+        reader = borrowReader();
+        try {
+            attachArchives(reader, from, to - 1);
+
+            for (Archive archive : archives) {
+                if (!archive.overlaps(from, to - 1)) {
+                    continue;
+                }
+                schema = archive.getSchema();
+
+                sql = new String[] {
+                    "SELECT coalesce(sum(e.value * e.direction), 0)",
+                    "FROM " + schema + ".transactions t CROSS JOIN " + schema + ".entries e",
+                    "WHERE t.datestamp >= ? AND t.datestamp < ?",
+                    "AND e.ledger_id = ? AND e.transaction_id = t.transaction_id"
+                };
+
+                stmt = reader.prepare(combine(sql));
+                stmt.bindInteger(1, from);
+                stmt.bindInteger(2, to);
+                stmt.bindInteger(3, ledgerId);
+                stmt.step();
+                result += stmt.columnInteger(0);
+                reader.finish(stmt);
+            }
+        } finally {
+            returnReader(reader);
+        }
 
-        this.cache(t);
+        return result;
     }
 
     /**
-     * Update a Transaction in the database.
+     * The balance of the given Ledger brought forward from archived years,
+     * positive for a net debit.
      */
-    public void updateTransaction(Transaction t) {
-        final Statement stmt;
-        final long transactionId, datestamp;
-        final String description, reference;
-
-        stmt = db.prepare("UPDATE transactions SET datestamp = ?, description = ?, reference = ? WHERE transaction_id = ?");
+    long openingBalance(long ledgerId) {
+        if (archives.size() == 0) {
+            return 0;
+        }
+        return balanceBefore(ledgerId, horizon);
+    }
 
-        datestamp = t.getDate();
-        stmt.bindInteger(1, datestamp);
+    /**
+     * The entries table, together with those of every archive, for
+     * recalculating balances from scratch.
+     */
+    private String allEntries() {
+        final StringBuilder buf;
 
-        description = t.getDescription();
-        if ((description == null) || (description.equals(""))) {
-            stmt.bindNull(2);
-        } else {
-            stmt.bindText(2, description);
+        if (archives.size() == 0) {
+            return "main.entries";
         }
 
-        reference = t.getReference();
-        if ((reference == null) || (reference.equals(""))) {
-            stmt.bindNull(3);
-        } else {
-            stmt.bindText(3, reference);
+        attachArchives(statements, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        buf = new StringBuilder("(SELECT ledger_id, currency, amount, value, direction FROM main.entries");
+        for (Archive archive : archives) {
+            buf.append(" UNION ALL SELECT ledger_id, currency, amount, value, direction FROM ");
+            buf.append(archive.getSchema());
+            buf.append(".entries");
         }
+        buf.append(')');
 
-        transactionId = t.getID();
-        stmt.bindInteger(4, transactionId);
+        return buf.toString();
+    }
 
-        stmt.step();
-        stmt.finish();
+    /**
+     * How many Entries are there in the given Ledger?
+     */
+    public synchronized int countEntries(Ledger ledger) {
+        checkStale();
+        return getLedgerIndex(ledger).size();
     }
 
     /**
-     * Delete a Transaction from the database. You need to have deleted the
-     * Entries of this Transaction first!
-     * 
-     * @param transaction
+     * Get the Entries of the given Ledger dated from <code>from</code> to
+     * <code>to</code> inclusive, in register order, with running balances.
      */
-    public void deleteTransaction(Transaction transaction) {
-        final Statement stmt;
-        final long transactionId;
+    public synchronized LedgerPage listEntries(Ledger ledger, long from, long to) {
+        final LedgerIndex register;
+        final int first, last;
 
-        stmt = db.prepare("DELETE FROM transactions WHERE transaction_id = ?");
+        checkStale();
 
-        transactionId = transaction.getID();
-        stmt.bindInteger(1, transactionId);
+        register = getLedgerIndex(ledger);
+        first = register.position(from);
+        last = register.position(to + 86400);
 
-        stmt.step();
-        stmt.finish();
+        return makePage(ledger, register, first, last - first);
     }
 
     /**
-     * Update an Entry in the database.
+     * Get <code>limit</code> Entries of the given Ledger starting from
+     * position <code>offset</code> in its register, with running balances.
+     * This is for scrolling through a register view.
      */
-    public void updateEntry(Entry e) {
-        final String[] sql;
-        final Statement stmt;
-        final Ledger l;
-        final long ledgerId, amount, value, entryId;
-        final Currency currency;
-        final String code;
-
-        sql = new String[] {
-            "UPDATE entries",
-            "SET ledger_id = ?, amount = ?, currency = ?, value = ?",
-            "WHERE entry_id = ?"
-        };
+    public synchronized LedgerPage pageEntries(Ledger ledger, int offset, int limit) {
+        final LedgerIndex register;
+        final int num;
 
-        stmt = db.prepare(combine(sql));
+        checkStale();
 
-        l = e.getParentLedger();
-        ledgerId = l.getID();
-        stmt.bindInteger(1, ledgerId);
+        register = getLedgerIndex(ledger);
 
-        currency = e.getCurrency();
-        if (currency == null) {
-            throw new AssertionError();
+        if (offset < 0) {
+            throw new IllegalArgumentException();
         }
+        num = Math.max(0, Math.min(limit, register.size() - offset));
 
-        amount = e.getAmount();
-        stmt.bindInteger(2, amount);
-
-        code = currency.getCode();
-        stmt.bindText(3, code);
-
-        value = e.getValue();
-        stmt.bindInteger(4, value);
-
-        entryId = e.getID();
-        stmt.bindInteger(5, entryId);
-
-        stmt.step();
-        stmt.finish();
+        return makePage(ledger, register, offset, num);
     }
 
-    public void deleteEntry(Entry e) {
-        final String[] sql;
-        final Statement stmt;
-        final long entryId;
+    private LedgerPage makePage(Ledger ledger, LedgerIndex register, int offset, int num) {
+        final Entry[] entries;
+        final long[] balances;
+        final long direction;
+        long balance;
+        int i;
 
-        sql = new String[] {
-            "DELETE FROM entries",
-            "WHERE entry_id = ?"
-        };
+        entries = new Entry[num];
+        balances = new long[num];
+        direction = naturalDirection(ledger);
 
-        stmt = db.prepare(combine(sql));
+        balance = openingBalance(ledger.getID()) + register.prefix(offset);
+        for (i = 0; i < num; i++) {
+            balance += register.getValue(offset + i);
+            entries[i] = findEntry(register.getEntryID(offset + i));
+            balances[i] = balance * direction;
+        }
 
-        entryId = e.getID();
-        stmt.bindInteger(1, entryId);
+        return new LedgerPage(offset, entries, balances);
+    }
 
-        stmt.step();
-        stmt.finish();
+    /**
+     * Work out the book's trial balance from the Entries in memory, using
+     * <code>threads</code> threads. This takes the place of running
+     * <code>schema/trial.sql</code> against the database.
+     */
+    public synchronized TrialBalance trialBalance(int threads) {
+        checkStale();
+        return TrialBalance.compute(this, getEntryIndex(), threads);
     }
 
     /**
-     * Insert the given newly constructed Entry into the database.
+     * Recalculate every Ledger's balance from scratch and compare it to the
+     * one we've been maintaining. The ledger_balances table is then replaced
+     * with the recalculated figures. Archived Entries are included.
+     *
+     * @return the Ledgers whose balances didn't agree. Hopefully none.
      */
-    public void createEntry(Entry e) {
+    public Ledger[] verifyBalances() {
         Statement stmt;
-        final Transaction transaction;
-        final Ledger ledger;
-        final long transactionId, ledgerId, direction, rowId;
-
-        transaction = e.getParentTransaction();
-        if (transaction == null) {
-            throw new AssertionError();
-        }
-        transactionId = transaction.getID();
-
-        ledger = e.getParentLedger();
-        if (ledger == null) {
-            throw new AssertionError();
-        }
-        ledgerId = ledger.getID();
-
-        if (e instanceof Debit) {
-            direction = 1;
-        } else if (e instanceof Credit) {
-            direction = -1;
-        } else {
-            throw new AssertionError();
-        }
+        String[] sql;
+        final ArrayList<Ledger> list;
+        final String source;
+        long ledgerId;
+        Ledger[] result;
 
-        stmt = db.prepare("INSERT INTO entries VALUES (NULL, ?, ?, 0, NULL, 0, ?)");
-        stmt.bindInteger(1, transactionId);
-        stmt.bindInteger(2, ledgerId);
-        stmt.bindInteger(3, direction);
+        list = new ArrayList<Ledger>(4);
+        source = allEntries();
 
-        stmt.step();
-        stmt.finish();
+        sql = new String[] {
+            "SELECT coalesce(b.ledger_id, r.ledger_id)",
+            "FROM ledger_balances b",
+            "LEFT JOIN (",
+            "SELECT e.ledger_id, sum((e.currency NOTNULL) * e.amount * e.direction) AS amount, sum(e.value * e.direction) AS value",
+            "FROM " + source + " e GROUP BY e.ledger_id",
+            ") r ON b.ledger_id = r.ledger_id",
+            "WHERE coalesce(r.amount, 0) != b.amount OR coalesce(r.value, 0) != b.value",
+            "UNION",
+            "SELECT e.ledger_id",
+            "FROM " + source + " e",
+            "WHERE e.ledger_id NOT IN (SELECT ledger_id FROM ledger_balances)"
+        };
 
-        rowId = db.lastInsertRowID();
-        e.setID(rowId);
+        begin();
 
-        /*
-         * Cache our reference to the new Entry.
-         */
+        try {
+            stmt = statements.prepare(combine(sql));
+            while (stmt.step()) {
+                ledgerId = stmt.columnInteger(0);
+                list.add(lookupLedger(ledgerId));
+            }
+            statements.finish(stmt);
+
+            execute("DELETE FROM ledger_balances");
+
+            sql = new String[] {
+                "INSERT INTO ledger_balances",
+                "SELECT e.ledger_id, sum((e.currency NOTNULL) * e.amount * e.direction), sum(e.value * e.direction)",
+                "FROM " + source + " e",
+                "GROUP BY e.ledger_id"
+            };
+            execute(combine(sql));
+
+            commit();
+        } catch (RuntimeException re) {
+            rollback();
+            throw re;
+        }
 
-        this.cache(e);
+        result = new Ledger[list.size()];
+        return list.toArray(result);
     }
 
     /**
@@ -948,7 +4286,7 @@ public class DataStore
         Ledger ledger;
         Worker worker;
 
-        stmt = db.prepare("SELECT w.worker_id, w.type, w.name, w.ledger_id FROM workers w");
+        stmt = statements.prepare("SELECT w.worker_id, w.type, w.name, w.ledger_id FROM workers w");
 
         while (stmt.step()) {
             workerId = stmt.columnInteger(0);
@@ -963,10 +4301,10 @@ public class DataStore
             this.cache(worker);
         }
 
-        stmt.finish();
+        statements.finish(stmt);
     }
 
-    private static Worker makeWorker(long workerId, long type, String name, Ledger ledger) {
+    static Worker makeWorker(long workerId, long type, String name, Ledger ledger) {
         final Worker result;
 
         if (type == 1) {
@@ -28,6 +28,12 @@ public abstract class DomainObject
 {
     private long databaseId;
 
+    /**
+     * The version of the row this object was read from or last written to,
+     * which an update must still match for it to go ahead.
+     */
+    private long version;
+
     protected DomainObject(long rowid) {
         this.databaseId = rowid;
     }
@@ -36,6 +42,14 @@ public abstract class DomainObject
         return databaseId;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
     public long getType() {
         return 0;
     }
@@ -0,0 +1,319 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * The facts about every Entry that reports need, held as parallel arrays of
+ * primitives sorted by Ledger, then date, then Entry ID. Summing a Ledger
+ * over a period is then two binary searches and a walk along contiguous
+ * memory, without having to load (or even have) any Entry objects.
+ *
+ * <p>
+ * Row <i>i</i> is the Entry <code>entryIds[i]</code>, which is in the
+ * Transaction <code>transactionIds[i]</code>, dated
+ * <code>datestamps[i]</code>, against the Ledger <code>ledgerIds[i]</code>,
+ * for <code>values[i]</code> in the home currency in
+ * <code>directions[i]</code> (1 for Debit, -1 for Credit).
+ *
+ * @author Andrew Cowie
+ */
+class EntryIndex
+{
+    private static final int MINIMUM = 64;
+
+    private long[] entryIds;
+
+    private long[] ledgerIds;
+
+    private long[] transactionIds;
+
+    private long[] datestamps;
+
+    private long[] values;
+
+    private byte[] directions;
+
+    private int size;
+
+    EntryIndex(int expected) {
+        allocate(Math.max(expected, MINIMUM));
+        size = 0;
+    }
+
+    private void allocate(int capacity) {
+        entryIds = new long[capacity];
+        ledgerIds = new long[capacity];
+        transactionIds = new long[capacity];
+        datestamps = new long[capacity];
+        values = new long[capacity];
+        directions = new byte[capacity];
+    }
+
+    /**
+     * Build the index from the entries table.
+     */
+    /*
+     * The database does the sorting; this is one pass appending to the end
+     * of the arrays.
+     */
+    static EntryIndex load(DataStore store) {
+        final EntryIndex result;
+        final Statement stmt;
+        final String[] sql;
+
+        result = new EntryIndex(store.count("entries"));
+
+        sql = new String[] {
+            "SELECT e.entry_id, e.ledger_id, e.transaction_id, t.datestamp, e.value, e.direction",
+            "FROM entries e, transactions t",
+            "WHERE t.transaction_id = e.transaction_id",
+            "ORDER BY e.ledger_id, t.datestamp, e.entry_id"
+        };
+
+        stmt = store.prepare(DataStore.combine(sql));
+
+        while (stmt.step()) {
+            result.append(stmt.columnInteger(0), stmt.columnInteger(1), stmt.columnInteger(2),
+                    stmt.columnInteger(3), stmt.columnInteger(4), stmt.columnInteger(5));
+        }
+
+        store.finish(stmt);
+
+        return result;
+    }
+
+    private void ensure(int capacity) {
+        final long[] oldEntryIds, oldLedgerIds, oldTransactionIds, oldDatestamps, oldValues;
+        final byte[] oldDirections;
+
+        if (capacity <= entryIds.length) {
+            return;
+        }
+
+        oldEntryIds = entryIds;
+        oldLedgerIds = ledgerIds;
+        oldTransactionIds = transactionIds;
+        oldDatestamps = datestamps;
+        oldValues = values;
+        oldDirections = directions;
+
+        allocate(Math.max(capacity, entryIds.length * 2));
+
+        System.arraycopy(oldEntryIds, 0, entryIds, 0, size);
+        System.arraycopy(oldLedgerIds, 0, ledgerIds, 0, size);
+        System.arraycopy(oldTransactionIds, 0, transactionIds, 0, size);
+        System.arraycopy(oldDatestamps, 0, datestamps, 0, size);
+        System.arraycopy(oldValues, 0, values, 0, size);
+        System.arraycopy(oldDirections, 0, directions, 0, size);
+    }
+
+    private void set(int i, long entryId, long ledgerId, long transactionId, long datestamp, long value,
+            long direction) {
+        if ((direction != 1) && (direction != -1)) {
+            throw new IllegalArgumentException("\n" + "Can't have directionless Entries");
+        }
+
+        entryIds[i] = entryId;
+        ledgerIds[i] = ledgerId;
+        transactionIds[i] = transactionId;
+        datestamps[i] = datestamp;
+        values[i] = value;
+        directions[i] = (byte) direction;
+    }
+
+    /**
+     * Add a row to the end. The caller must be supplying rows in order.
+     */
+    void append(long entryId, long ledgerId, long transactionId, long datestamp, long value,
+            long direction) {
+        ensure(size + 1);
+        set(size, entryId, ledgerId, transactionId, datestamp, value, direction);
+        size++;
+    }
+
+    /**
+     * Add a row, in its place.
+     */
+    void insert(long entryId, long ledgerId, long transactionId, long datestamp, long value,
+            long direction) {
+        final int i, num;
+
+        ensure(size + 1);
+
+        i = search(ledgerId, datestamp, entryId);
+        num = size - i;
+
+        System.arraycopy(entryIds, i, entryIds, i + 1, num);
+        System.arraycopy(ledgerIds, i, ledgerIds, i + 1, num);
+        System.arraycopy(transactionIds, i, transactionIds, i + 1, num);
+        System.arraycopy(datestamps, i, datestamps, i + 1, num);
+        System.arraycopy(values, i, values, i + 1, num);
+        System.arraycopy(directions, i, directions, i + 1, num);
+
+        set(i, entryId, ledgerId, transactionId, datestamp, value, direction);
+        size++;
+    }
+
+    /**
+     * Remove the row for the given Entry, which must be the one filed under
+     * the given Ledger and date.
+     *
+     * @return <code>false</code> if it wasn't there.
+     */
+    boolean remove(long entryId, long ledgerId, long datestamp) {
+        final int i, num;
+
+        i = search(ledgerId, datestamp, entryId);
+        if ((i == size) || (compare(i, ledgerId, datestamp, entryId) != 0)) {
+            return false;
+        }
+        num = size - i - 1;
+
+        System.arraycopy(entryIds, i + 1, entryIds, i, num);
+        System.arraycopy(ledgerIds, i + 1, ledgerIds, i, num);
+        System.arraycopy(transactionIds, i + 1, transactionIds, i, num);
+        System.arraycopy(datestamps, i + 1, datestamps, i, num);
+        System.arraycopy(values, i + 1, values, i, num);
+        System.arraycopy(directions, i + 1, directions, i, num);
+
+        size--;
+        return true;
+    }
+
+    /**
+     * Find the first row not less than the given (Ledger, date, Entry).
+     */
+    private int search(long ledgerId, long datestamp, long entryId) {
+        int lo, hi, mid;
+
+        lo = 0;
+        hi = size;
+
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (compare(mid, ledgerId, datestamp, entryId) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    private int compare(int i, long ledgerId, long datestamp, long entryId) {
+        if (ledgerIds[i] != ledgerId) {
+            return ledgerIds[i] < ledgerId ? -1 : 1;
+        }
+        if (datestamps[i] != datestamp) {
+            return datestamps[i] < datestamp ? -1 : 1;
+        }
+        if (entryIds[i] != entryId) {
+            return entryIds[i] < entryId ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * The first row for the given Ledger on or after the given date.
+     */
+    int start(long ledgerId, long datestamp) {
+        return search(ledgerId, datestamp, Long.MIN_VALUE);
+    }
+
+    /**
+     * One past the last row for the given Ledger on or before the given
+     * date.
+     */
+    int end(long ledgerId, long datestamp) {
+        if (datestamp == Long.MAX_VALUE) {
+            return search(ledgerId + 1, Long.MIN_VALUE, Long.MIN_VALUE);
+        }
+        return search(ledgerId, datestamp + 1, Long.MIN_VALUE);
+    }
+
+    /**
+     * Sum the home currency value of the given Ledger's Entries dated from
+     * <code>from</code> to <code>to</code> inclusive. The result is positive
+     * for a net debit.
+     */
+    long sum(long ledgerId, long from, long to) {
+        return sum(start(ledgerId, from), end(ledgerId, to));
+    }
+
+    /**
+     * Sum the signed values of rows <code>first</code> up to but not
+     * including <code>last</code>.
+     */
+    long sum(int first, int last) {
+        long result;
+        int i;
+
+        result = 0;
+        for (i = first; i < last; i++) {
+            result += values[i] * directions[i];
+        }
+
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getEntryID(int i) {
+        return entryIds[i];
+    }
+
+    long getLedgerID(int i) {
+        return ledgerIds[i];
+    }
+
+    long getTransactionID(int i) {
+        return transactionIds[i];
+    }
+
+    long getDatestamp(int i) {
+        return datestamps[i];
+    }
+
+    long getValue(int i) {
+        return values[i];
+    }
+
+    int getDirection(int i) {
+        return directions[i];
+    }
+
+    /**
+     * Approximate number of bytes used by the arrays.
+     */
+    long footprint() {
+        final long len;
+
+        len = entryIds.length;
+        return 6 * 16 + len * (5 * 8 + 1);
+    }
+
+    public String toString() {
+        return size + " of " + entryIds.length + " rows, " + (footprint() / 1024) + " kB";
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * Write a book out as a gzip compressed SQL script, which recreates it when
+ * fed to any SQLite:
+ * 
+ * <pre>
+ * $ zcat accounts.sql.gz | sqlite3 restored.db
+ * </pre>
+ * 
+ * <p>
+ * This is the same form <code>sqlite3</code>'s <code>.dump</code> command
+ * produces, and being text it survives changes of machine, SQLite version,
+ * or program better than a copy of the database file does.
+ * 
+ * @author Andrew Cowie
+ */
+/*
+ * Rows are formatted as SQL literals by SQLite's quote() and written
+ * straight to the compressed stream as the query is stepped, so memory use
+ * doesn't depend on the size of the book. The whole export is done in one
+ * read transaction on a borrowed reader connection so it is consistent.
+ * Creating a virtual table makes its shadow tables, so their rows are
+ * written after emptying them.
+ */
+public final class Export extends Backup
+{
+    public Export(DataStore data, File target) {
+        super(data, target);
+    }
+
+    void copy(File tmp) {
+        final DataStore store;
+        final StatementCache conn;
+        final ArrayList<String[]> schema;
+        Writer out;
+
+        store = getStore();
+        conn = store.borrowReader();
+
+        out = null;
+        try {
+            execute(conn, "BEGIN");
+            try {
+                schema = readSchema(conn);
+                setTotal(countRows(conn, schema));
+
+                out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(
+                        tmp), 65536), "UTF-8"), 65536);
+
+                out.write("PRAGMA foreign_keys = OFF;\n");
+                out.write("BEGIN TRANSACTION;\n");
+
+                for (String[] item : schema) {
+                    if (item[0].equals("table")) {
+                        out.write(item[2]);
+                        out.write(";\n");
+                        writeRows(conn, out, item[1]);
+                    }
+                }
+
+                for (String[] item : schema) {
+                    if (item[0].equals("virtual")) {
+                        out.write(item[2]);
+                        out.write(";\n");
+                    } else if (item[0].equals("shadow")) {
+                        out.write("DELETE FROM " + quote(item[1]) + ";\n");
+                        writeRows(conn, out, item[1]);
+                    }
+                }
+
+                if (hasStatistics(conn)) {
+                    out.write("ANALYZE sqlite_master;\n");
+                    writeRows(conn, out, "sqlite_stat1");
+                }
+
+                for (String[] item : schema) {
+                    if (!item[0].equals("table") && !item[0].equals("virtual")
+                            && !item[0].equals("shadow")) {
+                        out.write(item[2]);
+                        out.write(";\n");
+                    }
+                }
+
+                out.write("COMMIT;\n");
+                out.close();
+                out = null;
+            } finally {
+                execute(conn, "COMMIT");
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("\n" + "Can't write export to " + tmp, ioe);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+            store.returnReader(conn);
+        }
+    }
+
+    /**
+     * Get the names of the given table's columns, in order.
+     */
+    private static ArrayList<String> listColumns(StatementCache conn, String table) {
+        final ArrayList<String> result;
+        final Statement stmt;
+
+        result = new ArrayList<String>();
+
+        stmt = conn.prepare("PRAGMA main.table_info(" + quote(table) + ")");
+        while (stmt.step()) {
+            result.add(stmt.columnText(1));
+        }
+        conn.finish(stmt);
+
+        return result;
+    }
+
+    private void writeRows(StatementCache conn, Writer out, String name) throws IOException {
+        final ArrayList<String> columns;
+        final StringBuilder sql;
+        final String prefix;
+        final Statement stmt;
+        int i, num;
+
+        columns = listColumns(conn, name);
+
+        sql = new StringBuilder("SELECT ");
+        for (i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(" || ',' || ");
+            }
+            sql.append("quote(");
+            sql.append(quote(columns.get(i)));
+            sql.append(")");
+        }
+        sql.append(" FROM main.");
+        sql.append(quote(name));
+
+        prefix = "INSERT INTO " + quote(name) + " VALUES(";
+
+        stmt = conn.prepare(sql.toString());
+        try {
+            num = 0;
+            while (stmt.step()) {
+                out.write(prefix);
+                out.write(stmt.columnText(0));
+                out.write(");\n");
+
+                num++;
+                if (num == STEP) {
+                    advance(num);
+                    num = 0;
+                }
+            }
+            if (num > 0) {
+                advance(num);
+            }
+        } finally {
+            conn.finish(stmt);
+        }
+    }
+}
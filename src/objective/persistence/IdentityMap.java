@@ -0,0 +1,284 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+/**
+ * Map from database rowid to the object representing that row. This is
+ * what HashMap&lt;Long,T&gt; would do, but without boxing every key and
+ * without allocating a node for every mapping; the keys and values are held
+ * in two parallel arrays, using open addressing with linear probing.
+ *
+ * <p>
+ * Keys must be positive, which rowids are. 0 is used to mark an empty slot,
+ * so it can't be stored; this is fine because an ID of 0 means an object
+ * which hasn't been written to the database yet.
+ *
+ * @author Andrew Cowie
+ */
+class IdentityMap<T>
+{
+    private static final int MINIMUM = 16;
+
+    /**
+     * 2<sup>64</sup> divided by the golden ratio, rounded to odd.
+     */
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+
+    private Object[] values;
+
+    private int size;
+
+    /**
+     * Mask to wrap an index into the arrays, which are always a power of two
+     * in length.
+     */
+    private int mask;
+
+    /**
+     * How far to shift a hash to leave just enough bits to index the arrays.
+     */
+    private int shift;
+
+    /**
+     * Grow once the arrays are this full.
+     */
+    private int threshold;
+
+    IdentityMap() {
+        this(0);
+    }
+
+    /**
+     * Create a map able to hold <code>expected</code> mappings without
+     * having to grow.
+     */
+    IdentityMap(int expected) {
+        int capacity;
+
+        capacity = MINIMUM;
+        while (capacity * 3 / 4 < expected) {
+            capacity <<= 1;
+        }
+
+        allocate(capacity);
+        size = 0;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        threshold = capacity * 3 / 4;
+    }
+
+    /*
+     * Rowids are mostly allocated sequentially. Using their low bits directly
+     * would put neighbouring rows in neighbouring slots, and a cache holding
+     * a window of recent rows would then be one long run, which every
+     * remove() has to walk to its end. Multiplying by the golden ratio and
+     * taking the top bits spreads consecutive keys evenly over the table
+     * instead.
+     */
+    private int slot(long key) {
+        return (int) ((key * GOLDEN) >>> shift);
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long key) {
+        int i;
+        long k;
+
+        if (key == 0) {
+            return null;
+        }
+
+        i = slot(key);
+        while (true) {
+            k = keys[i];
+            if (k == key) {
+                return (T) values[i];
+            }
+            if (k == 0) {
+                return null;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    void put(long key, T value) {
+        int i;
+        long k;
+
+        if (key <= 0) {
+            throw new IllegalArgumentException("\n" + "Can't store object with ID " + key);
+        }
+
+        i = slot(key);
+        while (true) {
+            k = keys[i];
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            if (k == 0) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        size++;
+
+        if (size > threshold) {
+            grow();
+        }
+    }
+
+    /**
+     * Remove the mapping for the given key, if there is one.
+     */
+    /*
+     * Rather than leaving a tombstone, shuffle back any following entries in
+     * the same run that would no longer be reachable across the gap.
+     */
+    void remove(long key) {
+        int i, j, home;
+        long k;
+
+        if (key == 0) {
+            return;
+        }
+
+        i = slot(key);
+        while (true) {
+            k = keys[i];
+            if (k == key) {
+                break;
+            }
+            if (k == 0) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            k = keys[j];
+            if (k == 0) {
+                break;
+            }
+            home = slot(k);
+
+            /*
+             * Can the entry at j stay where it is, given a hole at i? Only if
+             * its home slot lies cyclically within (i, j].
+             */
+            if ((i <= j) ? ((i < home) && (home <= j)) : ((i < home) || (home <= j))) {
+                continue;
+            }
+
+            keys[i] = k;
+            values[i] = values[j];
+            i = j;
+        }
+
+        keys[i] = 0;
+        values[i] = null;
+        size--;
+    }
+
+    private void grow() {
+        final long[] oldKeys;
+        final Object[] oldValues;
+        int i, j;
+        long k;
+
+        oldKeys = keys;
+        oldValues = values;
+
+        allocate(oldKeys.length * 2);
+
+        for (i = 0; i < oldKeys.length; i++) {
+            k = oldKeys[i];
+            if (k == 0) {
+                continue;
+            }
+            j = slot(k);
+            while (keys[j] != 0) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = k;
+            values[j] = oldValues[i];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copy the values into the supplied array, which must be at least
+     * {@link #size() size()} long. Order is arbitrary.
+     */
+    @SuppressWarnings("unchecked")
+    T[] toArray(T[] result) {
+        int i, j;
+
+        j = 0;
+        for (i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                result[j] = (T) values[i];
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    void clear() {
+        int i;
+
+        for (i = 0; i < keys.length; i++) {
+            keys[i] = 0;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Approximate number of bytes used by this map itself, not counting the
+     * objects it refers to. Assumes 8 byte references; on a VM using
+     * compressed pointers the values array is half this.
+     */
+    long footprint() {
+        final long len;
+
+        len = keys.length;
+        return 2 * 16 + len * 8 + len * 8;
+    }
+
+    public String toString() {
+        return size + " of " + keys.length + " slots, " + (footprint() / 1024) + " kB";
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * The Entries of one Ledger in register order: by date, then Transaction
+ * reference, then Transaction description, then Entry ID. This is the order
+ * EntryComparator uses within a Ledger, except that ties are broken by ID
+ * rather than by hash code.
+ *
+ * <p>
+ * Alongside the rows is a Fenwick tree over their values, so the sum of the
+ * first <i>n</i> rows (the running balance at any point) is available in
+ * O(log n). Only adding a row at the end is incremental, also in O(log n).
+ * Adding or removing one anywhere else shifts the rows after it along their
+ * arrays, and leaves the tree wrong from that row on. The tree is only
+ * brought back up to date as far as the next sum asks for. Both of these
+ * are linear in how far the row is from the end. Back dated Entries are
+ * usually recent, so that is usually not far, but this is not a balanced
+ * tree, and an edit near the start of a long Ledger costs O(n).
+ *
+ * <p>
+ * Values are held signed, positive for Debits.
+ *
+ * @author Andrew Cowie
+ */
+class LedgerIndex
+{
+    private static final int MINIMUM = 16;
+
+    private long[] entryIds;
+
+    private long[] datestamps;
+
+    private String[] references;
+
+    private String[] descriptions;
+
+    private long[] values;
+
+    /**
+     * Fenwick tree, 1 origin. <code>tree[i]</code> is the sum of the
+     * <code>i &amp; -i</code> values ending with row <code>i - 1</code>.
+     */
+    private long[] tree;
+
+    private int size;
+
+    /**
+     * How much of the tree is correct: <code>tree[1]</code> up to and
+     * including <code>tree[valid]</code>. Each of those covers only rows
+     * before <code>valid</code>, so changing a row leaves the ones before it
+     * alone.
+     */
+    private int valid;
+
+    LedgerIndex(int expected) {
+        allocate(Math.max(expected, MINIMUM));
+        size = 0;
+        valid = 0;
+    }
+
+    private void allocate(int capacity) {
+        entryIds = new long[capacity];
+        datestamps = new long[capacity];
+        references = new String[capacity];
+        descriptions = new String[capacity];
+        values = new long[capacity];
+        tree = new long[capacity + 1];
+    }
+
+    /**
+     * Build the index for the given Ledger from the database.
+     */
+    static LedgerIndex load(DataStore store, long ledgerId) {
+        final LedgerIndex result;
+        final String[] sql;
+        Statement stmt;
+
+        stmt = store.prepare("SELECT count() FROM entries WHERE ledger_id = ?");
+        stmt.bindInteger(1, ledgerId);
+        stmt.step();
+        result = new LedgerIndex((int) stmt.columnInteger(0));
+        store.finish(stmt);
+
+        sql = new String[] {
+            "SELECT e.entry_id, t.datestamp, ifnull(t.reference, ''), ifnull(t.description, ''), e.value * e.direction",
+            "FROM entries e, transactions t",
+            "WHERE e.ledger_id = ? AND t.transaction_id = e.transaction_id",
+            "ORDER BY t.datestamp, 3, 4, e.entry_id"
+        };
+
+        stmt = store.prepare(DataStore.combine(sql));
+        stmt.bindInteger(1, ledgerId);
+
+        /*
+         * SQLite compares text bytewise rather than as Java does, so for
+         * odd characters the rows might not quite be in our order. insert()
+         * appends cheaply when they are, and puts them in the right place
+         * when they aren't.
+         */
+
+        while (stmt.step()) {
+            result.insert(stmt.columnInteger(0), stmt.columnInteger(1), stmt.columnText(2),
+                    stmt.columnText(3), stmt.columnInteger(4));
+        }
+
+        store.finish(stmt);
+
+        return result;
+    }
+
+    private void ensure(int capacity) {
+        final long[] oldEntryIds, oldDatestamps, oldValues, oldTree;
+        final String[] oldReferences, oldDescriptions;
+
+        if (capacity <= entryIds.length) {
+            return;
+        }
+
+        oldEntryIds = entryIds;
+        oldDatestamps = datestamps;
+        oldReferences = references;
+        oldDescriptions = descriptions;
+        oldValues = values;
+        oldTree = tree;
+
+        allocate(Math.max(capacity, entryIds.length * 2));
+
+        System.arraycopy(oldEntryIds, 0, entryIds, 0, size);
+        System.arraycopy(oldDatestamps, 0, datestamps, 0, size);
+        System.arraycopy(oldReferences, 0, references, 0, size);
+        System.arraycopy(oldDescriptions, 0, descriptions, 0, size);
+        System.arraycopy(oldValues, 0, values, 0, size);
+        System.arraycopy(oldTree, 0, tree, 0, size + 1);
+    }
+
+    private static String normalize(String str) {
+        if (str == null) {
+            return "";
+        }
+        return str;
+    }
+
+    /**
+     * Add a row to the end. The caller must be sure it belongs there.
+     */
+    void append(long entryId, long datestamp, String reference, String description, long value) {
+        ensure(size + 1);
+
+        entryIds[size] = entryId;
+        datestamps[size] = datestamp;
+        references[size] = normalize(reference);
+        descriptions[size] = normalize(description);
+        values[size] = value;
+        size++;
+
+        if (valid == size - 1) {
+            repair(size);
+        }
+    }
+
+    /**
+     * Add a row, in its place.
+     */
+    void insert(long entryId, long datestamp, String reference, String description, long value) {
+        final int i, num;
+
+        reference = normalize(reference);
+        description = normalize(description);
+
+        i = search(datestamp, reference, description, entryId);
+        if (i == size) {
+            append(entryId, datestamp, reference, description, value);
+            return;
+        }
+
+        ensure(size + 1);
+        num = size - i;
+
+        System.arraycopy(entryIds, i, entryIds, i + 1, num);
+        System.arraycopy(datestamps, i, datestamps, i + 1, num);
+        System.arraycopy(references, i, references, i + 1, num);
+        System.arraycopy(descriptions, i, descriptions, i + 1, num);
+        System.arraycopy(values, i, values, i + 1, num);
+
+        entryIds[i] = entryId;
+        datestamps[i] = datestamp;
+        references[i] = reference;
+        descriptions[i] = description;
+        values[i] = value;
+
+        size++;
+        valid = Math.min(valid, i);
+    }
+
+    /**
+     * Remove the row for the given Entry, which must be filed under the
+     * given date, reference and description.
+     *
+     * @return <code>false</code> if it wasn't there.
+     */
+    boolean remove(long entryId, long datestamp, String reference, String description) {
+        final int i, num;
+
+        reference = normalize(reference);
+        description = normalize(description);
+
+        i = search(datestamp, reference, description, entryId);
+        if ((i == size) || (compare(i, datestamp, reference, description, entryId) != 0)) {
+            return false;
+        }
+        num = size - i - 1;
+
+        System.arraycopy(entryIds, i + 1, entryIds, i, num);
+        System.arraycopy(datestamps, i + 1, datestamps, i, num);
+        System.arraycopy(references, i + 1, references, i, num);
+        System.arraycopy(descriptions, i + 1, descriptions, i, num);
+        System.arraycopy(values, i + 1, values, i, num);
+
+        size--;
+        references[size] = null;
+        descriptions[size] = null;
+
+        valid = Math.min(valid, i);
+        return true;
+    }
+
+    private int compare(int i, long datestamp, String reference, String description, long entryId) {
+        int cmp;
+
+        if (datestamps[i] != datestamp) {
+            return datestamps[i] < datestamp ? -1 : 1;
+        }
+        cmp = references[i].compareTo(reference);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = descriptions[i].compareTo(description);
+        if (cmp != 0) {
+            return cmp;
+        }
+        if (entryIds[i] != entryId) {
+            return entryIds[i] < entryId ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Find the first row not less than the given key.
+     */
+    private int search(long datestamp, String reference, String description, long entryId) {
+        int lo, hi, mid;
+
+        lo = 0;
+        hi = size;
+
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (compare(mid, datestamp, reference, description, entryId) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    /**
+     * The number of rows dated before the given date; equivalently, the
+     * position of the first row on or after it.
+     */
+    int position(long datestamp) {
+        int lo, hi, mid;
+
+        lo = 0;
+        hi = size;
+
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (datestamps[mid] < datestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    /*
+     * Each node from the first wrong one up to n covers the rows
+     * (i - lowbit(i), i], which is the running sum so far less a prefix sum
+     * made of nodes already put right.
+     */
+    private void repair(int n) {
+        long sum;
+        int i;
+
+        sum = sum(valid);
+
+        for (i = valid + 1; i <= n; i++) {
+            sum += values[i - 1];
+            tree[i] = sum - sum(i - (i & -i));
+        }
+
+        valid = n;
+    }
+
+    /**
+     * The sum of the values of the first <code>n</code> rows.
+     */
+    long prefix(int n) {
+        if (valid < n) {
+            repair(n);
+        }
+        return sum(n);
+    }
+
+    private long sum(int n) {
+        long result;
+        int i;
+
+        result = 0;
+        for (i = n; i > 0; i -= i & -i) {
+            result += tree[i];
+        }
+
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getEntryID(int i) {
+        return entryIds[i];
+    }
+
+    long getDatestamp(int i) {
+        return datestamps[i];
+    }
+
+    long getValue(int i) {
+        return values[i];
+    }
+}
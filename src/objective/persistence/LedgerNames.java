@@ -0,0 +1,372 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+import objective.domain.Account;
+import objective.domain.Ledger;
+
+/**
+ * The Ledgers by what people call them: by Account title and Ledger name
+ * together, by Ledger name alone, and by the first few letters of either,
+ * ignoring case. The first two are hash lookups; the last is a binary
+ * search of the lowercased titles and names, kept sorted. The Accounts
+ * are kept here by title as well.
+ *
+ * <p>
+ * Titles and names aren't unique, so each lookup gives an array, in order
+ * of ID, which is almost always of length one. Each object is remembered
+ * along with the title and name it was filed under, so that it can be found
+ * and removed again after the Ledger or its Account has been renamed.
+ *
+ * @author Andrew Cowie
+ */
+class LedgerNames
+{
+    private static final Ledger[] NONE = new Ledger[0];
+
+    private static final Account[] NO_ACCOUNTS = new Account[0];
+
+    /**
+     * Title and name, separated by a NUL, to Ledgers.
+     */
+    private final HashMap<String, Ledger[]> qualified;
+
+    private final HashMap<String, Ledger[]> named;
+
+    /**
+     * The title and name each Ledger is filed under, by Ledger ID.
+     */
+    private final IdentityMap<String[]> filed;
+
+    /**
+     * Every lowercased title and name, sorted, and the Ledger each is for.
+     * Rebuilt the next time it is needed after anything changes.
+     */
+    private String[] words;
+
+    private Ledger[] owners;
+
+    private final IdentityMap<Ledger> ledgers;
+
+    /**
+     * Account title to Accounts, and the title each is filed under, by
+     * Account ID.
+     */
+    private final HashMap<String, Account[]> titled;
+
+    private final IdentityMap<String> titles;
+
+    LedgerNames(int expected) {
+        qualified = new HashMap<String, Ledger[]>(expected * 2);
+        named = new HashMap<String, Ledger[]>(expected * 2);
+        filed = new IdentityMap<String[]>(expected);
+        ledgers = new IdentityMap<Ledger>(expected);
+        titled = new HashMap<String, Account[]>(expected);
+        titles = new IdentityMap<String>(expected);
+        words = null;
+        owners = null;
+    }
+
+    private static String normalize(String str) {
+        if (str == null) {
+            return "";
+        }
+        return str;
+    }
+
+    private static String key(String title, String name) {
+        return normalize(title) + '\0' + normalize(name);
+    }
+
+    /*
+     * As with the siblings of an Entry, there are so few objects under any
+     * one key that a plain array copied on change beats a collection. They
+     * are kept in order of ID, which is the order they were created in.
+     */
+
+    private static <T extends DomainObject> void put(HashMap<String, T[]> map, String key, T item, T[] none) {
+        final T[] existing, replacement;
+        int i;
+
+        existing = map.get(key);
+        if (existing == null) {
+            replacement = Arrays.copyOf(none, 1);
+            replacement[0] = item;
+            map.put(key, replacement);
+            return;
+        }
+
+        replacement = Arrays.copyOf(existing, existing.length + 1);
+
+        i = existing.length;
+        while ((i > 0) && (replacement[i - 1].getID() > item.getID())) {
+            replacement[i] = replacement[i - 1];
+            i--;
+        }
+        replacement[i] = item;
+
+        map.put(key, replacement);
+    }
+
+    private static <T extends DomainObject> void take(HashMap<String, T[]> map, String key, T item) {
+        final T[] existing, replacement;
+        int i, j;
+
+        existing = map.get(key);
+        if (existing == null) {
+            return;
+        }
+
+        if ((existing.length == 1) && (existing[0] == item)) {
+            map.remove(key);
+            return;
+        }
+
+        replacement = Arrays.copyOf(existing, existing.length - 1);
+        j = 0;
+        for (i = 0; i < existing.length; i++) {
+            if (existing[i] == item) {
+                continue;
+            }
+            if (j == replacement.length) {
+                return;
+            }
+            replacement[j++] = existing[i];
+        }
+
+        map.put(key, replacement);
+    }
+
+    /**
+     * File the given Ledger under its current title and name, first
+     * removing it from wherever it was filed before.
+     */
+    void add(Ledger ledger) {
+        final String title, name;
+
+        remove(ledger);
+
+        title = normalize(ledger.getParentAccount().getTitle());
+        name = normalize(ledger.getName());
+
+        put(qualified, key(title, name), ledger, NONE);
+        put(named, name, ledger, NONE);
+
+        filed.put(ledger.getID(), new String[] {
+            title,
+            name
+        });
+        ledgers.put(ledger.getID(), ledger);
+
+        words = null;
+    }
+
+    /**
+     * Remove the given Ledger from the index, under whatever title and name
+     * it was filed.
+     */
+    void remove(Ledger ledger) {
+        final String[] was;
+
+        was = filed.get(ledger.getID());
+        if (was == null) {
+            return;
+        }
+
+        take(qualified, key(was[0], was[1]), ledger);
+        take(named, was[1], ledger);
+
+        filed.remove(ledger.getID());
+        ledgers.remove(ledger.getID());
+
+        words = null;
+    }
+
+    /**
+     * File the given Account under its current title, first removing it
+     * from wherever it was filed before. This doesn't refile its Ledgers.
+     */
+    void add(Account account) {
+        final String title;
+
+        remove(account);
+
+        title = normalize(account.getTitle());
+
+        put(titled, title, account, NO_ACCOUNTS);
+        titles.put(account.getID(), title);
+    }
+
+    void remove(Account account) {
+        final String was;
+
+        was = titles.get(account.getID());
+        if (was == null) {
+            return;
+        }
+
+        take(titled, was, account);
+        titles.remove(account.getID());
+    }
+
+    /**
+     * The Accounts with the given title.
+     */
+    Account[] titled(String title) {
+        final Account[] result;
+
+        result = titled.get(normalize(title));
+        if (result == null) {
+            return NO_ACCOUNTS;
+        }
+        return result.clone();
+    }
+
+    /**
+     * The Ledgers belonging to the given Account.
+     */
+    Ledger[] ledgersOf(Account account) {
+        final ArrayList<Ledger> list;
+
+        list = new ArrayList<Ledger>();
+        for (Ledger ledger : ledgers.toArray(new Ledger[ledgers.size()])) {
+            if (ledger.getParentAccount() == account) {
+                list.add(ledger);
+            }
+        }
+
+        return list.toArray(new Ledger[list.size()]);
+    }
+
+    /**
+     * The Ledgers with the given name in an Account with the given title.
+     */
+    Ledger[] get(String title, String name) {
+        final Ledger[] result;
+
+        result = qualified.get(key(title, name));
+        if (result == null) {
+            return NONE;
+        }
+        return result.clone();
+    }
+
+    /**
+     * The Ledgers with the given name, in whatever Account.
+     */
+    Ledger[] get(String name) {
+        final Ledger[] result;
+
+        result = named.get(normalize(name));
+        if (result == null) {
+            return NONE;
+        }
+        return result.clone();
+    }
+
+    private void sort() {
+        final Ledger[] all;
+        final Integer[] order;
+        final String[] unsorted;
+        final Ledger[] unowned;
+        String[] was;
+        int i;
+
+        all = ledgers.toArray(new Ledger[ledgers.size()]);
+
+        unsorted = new String[all.length * 2];
+        unowned = new Ledger[all.length * 2];
+
+        for (i = 0; i < all.length; i++) {
+            was = filed.get(all[i].getID());
+            unsorted[2 * i] = was[0].toLowerCase();
+            unowned[2 * i] = all[i];
+            unsorted[2 * i + 1] = was[1].toLowerCase();
+            unowned[2 * i + 1] = all[i];
+        }
+
+        order = new Integer[unsorted.length];
+        for (i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return unsorted[a].compareTo(unsorted[b]);
+            }
+        });
+
+        words = new String[order.length];
+        owners = new Ledger[order.length];
+
+        for (i = 0; i < order.length; i++) {
+            words[i] = unsorted[order[i]];
+            owners[i] = unowned[order[i]];
+        }
+    }
+
+    /**
+     * The Ledgers whose name, or whose Account's title, starts with the
+     * given text, ignoring case, in alphabetical order of whichever
+     * matched.
+     */
+    Ledger[] complete(String prefix) {
+        final String lower;
+        final LinkedHashSet<Ledger> result;
+        int lo, hi, mid, i;
+
+        if (words == null) {
+            sort();
+        }
+
+        lower = normalize(prefix).toLowerCase();
+
+        lo = 0;
+        hi = words.length;
+
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (words[mid].compareTo(lower) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        result = new LinkedHashSet<Ledger>();
+        for (i = lo; i < words.length; i++) {
+            if (!words[i].startsWith(lower)) {
+                break;
+            }
+            result.add(owners[i]);
+        }
+
+        return result.toArray(new Ledger[result.size()]);
+    }
+
+    int size() {
+        return ledgers.size();
+    }
+}
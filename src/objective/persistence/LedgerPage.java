@@ -0,0 +1,61 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Entry;
+
+/**
+ * A run of consecutive Entries from a Ledger's register, in date order, each
+ * with the Ledger's balance after it. Balances are in home currency terms,
+ * positive in the Ledger's natural direction.
+ *
+ * @author Andrew Cowie
+ */
+public class LedgerPage
+{
+    private final int offset;
+
+    private final Entry[] entries;
+
+    private final long[] balances;
+
+    LedgerPage(int offset, Entry[] entries, long[] balances) {
+        this.offset = offset;
+        this.entries = entries;
+        this.balances = balances;
+    }
+
+    /**
+     * The position in the Ledger's register of the first Entry in this page.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public Entry[] getEntries() {
+        return entries;
+    }
+
+    /**
+     * The running balance after each of the Entries.
+     */
+    public long[] getBalances() {
+        return balances;
+    }
+}
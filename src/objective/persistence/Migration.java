@@ -0,0 +1,56 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+/**
+ * A change to the schema of a book. Each Migration has a version number;
+ * those newer than the version recorded in a book's schema_version table are
+ * applied, in order, when it is opened. See {@link Migrations}.
+ *
+ * <p>
+ * Most Migrations are just a list of SQL statements. Override
+ * {@link #apply(DataStore) apply()} if you need to do something cleverer.
+ *
+ * @author Andrew Cowie
+ */
+class Migration
+{
+    private final int version;
+
+    private final String[] sql;
+
+    Migration(int version, String... sql) {
+        this.version = version;
+        this.sql = sql;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Carry out this Migration. This is called inside a database
+     * transaction, so don't begin or commit.
+     */
+    void apply(DataStore store) {
+        for (String str : sql) {
+            store.execute(str);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * The changes made to the database schema since schema/create.ddl, which
+ * describes version 0. Books are brought up to date as they are opened, so
+ * existing files pick up new tables and indexes without having to be
+ * rebuilt.
+ *
+ * <p>
+ * To change the schema, add a Migration to the end of the list. Never edit
+ * or reorder ones that have already been released.
+ *
+ * @author Andrew Cowie
+ */
+final class Migrations
+{
+    private Migrations() {}
+
+    private static final Migration[] ALL = new Migration[] {
+        /*
+         * Running balance of each Ledger, maintained by DataStore as Entries
+         * are posted, replacing the balances view's scan of all entries.
+         */
+        new Migration(1) {
+            void apply(DataStore store) {
+                store.execute("CREATE TABLE IF NOT EXISTS ledger_balances (ledger_id INTEGER PRIMARY KEY REFERENCES ledgers, amount INTEGER, value INTEGER)");
+                store.execute("DELETE FROM ledger_balances");
+                store.execute("INSERT INTO ledger_balances SELECT e.ledger_id, sum((e.currency NOTNULL) * e.amount * e.direction), sum(e.value * e.direction) FROM entries e GROUP BY e.ledger_id");
+                store.execute("DROP VIEW IF EXISTS balances");
+                store.execute("CREATE VIEW balances AS SELECT l.ledger_id, b.amount * l.direction AS amount, b.value * l.direction AS value FROM ledger_balances b, ledgers l WHERE b.ledger_id = l.ledger_id");
+            }
+        },
+
+        /*
+         * Secondary indexes. Looking up a Transaction's Entries, a Ledger's
+         * Worker, and listing Transactions by date all scanned whole tables.
+         * The index on entries by Ledger carries the columns summed by the
+         * per-Ledger views so they don't have to visit the table at all.
+         */
+        new Migration(2,
+                "CREATE INDEX IF NOT EXISTS entries_transaction ON entries (transaction_id)",
+                "CREATE INDEX IF NOT EXISTS entries_ledger ON entries (ledger_id, transaction_id, currency, amount, value, direction)",
+                "CREATE INDEX IF NOT EXISTS transactions_datestamp ON transactions (datestamp)",
+                "CREATE INDEX IF NOT EXISTS workers_ledger ON workers (ledger_id)",
+                "ANALYZE"),
+
+        /*
+         * Periods that have been closed, and each Ledger's balance as at the
+         * end of them, so a balance as at some date need only sum the
+         * Entries since the nearest checkpoint rather than all of history.
+         */
+        new Migration(3,
+                "CREATE TABLE IF NOT EXISTS closed_periods (datestamp INTEGER PRIMARY KEY, closed INTEGER)",
+                "CREATE TABLE IF NOT EXISTS period_checkpoints (ledger_id INTEGER REFERENCES ledgers, datestamp INTEGER, value INTEGER, PRIMARY KEY (ledger_id, datestamp))"),
+
+        /*
+         * Years whose Transactions and Entries have been moved out to files
+         * of their own, and the highest IDs moved, which mustn't be reused.
+         */
+        new Migration(4,
+                "CREATE TABLE IF NOT EXISTS archives (archive_id INTEGER PRIMARY KEY, opening INTEGER, closing INTEGER, filename TEXT, last_transaction INTEGER, last_entry INTEGER)"),
+
+        /*
+         * Full text indexes over the words people remember things by:
+         * Transaction descriptions and references, and Ledger names along
+         * with their Account's title. The Transaction index reads its text
+         * from the transactions table rather than keeping a second copy.
+         * Triggers keep both current.
+         */
+        new Migration(5,
+                "CREATE VIRTUAL TABLE IF NOT EXISTS search_transactions USING fts5(description, reference, content='transactions', content_rowid='transaction_id')",
+                "INSERT INTO search_transactions(search_transactions) VALUES ('rebuild')",
+                "CREATE TRIGGER IF NOT EXISTS transactions_search_insert AFTER INSERT ON transactions BEGIN INSERT INTO search_transactions(rowid, description, reference) VALUES (new.transaction_id, new.description, new.reference); END",
+                "CREATE TRIGGER IF NOT EXISTS transactions_search_delete AFTER DELETE ON transactions BEGIN INSERT INTO search_transactions(search_transactions, rowid, description, reference) VALUES ('delete', old.transaction_id, old.description, old.reference); END",
+                "CREATE TRIGGER IF NOT EXISTS transactions_search_update AFTER UPDATE OF description, reference ON transactions BEGIN INSERT INTO search_transactions(search_transactions, rowid, description, reference) VALUES ('delete', old.transaction_id, old.description, old.reference); INSERT INTO search_transactions(rowid, description, reference) VALUES (new.transaction_id, new.description, new.reference); END",
+                "CREATE VIRTUAL TABLE IF NOT EXISTS search_ledgers USING fts5(title, name)",
+                "DELETE FROM search_ledgers",
+                "INSERT INTO search_ledgers(rowid, title, name) SELECT l.ledger_id, a.title, l.name FROM ledgers l, accounts a WHERE l.account_id = a.account_id",
+                "CREATE TRIGGER IF NOT EXISTS ledgers_search_insert AFTER INSERT ON ledgers BEGIN INSERT INTO search_ledgers(rowid, title, name) SELECT new.ledger_id, a.title, new.name FROM accounts a WHERE a.account_id = new.account_id; END",
+                "CREATE TRIGGER IF NOT EXISTS ledgers_search_delete AFTER DELETE ON ledgers BEGIN DELETE FROM search_ledgers WHERE rowid = old.ledger_id; END",
+                "CREATE TRIGGER IF NOT EXISTS ledgers_search_update AFTER UPDATE OF account_id, name ON ledgers BEGIN DELETE FROM search_ledgers WHERE rowid = old.ledger_id; INSERT INTO search_ledgers(rowid, title, name) SELECT new.ledger_id, a.title, new.name FROM accounts a WHERE a.account_id = new.account_id; END",
+                "CREATE TRIGGER IF NOT EXISTS accounts_search_update AFTER UPDATE OF title ON accounts BEGIN UPDATE search_ledgers SET title = new.title WHERE rowid IN (SELECT ledger_id FROM ledgers WHERE account_id = new.account_id); END"),
+
+        /*
+         * Row versions, so an update can be made conditional on nobody else
+         * having changed the row since it was read, and a log of every
+         * change to Transactions and Entries so that other programs with
+         * the book open can bring just those rows up to date. Few rows are
+         * ever updated, so the partial indexes let the versions that aren't
+         * 1 be read without scanning the tables.
+         */
+        new Migration(6,
+                "ALTER TABLE transactions ADD COLUMN version INTEGER NOT NULL DEFAULT 1",
+                "ALTER TABLE entries ADD COLUMN version INTEGER NOT NULL DEFAULT 1",
+                "CREATE INDEX IF NOT EXISTS transactions_version ON transactions (transaction_id, version) WHERE version != 1",
+                "CREATE INDEX IF NOT EXISTS entries_version ON entries (entry_id, version) WHERE version != 1",
+                "CREATE TABLE IF NOT EXISTS change_log (change_id INTEGER PRIMARY KEY AUTOINCREMENT, changed INTEGER, tablename TEXT, row_id INTEGER, version INTEGER)",
+                "CREATE TRIGGER IF NOT EXISTS transactions_log_insert AFTER INSERT ON transactions BEGIN INSERT INTO change_log (changed, tablename, row_id, version) VALUES (strftime('%s', 'now'), 'transactions', new.transaction_id, new.version); END",
+                "CREATE TRIGGER IF NOT EXISTS transactions_log_update AFTER UPDATE ON transactions BEGIN INSERT INTO change_log (changed, tablename, row_id, version) VALUES (strftime('%s', 'now'), 'transactions', new.transaction_id, new.version); END",
+                "CREATE TRIGGER IF NOT EXISTS transactions_log_delete AFTER DELETE ON transactions BEGIN INSERT INTO change_log (changed, tablename, row_id, version) VALUES (strftime('%s', 'now'), 'transactions', old.transaction_id, NULL); END",
+                "CREATE TRIGGER IF NOT EXISTS entries_log_insert AFTER INSERT ON entries BEGIN INSERT INTO change_log (changed, tablename, row_id, version) VALUES (strftime('%s', 'now'), 'entries', new.entry_id, new.version); END",
+                "CREATE TRIGGER IF NOT EXISTS entries_log_update AFTER UPDATE ON entries BEGIN INSERT INTO change_log (changed, tablename, row_id, version) VALUES (strftime('%s', 'now'), 'entries', new.entry_id, new.version); END",
+                "CREATE TRIGGER IF NOT EXISTS entries_log_delete AFTER DELETE ON entries BEGIN INSERT INTO change_log (changed, tablename, row_id, version) VALUES (strftime('%s', 'now'), 'entries', old.entry_id, NULL); END")
+    };
+
+    /**
+     * The schema version a book is at once every Migration has been applied.
+     */
+    static int latest() {
+        return ALL[ALL.length - 1].getVersion();
+    }
+
+    /**
+     * Bring the book open in the given DataStore up to the current schema
+     * version, applying each outstanding Migration in its own database
+     * transaction.
+     */
+    static void run(DataStore store) {
+        final int current;
+
+        store.execute("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, applied INTEGER)");
+
+        current = currentVersion(store);
+
+        for (Migration migration : ALL) {
+            if (migration.getVersion() <= current) {
+                continue;
+            }
+
+            store.begin();
+            try {
+                migration.apply(store);
+                record(store, migration.getVersion());
+                store.commit();
+            } catch (RuntimeException re) {
+                store.rollback();
+                throw re;
+            }
+        }
+    }
+
+    private static int currentVersion(DataStore store) {
+        final Statement stmt;
+        final int result;
+
+        stmt = store.prepare("SELECT coalesce(max(version), 0) FROM schema_version");
+        stmt.step();
+        result = (int) stmt.columnInteger(0);
+        store.finish(stmt);
+
+        return result;
+    }
+
+    private static void record(DataStore store, int version) {
+        final Statement stmt;
+
+        stmt = store.prepare("INSERT INTO schema_version VALUES (?, strftime('%s', 'now'))");
+        stmt.bindInteger(1, version);
+        stmt.step();
+        store.finish(stmt);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+/**
+ * A map from rowid to domain object that holds no more than a given number
+ * of bytes' worth of objects, discarding the least recently used ones to
+ * make room. This is what a lazy DataStore keeps its Transactions and
+ * Entries in, so that a book left open for weeks doesn't gradually end up
+ * entirely in memory.
+ *
+ * <p>
+ * An object can be pinned, in which case it stays put however old it is
+ * until it is unpinned again. Editors pin what they are editing, so that the
+ * object they are changing is the same one everyone else will get when they
+ * look it up.
+ *
+ * <p>
+ * The size of an object is an estimate, made once when it is put in the
+ * cache; it includes the cost of the cache's own bookkeeping.
+ *
+ * @author Andrew Cowie
+ */
+/*
+ * The recency list is intrusive and circular, through a sentinel: the node
+ * after the sentinel is the least recently used and the one before it the
+ * most. Pinned nodes are taken off the list, and put back as the most
+ * recently used when they are unpinned, so eviction never has to step over
+ * them. Everything is synchronized since lookups (which reorder the list)
+ * can come from any thread.
+ */
+public abstract class ObjectCache<T>
+{
+    /**
+     * The bytes taken by a Node and its slots in the map.
+     */
+    private static final long OVERHEAD = 48 + 16 + 16;
+
+    private static class Node<T>
+    {
+        long id;
+
+        T object;
+
+        long bytes;
+
+        int pins;
+
+        Node<T> previous;
+
+        Node<T> next;
+    }
+
+    private final IdentityMap<Node<T>> map;
+
+    private final Node<T> sentinel;
+
+    private long budget;
+
+    private long used;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    ObjectCache(long budget) {
+        this.map = new IdentityMap<Node<T>>();
+        this.sentinel = new Node<T>();
+        this.sentinel.previous = sentinel;
+        this.sentinel.next = sentinel;
+        this.budget = budget;
+        this.used = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * Estimate how many bytes the given object occupies.
+     */
+    abstract long sizeOf(T obj);
+
+    /**
+     * Can this object be discarded? Override to keep objects around for
+     * reasons other than being pinned themselves.
+     */
+    boolean isEvictable(T obj) {
+        return true;
+    }
+
+    private void detach(Node<T> node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+    }
+
+    private void attach(Node<T> node) {
+        node.previous = sentinel.previous;
+        node.next = sentinel;
+        sentinel.previous.next = node;
+        sentinel.previous = node;
+    }
+
+    /**
+     * Get the object with the given ID, or <code>null</code> if it isn't
+     * here (any more).
+     */
+    synchronized T get(long id) {
+        final Node<T> node;
+
+        node = map.get(id);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+
+        if (node.pins == 0) {
+            detach(node);
+            attach(node);
+        }
+
+        return node.object;
+    }
+
+    synchronized void put(long id, T obj) {
+        Node<T> node;
+
+        node = map.get(id);
+        if (node == null) {
+            node = new Node<T>();
+            node.id = id;
+            map.put(id, node);
+        } else {
+            if (node.pins == 0) {
+                detach(node);
+            }
+            used -= node.bytes;
+        }
+
+        node.object = obj;
+        node.bytes = sizeOf(obj) + OVERHEAD;
+        used += node.bytes;
+        if (node.pins == 0) {
+            attach(node);
+        }
+
+        evict();
+    }
+
+    synchronized void remove(long id) {
+        final Node<T> node;
+
+        node = map.get(id);
+        if (node == null) {
+            return;
+        }
+
+        if (node.pins == 0) {
+            detach(node);
+        }
+        map.remove(id);
+        used -= node.bytes;
+    }
+
+    /**
+     * Keep the given object in the cache until it is unpinned. If an object
+     * with that ID isn't already here, this one is put in. Pins nest.
+     */
+    synchronized void pin(long id, T obj) {
+        Node<T> node;
+
+        node = map.get(id);
+        if (node == null) {
+            node = new Node<T>();
+            node.id = id;
+            node.object = obj;
+            node.bytes = sizeOf(obj) + OVERHEAD;
+            map.put(id, node);
+            used += node.bytes;
+        } else if (node.pins == 0) {
+            detach(node);
+        }
+        node.pins++;
+    }
+
+    synchronized void unpin(long id) {
+        final Node<T> node;
+
+        node = map.get(id);
+        if ((node == null) || (node.pins == 0)) {
+            throw new IllegalStateException("\n" + "Object (" + id + ") isn't pinned");
+        }
+
+        node.pins--;
+
+        if (node.pins == 0) {
+            attach(node);
+            evict();
+        }
+    }
+
+    /**
+     * The IDs of everything in the cache, pinned or not. Order is arbitrary.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized long[] ids() {
+        final Node<T>[] nodes;
+        final long[] result;
+        int i;
+
+        nodes = map.toArray((Node<T>[]) new Node<?>[map.size()]);
+        result = new long[nodes.length];
+
+        for (i = 0; i < nodes.length; i++) {
+            result[i] = nodes[i].id;
+        }
+
+        return result;
+    }
+
+    synchronized boolean isPinned(long id) {
+        final Node<T> node;
+
+        node = map.get(id);
+        return (node != null) && (node.pins > 0);
+    }
+
+    /**
+     * Discard the least recently used objects until we're within budget.
+     * Pinned objects aren't on the list to begin with. Ones which can't go
+     * for some other reason are moved to the most recently used end as they
+     * are passed over, and the pass stops if it comes back around to the
+     * first of them; the cache then stays over budget until something else
+     * can go, and the next pass won't step over the same objects again until
+     * everything ahead of them has been.
+     */
+    private void evict() {
+        Node<T> node, first;
+
+        first = null;
+
+        while (used > budget) {
+            node = sentinel.next;
+            if ((node == sentinel) || (node == first)) {
+                break;
+            }
+
+            detach(node);
+
+            if (isEvictable(node.object)) {
+                map.remove(node.id);
+                used -= node.bytes;
+                evictions++;
+            } else {
+                attach(node);
+                if (first == null) {
+                    first = node;
+                }
+            }
+        }
+    }
+
+    /**
+     * Change the number of bytes the cache may hold. Shrinking it discards
+     * objects immediately.
+     */
+    public synchronized void setBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("\n" + "Budget can't be negative");
+        }
+        budget = bytes;
+        evict();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Approximately how many bytes are the objects currently held taking?
+     */
+    public synchronized long getBytes() {
+        return used;
+    }
+
+    public synchronized int getSize() {
+        return map.size();
+    }
+
+    /**
+     * How many lookups found their object here?
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * How many lookups had to go to the database?
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * How many objects have been discarded to stay within budget?
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        return map.size() + " objects, " + (used / 1024) + " of " + (budget / 1024) + " kB; " + hits
+                + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+}
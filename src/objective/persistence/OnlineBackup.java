@@ -0,0 +1,198 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * Copy a book to another SQLite database file, which can be opened as a
+ * book in its own right.
+ * 
+ * @author Andrew Cowie
+ */
+/*
+ * The copy is made over a connection of its own with the new file attached.
+ * Everything happens inside one transaction: the first read of the book
+ * fixes the snapshot that is copied, while writes to the attached file are
+ * committed together at the end. Each table is copied STEP rows at a time,
+ * walking up the rowid, so progress can be reported (and the copy
+ * cancelled) as it goes. The new file needs no journal, since it isn't
+ * renamed into place unless the copy succeeds. Indexes and triggers are
+ * created after the rows are in, which is quicker than maintaining them row
+ * by row. Virtual tables are copied by way of the shadow tables holding
+ * their data, rather than being rebuilt.
+ */
+public final class OnlineBackup extends Backup
+{
+    public OnlineBackup(DataStore data, File target) {
+        super(data, target);
+    }
+
+    void copy(File tmp) {
+        final Database db;
+        final StatementCache conn;
+        final ArrayList<String[]> schema;
+        final boolean statistics;
+        Statement stmt;
+
+        db = new Database(getStore().getFilename());
+        conn = new StatementCache(db);
+
+        try {
+            stmt = conn.prepare("ATTACH DATABASE ? AS backup");
+            stmt.bindText(1, tmp.getPath());
+            stmt.step();
+            conn.finish(stmt);
+
+            execute(conn, "PRAGMA backup.journal_mode = OFF");
+            execute(conn, "BEGIN");
+
+            try {
+                schema = readSchema(conn);
+                statistics = hasStatistics(conn);
+                setTotal(countRows(conn, schema));
+
+                for (String[] item : schema) {
+                    if (item[0].equals("table")) {
+                        execute(conn, qualify(item[2]));
+                        copyRows(conn, item[1]);
+                    }
+                }
+
+                for (String[] item : schema) {
+                    if (item[0].equals("virtual")) {
+                        execute(conn, qualify(item[2]));
+                    }
+                }
+
+                for (String[] item : schema) {
+                    if (item[0].equals("shadow")) {
+                        copyShadow(conn, item[1]);
+                    }
+                }
+
+                for (String[] item : schema) {
+                    if (!item[0].equals("table") && !item[0].equals("virtual")
+                            && !item[0].equals("shadow")) {
+                        execute(conn, qualify(item[2]));
+                    }
+                }
+
+                if (statistics) {
+                    execute(conn, "ANALYZE backup.sqlite_master");
+                    execute(conn, "INSERT INTO backup.sqlite_stat1 SELECT * FROM main.sqlite_stat1");
+                    advance(count(conn, "main.sqlite_stat1"));
+                }
+
+                execute(conn, "COMMIT");
+            } catch (RuntimeException re) {
+                execute(conn, "ROLLBACK");
+                throw re;
+            }
+
+            execute(conn, "DETACH DATABASE backup");
+        } finally {
+            conn.close();
+            db.close();
+        }
+    }
+
+    /**
+     * Rewrite a CREATE statement from sqlite_master so it makes the object
+     * in the attached database. SQLite stores these with the leading
+     * keywords normalized, so the name always follows them directly.
+     */
+    private static String qualify(String sql) {
+        final String[] prefixes;
+
+        prefixes = new String[] {
+            "CREATE TABLE ", "CREATE VIRTUAL TABLE ", "CREATE UNIQUE INDEX ", "CREATE INDEX ", "CREATE VIEW ",
+            "CREATE TRIGGER "
+        };
+
+        for (String prefix : prefixes) {
+            if (sql.startsWith(prefix)) {
+                return prefix + "backup." + sql.substring(prefix.length());
+            }
+        }
+
+        throw new IllegalStateException("\n" + "Don't know how to copy" + "\n" + sql);
+    }
+
+    /**
+     * Replace the contents of one of a virtual table's shadow tables, which
+     * were made along with it. Some have no rowid, so they're copied whole;
+     * they're small next to the tables they index.
+     */
+    private void copyShadow(StatementCache conn, String name) {
+        final String table;
+
+        table = quote(name);
+
+        execute(conn, "DELETE FROM backup." + table);
+        execute(conn, "INSERT INTO backup." + table + " SELECT * FROM main." + table);
+
+        advance(count(conn, "main." + table));
+    }
+
+    private void copyRows(StatementCache conn, String name) {
+        final String table;
+        final Statement range, insert;
+        long lo, hi, num;
+
+        table = quote(name);
+
+        range = conn.prepare("SELECT count(), max(rowid) FROM (SELECT rowid FROM main." + table
+                + " WHERE rowid > ? ORDER BY rowid LIMIT ?)");
+        insert = conn.prepare("INSERT INTO backup." + table + " SELECT * FROM main." + table
+                + " WHERE rowid > ? AND rowid <= ?");
+
+        try {
+            lo = Long.MIN_VALUE;
+
+            while (true) {
+                range.bindInteger(1, lo);
+                range.bindInteger(2, STEP);
+                range.step();
+                num = range.columnInteger(0);
+                hi = range.columnInteger(1);
+                range.reset();
+
+                if (num == 0) {
+                    break;
+                }
+
+                insert.bindInteger(1, lo);
+                insert.bindInteger(2, hi);
+                insert.step();
+                insert.reset();
+
+                advance(num);
+                lo = hi;
+            }
+        } finally {
+            conn.finish(range);
+            conn.finish(insert);
+        }
+    }
+}
@@ -18,20 +18,106 @@
  */
 package objective.persistence;
 
-import com.operationaldynamics.sqlite.Database;
+import java.util.IdentityHashMap;
+
+import com.operationaldynamics.sqlite.Statement;
 
 public abstract class Operation
 {
-    protected final Database db;
+    private final DataStore store;
+
+    /**
+     * The writer connection, or <code>null</code> if this Operation only
+     * reads.
+     */
+    private final StatementCache statements;
+
+    /**
+     * For a read-only Operation, the pooled connection each outstanding
+     * Statement was borrowed along with.
+     */
+    private final IdentityHashMap<Statement, StatementCache> borrowed;
 
     protected Operation(DataStore store) {
-        db = store.gainConnection(this);
+        this(store, false);
+    }
+
+    /**
+     * If <code>readOnly</code> then each Statement this Operation prepares
+     * runs on a connection borrowed from the DataStore's pool of readers
+     * until it is finished, rather than on the connection used for writing.
+     * Long queries then neither wait for nor hold up posting, and can be run
+     * from another thread. Such Operations see only committed data.
+     */
+    protected Operation(DataStore store, boolean readOnly) {
+        this.store = store;
+
+        if (readOnly) {
+            statements = null;
+            borrowed = new IdentityHashMap<Statement, StatementCache>(4);
+        } else {
+            statements = store.gainConnection(this);
+            borrowed = null;
+        }
+    }
+
+    /**
+     * Get a prepared Statement for the given SQL, ready for binding. The
+     * Statement is shared with other users of this connection, so you must
+     * hand it back with {@link #finish(Statement) finish()} when you're done
+     * with it rather than finalizing it yourself. On the writer connection,
+     * other threads are kept off it until you do.
+     */
+    protected Statement prepare(String sql) {
+        final StatementCache reader;
+        final Statement result;
+
+        if (statements != null) {
+            store.enter();
+            try {
+                return statements.prepare(sql);
+            } catch (RuntimeException re) {
+                store.leave();
+                throw re;
+            }
+        }
+
+        reader = store.borrowReader();
+        try {
+            result = reader.prepare(sql);
+        } catch (RuntimeException re) {
+            store.returnReader(reader);
+            throw re;
+        }
+        borrowed.put(result, reader);
+
+        return result;
     }
 
     /**
-     * Invoke when you're done with the Operation's Statements.
+     * Invoke when you're done with a Statement obtained from
+     * {@link #prepare(String) prepare()}.
      */
-    protected abstract void release();
+    protected void finish(Statement stmt) {
+        final StatementCache reader;
+
+        if (statements != null) {
+            try {
+                statements.finish(stmt);
+            } finally {
+                store.leave();
+            }
+            return;
+        }
+
+        reader = borrowed.remove(stmt);
+        if (reader == null) {
+            throw new IllegalStateException("\n" + "Statement wasn't prepared by this Operation");
+        }
+
+        reader.finish(stmt);
+        store.returnReader(reader);
+    }
 
     /**
      * Given an array of Strings, combine them into a single String. Use this
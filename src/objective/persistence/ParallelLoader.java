@@ -0,0 +1,306 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import objective.domain.Currency;
+import objective.domain.Entry;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * Load all the Transactions and Entries of a book using several threads,
+ * each with its own read-only connection to the database file. One thread
+ * scans the transactions table while the others scan the entries table,
+ * split into ranges of rowid. The Entries are then linked to their
+ * Transactions and everything is put in the DataStore's caches.
+ *
+ * <p>
+ * Currencies, Accounts, Ledgers and Workers must already be loaded; the
+ * worker threads look them up but don't change anything in the DataStore.
+ *
+ * @author Andrew Cowie
+ */
+/*
+ * The connections each see the database as it is when their query starts.
+ * This is only used while opening the book, when nothing else should be
+ * writing to it.
+ */
+final class ParallelLoader
+{
+    private final DataStore store;
+
+    private final String filename;
+
+    private final int threads;
+
+    ParallelLoader(DataStore store, String filename, int threads) {
+        if (threads < 2) {
+            throw new IllegalArgumentException("\n" + "Need at least two threads to load in parallel");
+        }
+        this.store = store;
+        this.filename = filename;
+        this.threads = threads;
+    }
+
+    /**
+     * Entries read from one range of rowids, with the Transaction each
+     * belongs to not yet filled in.
+     */
+    private static class Chunk
+    {
+        Entry[] entries;
+
+        long[] transactionIds;
+
+        int size;
+
+        Chunk() {
+            entries = new Entry[1024];
+            transactionIds = new long[1024];
+            size = 0;
+        }
+
+        void add(Entry entry, long transactionId) {
+            final Entry[] oldEntries;
+            final long[] oldTransactionIds;
+
+            if (size == entries.length) {
+                oldEntries = entries;
+                oldTransactionIds = transactionIds;
+
+                entries = new Entry[size * 2];
+                transactionIds = new long[size * 2];
+
+                System.arraycopy(oldEntries, 0, entries, 0, size);
+                System.arraycopy(oldTransactionIds, 0, transactionIds, 0, size);
+            }
+
+            entries[size] = entry;
+            transactionIds[size] = transactionId;
+            size++;
+        }
+    }
+
+    void load() {
+        final ExecutorService executor;
+        final Future<ArrayList<Transaction>> pending;
+        final ArrayList<Future<Chunk>> chunks;
+        final Statement stmt;
+        final long first, last, span;
+        final int num, expected;
+        long lo, hi;
+        int i;
+        ArrayList<Transaction> transactions;
+        Chunk chunk;
+        Entry entry;
+
+        stmt = store.prepare("SELECT min(entry_id), max(entry_id) FROM entries");
+        stmt.step();
+        first = stmt.columnInteger(0);
+        last = stmt.columnInteger(1);
+        store.finish(stmt);
+
+        expected = store.count("transactions");
+
+        num = threads - 1;
+        span = (last - first) / num + 1;
+
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            pending = executor.submit(new Callable<ArrayList<Transaction>>() {
+                public ArrayList<Transaction> call() {
+                    return scanTransactions(expected);
+                }
+            });
+
+            chunks = new ArrayList<Future<Chunk>>(num);
+            for (i = 0; i < num; i++) {
+                lo = first + i * span;
+                hi = Math.min(lo + span - 1, last);
+                chunks.add(executor.submit(new EntryScan(lo, hi)));
+            }
+
+            transactions = await(pending);
+            for (Transaction t : transactions) {
+                store.cache(t);
+            }
+            transactions = null;
+
+            for (Future<Chunk> future : chunks) {
+                chunk = await(future);
+
+                for (i = 0; i < chunk.size; i++) {
+                    entry = chunk.entries[i];
+                    entry.setParentTransaction(store.findTransaction(chunk.transactionIds[i]));
+                    store.cache(entry);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T await(Future<T> future) {
+        final Throwable cause;
+
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            throw new IllegalStateException("\n" + "Interrupted while loading");
+        } catch (ExecutionException ee) {
+            cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Open another connection to the book, which refuses to write.
+     */
+    private Database connect() {
+        final Database result;
+        final Statement stmt;
+
+        result = new Database(filename);
+
+        stmt = result.prepare("PRAGMA query_only = 1");
+        stmt.step();
+        stmt.finish();
+
+        return result;
+    }
+
+    private ArrayList<Transaction> scanTransactions(int expected) {
+        final Database db;
+        final Statement stmt;
+        final String[] sql;
+        final ArrayList<Transaction> result;
+        long transactionId, timestamp;
+        String type, description, reference;
+
+        sql = new String[] {
+            "SELECT t.transaction_id, y.class, t.datestamp, t.description, t.reference",
+            "FROM transactions t, types y",
+            "WHERE t.type_id = y.type_id"
+        };
+
+        result = new ArrayList<Transaction>(expected);
+
+        db = connect();
+        try {
+            stmt = db.prepare(DataStore.combine(sql));
+
+            while (stmt.step()) {
+                transactionId = stmt.columnInteger(0);
+                type = stmt.columnText(1);
+                timestamp = stmt.columnInteger(2);
+                description = stmt.columnText(3);
+                reference = stmt.columnText(4);
+
+                result.add(DataStore.makeTransaction(transactionId, type, timestamp, description,
+                        reference));
+            }
+
+            stmt.finish();
+        } finally {
+            db.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the Entries whose rowids are from <code>lo</code> to
+     * <code>hi</code> inclusive.
+     */
+    private class EntryScan implements Callable<Chunk>
+    {
+        private final long lo;
+
+        private final long hi;
+
+        EntryScan(long lo, long hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        public Chunk call() {
+            final Database db;
+            final Statement stmt;
+            final String[] sql;
+            final Chunk result;
+            long entryId, transactionId, ledgerId, amount, value, direction;
+            String code;
+            Ledger ledger;
+            Currency currency;
+
+            sql = new String[] {
+                "SELECT e.entry_id, e.transaction_id, e.ledger_id, e.amount, e.currency, e.value, e.direction",
+                "FROM entries e",
+                "WHERE e.entry_id BETWEEN ? AND ?"
+            };
+
+            result = new Chunk();
+
+            db = connect();
+            try {
+                stmt = db.prepare(DataStore.combine(sql));
+                stmt.bindInteger(1, lo);
+                stmt.bindInteger(2, hi);
+
+                while (stmt.step()) {
+                    entryId = stmt.columnInteger(0);
+                    transactionId = stmt.columnInteger(1);
+                    ledgerId = stmt.columnInteger(2);
+                    amount = stmt.columnInteger(3);
+                    code = stmt.columnText(4);
+                    value = stmt.columnInteger(5);
+                    direction = stmt.columnInteger(6);
+
+                    ledger = store.lookupLedger(ledgerId);
+                    currency = store.lookupCurrency(code);
+
+                    result.add(DataStore.makeEntry(entryId, null, ledger, amount, currency, value,
+                            direction), transactionId);
+                }
+
+                stmt.finish();
+            } finally {
+                db.close();
+            }
+
+            return result;
+        }
+    }
+}
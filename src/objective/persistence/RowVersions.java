@@ -0,0 +1,417 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import objective.domain.Transaction;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * The version each Transaction and Entry row is at, and how far through the
+ * book's change_log a DataStore has caught up.
+ *
+ * <p>
+ * Every row carries a version, incremented whenever it is updated, and
+ * writes are conditional on the row still having the version the object
+ * was read at. Versions other than 1 are held here rather than read along
+ * with every row, since few rows are ever updated. Triggers record every
+ * change in change_log; when SQLite's data_version says someone else has
+ * committed, the log since we last looked says which rows to bring up to
+ * date.
+ *
+ * <p>
+ * Old entries are pruned from change_log, so a DataStore left open long
+ * enough can find some of what it needed has gone. Rather than fail, it
+ * then gets the version of every row and compares the lot.
+ *
+ * @author Andrew Cowie
+ */
+/*
+ * Not synchronized; DataStore calls this holding its own lock, and only
+ * over its writer connection.
+ */
+final class RowVersions
+{
+    /**
+     * How long to keep change_log entries, in seconds.
+     */
+    private static final long KEEP_CHANGES = 30 * 86400;
+
+    private final StatementCache statements;
+
+    private HashMap<Long, Long> transactions;
+
+    private HashMap<Long, Long> entries;
+
+    /**
+     * The last change_log entry we have caught up with. This is the highest
+     * change_id ever handed out, whether or not that row is still there.
+     */
+    private long lastChange;
+
+    /**
+     * PRAGMA data_version as at when we last caught up.
+     */
+    private long dataVersion;
+
+    /**
+     * Objects written since the database transaction began, whose versions
+     * have to be put back if it is rolled back.
+     */
+    private final ArrayList<DomainObject> touched;
+
+    /**
+     * How many objects had been touched when the current savepoint was
+     * taken.
+     */
+    private int touchedMark;
+
+    /**
+     * The rows which have changed since we last caught up, by ID, in the
+     * order they were changed. The value is the row's version now, or
+     * <code>null</code> if it has been deleted.
+     */
+    static final class Changes
+    {
+        final LinkedHashMap<Long, Long> transactions;
+
+        final LinkedHashMap<Long, Long> entries;
+
+        /**
+         * Are these every row there is, because the log couldn't be
+         * followed? If so, anything in memory not listed has been deleted.
+         */
+        final boolean complete;
+
+        private Changes(boolean complete) {
+            this.transactions = new LinkedHashMap<Long, Long>();
+            this.entries = new LinkedHashMap<Long, Long>();
+            this.complete = complete;
+        }
+
+        boolean isEmpty() {
+            return (transactions.size() == 0) && (entries.size() == 0);
+        }
+    }
+
+    RowVersions(StatementCache statements) {
+        this.statements = statements;
+        this.touched = new ArrayList<DomainObject>();
+        this.touchedMark = 0;
+
+        transactions = read("SELECT transaction_id, version FROM transactions WHERE version != 1");
+        entries = read("SELECT entry_id, version FROM entries WHERE version != 1");
+
+        lastChange = latest();
+        dataVersion = readDataVersion();
+    }
+
+    private HashMap<Long, Long> read(String sql) {
+        final HashMap<Long, Long> result;
+        final Statement stmt;
+
+        result = new HashMap<Long, Long>();
+
+        stmt = statements.prepare(sql);
+        while (stmt.step()) {
+            result.put(stmt.columnInteger(0), stmt.columnInteger(1));
+        }
+        statements.finish(stmt);
+
+        return result;
+    }
+
+    private static long get(HashMap<Long, Long> versions, long id) {
+        final Long result;
+
+        result = versions.get(id);
+        if (result == null) {
+            return 1;
+        }
+        return result;
+    }
+
+    private static void set(HashMap<Long, Long> versions, long id, Long version) {
+        if ((version == null) || (version == 1)) {
+            versions.remove(id);
+        } else {
+            versions.put(id, version);
+        }
+    }
+
+    private HashMap<Long, Long> versionsOf(DomainObject obj) {
+        if (obj instanceof Transaction) {
+            return transactions;
+        } else {
+            return entries;
+        }
+    }
+
+    long ofTransaction(long transactionId) {
+        return get(transactions, transactionId);
+    }
+
+    long ofEntry(long entryId) {
+        return get(entries, entryId);
+    }
+
+    /**
+     * Note the version a Transaction's row is now at, or <code>null</code>
+     * if it has been deleted.
+     */
+    void setTransaction(long transactionId, Long version) {
+        set(transactions, transactionId, version);
+    }
+
+    void setEntry(long entryId, Long version) {
+        set(entries, entryId, version);
+    }
+
+    /**
+     * Throw if the row for the given object no longer has the version the
+     * object was read at.
+     */
+    void check(String table, String column, DomainObject obj) {
+        final Statement stmt;
+        final boolean found;
+        final long version;
+
+        stmt = statements.prepare("SELECT version FROM " + table + " WHERE " + column + " = ?");
+        stmt.bindInteger(1, obj.getID());
+        found = stmt.step();
+        version = found ? stmt.columnInteger(0) : 0;
+        statements.finish(stmt);
+
+        if (!found || (version != obj.getVersion())) {
+            throw new ConflictException(obj);
+        }
+    }
+
+    /**
+     * The given object has been written, incrementing its row's version. If
+     * a database transaction is open, remember it in case that is rolled
+     * back.
+     */
+    void written(DomainObject obj, boolean open) {
+        final long version;
+
+        version = obj.getVersion() + 1;
+        obj.setVersion(version);
+        set(versionsOf(obj), obj.getID(), version);
+
+        if (open) {
+            touched.add(obj);
+        }
+    }
+
+    /**
+     * The row for the given object has been deleted.
+     */
+    void removed(DomainObject obj, boolean open) {
+        versionsOf(obj).remove(obj.getID());
+
+        if (open) {
+            touched.add(obj);
+        }
+    }
+
+    /**
+     * A savepoint has been taken; {@link #rollbackSavepoint()} goes back to
+     * here.
+     */
+    void savepoint() {
+        touchedMark = touched.size();
+    }
+
+    void rollbackSavepoint() {
+        restore(touchedMark);
+    }
+
+    void rollback() {
+        restore(0);
+        touchedMark = 0;
+    }
+
+    /**
+     * Put back the versions of the objects touched since the given point,
+     * once the database work that bumped them has been rolled back. The
+     * versions are read again from the database as it now stands.
+     */
+    private void restore(int from) {
+        DomainObject obj;
+        int i;
+
+        if (touched.size() == from) {
+            return;
+        }
+
+        transactions = read("SELECT transaction_id, version FROM transactions WHERE version != 1");
+        entries = read("SELECT entry_id, version FROM entries WHERE version != 1");
+
+        for (i = touched.size() - 1; i >= from; i--) {
+            obj = touched.remove(i);
+            obj.setVersion(get(versionsOf(obj), obj.getID()));
+        }
+    }
+
+    /**
+     * The database transaction has been committed, and the last change it
+     * logged was <code>last</code>, or 0 if it wasn't known.
+     */
+    void commit(long last) {
+        if (last != 0) {
+            lastChange = last;
+        }
+        touched.clear();
+        touchedMark = 0;
+    }
+
+    /**
+     * The highest change_id handed out so far. Rows may have been pruned
+     * since, so this comes from the AUTOINCREMENT sequence rather than from
+     * change_log itself.
+     */
+    long latest() {
+        final Statement stmt;
+        final long result;
+
+        stmt = statements.prepare("SELECT coalesce(max(seq), 0) FROM sqlite_sequence WHERE name = 'change_log'");
+        stmt.step();
+        result = stmt.columnInteger(0);
+        statements.finish(stmt);
+
+        return result;
+    }
+
+    private long readDataVersion() {
+        final Statement stmt;
+        final long result;
+
+        stmt = statements.prepare("PRAGMA data_version");
+        stmt.step();
+        result = stmt.columnInteger(0);
+        statements.finish(stmt);
+
+        return result;
+    }
+
+    /**
+     * Find out which rows other programs have changed since we last looked.
+     * Returns <code>null</code> if nobody has committed anything since.
+     */
+    /*
+     * Changes are taken in the order they were made, keeping only the last
+     * for each row. Our own changes show up too; their versions already
+     * match and the caller skips them. If the entries we need have been
+     * pruned, which shows as a gap in the sequence, read every row's
+     * version instead.
+     */
+    Changes read() {
+        final long current;
+        final Statement stmt;
+        final Changes result;
+        long id, last;
+
+        current = readDataVersion();
+        if (current == dataVersion) {
+            return null;
+        }
+        dataVersion = current;
+
+        result = new Changes(false);
+
+        stmt = statements.prepare("SELECT change_id, tablename, row_id, version FROM change_log WHERE change_id > ? ORDER BY change_id");
+        stmt.bindInteger(1, lastChange);
+
+        last = lastChange;
+        while (stmt.step()) {
+            id = stmt.columnInteger(0);
+            if (id != last + 1) {
+                statements.finish(stmt);
+                return everything();
+            }
+            last = id;
+
+            if (stmt.columnText(1).equals("transactions")) {
+                result.transactions.put(stmt.columnInteger(2), stmt.columnText(3) == null ? null
+                        : stmt.columnInteger(3));
+            } else {
+                result.entries.put(stmt.columnInteger(2), stmt.columnText(3) == null ? null
+                        : stmt.columnInteger(3));
+            }
+        }
+        statements.finish(stmt);
+
+        if ((last == lastChange) && (latest() > lastChange)) {
+            return everything();
+        }
+
+        lastChange = last;
+
+        return result;
+    }
+
+    /*
+     * Note where the log is up to before reading the rows, so that anything
+     * committed in between is caught up with again next time rather than
+     * missed.
+     */
+    private Changes everything() {
+        final Changes result;
+        Statement stmt;
+
+        lastChange = latest();
+
+        transactions = read("SELECT transaction_id, version FROM transactions WHERE version != 1");
+        entries = read("SELECT entry_id, version FROM entries WHERE version != 1");
+
+        result = new Changes(true);
+
+        stmt = statements.prepare("SELECT transaction_id, version FROM transactions ORDER BY transaction_id");
+        while (stmt.step()) {
+            result.transactions.put(stmt.columnInteger(0), stmt.columnInteger(1));
+        }
+        statements.finish(stmt);
+
+        stmt = statements.prepare("SELECT entry_id, version FROM entries ORDER BY entry_id");
+        while (stmt.step()) {
+            result.entries.put(stmt.columnInteger(0), stmt.columnInteger(1));
+        }
+        statements.finish(stmt);
+
+        return result;
+    }
+
+    /**
+     * Drop change_log entries older than we keep them for. Anyone who still
+     * needed them will read every row's version instead.
+     */
+    void prune() {
+        final Statement stmt;
+
+        stmt = statements.prepare("DELETE FROM change_log WHERE changed < strftime('%s', 'now') - ?");
+        stmt.bindInteger(1, KEEP_CHANGES);
+        stmt.step();
+        statements.finish(stmt);
+    }
+}
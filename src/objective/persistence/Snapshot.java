@@ -0,0 +1,518 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import objective.domain.Account;
+import objective.domain.Currency;
+import objective.domain.Entry;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+import objective.domain.Worker;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * A copy of the rows DataStore preloads, written to a file next to the book
+ * so that the next time it is opened the object graph can be rebuilt
+ * without going through SQLite.
+ *
+ * <p>
+ * The snapshot is stamped with the database file's change counter (which
+ * SQLite increments on every commit outside of WAL mode), size, and
+ * modification time. If the stamp doesn't match
+ * the book as it is now, the snapshot is stale and is ignored.
+ *
+ * <p>
+ * The format is a header, a table of the type names, then each of the
+ * currencies, accounts, ledgers, workers, transactions, and entries in turn.
+ * The first two are preceded by their count; the rest are rows as returned
+ * by DataStore's load queries, terminated by an ID of 0. Integers are written as variable length
+ * zig-zag encoded quantities; most are small, and Entry IDs are written as
+ * the difference from the previous one.
+ *
+ * @author Andrew Cowie
+ */
+final class Snapshot
+{
+    private Snapshot() {}
+
+    /**
+     * "OBJS"
+     */
+    private static final int MAGIC = 0x4f424a53;
+
+    /**
+     * Increment this if you change the format.
+     */
+    private static final int FORMAT = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static File fileFor(String filename) {
+        return new File(filename + ".snapshot");
+    }
+
+    /**
+     * Work out the current stamp of the given database file. Returns 0 if
+     * there is no way of telling whether a snapshot is current, in which
+     * case one won't be used.
+     */
+    /*
+     * The change counter is the four bytes at offset 24 of the header. In
+     * WAL mode it isn't updated at all, hence also using the modification
+     * time, which changes when the log is checkpointed into the file. If
+     * there's a write-ahead log with anything still in it, give up.
+     */
+    static long stamp(String filename) {
+        final File wal;
+        RandomAccessFile raf;
+        final long counter, length, modified;
+
+        wal = new File(filename + "-wal");
+        if (wal.length() > 0) {
+            return 0;
+        }
+
+        modified = new File(filename).lastModified();
+
+        raf = null;
+        try {
+            raf = new RandomAccessFile(filename, "r");
+            length = raf.length();
+            if (length < 100) {
+                return 0;
+            }
+            raf.seek(24);
+            counter = raf.readInt() & 0xffffffffL;
+        } catch (IOException ioe) {
+            return 0;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+
+        return ((counter << 32) | ((length / 512) & 0xffffffffL)) ^ (modified * 31);
+    }
+
+    /**
+     * Write a snapshot of the book open in the given DataStore. The rows are
+     * streamed straight from the database, so this doesn't need the objects
+     * to be loaded. Failure isn't fatal; there just won't be a snapshot next
+     * time.
+     */
+    static void write(DataStore store, String filename, long stamp) {
+        final File target, tmp;
+        DataOutputStream out;
+
+        target = fileFor(filename);
+        tmp = new File(target.getPath() + ".tmp");
+
+        out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(stamp);
+
+            writeRows(store, out);
+
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+            }
+        } catch (IOException ioe) {
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void writeRows(DataStore store, DataOutputStream out) throws IOException {
+        Statement stmt;
+        final HashMap<String, Integer> codes;
+        String code;
+        long previous, entryId;
+        int index;
+
+        /*
+         * Types
+         */
+
+        out.writeInt(store.count("types"));
+        stmt = store.prepare("SELECT type_id, class FROM types");
+        while (stmt.step()) {
+            writeNumber(out, stmt.columnInteger(0));
+            writeString(out, stmt.columnText(1));
+        }
+        store.finish(stmt);
+
+        /*
+         * Currencies. Entries refer to these by their position.
+         */
+
+        codes = new HashMap<String, Integer>();
+
+        out.writeInt(store.count("currencies"));
+        stmt = store.prepare("SELECT c.code, c.name, c.symbol FROM currencies c");
+        index = 0;
+        while (stmt.step()) {
+            code = stmt.columnText(0);
+            writeString(out, code);
+            writeString(out, stmt.columnText(1));
+            writeString(out, stmt.columnText(2));
+            codes.put(code, index++);
+        }
+        store.finish(stmt);
+
+        /*
+         * Accounts
+         */
+
+        stmt = store.prepare("SELECT a.account_id, a.type_id, a.title, a.direction FROM accounts a, types y WHERE a.type_id = y.type_id");
+        while (stmt.step()) {
+            writeNumber(out, stmt.columnInteger(0));
+            writeNumber(out, stmt.columnInteger(1));
+            writeString(out, stmt.columnText(2));
+            writeNumber(out, stmt.columnInteger(3));
+        }
+        store.finish(stmt);
+        writeNumber(out, 0);
+
+        /*
+         * Ledgers
+         */
+
+        stmt = store.prepare("SELECT l.ledger_id, l.account_id, l.name, l.currency, l.direction FROM ledgers l");
+        while (stmt.step()) {
+            writeNumber(out, stmt.columnInteger(0));
+            writeNumber(out, stmt.columnInteger(1));
+            writeString(out, stmt.columnText(2));
+            writeNumber(out, indexOf(codes, stmt.columnText(3)));
+            writeNumber(out, stmt.columnInteger(4));
+        }
+        store.finish(stmt);
+        writeNumber(out, 0);
+
+        /*
+         * Workers
+         */
+
+        stmt = store.prepare("SELECT w.worker_id, w.type, w.name, w.ledger_id FROM workers w");
+        while (stmt.step()) {
+            writeNumber(out, stmt.columnInteger(0));
+            writeNumber(out, stmt.columnInteger(1));
+            writeString(out, stmt.columnText(2));
+            writeNumber(out, stmt.columnInteger(3));
+        }
+        store.finish(stmt);
+        writeNumber(out, 0);
+
+        /*
+         * Transactions
+         */
+
+        stmt = store.prepare("SELECT t.transaction_id, t.type_id, t.datestamp, t.description, t.reference FROM transactions t, types y WHERE t.type_id = y.type_id");
+        while (stmt.step()) {
+            writeNumber(out, stmt.columnInteger(0));
+            writeNumber(out, stmt.columnInteger(1));
+            writeNumber(out, stmt.columnInteger(2));
+            writeString(out, stmt.columnText(3));
+            writeString(out, stmt.columnText(4));
+        }
+        store.finish(stmt);
+        writeNumber(out, 0);
+
+        /*
+         * Entries
+         */
+
+        stmt = store.prepare("SELECT e.entry_id, e.transaction_id, e.ledger_id, e.amount, e.currency, e.value, e.direction FROM entries e ORDER BY e.entry_id");
+        previous = 0;
+        while (stmt.step()) {
+            entryId = stmt.columnInteger(0);
+            writeNumber(out, entryId - previous);
+            previous = entryId;
+            writeNumber(out, stmt.columnInteger(1));
+            writeNumber(out, stmt.columnInteger(2));
+            writeNumber(out, stmt.columnInteger(3));
+            writeNumber(out, indexOf(codes, stmt.columnText(4)));
+            writeNumber(out, stmt.columnInteger(5));
+            writeNumber(out, stmt.columnInteger(6));
+        }
+        store.finish(stmt);
+        writeNumber(out, 0);
+    }
+
+    private static int indexOf(HashMap<String, Integer> codes, String code) {
+        final Integer result;
+
+        if (code == null) {
+            return -1;
+        }
+        result = codes.get(code);
+        if (result == null) {
+            throw new IllegalStateException("\n" + "Unknown currency " + code);
+        }
+        return result;
+    }
+
+    /**
+     * Rebuild the preloaded objects in the given DataStore from its book's
+     * snapshot, if there is one and its stamp matches.
+     *
+     * @return <code>false</code> if the snapshot was missing, stale, or
+     *         damaged, in which case the DataStore's caches may be partially
+     *         populated and must be reset before loading from the database.
+     */
+    static boolean read(DataStore store, String filename, long stamp) {
+        final File source;
+        FileInputStream in;
+        final FileChannel channel;
+        final MappedByteBuffer buf;
+
+        source = fileFor(filename);
+        if (!source.exists()) {
+            return false;
+        }
+
+        in = null;
+        try {
+            in = new FileInputStream(source);
+            channel = in.getChannel();
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC) {
+                return false;
+            }
+            if (buf.getInt() != FORMAT) {
+                return false;
+            }
+            if (buf.getLong() != stamp) {
+                return false;
+            }
+
+            readRows(store, buf);
+
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        } catch (BufferUnderflowException bue) {
+            return false;
+        } catch (RuntimeException re) {
+            /*
+             * Something in the snapshot didn't make sense to the make*()
+             * methods. Ignore it, and it will be replaced.
+             */
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void readRows(DataStore store, ByteBuffer buf) {
+        final HashMap<Long, String> types;
+        final Currency[] currencies;
+        int i, num;
+        long id, delta, typeId, accountId, ledgerId, transactionId, direction, datestamp, amount, value;
+        String code, name, symbol, title, description, reference;
+        int index;
+        Currency currency;
+        Account account;
+        Ledger ledger;
+        Worker worker;
+        Transaction transaction;
+        Entry entry;
+
+        num = buf.getInt();
+        types = new HashMap<Long, String>(num * 2);
+        for (i = 0; i < num; i++) {
+            typeId = readNumber(buf);
+            types.put(typeId, readString(buf));
+        }
+
+        num = buf.getInt();
+        currencies = new Currency[num];
+        for (i = 0; i < num; i++) {
+            code = readString(buf);
+            name = readString(buf);
+            symbol = readString(buf);
+
+            currency = DataStore.makeCurrency(code, name, symbol);
+            store.cache(currency);
+            currencies[i] = currency;
+        }
+
+        while ((accountId = readNumber(buf)) != 0) {
+            typeId = readNumber(buf);
+            title = readString(buf);
+            direction = readNumber(buf);
+
+            account = DataStore.makeAccount(accountId, types.get(typeId), title, direction);
+            store.cache(account);
+        }
+
+        while ((ledgerId = readNumber(buf)) != 0) {
+            accountId = readNumber(buf);
+            name = readString(buf);
+            index = (int) readNumber(buf);
+            direction = readNumber(buf);
+
+            account = store.lookupAccount(accountId);
+            currency = (index == -1) ? null : currencies[index];
+
+            ledger = DataStore.makeLedger(ledgerId, account, name, currency, direction);
+            store.cache(ledger);
+        }
+
+        while ((id = readNumber(buf)) != 0) {
+            typeId = readNumber(buf);
+            name = readString(buf);
+            ledgerId = readNumber(buf);
+
+            ledger = store.lookupLedger(ledgerId);
+
+            worker = DataStore.makeWorker(id, typeId, name, ledger);
+            store.cache(worker);
+        }
+
+        while ((transactionId = readNumber(buf)) != 0) {
+            typeId = readNumber(buf);
+            datestamp = readNumber(buf);
+            description = readString(buf);
+            reference = readString(buf);
+
+            transaction = DataStore.makeTransaction(transactionId, types.get(typeId), datestamp,
+                    description, reference);
+            store.cache(transaction);
+        }
+
+        id = 0;
+        while ((delta = readNumber(buf)) != 0) {
+            id += delta;
+            transactionId = readNumber(buf);
+            ledgerId = readNumber(buf);
+            amount = readNumber(buf);
+            index = (int) readNumber(buf);
+            value = readNumber(buf);
+            direction = readNumber(buf);
+
+            transaction = store.findTransaction(transactionId);
+            ledger = store.lookupLedger(ledgerId);
+            currency = (index == -1) ? null : currencies[index];
+
+            entry = DataStore.makeEntry(id, transaction, ledger, amount, currency, value, direction);
+            store.cache(entry);
+        }
+    }
+
+    /*
+     * Variable length encoding, seven bits at a time, low order first, with
+     * the sign folded into the lowest bit so small negative numbers are
+     * small too.
+     */
+
+    private static void writeNumber(DataOutputStream out, long n) throws IOException {
+        long z;
+
+        z = (n << 1) ^ (n >> 63);
+
+        while ((z & ~0x7fL) != 0) {
+            out.writeByte((int) ((z & 0x7f) | 0x80));
+            z >>>= 7;
+        }
+        out.writeByte((int) z);
+    }
+
+    private static long readNumber(ByteBuffer buf) {
+        long z;
+        int shift, b;
+
+        z = 0;
+        shift = 0;
+        do {
+            b = buf.get();
+            z |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        final byte[] bytes;
+
+        if (str == null) {
+            writeNumber(out, -1);
+            return;
+        }
+
+        bytes = str.getBytes(UTF8);
+        writeNumber(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        final int len;
+        final byte[] bytes;
+
+        len = (int) readNumber(buf);
+        if (len == -1) {
+            return null;
+        }
+
+        bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * Prepared Statements on a database connection, kept by their SQL text so
+ * that the same query isn't parsed over and over again.
+ *
+ * <p>
+ * Get a Statement with {@link #prepare(String) prepare()}, bind and step it
+ * as usual, and then hand it back with {@link #finish(Statement) finish()}
+ * instead of calling <code>finish()</code> on the Statement itself. It will
+ * be reset and handed out again the next time that SQL is asked for. The
+ * underlying Statements are only finalized when the cache is closed.
+ *
+ * <p>
+ * The cache can be used from more than one thread, but a given Statement
+ * should only be stepped by the thread that prepared it.
+ *
+ * @author Andrew Cowie
+ */
+public class StatementCache
+{
+    private final Database db;
+
+    /**
+     * Statements that have been handed back and are ready for reuse.
+     */
+    private final HashMap<String, ArrayList<Statement>> idle;
+
+    /**
+     * Statements currently handed out, and the SQL they were prepared from.
+     */
+    private final IdentityHashMap<Statement, String> busy;
+
+    /**
+     * Names of the archives attached to this connection.
+     */
+    private final HashSet<String> attached;
+
+    private long hits;
+
+    private long misses;
+
+    StatementCache(Database db) {
+        this.db = db;
+        this.idle = new HashMap<String, ArrayList<Statement>>();
+        this.busy = new IdentityHashMap<Statement, String>();
+        this.attached = new HashSet<String>(2);
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    /**
+     * Get a Statement for the given SQL, ready to have its parameters bound.
+     */
+    /*
+     * If the same SQL is already in use (someone is part way through
+     * stepping it) then we prepare another one rather than resetting it out
+     * from under them.
+     */
+    synchronized Statement prepare(String sql) {
+        final ArrayList<Statement> list;
+        final Statement result;
+        final int num;
+
+        list = idle.get(sql);
+
+        if ((list == null) || (list.size() == 0)) {
+            result = db.prepare(sql);
+            misses++;
+        } else {
+            num = list.size();
+            result = list.remove(num - 1);
+            hits++;
+        }
+
+        busy.put(result, sql);
+
+        return result;
+    }
+
+    /**
+     * Return a Statement obtained from {@link #prepare(String) prepare()}.
+     * It is reset, releasing any locks it held, and kept for reuse.
+     */
+    synchronized void finish(Statement stmt) {
+        final String sql;
+        ArrayList<Statement> list;
+
+        sql = busy.remove(stmt);
+        if (sql == null) {
+            throw new IllegalStateException("\n" + "Statement wasn't prepared by this cache");
+        }
+
+        stmt.reset();
+
+        list = idle.get(sql);
+        if (list == null) {
+            list = new ArrayList<Statement>(1);
+            idle.put(sql, list);
+        }
+        list.add(stmt);
+    }
+
+    Database getDatabase() {
+        return db;
+    }
+
+    synchronized boolean isAttached(String schema) {
+        return attached.contains(schema);
+    }
+
+    synchronized void setAttached(String schema, boolean setting) {
+        if (setting) {
+            attached.add(schema);
+        } else {
+            attached.remove(schema);
+        }
+    }
+
+    /**
+     * Finalize all the Statements held, including any that were not handed
+     * back.
+     */
+    synchronized void close() {
+        for (ArrayList<Statement> list : idle.values()) {
+            for (Statement stmt : list) {
+                stmt.finish();
+            }
+        }
+        idle.clear();
+
+        for (Statement stmt : busy.keySet()) {
+            stmt.finish();
+        }
+        busy.clear();
+    }
+
+    /**
+     * How many times a Statement was reused rather than being prepared?
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * How many times did SQL have to be parsed and a new Statement prepared?
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    public String toString() {
+        return "Statements: " + hits + " hits, " + misses + " misses";
+    }
+}
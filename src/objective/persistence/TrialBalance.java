@@ -0,0 +1,536 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import objective.domain.Account;
+import objective.domain.Amount;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+
+/**
+ * The total debits and credits posted to each Ledger and Account, and the
+ * Transactions whose Entries don't add up to zero. Together these are the
+ * book's trial balance; if the totals of the debits and credits agree and
+ * no Transaction is out, the book is balanced.
+ * 
+ * <p>
+ * Get one from {@link DataStore#trialBalance(int) trialBalance()}. It is
+ * worked out from the Entries in the book; those in archived years count
+ * only towards each Ledger's {@link #getBalance(Ledger) balance}.
+ * 
+ * <p>
+ * Values are in the home currency.
+ * 
+ * @author Andrew Cowie
+ */
+/*
+ * The work is one pass over the EntryIndex, whose rows are in order of
+ * Ledger, cut into a range for each thread. Each range yields a run of
+ * totals per Ledger, in order, so only the Ledger at either end of a range
+ * needs adding up across threads. Transactions' Entries are scattered
+ * across Ledgers, so each thread sums them into an array of its own indexed
+ * by Transaction ID, and those are then added together, again split by
+ * range of ID across the threads. The DataStore is locked throughout, so
+ * the index can't change underneath the workers.
+ */
+public final class TrialBalance
+{
+    private final HashMap<Long, long[]> ledgers;
+
+    private final HashMap<Account, long[]> accounts;
+
+    private final HashMap<Long, Long> openings;
+
+    private final Transaction[] unbalanced;
+
+    private final long[] imbalances;
+
+    private final long debits;
+
+    private final long credits;
+
+    private TrialBalance(HashMap<Long, long[]> ledgers, HashMap<Account, long[]> accounts,
+            HashMap<Long, Long> openings, Transaction[] unbalanced, long[] imbalances) {
+        long d, c;
+
+        this.ledgers = ledgers;
+        this.accounts = accounts;
+        this.openings = openings;
+        this.unbalanced = unbalanced;
+        this.imbalances = imbalances;
+
+        d = 0;
+        c = 0;
+        for (long[] totals : ledgers.values()) {
+            d += totals[0];
+            c += totals[1];
+        }
+        this.debits = d;
+        this.credits = c;
+    }
+
+    /**
+     * Totals for the rows <code>first</code> up to but not including
+     * <code>last</code> of the EntryIndex.
+     */
+    private static class Tally
+    {
+        long[] ledgerIds;
+
+        long[] debits;
+
+        long[] credits;
+
+        int size;
+
+        /**
+         * Sum of the signed values of each Transaction's Entries in this
+         * range, indexed by Transaction ID less the lowest.
+         */
+        long[] transactions;
+
+        Tally() {
+            ledgerIds = new long[16];
+            debits = new long[16];
+            credits = new long[16];
+            size = 0;
+        }
+
+        void start(long ledgerId) {
+            final long[] oldLedgerIds, oldDebits, oldCredits;
+
+            if (size == ledgerIds.length) {
+                oldLedgerIds = ledgerIds;
+                oldDebits = debits;
+                oldCredits = credits;
+
+                ledgerIds = new long[size * 2];
+                debits = new long[size * 2];
+                credits = new long[size * 2];
+
+                System.arraycopy(oldLedgerIds, 0, ledgerIds, 0, size);
+                System.arraycopy(oldDebits, 0, debits, 0, size);
+                System.arraycopy(oldCredits, 0, credits, 0, size);
+            }
+
+            ledgerIds[size] = ledgerId;
+            size++;
+        }
+    }
+
+    private static class TallyRows implements Callable<Tally>
+    {
+        private final EntryIndex index;
+
+        private final int first;
+
+        private final int last;
+
+        private final long lowest;
+
+        private final int span;
+
+        TallyRows(EntryIndex index, int first, int last, long lowest, int span) {
+            this.index = index;
+            this.first = first;
+            this.last = last;
+            this.lowest = lowest;
+            this.span = span;
+        }
+
+        public Tally call() {
+            final Tally result;
+            final long[] sums;
+            long ledgerId, value;
+            int i, j;
+
+            result = new Tally();
+            sums = new long[span];
+            result.transactions = sums;
+
+            ledgerId = 0;
+            j = -1;
+
+            for (i = first; i < last; i++) {
+                if ((j < 0) || (index.getLedgerID(i) != ledgerId)) {
+                    ledgerId = index.getLedgerID(i);
+                    result.start(ledgerId);
+                    j++;
+                }
+
+                value = index.getValue(i);
+
+                if (index.getDirection(i) > 0) {
+                    result.debits[j] += value;
+                    sums[(int) (index.getTransactionID(i) - lowest)] += value;
+                } else {
+                    result.credits[j] += value;
+                    sums[(int) (index.getTransactionID(i) - lowest)] -= value;
+                }
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Add up the Tallies' Transaction sums for IDs from <code>lo</code> up
+     * to but not including <code>hi</code>, less the lowest, and return
+     * those that aren't zero as pairs of offset and sum.
+     */
+    private static class SumTransactions implements Callable<long[]>
+    {
+        private final Tally[] tallies;
+
+        private final int lo;
+
+        private final int hi;
+
+        SumTransactions(Tally[] tallies, int lo, int hi) {
+            this.tallies = tallies;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        public long[] call() {
+            long[] result, old;
+            long sum;
+            int i, num;
+
+            result = new long[16];
+            num = 0;
+
+            for (i = lo; i < hi; i++) {
+                sum = 0;
+                for (Tally tally : tallies) {
+                    sum += tally.transactions[i];
+                }
+                if (sum == 0) {
+                    continue;
+                }
+
+                if (num + 2 > result.length) {
+                    old = result;
+                    result = new long[num * 2];
+                    System.arraycopy(old, 0, result, 0, num);
+                }
+                result[num++] = i;
+                result[num++] = sum;
+            }
+
+            old = result;
+            result = new long[num];
+            System.arraycopy(old, 0, result, 0, num);
+
+            return result;
+        }
+    }
+
+    /**
+     * Work out the trial balance of the given DataStore, whose lock the
+     * caller must hold, splitting the work over <code>threads</code>
+     * threads.
+     */
+    static TrialBalance compute(DataStore store, EntryIndex index, int threads) {
+        final ExecutorService executor;
+        final ArrayList<Future<Tally>> pending;
+        final ArrayList<Future<long[]>> sums;
+        final Tally[] tallies;
+        final HashMap<Long, long[]> ledgers;
+        final HashMap<Account, long[]> accounts;
+        final HashMap<Long, Long> openings;
+        final ArrayList<Transaction> unbalanced;
+        final ArrayList<Long> imbalances;
+        final long[] result;
+        final int size, step, span;
+        long lowest, highest, id;
+        int i, j, lo, hi;
+        long[] totals, found;
+        Account account;
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("\n" + "Need at least one thread");
+        }
+
+        size = index.size();
+
+        lowest = Long.MAX_VALUE;
+        highest = Long.MIN_VALUE;
+        for (i = 0; i < size; i++) {
+            id = index.getTransactionID(i);
+            if (id < lowest) {
+                lowest = id;
+            }
+            if (id > highest) {
+                highest = id;
+            }
+        }
+        if (size == 0) {
+            lowest = 0;
+            highest = -1;
+        }
+        if (highest - lowest >= Integer.MAX_VALUE) {
+            throw new IllegalStateException("\n" + "Transaction IDs too far apart to tally");
+        }
+        span = (int) (highest - lowest + 1);
+
+        tallies = new Tally[threads];
+        unbalanced = new ArrayList<Transaction>();
+        imbalances = new ArrayList<Long>();
+
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            pending = new ArrayList<Future<Tally>>(threads);
+            step = size / threads + 1;
+            for (i = 0; i < threads; i++) {
+                lo = Math.min(i * step, size);
+                hi = Math.min(lo + step, size);
+                pending.add(executor.submit(new TallyRows(index, lo, hi, lowest, span)));
+            }
+
+            for (i = 0; i < threads; i++) {
+                tallies[i] = await(pending.get(i));
+            }
+
+            sums = new ArrayList<Future<long[]>>(threads);
+            for (i = 0; i < threads; i++) {
+                lo = (int) ((long) span * i / threads);
+                hi = (int) ((long) span * (i + 1) / threads);
+                sums.add(executor.submit(new SumTransactions(tallies, lo, hi)));
+            }
+
+            for (Future<long[]> future : sums) {
+                found = await(future);
+                for (j = 0; j < found.length; j += 2) {
+                    unbalanced.add(store.findTransaction(lowest + found[j]));
+                    imbalances.add(found[j + 1]);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        ledgers = new HashMap<Long, long[]>();
+        accounts = new HashMap<Account, long[]>();
+        openings = new HashMap<Long, Long>();
+
+        for (Tally tally : tallies) {
+            for (j = 0; j < tally.size; j++) {
+                totals = ledgers.get(tally.ledgerIds[j]);
+                if (totals == null) {
+                    totals = new long[2];
+                    ledgers.put(tally.ledgerIds[j], totals);
+                }
+                totals[0] += tally.debits[j];
+                totals[1] += tally.credits[j];
+            }
+        }
+
+        for (Ledger ledger : store.listLedgers()) {
+            totals = ledgers.get(ledger.getID());
+            if (totals == null) {
+                totals = new long[2];
+                ledgers.put(ledger.getID(), totals);
+            }
+
+            account = ledger.getParentAccount();
+            found = accounts.get(account);
+            if (found == null) {
+                found = new long[2];
+                accounts.put(account, found);
+            }
+            found[0] += totals[0];
+            found[1] += totals[1];
+
+            openings.put(ledger.getID(), store.openingBalance(ledger.getID()));
+        }
+
+        result = new long[imbalances.size()];
+        for (i = 0; i < result.length; i++) {
+            result[i] = imbalances.get(i);
+        }
+
+        return new TrialBalance(ledgers, accounts, openings,
+                unbalanced.toArray(new Transaction[unbalanced.size()]), result);
+    }
+
+    private static <T> T await(Future<T> future) {
+        final Throwable cause;
+
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            throw new IllegalStateException("\n" + "Interrupted while working out trial balance");
+        } catch (ExecutionException ee) {
+            cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    private long[] totals(Ledger ledger) {
+        final long[] result;
+
+        result = ledgers.get(ledger.getID());
+        if (result == null) {
+            throw new IllegalArgumentException("\n" + "Ledger " + ledger.getID() + " isn't in this book");
+        }
+        return result;
+    }
+
+    private long[] totals(Account account) {
+        final long[] result;
+
+        result = accounts.get(account);
+        if (result == null) {
+            return new long[2];
+        }
+        return result;
+    }
+
+    /**
+     * The total of the Debits posted to the given Ledger.
+     */
+    public long getDebits(Ledger ledger) {
+        return totals(ledger)[0];
+    }
+
+    /**
+     * The total of the Credits posted to the given Ledger.
+     */
+    public long getCredits(Ledger ledger) {
+        return totals(ledger)[1];
+    }
+
+    /**
+     * The balance of the given Ledger, including what was brought forward
+     * from archived years. Positive for a net debit.
+     */
+    public long getBalance(Ledger ledger) {
+        final long[] totals;
+
+        totals = totals(ledger);
+        return openings.get(ledger.getID()) + totals[0] - totals[1];
+    }
+
+    /**
+     * The total of the Debits posted to the given Account's Ledgers.
+     */
+    public long getDebits(Account account) {
+        return totals(account)[0];
+    }
+
+    /**
+     * The total of the Credits posted to the given Account's Ledgers.
+     */
+    public long getCredits(Account account) {
+        return totals(account)[1];
+    }
+
+    /**
+     * The total of all the Debits in the book.
+     */
+    public long getDebits() {
+        return debits;
+    }
+
+    /**
+     * The total of all the Credits in the book.
+     */
+    public long getCredits() {
+        return credits;
+    }
+
+    /**
+     * The Transactions whose Entries' debits and credits differ, in order
+     * of ID.
+     */
+    public Transaction[] getUnbalanced() {
+        final Transaction[] result;
+
+        result = new Transaction[unbalanced.length];
+        System.arraycopy(unbalanced, 0, result, 0, unbalanced.length);
+
+        return result;
+    }
+
+    /**
+     * By how much each of the {@link #getUnbalanced() unbalanced}
+     * Transactions' debits exceed its credits, in the same order.
+     */
+    public long[] getImbalances() {
+        final long[] result;
+
+        result = new long[imbalances.length];
+        System.arraycopy(imbalances, 0, result, 0, imbalances.length);
+
+        return result;
+    }
+
+    /**
+     * Do the debits equal the credits, in total and in every Transaction?
+     */
+    public boolean isBalanced() {
+        return (debits == credits) && (unbalanced.length == 0);
+    }
+
+    /**
+     * A summary in the form of the old <code>schema/trial.sql</code>
+     * report, followed by any unbalanced Transactions.
+     */
+    public String toString() {
+        final StringBuilder buf;
+        int i;
+
+        buf = new StringBuilder();
+
+        buf.append("Debits   ");
+        buf.append(Amount.padComma(Amount.numberToString(debits)));
+        buf.append('\n');
+        buf.append("Credits  ");
+        buf.append(Amount.padComma(Amount.numberToString(credits)));
+        buf.append('\n');
+        buf.append("Error    ");
+        buf.append(Amount.numberToString(debits - credits));
+        buf.append('\n');
+
+        for (i = 0; i < unbalanced.length; i++) {
+            buf.append("Unbalanced Transaction ");
+            buf.append(unbalanced[i].getID());
+            buf.append(" by ");
+            buf.append(Amount.numberToString(imbalances[i]));
+            buf.append('\n');
+        }
+
+        return buf.toString();
+    }
+}
@@ -18,6 +18,8 @@
  */
 package objective.services;
 
+import java.util.ArrayList;
+
 import objective.domain.Account;
 import objective.domain.Ledger;
 import objective.persistence.DataStore;
@@ -27,56 +29,80 @@ import com.operationaldynamics.sqlite.Statement;
 
 public class AccountOperations extends Operation
 {
-    private Statement lookup;
-
     private DataStore data;
 
+    /*
+     * Nothing here writes, so use the pool of reader connections.
+     */
     public AccountOperations(DataStore data) {
-        super(data);
+        super(data, true);
         this.data = data;
     }
 
     /**
-     * Get the Account with the given title.
+     * Get the Accounts with exactly the given title, in the order they were
+     * created. Titles aren't unique, so there can be more than one.
+     */
+    /*
+     * Answered from the index DataStore keeps in memory, without going to
+     * the database.
+     */
+    public Account[] findAccount(final String title) throws NotFoundException {
+        final Account[] result;
+
+        result = data.lookupAccounts(title);
+        if (result.length == 0) {
+            throw new NotFoundException();
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the Accounts whose title contains the given words, best match
+     * first.
      */
     /*
-     * FIXME Titles aren't unique, so this isn't unary.
+     * Titles are indexed along with the names of each Account's Ledgers, so
+     * this finds Accounts by way of their Ledgers.
      */
-    public Account[] findAccount(final String query) throws NotFoundException {
+    public Account[] searchAccounts(final String query) throws NotFoundException {
         final Statement stmt;
         final String[] sql;
-        final long accountId;
-        final Account result;
+        final String match;
+        final ArrayList<Account> list;
+        final Account[] result;
+
+        match = DataStore.toSearch(query, false);
+        if (match == null) {
+            throw new NotFoundException();
+        }
 
         sql = new String[] {
-            "SELECT account_id",
-            "FROM accounts",
-            "WHERE title = ?"
+            "SELECT l.account_id",
+            "FROM search_ledgers s, ledgers l",
+            "WHERE search_ledgers MATCH ? AND l.ledger_id = s.rowid",
+            "GROUP BY l.account_id",
+            "ORDER BY min(s.rank)"
         };
 
-        stmt = db.prepare(combine(sql));
+        stmt = prepare(combine(sql));
 
-        stmt.bindText(1, query);
+        stmt.bindText(1, "{title} : (" + match + ")");
 
-        if (stmt.step()) {
-            accountId = stmt.columnInteger(0);
-        } else {
-            throw new NotFoundException();
+        list = new ArrayList<Account>();
+        while (stmt.step()) {
+            list.add(data.lookupAccount(stmt.columnInteger(0)));
         }
 
-        stmt.finish();
+        finish(stmt);
 
-        result = data.lookupAccount(accountId);
-        return new Account[] {
-            result
-        };
-    }
-
-    public void release() {
-        if (lookup != null) {
-            lookup.finish();
-            lookup = null;
+        if (list.size() == 0) {
+            throw new NotFoundException();
         }
+
+        result = new Account[list.size()];
+        return list.toArray(result);
     }
 
     /**
@@ -92,35 +118,58 @@ public class AccountOperations extends Operation
     }
 
     /**
-     * Get the Ledgers with the given name.
+     * Get the Ledgers with exactly the given name, in the order they were
+     * created. The same name can be used in more than one Account.
      */
-    public Ledger[] findLedger(final String query) throws NotFoundException {
+    public Ledger[] findLedger(final String name) throws NotFoundException {
+        final Ledger[] result;
+
+        result = data.lookupLedgers(name);
+        if (result.length == 0) {
+            throw new NotFoundException();
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the Ledgers whose name contains the given words, best match first.
+     */
+    public Ledger[] searchLedgers(final String query) throws NotFoundException {
         final Statement stmt;
         final String[] sql;
-        final long ledgerId;
-        final Ledger result;
+        final String match;
+        final ArrayList<Ledger> list;
+        final Ledger[] result;
+
+        match = DataStore.toSearch(query, false);
+        if (match == null) {
+            throw new NotFoundException();
+        }
 
         sql = new String[] {
-            "SELECT ledger_id",
-            "FROM ledgers",
-            "WHERE name = ?"
+            "SELECT rowid",
+            "FROM search_ledgers",
+            "WHERE search_ledgers MATCH ?",
+            "ORDER BY rank"
         };
 
-        stmt = db.prepare(combine(sql));
+        stmt = prepare(combine(sql));
 
-        stmt.bindText(1, query);
+        stmt.bindText(1, "{name} : (" + match + ")");
 
-        if (stmt.step()) {
-            ledgerId = stmt.columnInteger(0);
-        } else {
-            throw new NotFoundException();
+        list = new ArrayList<Ledger>();
+        while (stmt.step()) {
+            list.add(data.lookupLedger(stmt.columnInteger(0)));
         }
 
-        stmt.finish();
+        finish(stmt);
 
-        result = data.lookupLedger(ledgerId);
-        return new Ledger[] {
-            result
-        };
+        if (list.size() == 0) {
+            throw new NotFoundException();
+        }
+
+        result = new Ledger[list.size()];
+        return list.toArray(result);
     }
 }
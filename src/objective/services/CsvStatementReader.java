@@ -0,0 +1,136 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Read a statement exported as comma separated values, one line per
+ * transaction with the columns date, amount, description, and optionally
+ * reference. Fields may be quoted, with <code>""</code> for a quote within
+ * them. A first line that doesn't start with a date is taken to be a header
+ * and skipped.
+ *
+ * @author Andrew Cowie
+ */
+/*
+ * A quoted field containing a newline isn't supported; no bank we've seen
+ * writes them.
+ */
+class CsvStatementReader extends StatementReader
+{
+    private final ArrayList<String> fields;
+
+    private int number;
+
+    CsvStatementReader(BufferedReader in) {
+        super(in);
+        fields = new ArrayList<String>(4);
+        number = 0;
+    }
+
+    StatementLine next() throws IOException {
+        String line, description, reference;
+        long datestamp, amount;
+
+        while (true) {
+            line = in.readLine();
+            if (line == null) {
+                return null;
+            }
+            number++;
+
+            if (line.trim().length() == 0) {
+                continue;
+            }
+
+            split(line);
+
+            if (fields.size() < 3) {
+                return new StatementLine(number, "Expected date, amount, and description");
+            }
+
+            try {
+                datestamp = parseDate(fields.get(0));
+            } catch (IllegalArgumentException iae) {
+                if (number == 1) {
+                    continue;
+                }
+                return new StatementLine(number, "Can't understand date \"" + fields.get(0) + "\"");
+            }
+
+            try {
+                amount = parseAmount(fields.get(1));
+            } catch (NumberFormatException nfe) {
+                return new StatementLine(number, "Can't understand amount \"" + fields.get(1) + "\"");
+            }
+
+            description = fields.get(2).trim();
+
+            if (fields.size() > 3) {
+                reference = fields.get(3).trim();
+            } else {
+                reference = "";
+            }
+
+            return new StatementLine(number, datestamp, amount, description, reference);
+        }
+    }
+
+    private void split(String line) {
+        final StringBuilder buf;
+        final int len;
+        boolean quoted;
+        int i;
+        char ch;
+
+        fields.clear();
+        buf = new StringBuilder();
+        len = line.length();
+        quoted = false;
+
+        for (i = 0; i < len; i++) {
+            ch = line.charAt(i);
+
+            if (quoted) {
+                if (ch == '"') {
+                    if ((i + 1 < len) && (line.charAt(i + 1) == '"')) {
+                        buf.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    buf.append(ch);
+                }
+            } else if (ch == '"') {
+                quoted = true;
+            } else if (ch == ',') {
+                fields.add(buf.toString());
+                buf.setLength(0);
+            } else {
+                buf.append(ch);
+            }
+        }
+
+        fields.add(buf.toString());
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import objective.domain.Credit;
+import objective.domain.Currency;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+import objective.persistence.DataStore;
+import objective.persistence.Operation;
+
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * Import a bank statement, in CSV or OFX form, as GenericTransactions
+ * between the bank's Ledger and another (typically a suspense Ledger from
+ * which they are later reallocated). Money into the account is a Debit to
+ * the bank Ledger, money out a Credit.
+ *
+ * <p>
+ * Lines already in the book are skipped. A line is considered already
+ * there if an Entry against the bank Ledger has the same date, amount and
+ * reference; if a statement legitimately has several identical lines, the
+ * same number are matched against the book before any are imported.
+ *
+ * <p>
+ * The work is done in three stages, each on its own thread: one parses the
+ * file, the calling thread matches lines against the book and makes them
+ * into Transactions, and the DataStore's {@link PostingQueue} writes them
+ * in large batches. Counts of what happened are available when
+ * {@link #importFile(File) importFile()} returns.
+ *
+ * @author Andrew Cowie
+ */
+public class Importer extends Operation
+{
+    private final DataStore data;
+
+    private final Ledger bank;
+
+    private final Ledger other;
+
+    private final Currency currency;
+
+    /**
+     * How many lines can be parsed ahead of the matching.
+     */
+    private static final int AHEAD = 1024;
+
+    /**
+     * How many Postings can be waiting to be written before the matching
+     * waits for the writer to catch up.
+     */
+    private static final int OUTSTANDING = 10000;
+
+    private final AtomicLong read;
+
+    private final AtomicLong duplicates;
+
+    private final AtomicLong rejected;
+
+    private final AtomicLong posted;
+
+    private long elapsed;
+
+    /**
+     * Postings handed to the PostingQueue but not yet completed. Guarded by
+     * this Importer's lock.
+     */
+    private int pending;
+
+    /**
+     * What went wrong with each rejected line, by line number.
+     */
+    private final HashMap<Integer, String> problems;
+
+    /**
+     * Marks the end of the file in the queue between parsing and matching.
+     */
+    private static final StatementLine END = new StatementLine(0, "End of file");
+
+    public Importer(DataStore data, Ledger bank, Ledger other) {
+        super(data, true);
+        final TransactionOperations services;
+        final Currency home;
+
+        if ((bank == null) || (other == null)) {
+            throw new IllegalArgumentException();
+        }
+        if (bank == other) {
+            throw new IllegalArgumentException("\n" + "Need two different Ledgers to import into");
+        }
+
+        services = new TransactionOperations(data);
+        home = services.findCurrencyHome();
+
+        if ((bank.getCurrency() != null) && (bank.getCurrency() != home)) {
+            throw new IllegalArgumentException("\n" + "Can only import statements in "
+                    + home.getCode() + ", not " + bank.getCurrency().getCode());
+        }
+
+        this.data = data;
+        this.bank = bank;
+        this.other = other;
+        this.currency = home;
+
+        this.read = new AtomicLong();
+        this.duplicates = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.posted = new AtomicLong();
+        this.problems = new HashMap<Integer, String>();
+    }
+
+    /**
+     * Import the given file, OFX if it ends in <code>.ofx</code> or
+     * <code>.qfx</code>, CSV otherwise.
+     */
+    public void importFile(File file) throws IOException {
+        final String name;
+        final InputStream in;
+
+        name = file.getName().toLowerCase();
+        in = new FileInputStream(file);
+
+        if (name.endsWith(".ofx") || name.endsWith(".qfx")) {
+            importOFX(in);
+        } else {
+            importCSV(in);
+        }
+    }
+
+    public void importCSV(InputStream in) throws IOException {
+        run(new CsvStatementReader(open(in)));
+    }
+
+    public void importOFX(InputStream in) throws IOException {
+        run(new OfxStatementReader(open(in)));
+    }
+
+    /*
+     * OFX headers declare a charset, but in practice it's ASCII or UTF-8.
+     */
+    private static BufferedReader open(InputStream in) throws IOException {
+        return new BufferedReader(new InputStreamReader(in, "UTF-8"), 65536);
+    }
+
+    /**
+     * Date (to the day), amount and reference of a statement line, or of an
+     * Entry against the bank Ledger.
+     */
+    private static class Key
+    {
+        private final long day;
+
+        private final long amount;
+
+        private final String reference;
+
+        Key(long datestamp, long amount, String reference) {
+            this.day = datestamp / 86400;
+            this.amount = amount;
+            this.reference = reference == null ? "" : reference.trim();
+        }
+
+        public int hashCode() {
+            return (int) (day * 31 + amount) * 31 + reference.hashCode();
+        }
+
+        public boolean equals(Object obj) {
+            final Key other;
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            other = (Key) obj;
+
+            return (day == other.day) && (amount == other.amount) && reference.equals(other.reference);
+        }
+    }
+
+    /**
+     * Count the Entries already against the bank Ledger, by Key. Money in
+     * is positive, as in a statement.
+     */
+    private HashMap<Key, int[]> loadExisting() {
+        final HashMap<Key, int[]> result;
+        final Statement stmt;
+        final String[] sql;
+        Key key;
+        int[] count;
+
+        sql = new String[] {
+            "SELECT t.datestamp, e.amount * e.direction, t.reference",
+            "FROM entries e, transactions t",
+            "WHERE e.ledger_id = ? AND t.transaction_id = e.transaction_id"
+        };
+
+        result = new HashMap<Key, int[]>();
+
+        stmt = prepare(combine(sql));
+        stmt.bindInteger(1, bank.getID());
+
+        while (stmt.step()) {
+            key = new Key(stmt.columnInteger(0), stmt.columnInteger(1), stmt.columnText(2));
+            count = result.get(key);
+            if (count == null) {
+                result.put(key, new int[] {
+                    1
+                });
+            } else {
+                count[0]++;
+            }
+        }
+
+        finish(stmt);
+
+        return result;
+    }
+
+    private void run(final StatementReader reader) throws IOException {
+        final BlockingQueue<StatementLine> lines;
+        final IOException[] failure;
+        final Thread parser;
+        final HashMap<Key, int[]> existing;
+        final PostingQueue queue;
+        final long start;
+        StatementLine line;
+        Key key;
+        int[] count;
+
+        start = System.currentTimeMillis();
+
+        lines = new ArrayBlockingQueue<StatementLine>(AHEAD);
+        failure = new IOException[1];
+
+        parser = new Thread("Importer") {
+            public void run() {
+                StatementLine line;
+
+                try {
+                    while ((line = reader.next()) != null) {
+                        lines.put(line);
+                    }
+                } catch (IOException ioe) {
+                    failure[0] = ioe;
+                } catch (InterruptedException ie) {
+                    return;
+                } finally {
+                    try {
+                        reader.close();
+                    } catch (IOException ioe) {
+                        // already have what we need
+                    }
+                }
+
+                try {
+                    lines.put(END);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        };
+        parser.setDaemon(true);
+        parser.start();
+
+        existing = loadExisting();
+        queue = PostingQueue.forStore(data);
+
+        try {
+            while (true) {
+                line = lines.take();
+                if (line == END) {
+                    break;
+                }
+                read.incrementAndGet();
+
+                if (line.problem != null) {
+                    reject(line.number, line.problem);
+                    continue;
+                }
+                if (line.amount == 0) {
+                    reject(line.number, "Nothing to post for a zero amount");
+                    continue;
+                }
+
+                key = new Key(line.datestamp, line.amount, line.reference);
+                count = existing.get(key);
+                if ((count != null) && (count[0] > 0)) {
+                    count[0]--;
+                    duplicates.incrementAndGet();
+                    continue;
+                }
+
+                submit(queue, line);
+            }
+
+            parser.join();
+            waitForWriter(0);
+        } catch (InterruptedException ie) {
+            parser.interrupt();
+            throw new IllegalStateException("\n" + "Interrupted while importing");
+        }
+
+        elapsed = System.currentTimeMillis() - start;
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private void submit(PostingQueue queue, final StatementLine line) throws InterruptedException {
+        final Transaction t;
+        final Entry one, two;
+        final long amount;
+
+        t = new GenericTransaction(0);
+        t.setDate(line.datestamp);
+        t.setDescription(line.description.length() == 0 ? "Imported" : line.description);
+        t.setReference(line.reference);
+
+        if (line.amount > 0) {
+            one = new Debit();
+            two = new Credit();
+            amount = line.amount;
+        } else {
+            one = new Credit();
+            two = new Debit();
+            amount = -line.amount;
+        }
+
+        one.setParentTransaction(t);
+        one.setParentLedger(bank);
+        one.setAmount(amount);
+        one.setCurrency(currency);
+        one.setValue(amount);
+
+        two.setParentTransaction(t);
+        two.setParentLedger(other);
+        two.setAmount(amount);
+        two.setCurrency(currency);
+        two.setValue(amount);
+
+        waitForWriter(OUTSTANDING);
+
+        synchronized (this) {
+            pending++;
+        }
+
+        queue.post(t, new Entry[] {
+            one,
+            two
+        }, new PostingQueue.Completed() {
+            public void onCompleted(Posting posting) {
+                final RuntimeException problem;
+
+                problem = posting.getProblem();
+                if (problem == null) {
+                    posted.incrementAndGet();
+                } else {
+                    reject(line.number, problem.getMessage());
+                }
+
+                synchronized (Importer.this) {
+                    pending--;
+                    Importer.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    private synchronized void waitForWriter(int limit) throws InterruptedException {
+        while (pending > limit) {
+            this.wait();
+        }
+    }
+
+    private void reject(int number, String problem) {
+        rejected.incrementAndGet();
+        synchronized (problems) {
+            problems.put(number, problem == null ? "" : problem.trim());
+        }
+    }
+
+    /**
+     * How many lines (or, for OFX, transactions) were read?
+     */
+    public long getRead() {
+        return read.get();
+    }
+
+    /**
+     * How many were skipped as being in the book already?
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * How many couldn't be parsed or posted? See
+     * {@link #getProblem(int) getProblem()}.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * How many were posted?
+     */
+    public long getPosted() {
+        return posted.get();
+    }
+
+    /**
+     * Why the line (or, for OFX, transaction) numbered <code>number</code>
+     * was rejected, or <code>null</code> if it wasn't.
+     */
+    public String getProblem(int number) {
+        synchronized (problems) {
+            return problems.get(number);
+        }
+    }
+
+    /**
+     * How long the last import took, in milliseconds.
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    public String toString() {
+        final long rate;
+
+        rate = elapsed == 0 ? 0 : read.get() * 1000 / elapsed;
+
+        return read + " read, " + posted + " posted, " + duplicates + " duplicates, " + rejected
+                + " rejected in " + elapsed + " ms (" + rate + " lines/s)";
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Read the transactions out of an Open Financial Exchange statement. Both
+ * the older SGML form, where elements holding values aren't closed, and
+ * the XML form are handled, by the simple expedient of taking the text
+ * after each start tag up to the next tag as that element's value.
+ *
+ * <p>
+ * Each <code>STMTTRN</code> aggregate becomes a line, dated
+ * <code>DTPOSTED</code>, for <code>TRNAMT</code>, described by
+ * <code>NAME</code> and <code>MEMO</code>, and with <code>FITID</code> (the
+ * bank's unique ID for it) as its reference.
+ *
+ * @author Andrew Cowie
+ */
+class OfxStatementReader extends StatementReader
+{
+    private final StringBuilder tag;
+
+    private final StringBuilder text;
+
+    private int number;
+
+    private int next;
+
+    OfxStatementReader(BufferedReader in) {
+        super(in);
+        tag = new StringBuilder();
+        text = new StringBuilder();
+        number = 0;
+        next = -2;
+    }
+
+    private int read() throws IOException {
+        final int result;
+
+        if (next == -2) {
+            result = in.read();
+        } else {
+            result = next;
+            next = -2;
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the next tag into <code>tag</code>, and the text following it
+     * into <code>text</code>. Returns <code>false</code> at the end of the
+     * file.
+     */
+    private boolean advance() throws IOException {
+        int ch;
+
+        tag.setLength(0);
+        text.setLength(0);
+
+        do {
+            ch = read();
+            if (ch == -1) {
+                return false;
+            }
+        } while (ch != '<');
+
+        while (true) {
+            ch = read();
+            if (ch == -1) {
+                return false;
+            }
+            if (ch == '>') {
+                break;
+            }
+            tag.append((char) ch);
+        }
+
+        while (true) {
+            ch = read();
+            if ((ch == -1) || (ch == '<')) {
+                next = ch;
+                break;
+            }
+            text.append((char) ch);
+        }
+
+        return true;
+    }
+
+    StatementLine next() throws IOException {
+        String name, value, date, amount, description, memo, reference;
+
+        while (true) {
+            if (!advance()) {
+                return null;
+            }
+            if (tag.toString().equals("STMTTRN")) {
+                break;
+            }
+        }
+
+        number++;
+        date = null;
+        amount = null;
+        description = null;
+        memo = null;
+        reference = "";
+
+        while (advance()) {
+            name = tag.toString();
+            value = unescape(text.toString().trim());
+
+            if (name.equals("/STMTTRN")) {
+                break;
+            } else if (name.equals("DTPOSTED")) {
+                date = value;
+            } else if (name.equals("TRNAMT")) {
+                amount = value;
+            } else if (name.equals("NAME")) {
+                description = value;
+            } else if (name.equals("MEMO")) {
+                memo = value;
+            } else if (name.equals("FITID")) {
+                reference = value;
+            }
+        }
+
+        if ((date == null) || (amount == null)) {
+            return new StatementLine(number, "Transaction without DTPOSTED or TRNAMT");
+        }
+
+        if (description == null) {
+            description = memo == null ? "" : memo;
+        } else if ((memo != null) && !memo.equals(description)) {
+            description = description + " " + memo;
+        }
+
+        try {
+            return new StatementLine(number, parseDate(date), parseAmount(amount), description, reference);
+        } catch (NumberFormatException nfe) {
+            return new StatementLine(number, "Can't understand amount \"" + amount + "\"");
+        } catch (IllegalArgumentException iae) {
+            return new StatementLine(number, "Can't understand date \"" + date + "\"");
+        }
+    }
+
+    private static String unescape(String str) {
+        if (str.indexOf('&') == -1) {
+            return str;
+        }
+        return str.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import objective.domain.Entry;
+import objective.domain.Transaction;
+
+/**
+ * A Transaction and its Entries, to be posted as one of a batch. See
+ * {@link TransactionOperations#postTransactions(Posting[])
+ * postTransactions()}.
+ *
+ * @author Andrew Cowie
+ */
+public class Posting
+{
+    private final Transaction transaction;
+
+    private final Entry[] entries;
+
+    private RuntimeException problem;
+
+    public Posting(Transaction transaction, Entry... entries) {
+        if (transaction == null) {
+            throw new IllegalArgumentException();
+        }
+        if (entries == null) {
+            throw new IllegalArgumentException();
+        }
+        this.transaction = transaction;
+        this.entries = entries;
+        this.problem = null;
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public Entry[] getEntries() {
+        return entries;
+    }
+
+    /**
+     * If this Posting was rejected, why? Returns <code>null</code> if it
+     * wasn't.
+     */
+    public RuntimeException getProblem() {
+        return problem;
+    }
+
+    void setProblem(RuntimeException problem) {
+        this.problem = problem;
+    }
+}
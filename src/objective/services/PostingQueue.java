@@ -0,0 +1,244 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import objective.domain.Entry;
+import objective.domain.Transaction;
+import objective.persistence.DataStore;
+
+/**
+ * Post Transactions to the database on a background thread, so that the
+ * caller (typically the GTK main loop) doesn't wait on SQLite committing and
+ * syncing to disk.
+ *
+ * <p>
+ * Postings are written in the order they were submitted. Whatever has
+ * queued up while the previous commit was in progress is written together
+ * in a single database transaction, by way of
+ * {@link TransactionOperations#postTransactions(Posting[])
+ * postTransactions()}, so one bad Posting doesn't spoil the others.
+ *
+ * <p>
+ * There is one PostingQueue per DataStore; get it with
+ * {@link #forStore(DataStore) forStore()}. It is drained and stopped when
+ * the DataStore is closed.
+ *
+ * @author Andrew Cowie
+ */
+public class PostingQueue
+{
+    private static final IdentityHashMap<DataStore, PostingQueue> queues;
+
+    static {
+        queues = new IdentityHashMap<DataStore, PostingQueue>(2);
+    }
+
+    private final DataStore data;
+
+    /**
+     * Postings waiting to be written, and their callbacks. Guarded by this
+     * PostingQueue's lock.
+     */
+    private final ArrayList<Posting> pending;
+
+    private final ArrayList<PostingQueue.Completed> callbacks;
+
+    private boolean closed;
+
+    private final Thread writer;
+
+    private PostingQueue(final DataStore data) {
+        this.data = data;
+        this.pending = new ArrayList<Posting>();
+        this.callbacks = new ArrayList<PostingQueue.Completed>();
+        this.closed = false;
+
+        writer = new Thread("PostingQueue") {
+            public void run() {
+                drain();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        data.connect(new DataStore.Closing() {
+            public void onClosing(DataStore source) {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Get the PostingQueue writing to the given DataStore, starting it if
+     * necessary.
+     */
+    public static PostingQueue forStore(DataStore data) {
+        PostingQueue result;
+
+        synchronized (queues) {
+            result = queues.get(data);
+            if (result == null) {
+                result = new PostingQueue(data);
+                queues.put(data, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Called when a Posting submitted to the queue has been dealt with.
+     * Note that this is called on the queue's thread, not the one that
+     * submitted the Posting.
+     *
+     * @author Andrew Cowie
+     */
+    public interface Completed
+    {
+        /**
+         * @param posting
+         *            the Posting submitted. If it failed,
+         *            {@link Posting#getProblem() getProblem()} will say why;
+         *            otherwise it has been committed.
+         */
+        public void onCompleted(Posting posting);
+    }
+
+    /**
+     * Queue a Transaction and its Entries to be posted. Validation is done
+     * (and any failure reported) along with the write.
+     */
+    public void post(Transaction transaction, Entry[] entries, PostingQueue.Completed handler) {
+        final Posting posting;
+
+        posting = new Posting(transaction, entries);
+
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("\n" + "PostingQueue has been closed");
+            }
+            pending.add(posting);
+            callbacks.add(handler);
+            this.notify();
+        }
+    }
+
+    /**
+     * Wait for everything queued so far to be written, then stop the
+     * writer thread. Called automatically when the DataStore is closed.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            this.notify();
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            throw new IllegalStateException("\n" + "Interrupted waiting for postings to be written");
+        }
+
+        synchronized (queues) {
+            queues.remove(data);
+        }
+    }
+
+    /*
+     * The writer thread. Take everything that's waiting, write it as one
+     * batch, then tell each submitter how it went.
+     */
+    private void drain() {
+        final TransactionOperations services;
+        Posting[] batch;
+        PostingQueue.Completed[] handlers;
+        int i;
+
+        services = new TransactionOperations(data);
+
+        while (true) {
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                batch = pending.toArray(new Posting[pending.size()]);
+                handlers = callbacks.toArray(new PostingQueue.Completed[callbacks.size()]);
+                pending.clear();
+                callbacks.clear();
+            }
+
+            try {
+                services.postTransactions(batch);
+            } catch (Throwable t) {
+                /*
+                 * The whole batch failed, probably on commit; tell everyone.
+                 */
+                for (Posting posting : batch) {
+                    if (posting.getProblem() == null) {
+                        posting.setProblem(problem(t));
+                    }
+                }
+            }
+
+            for (i = 0; i < batch.length; i++) {
+                if (handlers[i] == null) {
+                    continue;
+                }
+                try {
+                    handlers[i].onCompleted(batch[i]);
+                } catch (Throwable t) {
+                    report(t);
+                }
+            }
+        }
+    }
+
+    private static RuntimeException problem(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        return new IllegalStateException("\n" + "Posting failed: " + t, t);
+    }
+
+    /*
+     * A handler that blows up mustn't take the writer thread with it, or
+     * nothing else will ever be posted. Say what happened the way the thread
+     * would have had it died, and carry on.
+     */
+    private static void report(Throwable t) {
+        final Thread current;
+
+        current = Thread.currentThread();
+        current.getUncaughtExceptionHandler().uncaughtException(current, t);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+/**
+ * One line of a bank statement, as read by a {@link StatementReader}. The
+ * amount is in cents, positive for money into the account. If the line
+ * couldn't be understood then <code>problem</code> says why, and the other
+ * fields are not to be relied on.
+ *
+ * @author Andrew Cowie
+ */
+final class StatementLine
+{
+    /**
+     * Where in the file the line came from, for reporting problems.
+     */
+    final int number;
+
+    final long datestamp;
+
+    final long amount;
+
+    final String description;
+
+    final String reference;
+
+    final String problem;
+
+    StatementLine(int number, long datestamp, long amount, String description, String reference) {
+        this.number = number;
+        this.datestamp = datestamp;
+        this.amount = amount;
+        this.description = description;
+        this.reference = reference;
+        this.problem = null;
+    }
+
+    StatementLine(int number, String problem) {
+        this.number = number;
+        this.datestamp = 0;
+        this.amount = 0;
+        this.description = null;
+        this.reference = null;
+        this.problem = problem;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+import objective.domain.Amount;
+
+/**
+ * Read a bank statement one line at a time. Subclasses understand a
+ * particular file format; this has the parsing of dates and amounts they
+ * share.
+ *
+ * @author Andrew Cowie
+ */
+abstract class StatementReader
+{
+    protected final BufferedReader in;
+
+    StatementReader(BufferedReader in) {
+        this.in = in;
+    }
+
+    /**
+     * Get the next line of the statement, or <code>null</code> at the end
+     * of the file. A line that can't be parsed is still returned, with its
+     * problem set, so that reading can carry on past it.
+     */
+    abstract StatementLine next() throws IOException;
+
+    void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Convert a calendar date to a datestamp, midnight UTC.
+     */
+    /*
+     * Counting days from 1 March, so the leap day falls at the end of the
+     * year; see Howard Hinnant's "days_from_civil".
+     */
+    static long toDatestamp(int year, int month, int day) {
+        final int era, yoe, doy, doe;
+        final long days;
+
+        if ((month < 1) || (month > 12) || (day < 1) || (day > 31) || (year < 1970)) {
+            throw new IllegalArgumentException("\n" + "Not a date: " + year + "-" + month + "-" + day);
+        }
+
+        if (month <= 2) {
+            year--;
+        }
+
+        era = year / 400;
+        yoe = year - era * 400;
+        doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        days = era * 146097L + doe - 719468;
+
+        return days * 86400;
+    }
+
+    private static int digits(String str, int start, int end) {
+        int result, i;
+        char ch;
+
+        result = 0;
+        for (i = start; i < end; i++) {
+            ch = str.charAt(i);
+            if ((ch < '0') || (ch > '9')) {
+                throw new IllegalArgumentException("\n" + "Not a date: " + str);
+            }
+            result = result * 10 + (ch - '0');
+        }
+
+        return result;
+    }
+
+    /**
+     * Parse a date as written in a statement: <code>YYYY-MM-DD</code>,
+     * <code>YYYYMMDD</code> (which may be followed by a time, as in OFX),
+     * or <code>DD/MM/YYYY</code>.
+     */
+    static long parseDate(String str) {
+        final int slash, other;
+
+        str = str.trim();
+
+        if ((str.length() >= 10) && (str.charAt(4) == '-') && (str.charAt(7) == '-')) {
+            return toDatestamp(digits(str, 0, 4), digits(str, 5, 7), digits(str, 8, 10));
+        }
+
+        slash = str.indexOf('/');
+        if (slash == -1) {
+            if (str.length() < 8) {
+                throw new IllegalArgumentException("\n" + "Not a date: " + str);
+            }
+            return toDatestamp(digits(str, 0, 4), digits(str, 4, 6), digits(str, 6, 8));
+        }
+
+        other = str.indexOf('/', slash + 1);
+        if (other == -1) {
+            throw new IllegalArgumentException("\n" + "Not a date: " + str);
+        }
+
+        return toDatestamp(digits(str, other + 1, str.length()), digits(str, slash + 1, other),
+                digits(str, 0, slash));
+    }
+
+    /**
+     * Parse an amount of money into cents. Currency symbols and thousands
+     * separators are ignored; a leading minus sign or surrounding
+     * parentheses make it negative.
+     */
+    static long parseAmount(String str) {
+        final StringBuilder buf;
+        boolean negative;
+        int i;
+        char ch;
+
+        buf = new StringBuilder(str.length());
+        negative = false;
+
+        for (i = 0; i < str.length(); i++) {
+            ch = str.charAt(i);
+            if (((ch >= '0') && (ch <= '9')) || (ch == '.')) {
+                buf.append(ch);
+            } else if ((ch == '-') || (ch == '(')) {
+                negative = true;
+            } else if ((ch == '$') || (ch == ',') || (ch == ' ') || (ch == '+') || (ch == ')')) {
+                continue;
+            } else {
+                throw new NumberFormatException("\n" + "Not an amount: " + str);
+            }
+        }
+
+        if (buf.length() == 0) {
+            throw new NumberFormatException("\n" + "No amount");
+        }
+
+        if (negative) {
+            return -Amount.stringToNumber(buf.toString());
+        } else {
+            return Amount.stringToNumber(buf.toString());
+        }
+    }
+}
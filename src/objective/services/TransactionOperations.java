@@ -28,14 +28,13 @@ import objective.domain.Ledger;
 import objective.domain.Transaction;
 import objective.domain.Worker;
 import objective.persistence.DataStore;
+import objective.persistence.DomainObject;
 import objective.persistence.Operation;
 
 import com.operationaldynamics.sqlite.Statement;
 
 public class TransactionOperations extends Operation
 {
-    private Statement lookup;
-
     private DataStore data; // FIXME super
 
     public TransactionOperations(DataStore data) {
@@ -47,20 +46,7 @@ public class TransactionOperations extends Operation
         return data.lookupTransaction(transactionId);
     }
 
-    public void release() {
-        if (lookup != null) {
-            lookup.finish();
-            lookup = null;
-        }
-    }
-
     public void postTransaction(Transaction transaction, Entry... entries) {
-        int i;
-        final int I;
-        Entry entry;
-
-        I = entries.length;
-
         /*
          * Validate
          */
@@ -69,54 +55,197 @@ public class TransactionOperations extends Operation
         validate(entries);
 
         /*
-         * Post
+         * Post. Whatever goes wrong, the writer connection mustn't be left
+         * held; rollback() does nothing once committed.
          */
 
         try {
             data.begin();
+            write(transaction, entries, null);
+            data.commit();
+        } finally {
+            data.rollback();
+        }
+    }
+
+    /**
+     * Post a number of Transactions at once, all in a single database
+     * transaction. Each Posting is validated up front; any that fail
+     * validation, or that fail to be written, are skipped without affecting
+     * the rest of the batch.
+     *
+     * @return the Postings that were rejected. Each one's
+     *         {@link Posting#getProblem() getProblem()} says why.
+     */
+    public Posting[] postTransactions(Posting[] batch) {
+        final ArrayList<Posting> valid, rejected;
+        final ArrayList<DomainObject> fresh, written;
+        final long[] next;
+        Posting[] result;
+        Transaction transaction;
+        Entry[] entries;
+        long nextTransaction, nextEntry;
+        boolean committed;
+
+        valid = new ArrayList<Posting>(batch.length);
+        rejected = new ArrayList<Posting>(4);
 
-            if (transaction.getID() == 0) {
-                data.createTransaction(transaction);
+        /*
+         * Validate
+         */
+
+        for (Posting posting : batch) {
+            try {
+                validate(posting.getTransaction());
+                validate(posting.getEntries());
+                valid.add(posting);
+            } catch (RuntimeException re) {
+                posting.setProblem(re);
+                rejected.add(posting);
             }
-            data.updateTransaction(transaction);
+        }
 
-            for (i = 0; i < I; i++) {
-                entry = entries[i];
+        /*
+         * Post. We're holding the write lock for the duration, so we can
+         * hand out rowids ourselves rather than asking after each insert.
+         */
 
-                if (entry.getID() == 0) {
-                    /*
-                     * If we're passed a new object which has no value, just
-                     * carry on gracefully. This is the case when posting a
-                     * transaction with foreign currency.
-                     */
-                    if (entry.getValue() == 0) {
-                        continue;
+        fresh = new ArrayList<DomainObject>(4);
+        written = new ArrayList<DomainObject>(batch.length * 3);
+        committed = false;
+
+        try {
+            data.begin();
+
+            next = new long[] {
+                data.nextTransactionID(),
+                data.nextEntryID()
+            };
+
+            for (Posting posting : valid) {
+                transaction = posting.getTransaction();
+                entries = posting.getEntries();
+
+                nextTransaction = next[0];
+                nextEntry = next[1];
+
+                fresh.clear();
+                if (transaction.getID() == 0) {
+                    fresh.add(transaction);
+                }
+                for (Entry entry : entries) {
+                    if (entry.getID() == 0) {
+                        fresh.add(entry);
                     }
+                }
+
+                data.savepoint();
+                try {
+                    write(transaction, entries, next);
+                    data.release();
+                    written.addAll(fresh);
+                } catch (RuntimeException re) {
+                    data.rollbackSavepoint();
+
                     /*
-                     * This is a new Entry object, so we need to create it.
-                     * That code path only creates the row; then update is
-                     * called to populate it.
-                     */
-                    data.createEntry(entry);
-                    data.updateEntry(entry);
-                } else if (entry.getValue() == 0) {
-                    /*
-                     * If you reduce an existing entry to 0 value, it means
-                     * you want rid of it. The common case of this is a
-                     * transaction that previously had GST but no longer does.
-                     */
-                    data.deleteEntry(entry);
-                } else {
-                    /*
-                     * Otherwise this is a normal update.
+                     * Put things back the way they were, so the caller can
+                     * fix the problem and try again.
                      */
-                    data.updateEntry(entry);
+
+                    forget(fresh);
+                    next[0] = nextTransaction;
+                    next[1] = nextEntry;
+
+                    posting.setProblem(re);
+                    rejected.add(posting);
                 }
             }
+
             data.commit();
-        } catch (RuntimeException re) {
-            data.rollback();
-            throw re;
+            committed = true;
+        } finally {
+            if (!committed) {
+                data.rollback();
+                forget(written);
+            }
+        }
+
+        result = new Posting[rejected.size()];
+        return rejected.toArray(result);
+    }
+
+    /**
+     * Drop newly created objects from the DataStore's caches and clear their
+     * IDs, after the database work creating them has been rolled back.
+     */
+    private void forget(ArrayList<DomainObject> objects) {
+        for (DomainObject obj : objects) {
+            if (obj instanceof Transaction) {
+                data.forget((Transaction) obj);
+            } else {
+                data.forget((Entry) obj);
+            }
+            obj.setID(0);
+        }
+    }
+
+    /**
+     * Write a Transaction and its Entries. Must be called inside a database
+     * transaction.
+     *
+     * @param next
+     *            if not <code>null</code>, the rowids to give to a new
+     *            Transaction and new Entries respectively, incremented as
+     *            they are used. Otherwise the database allocates them.
+     */
+    private void write(Transaction transaction, Entry[] entries, long[] next) {
+        int i;
+        final int I;
+        Entry entry;
+
+        I = entries.length;
+
+        if (transaction.getID() == 0) {
+            if (next != null) {
+                transaction.setID(next[0]++);
+            }
+            data.createTransaction(transaction);
+        } else {
+            data.updateTransaction(transaction);
+        }
+
+        for (i = 0; i < I; i++) {
+            entry = entries[i];
+
+            if (entry.getID() == 0) {
+                /*
+                 * If we're passed a new object which has no value, just carry
+                 * on gracefully. This is the case when posting a transaction
+                 * with foreign currency.
+                 */
+                if (entry.getValue() == 0) {
+                    continue;
+                }
+                /*
+                 * This is a new Entry object, so we need to create it.
+                 */
+                if (next != null) {
+                    entry.setID(next[1]++);
+                }
+                data.createEntry(entry);
+            } else if (entry.getValue() == 0) {
+                /*
+                 * If you reduce an existing entry to 0 value, it means you
+                 * want rid of it. The common case of this is a transaction
+                 * that previously had GST but no longer does.
+                 */
+                data.deleteEntry(entry);
+            } else {
+                /*
+                 * Otherwise this is a normal update.
+                 */
+                data.updateEntry(entry);
+            }
         }
     }
 
@@ -146,6 +275,9 @@ public class TransactionOperations extends Operation
         for (i = 0; i < I; i++) {
             entry = entries[i];
             // validate(entry);
+            if (entry.getValue() != 0) {
+                check(entry);
+            }
 
             if (entry instanceof Debit) {
                 debits += entry.getValue();
@@ -161,6 +293,22 @@ public class TransactionOperations extends Operation
         }
     }
 
+    /**
+     * Ensure the Entry can be written at all. Unlike validate(Entry), this
+     * allows an amount and value of 0, which write() knows what to do with.
+     */
+    private static void check(Entry e) {
+        if (e.getParentTransaction() == null) {
+            throw new IllegalStateException("\n" + "Entry must belong to a Transaction");
+        }
+        if (e.getParentLedger() == null) {
+            throw new IllegalStateException("\n" + "Entry must be in a Ledger");
+        }
+        if (e.getCurrency() == null) {
+            throw new IllegalStateException("\n" + "Entry Currency must be set");
+        }
+    }
+
     /**
      * Ensure the Entry is in proper form.
      */
@@ -192,36 +340,7 @@ public class TransactionOperations extends Operation
      * Find the Entry rows that have the data for the given Transaction.
      */
     public Entry[] findEntries(Transaction t) {
-        Statement stmt;
-        long transactionId, entryId;
-        int num;
-        ArrayList<Entry> list;
-        Entry entry;
-        Entry[] result;
-
-        stmt = db.prepare("SELECT entry_id FROM entries WHERE transaction_id = ?");
-
-        transactionId = t.getID();
-        stmt.bindInteger(1, transactionId);
-
-        list = new ArrayList<Entry>(4);
-
-        while (stmt.step()) {
-            entryId = stmt.columnInteger(0);
-            entry = data.lookupEntry(entryId);
-            if (entry == null) {
-                throw new IllegalStateException();
-            }
-            list.add(entry);
-        }
-
-        stmt.finish();
-
-        num = list.size();
-        result = new Entry[num];
-        result = list.toArray(result);
-
-        return result;
+        return data.listEntries(t);
     }
 
     /**
@@ -237,7 +356,7 @@ public class TransactionOperations extends Operation
         final long ledgerId, workerId;
         final Worker worker;
 
-        stmt = db.prepare("SELECT worker_id FROM workers w, ledgers l WHERE l.ledger_id = ? AND w.ledger_id = l.ledger_id");
+        stmt = prepare("SELECT worker_id FROM workers w, ledgers l WHERE l.ledger_id = ? AND w.ledger_id = l.ledger_id");
 
         ledgerId = l.getID();
         stmt.bindInteger(1, ledgerId);
@@ -246,7 +365,7 @@ public class TransactionOperations extends Operation
         workerId = stmt.columnInteger(0);
         worker = data.lookupWorker(workerId);
 
-        stmt.finish();
+        finish(stmt);
 
         return worker;
     }
@@ -259,37 +378,25 @@ public class TransactionOperations extends Operation
      * Retrieve the Ledger corresponding to the supplied title and name. If
      * they're not unique throws IllegalArgumentException.
      */
+    /*
+     * DataStore keeps the Ledgers hashed by title and name, so this no
+     * longer needs to ask the database.
+     */
     public Ledger findLedger(final String title, final String name) {
-        final Statement stmt;
-        final String[] sql;
-        final long ledgerId;
-        final Ledger result;
+        final Ledger[] found;
 
-        sql = new String[] {
-            "SELECT l.ledger_id",
-            "FROM ledgers l, accounts a",
-            "WHERE l.name = ? AND l.account_id = a.account_id AND a.title = ?"
-        };
+        found = data.lookupLedgers(title, name);
 
-        stmt = db.prepare(combine(sql));
-
-        stmt.bindText(1, name);
-        stmt.bindText(2, title);
-
-        if (stmt.step()) {
-            ledgerId = stmt.columnInteger(0);
-        } else {
+        if (found.length == 0) {
             throw new IllegalArgumentException();
         }
-        if (stmt.step()) {
+        if (found.length > 1) {
             /*
              * Retrieved more than one Ledger, and we assume unary.
              */
             throw new IllegalArgumentException();
         }
-        stmt.finish();
 
-        result = data.lookupLedger(ledgerId);
-        return result;
+        return found[0];
     }
 }
@@ -147,7 +147,7 @@ public class BillInvoiceTransactionEditorWindow extends InvoiceTransactionEditor
 
         Gtk.init(args);
 
-        data = new DataStore("schema/accounts.db");
+        data = new DataStore("schema/accounts.db", DataStore.isLazyLoading());
 
         window = new BillInvoiceTransactionEditorWindow(data, null);
         window.present();
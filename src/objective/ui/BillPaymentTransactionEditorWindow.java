@@ -129,7 +129,7 @@ public class BillPaymentTransactionEditorWindow extends PaymentTransactionEditor
 
         Gtk.init(args);
 
-        data = new DataStore("schema/accounts.db");
+        data = new DataStore("schema/accounts.db", DataStore.isLazyLoading());
 
         window = new BillPaymentTransactionEditorWindow(data, null);
         window.present();
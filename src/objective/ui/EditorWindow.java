@@ -109,6 +109,7 @@ public abstract class EditorWindow extends Window
 
     protected final void handleCancel() {
         doCancel();
+        doClose();
 
         window.hide();
         window.destroy();
@@ -155,4 +156,10 @@ public abstract class EditorWindow extends Window
      * This, on the other hand, is entirely optional and mostly for testing
      */
     protected void doCancel() {}
+
+    /**
+     * Let go of anything held for the lifetime of the window; called when it
+     * is cancelled.
+     */
+    protected void doClose() {}
 }
@@ -266,6 +266,6 @@ public abstract class InvoiceTransactionEditorWindow extends TransactionEditorWi
         str = description.getText();
         transaction.setDescription(str);
 
-        services.postTransaction(transaction, e1, e2, e3);
+        post(transaction, e1, e2, e3);
     }
 }
@@ -213,6 +213,6 @@ public abstract class PaymentTransactionEditorWindow extends TransactionEditorWi
         str = description.getText();
         transaction.setDescription(str);
 
-        services.postTransaction(transaction, e1, e2);
+        post(transaction, e1, e2);
     }
 }
@@ -287,6 +287,6 @@ public class ReimbursableExpensesTransactionEditorWindow extends TransactionEdit
         transaction.setDate(datestamp);
         transaction.setDescription(str);
 
-        services.postTransaction(transaction, left, right);
+        post(transaction, left, right);
     }
 }
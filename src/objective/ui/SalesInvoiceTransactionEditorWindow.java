@@ -148,7 +148,7 @@ public class SalesInvoiceTransactionEditorWindow extends InvoiceTransactionEdito
 
         Gtk.init(args);
 
-        data = new DataStore("schema/accounts.db");
+        data = new DataStore("schema/accounts.db", DataStore.isLazyLoading());
 
         window = new SalesInvoiceTransactionEditorWindow(data, null);
         window.present();
@@ -123,7 +123,7 @@ public class SalesPaymentTransactionEditorWindow extends PaymentTransactionEdito
 
         Gtk.init(args);
 
-        data = new DataStore("schema/accounts.db");
+        data = new DataStore("schema/accounts.db", DataStore.isLazyLoading());
 
         window = new SalesPaymentTransactionEditorWindow(data, null);
         window.present();
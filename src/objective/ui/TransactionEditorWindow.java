@@ -18,17 +18,27 @@
  */
 package objective.ui;
 
+import objective.domain.Entry;
 import objective.domain.Transaction;
+import objective.persistence.ConflictException;
 import objective.persistence.DataStore;
+import objective.services.Posting;
+import objective.services.PostingQueue;
 import objective.services.TransactionOperations;
 
+import org.gnome.gdk.Event;
+import org.gnome.glib.Glib;
+import org.gnome.glib.Handler;
 import org.gnome.gtk.Alignment;
+import org.gnome.gtk.ErrorMessageDialog;
 import org.gnome.gtk.HBox;
 import org.gnome.gtk.HSeparator;
 import org.gnome.gtk.Label;
+import org.gnome.gtk.MessageDialog;
 import org.gnome.gtk.SizeGroup;
 import org.gnome.gtk.SizeGroupMode;
 import org.gnome.gtk.Widget;
+import org.gnome.gtk.Window;
 
 /**
  * Enter or edit expenses incurred by and reimbursable to a Worker.
@@ -45,10 +55,19 @@ public abstract class TransactionEditorWindow extends EditorWindow
 
     protected final TransactionOperations services;
 
+    private final PostingQueue queue;
+
     private TransactionEditorWindow.Updated handler;
 
     private Transaction operand;
 
+    private final DataStore data;
+
+    /**
+     * Is the operand pinned in the DataStore's cache?
+     */
+    private boolean pinned;
+
     /**
      * Construct the top portion of the window with Date, Description, and
      * Reference fields.
@@ -59,7 +78,16 @@ public abstract class TransactionEditorWindow extends EditorWindow
 
         group = new SizeGroup(SizeGroupMode.HORIZONTAL);
 
+        this.data = data;
         services = new TransactionOperations(data);
+        queue = PostingQueue.forStore(data);
+
+        window.connect(new Window.DeleteEvent() {
+            public boolean onDeleteEvent(Widget source, Event event) {
+                doClose();
+                return false;
+            }
+        });
 
         /*
          * Date
@@ -100,14 +128,89 @@ public abstract class TransactionEditorWindow extends EditorWindow
     }
 
     /*
-     * Notify parent. Called in from EditorWindow.handleOk()
+     * Called in from EditorWindow.handleOk(), but at that point the posting
+     * has only been queued. The parent is notified when it is committed; see
+     * completed().
      */
-    protected final void emitUpdated() {
-        if (handler != null) {
-            handler.onUpdated(operand);
+    protected final void emitUpdated() {}
+
+    /**
+     * Post the Transaction and its Entries. This is done in the background
+     * so the UI doesn't wait on the database; once it has been committed
+     * the Updated handler is called. If it fails, this window is shown again
+     * along with what went wrong.
+     */
+    /*
+     * The queue's thread is writing the very Transaction and Entry objects
+     * this window edits, so it can't be touched until the posting is done.
+     */
+    protected void post(Transaction transaction, Entry... entries) {
+        window.setSensitive(false);
+
+        try {
+            queue.post(transaction, entries, new PostingQueue.Completed() {
+                public void onCompleted(final Posting posting) {
+                    Glib.idleAdd(new Handler() {
+                        public boolean run() {
+                            completed(posting);
+                            return false;
+                        }
+                    });
+                }
+            });
+        } catch (RuntimeException re) {
+            window.setSensitive(true);
+            throw re;
         }
     }
 
+    /*
+     * Back on the main loop.
+     */
+    private void completed(Posting posting) {
+        final RuntimeException problem;
+        final MessageDialog dialog;
+        String str;
+
+        window.setSensitive(true);
+
+        problem = posting.getProblem();
+
+        if (problem == null) {
+            doClose();
+            if (handler != null) {
+                handler.onUpdated(posting.getTransaction());
+            }
+            return;
+        }
+
+        window.showAll();
+
+        /*
+         * Nothing is wrong with what was entered; somebody else just got
+         * there first. Saving again would only fail the same way.
+         */
+
+        if (problem instanceof ConflictException) {
+            dialog = new ErrorMessageDialog(window, "Changed elsewhere",
+                    "This Transaction has been changed by someone else since you started editing it. "
+                            + "Close this window and open the Transaction again to see their changes.");
+            dialog.run();
+            dialog.hide();
+            return;
+        }
+
+        str = problem.getMessage();
+        if (str == null) {
+            str = problem.getClass().getSimpleName();
+        }
+
+        dialog = new ErrorMessageDialog(window, "Posting failed!",
+                "Sorry, but this Transaction couldn't be written to the database: " + str.trim());
+        dialog.run();
+        dialog.hide();
+    }
+
     /**
      * The object of this EditorWindow's affection has changed, and been
      * committed to the database.
@@ -126,11 +229,30 @@ public abstract class TransactionEditorWindow extends EditorWindow
         this.handler = handler;
     }
 
+    /**
+     * Set the Transaction being edited. It is pinned in the DataStore until
+     * the window is closed or the changes to it committed.
+     */
     public void setOperand(Transaction t) {
         if (t == null) {
             throw new AssertionError();
         }
+        doClose();
+
         this.operand = t;
+
+        if (t.getID() != 0) {
+            data.refresh();
+            data.pin(t);
+            pinned = true;
+        }
+    }
+
+    protected void doClose() {
+        if (pinned) {
+            data.unpin(operand);
+            pinned = false;
+        }
     }
 
     protected Transaction getOperand() {
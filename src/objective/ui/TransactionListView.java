@@ -20,6 +20,8 @@ package objective.ui;
 
 import generic.ui.Text;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
@@ -40,17 +42,21 @@ import objective.domain.ReimbursableTransaction;
 import objective.domain.SalesInvoiceTransaction;
 import objective.domain.SalesPaymentTransaction;
 import objective.domain.Transaction;
+import objective.persistence.ChangeSet;
 import objective.persistence.DataStore;
 import objective.services.EntryComparator;
 import objective.services.TransactionOperations;
 
 import org.gnome.glib.Glib;
+import org.gnome.glib.Handler;
+import org.gnome.gtk.Adjustment;
 import org.gnome.gtk.CellRendererText;
 import org.gnome.gtk.DataColumn;
 import org.gnome.gtk.DataColumnBoolean;
 import org.gnome.gtk.DataColumnLong;
 import org.gnome.gtk.DataColumnReference;
 import org.gnome.gtk.DataColumnString;
+import org.gnome.gtk.Editable;
 import org.gnome.gtk.ListStore;
 import org.gnome.gtk.SelectionMode;
 import org.gnome.gtk.TreeIter;
@@ -59,6 +65,7 @@ import org.gnome.gtk.TreeRowReference;
 import org.gnome.gtk.TreeSelection;
 import org.gnome.gtk.TreeView;
 import org.gnome.gtk.TreeViewColumn;
+import org.gnome.gtk.Widget;
 import org.gnome.pango.EllipsizeMode;
 
 import static org.gnome.gtk.Alignment.LEFT;
@@ -84,6 +91,8 @@ public class TransactionListView extends TreeView
 {
     private final DataStore data;
 
+    private final TransactionOperations services;
+
     private final DataColumnString typeTextColumn;
 
     private final DataColumnString typeSortColumn;
@@ -121,6 +130,76 @@ public class TransactionListView extends TreeView
 
     private final TreeView view;
 
+    /**
+     * The row showing each Transaction, by ID, so that when we hear one has
+     * changed we can go straight to it rather than searching the model.
+     */
+    private final HashMap<Long, TreeRowReference> rows;
+
+    /**
+     * How many Transactions to fetch at a time when paging.
+     */
+    private static final int PAGE = 200;
+
+    /*
+     * When showing a date range a page at a time: the range, the last
+     * Transaction fetched so far, and whether there are any more after it.
+     */
+
+    private long from;
+
+    private long to;
+
+    private Transaction last;
+
+    private boolean exhausted;
+
+    /**
+     * Is this view showing a date range, rather than a list it was given?
+     */
+    private boolean ranged;
+
+    /**
+     * The list this view was given to show, if not a date range. Kept so
+     * it can be shown again when a search is cleared.
+     */
+    private Transaction[] given;
+
+    /**
+     * Is this view showing the results of a search, rather than its range
+     * or list?
+     */
+    private boolean filtered;
+
+    /**
+     * The handler keeping this view up to date with changes to the book,
+     * and whether it is connected. It is disconnected when the view is
+     * unrealized, as happens when it is destroyed, so that the DataStore
+     * doesn't keep a dead widget alive and keep on refreshing it.
+     */
+    private final DataStore.Changed listener;
+
+    private boolean listening;
+
+    /**
+     * Instantiate a new widget to view the Transactions dated from
+     * <code>from</code> to <code>to</code> inclusive. Only the first page of
+     * them is loaded to start with; call {@link #more() more()}, or hook up
+     * scrolling with {@link #pageWith(Adjustment) pageWith()}, to get the
+     * rest.
+     */
+    public TransactionListView(final DataStore data, long from, long to) {
+        this(data, new Transaction[0]);
+
+        this.from = from;
+        this.to = to;
+        this.last = null;
+        this.exhausted = false;
+        this.ranged = true;
+
+        more();
+    }
+
     /**
      * Instantiate a new widget to view a list of Transactions.
      * 
@@ -137,6 +216,7 @@ public class TransactionListView extends TreeView
         CellRendererText renderer;
 
         this.data = data;
+        this.services = new TransactionOperations(data);
 
         typeTextColumn = new DataColumnString();
         typeSortColumn = new DataColumnString();
@@ -166,6 +246,11 @@ public class TransactionListView extends TreeView
             isActiveColumn
         });
 
+        rows = new HashMap<Long, TreeRowReference>(Math.max(transactions.length, PAGE) * 2);
+        exhausted = true;
+        ranged = false;
+        given = transactions;
+
         populate(transactions);
 
         // since this might change away from a direct subclass
@@ -296,6 +381,52 @@ public class TransactionListView extends TreeView
                 launchEditor(t);
             }
         });
+
+        /*
+         * Keep up with changes made to the book, whether by editors launched
+         * from here or from anywhere else. These arrive on whatever thread
+         * committed them, so hop over to the main loop to touch the model.
+         */
+
+        listener = new DataStore.Changed() {
+            public void onChanged(DataStore source, final ChangeSet changes) {
+                Glib.idleAdd(new Handler() {
+                    public boolean run() {
+                        if (listening) {
+                            redisplay(changes);
+                        }
+                        return false;
+                    }
+                });
+            }
+        };
+
+        listen();
+
+        view.connect(new Widget.Unrealize() {
+            public void onUnrealize(Widget source) {
+                listening = false;
+                data.disconnect(listener);
+            }
+        });
+
+        /*
+         * In case it is unrealized only to be put somewhere else.
+         */
+
+        view.connect(new Widget.Realize() {
+            public void onRealize(Widget source) {
+                listen();
+            }
+        });
+    }
+
+    private void listen() {
+        if (listening) {
+            return;
+        }
+        data.connect(listener);
+        listening = true;
     }
 
     /*
@@ -326,25 +457,12 @@ public class TransactionListView extends TreeView
             return;
         }
 
-        window.present();
-
-        window.connect(new TransactionEditorWindow.Updated() {
-            public void onUpdated(Transaction updated) {
-                TreeIter row;
-                Transaction t;
-
-                row = model.getIterFirst();
-                do {
-                    t = model.getValue(row, transactionObjectColumn);
-                    if (updated == t) {
-                        populate(row);
-                        return;
-                    }
-                } while (row.iterNext());
+        /*
+         * No need to listen for the editor's Updated signal; the row will be
+         * refreshed when the DataStore tells us the Transaction changed.
+         */
 
-                throw new AssertionError();
-            }
-        });
+        window.present();
     }
 
     private static final String DARKGRAY = "darkgray";
@@ -372,6 +490,91 @@ public class TransactionListView extends TreeView
             model.setValue(pointer, isActiveColumn, false);
 
             populate(pointer);
+
+            rows.put(t.getID(), new TreeRowReference(model, model.getPath(pointer)));
+        }
+    }
+
+    /**
+     * Find the row showing the given Transaction, if it is in this view.
+     */
+    private TreeIter lookupRow(long transactionId) {
+        final TreeRowReference reference;
+        final TreePath path;
+
+        reference = rows.get(transactionId);
+        if (reference == null) {
+            return null;
+        }
+
+        path = reference.getPath();
+        if (path == null) {
+            rows.remove(transactionId);
+            return null;
+        }
+
+        return model.getIter(path);
+    }
+
+    /**
+     * Bring the rows affected by a committed batch of changes up to date.
+     * Rows are refreshed once each, however many of their Transaction's
+     * Entries were touched. Transactions created in the date range this
+     * view is showing are added, unless they are beyond the pages fetched
+     * so far, in which case they'll come along with the next one. A view
+     * showing a list it was given, or the results of a search, isn't added
+     * to.
+     */
+    private void redisplay(ChangeSet changes) {
+        final HashSet<Long> affected;
+        final Transaction[] created;
+        TreeIter row;
+
+        if (ranged && !filtered && (exhausted || (last != null))) {
+            created = changes.getCreatedTransactions(from, to, exhausted ? null : last);
+            for (Transaction t : created) {
+                if (lookupRow(t.getID()) == null) {
+                    populate(new Transaction[] {
+                        t
+                    });
+                }
+            }
+        }
+
+        affected = new HashSet<Long>();
+
+        for (Transaction t : changes.getUpdatedTransactions()) {
+            affected.add(t.getID());
+        }
+        for (Entry e : changes.getCreatedEntries()) {
+            affected.add(e.getParentTransaction().getID());
+        }
+        for (Entry e : changes.getUpdatedEntries()) {
+            affected.add(e.getParentTransaction().getID());
+        }
+        for (Entry e : changes.getDeletedEntries()) {
+            affected.add(e.getParentTransaction().getID());
+        }
+
+        for (Transaction t : changes.getDeletedTransactions()) {
+            affected.remove(t.getID());
+
+            row = lookupRow(t.getID());
+            if (row == null) {
+                continue;
+            }
+            if ((previous != null) && model.getPath(row).equals(previous.getPath())) {
+                previous = null;
+            }
+            model.removeRow(row);
+            rows.remove(t.getID());
+        }
+
+        for (Long id : affected) {
+            row = lookupRow(id);
+            if (row != null) {
+                populate(row);
+            }
         }
     }
 
@@ -433,7 +636,6 @@ public class TransactionListView extends TreeView
         final StringBuilder debitVal, creditVal;
         final Set<Entry> ordered;
         final Iterator<Entry> eI;
-        TransactionOperations services;
         Entry[] entries;
 
         t = model.getValue(row, transactionObjectColumn);
@@ -481,7 +683,6 @@ public class TransactionListView extends TreeView
 
         ordered = new TreeSet<Entry>(new EntryComparator(t));
 
-        services = new TransactionOperations(data);
         entries = services.findEntries(t);
 
         for (Entry e : entries) {
@@ -599,33 +800,120 @@ public class TransactionListView extends TreeView
      * it with a new Set.
      */
     public void setTransactions(Transaction[] transactions) {
+        ranged = false;
+        given = transactions;
+        show(transactions);
+    }
+
+    private void show(Transaction[] transactions) {
         model.clear();
+        rows.clear();
+        previous = null;
+        exhausted = true;
         populate(transactions);
     }
 
+    /**
+     * Go back to showing what this view was showing before any search:
+     * either its date range, from the first page, or the list it was given.
+     */
+    private void unfilter() {
+        if (!ranged) {
+            show(given);
+            return;
+        }
+
+        model.clear();
+        rows.clear();
+        previous = null;
+        last = null;
+        exhausted = false;
+
+        more();
+    }
+
+    /**
+     * Filter the Transactions shown to those matching what is typed in the
+     * given Entry, as it is typed. The best matches are shown first, by way
+     * of the book's search index; emptying the Entry shows everything again.
+     */
+    public void searchWith(final org.gnome.gtk.Entry entry) {
+        entry.connect(new Editable.Changed() {
+            public void onChanged(Editable source) {
+                final String text;
+
+                text = entry.getText();
+
+                if (text.trim().length() == 0) {
+                    filtered = false;
+                    unfilter();
+                } else {
+                    filtered = true;
+                    show(data.search(text, PAGE));
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the next page of Transactions, if this view is showing a date
+     * range.
+     * 
+     * @return <code>false</code> if there are no more to come.
+     */
+    public boolean more() {
+        final Transaction[] page;
+
+        if (exhausted) {
+            return false;
+        }
+
+        page = data.listTransactions(from, to, PAGE, last);
+        populate(page);
+
+        if (page.length > 0) {
+            last = page[page.length - 1];
+        }
+        if (page.length < PAGE) {
+            exhausted = true;
+        }
+
+        return !exhausted;
+    }
+
+    /**
+     * Load more Transactions as the user scrolls towards the bottom of the
+     * list. Pass the vertical Adjustment of the ScrolledWindow this view is
+     * in.
+     */
     /*
-     * TODO reimplement
+     * Fetch once within a screenful of the end, so the next page is there
+     * by the time it's scrolled to.
+     */
+    public void pageWith(final Adjustment vertical) {
+        vertical.connect(new Adjustment.ValueChanged() {
+            public void onValueChanged(Adjustment source) {
+                final double remaining;
+
+                remaining = source.getUpper() - source.getValue() - source.getPageSize();
+                if (remaining < source.getPageSize()) {
+                    more();
+                }
+            }
+        });
+    }
+
+    /**
+     * Refresh the row showing the given Transaction, if it is in this view.
      */
     public void redisplayTransaction(long transactionId) {
-        final Transaction t;
         final TreeIter pointer;
 
-        t = data.lookupTransaction(transactionId);
-
-        pointer = model.getIterFirst();
+        pointer = lookupRow(transactionId);
         if (pointer == null) {
             return;
         }
-        do {
-            if (model.getValue(pointer, transactionObjectColumn) == t) {
-                populate(pointer);
-                return;
-            }
-        } while (pointer.iterNext());
 
-        /*
-         * Well, not here. No biggie, unless we start registering ID to Window
-         * mappings up at UserInterface.
-         */
+        populate(pointer);
     }
 }
@@ -24,6 +24,31 @@ import objective.domain.ValidateAccountBasics;
 import objective.domain.ValidateAmount;
 import objective.domain.ValidateDatestamp;
 import objective.domain.ValidateForeignCurrency;
+import objective.persistence.ValidateArchive;
+import objective.persistence.ValidateBackup;
+import objective.persistence.ValidateChangeSet;
+import objective.persistence.ValidateConcurrentAccess;
+import objective.persistence.ValidateCursor;
+import objective.persistence.ValidateEntryIndex;
+import objective.persistence.ValidateIdentityMap;
+import objective.persistence.ValidateLazyLoading;
+import objective.persistence.ValidateLedgerBalances;
+import objective.persistence.ValidateLedgerIndex;
+import objective.persistence.ValidateLedgerNames;
+import objective.persistence.ValidateMigrations;
+import objective.persistence.ValidateObjectCache;
+import objective.persistence.ValidateOptimisticConcurrency;
+import objective.persistence.ValidateParallelLoading;
+import objective.persistence.ValidatePeriodCheckpoints;
+import objective.persistence.ValidateSearch;
+import objective.persistence.ValidateSnapshot;
+import objective.persistence.ValidateStatementCache;
+import objective.persistence.ValidateTransactionPaging;
+import objective.persistence.ValidateTrialBalance;
+import objective.services.ValidateAccountOperations;
+import objective.services.ValidateBatchPosting;
+import objective.services.ValidatePostingQueue;
+import objective.services.ValidateStatementReaders;
 
 /**
  * @author Andrew Cowie
@@ -38,6 +63,27 @@ public class UnitTests
         TestSuite suite = new TestSuite("All Unit Tests for ObjectiveAccounts");
 
         // persistence
+        suite.addTestSuite(ValidateMigrations.class);
+        suite.addTestSuite(ValidateIdentityMap.class);
+        suite.addTestSuite(ValidateLazyLoading.class);
+        suite.addTestSuite(ValidateStatementCache.class);
+        suite.addTestSuite(ValidateSnapshot.class);
+        suite.addTestSuite(ValidateParallelLoading.class);
+        suite.addTestSuite(ValidateEntryIndex.class);
+        suite.addTestSuite(ValidateLedgerIndex.class);
+        suite.addTestSuite(ValidateLedgerNames.class);
+        suite.addTestSuite(ValidateObjectCache.class);
+        suite.addTestSuite(ValidateChangeSet.class);
+        suite.addTestSuite(ValidateConcurrentAccess.class);
+        suite.addTestSuite(ValidateTransactionPaging.class);
+        suite.addTestSuite(ValidateCursor.class);
+        suite.addTestSuite(ValidateBackup.class);
+        suite.addTestSuite(ValidateLedgerBalances.class);
+        suite.addTestSuite(ValidatePeriodCheckpoints.class);
+        suite.addTestSuite(ValidateArchive.class);
+        suite.addTestSuite(ValidateSearch.class);
+        suite.addTestSuite(ValidateTrialBalance.class);
+        suite.addTestSuite(ValidateOptimisticConcurrency.class);
 
         // domain
         suite.addTestSuite(ValidateAmount.class);
@@ -47,6 +93,10 @@ public class UnitTests
         suite.addTestSuite(ValidateDatestamp.class);
 
         // services
+        suite.addTestSuite(ValidatePostingQueue.class);
+        suite.addTestSuite(ValidateAccountOperations.class);
+        suite.addTestSuite(ValidateBatchPosting.class);
+        suite.addTestSuite(ValidateStatementReaders.class);
 
         // client
 
@@ -0,0 +1,82 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.client;
+
+import java.io.File;
+
+import objective.persistence.Backup;
+import objective.persistence.DataStore;
+import objective.persistence.Export;
+import objective.persistence.OnlineBackup;
+
+import org.gnome.gtk.Gtk;
+
+/**
+ * Back up and export a book while it is open, reporting progress and how
+ * long each took. Build the big mock book with <code>make -C schema
+ * large</code> first.
+ * 
+ * @author Andrew Cowie
+ */
+public class ExploreBackup
+{
+    private static void time(final String label, Backup backup) {
+        final long start, finish;
+
+        backup.connect(new Backup.Progress() {
+            private long reported;
+
+            public void onProgress(Backup source, long done, long total) {
+                if ((done - reported >= 100000) || (done == total)) {
+                    System.out.println(label + ": " + done + " of " + total + " rows");
+                    reported = done;
+                }
+            }
+        });
+
+        start = System.currentTimeMillis();
+        backup.start();
+        backup.await();
+        finish = System.currentTimeMillis();
+
+        System.out.println(label + ": " + backup.getTarget().length() / 1024 + " kB in " + (finish - start)
+                + " ms");
+        System.out.println();
+    }
+
+    public static void main(String[] args) {
+        final String filename;
+        final DataStore data;
+
+        Gtk.init(args);
+
+        if (args.length > 0) {
+            filename = args[0];
+        } else {
+            filename = "schema/accounts-large.db";
+        }
+
+        data = new DataStore(filename, true);
+
+        time("Backup", new OnlineBackup(data, new File("tmp/backup.db")));
+        time("Export", new Export(data, new File("tmp/export.sql.gz")));
+
+        data.close();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.client;
+
+import java.util.TreeSet;
+
+import objective.domain.Entry;
+import objective.domain.Transaction;
+import objective.persistence.DataStore;
+import objective.services.EntryComparator;
+import objective.services.TransactionOperations;
+
+import org.gnome.gtk.Gtk;
+
+/**
+ * Time getting the Entries of every Transaction and sorting them for
+ * display, which is what TransactionListView's populate() does for each
+ * row. A lazy DataStore has to ask the database which Entries belong to a
+ * Transaction; one with everything loaded answers from memory. Build the big
+ * mock book with <code>make -C schema large</code> first.
+ * 
+ * <p>
+ * On that book (500,006 Transactions, 1,000,014 Entries), OpenJDK 17 with
+ * <code>-Xmx4g</code> on one CPU, the first and second passes took:
+ * 
+ * <pre>
+ *                          lazy               preloaded
+ * querying for Entries     104,277 / 2,495    2,537 / 2,690 ms
+ * Transaction index         93,264 / 1,661      668 /   171 ms
+ * current                    8,271 / 6,594      907 /   671 ms
+ * </pre>
+ * 
+ * "Querying for Entries" is before the Transaction to Entries index,
+ * where even a preloaded book asked the database. The lazy passes no
+ * longer speed up on the second go, because the default cache budget
+ * holds only about 35,000 Transactions, not the whole book.
+ * 
+ * @author Andrew Cowie
+ */
+public class ExploreFindEntries
+{
+    private static long populate(DataStore data, Transaction[] list) {
+        final TransactionOperations services;
+        final long start, finish;
+        TreeSet<Entry> ordered;
+        Entry[] entries;
+        long total;
+
+        services = new TransactionOperations(data);
+        total = 0;
+
+        start = System.currentTimeMillis();
+        for (Transaction t : list) {
+            ordered = new TreeSet<Entry>(new EntryComparator(t));
+
+            entries = services.findEntries(t);
+            for (Entry e : entries) {
+                ordered.add(e);
+            }
+
+            total += ordered.size();
+        }
+        finish = System.currentTimeMillis();
+
+        System.out.println("    " + list.length + " Transactions, " + total + " Entries in "
+                + (finish - start) + " ms");
+
+        return finish - start;
+    }
+
+    public static void main(String[] args) {
+        final String filename;
+        DataStore data;
+        Transaction[] list;
+
+        Gtk.init(args);
+
+        if (args.length > 0) {
+            filename = args[0];
+        } else {
+            filename = "schema/accounts-large.db";
+        }
+
+        /*
+         * By query. The first pass faults everything in; the second is the
+         * cost of the query alone.
+         */
+
+        System.out.println("Lazy, querying the database:");
+        data = new DataStore(filename, true);
+        list = data.listTransactions();
+        populate(data, list);
+        populate(data, list);
+        data.close();
+
+        /*
+         * From memory.
+         */
+
+        System.out.println("Preloaded, from memory:");
+        data = new DataStore(filename);
+        list = data.listTransactions();
+        populate(data, list);
+        populate(data, list);
+        data.close();
+    }
+}
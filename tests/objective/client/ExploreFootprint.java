@@ -0,0 +1,87 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.client;
+
+import objective.persistence.DataStore;
+
+import org.gnome.gtk.Gtk;
+
+/**
+ * Open a book and report how long it took to load and how much memory it is
+ * occupying. Build the big mock book with <code>make -C schema large</code>
+ * first. A second argument is the number of threads to load with.
+ * 
+ * @author Andrew Cowie
+ */
+public class ExploreFootprint
+{
+    private static long used() {
+        final Runtime runtime;
+        int i;
+
+        runtime = Runtime.getRuntime();
+
+        for (i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ie) {
+                // carry on
+            }
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) {
+        final String filename;
+        final int threads;
+        final long before, after, start, finish;
+        DataStore data;
+
+        Gtk.init(args);
+
+        if (args.length > 0) {
+            filename = args[0];
+        } else {
+            filename = "schema/accounts-large.db";
+        }
+
+        if (args.length > 1) {
+            threads = Integer.parseInt(args[1]);
+        } else {
+            threads = 1;
+        }
+
+        before = used();
+
+        start = System.currentTimeMillis();
+        data = new DataStore(filename, false, threads);
+        finish = System.currentTimeMillis();
+
+        after = used();
+
+        System.out.println("Loaded in " + (finish - start) + " ms");
+        System.out.println("Heap used " + ((after - before) / 1024 / 1024) + " MB");
+        System.out.println();
+        System.out.print(data.reportFootprint());
+
+        data.close();
+    }
+}
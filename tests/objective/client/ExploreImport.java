@@ -0,0 +1,97 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import objective.domain.Ledger;
+import objective.persistence.DataStore;
+import objective.persistence.TemporaryBook;
+import objective.services.Importer;
+
+import org.gnome.gtk.Gtk;
+
+/**
+ * Import a large made up bank statement into a scratch copy of the mock
+ * book, then import it again, to see how fast lines go through and that the
+ * second time they are all recognized as duplicates. The argument is the
+ * number of lines, 100000 by default.
+ * 
+ * @author Andrew Cowie
+ */
+public class ExploreImport
+{
+    private static File generate(int lines) throws IOException {
+        final File result;
+        final PrintWriter out;
+        int i;
+
+        result = File.createTempFile("statement", ".csv");
+        result.deleteOnExit();
+
+        out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(result), "UTF-8"));
+        out.println("Date,Amount,Description,Reference");
+
+        for (i = 0; i < lines; i++) {
+            out.printf("%04d-%02d-%02d,%d.%02d,\"Line %d, of %d\",%d\n", 2000 + i / 10000,
+                    (i / 28) % 12 + 1, i % 28 + 1, (i % 2 == 0 ? 1 : -1) * (i % 1000 + 1), i % 100, i,
+                    lines, i);
+        }
+
+        out.close();
+
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int lines;
+        final File file;
+        final DataStore data;
+        final Ledger bank, other;
+        Importer importer;
+
+        Gtk.init(args);
+
+        if (args.length > 0) {
+            lines = Integer.parseInt(args[0]);
+        } else {
+            lines = 100000;
+        }
+
+        file = generate(lines);
+
+        data = new DataStore(TemporaryBook.create(), true);
+        bank = data.lookupLedger(1);
+        other = data.lookupLedger(3);
+
+        importer = new Importer(data, bank, other);
+        importer.importFile(file);
+        System.out.println("First:  " + importer);
+
+        importer = new Importer(data, bank, other);
+        importer.importFile(file);
+        System.out.println("Second: " + importer);
+
+        data.close();
+    }
+}
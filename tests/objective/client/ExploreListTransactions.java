@@ -26,6 +26,7 @@ import objective.domain.Debit;
 import objective.domain.Entry;
 import objective.domain.Ledger;
 import objective.domain.Transaction;
+import objective.persistence.Cursor;
 import objective.persistence.DataStore;
 import objective.services.NotFoundException;
 import objective.services.TransactionOperations;
@@ -39,11 +40,29 @@ import org.gnome.gtk.Gtk;
  */
 public class ExploreListTransactions
 {
+    /*
+     * Streamed through a Cursor, so this runs in constant memory on a lazy
+     * DataStore however big the book.
+     */
     private static void list(DataStore data) throws NotFoundException {
-        Transaction[] list;
+        final TransactionOperations services;
+        final Cursor<Transaction> cursor;
         Transaction t;
-        TransactionOperations services;
-        int i, j;
+
+        services = new TransactionOperations(data);
+
+        cursor = data.iterateTransactions(Long.MIN_VALUE, Long.MAX_VALUE);
+        try {
+            while ((t = cursor.next()) != null) {
+                print(services, t);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void print(TransactionOperations services, Transaction t) throws NotFoundException {
+        int j;
         Entry[] entries;
         Entry e;
         Ledger l;
@@ -51,40 +70,33 @@ public class ExploreListTransactions
         long cents;
         String date, dr, cr, code;
 
-        services = new TransactionOperations(data);
-
-        list = data.listTransactions();
+        date = Datestamp.dateToString(t.getDate());
+        System.out.printf("%s, %-30.30s %29s\n", date, "\"" + t.getDescription() + "\"",
+                t.getClassString());
 
-        for (i = 0; i < list.length; i++) {
-            t = list[i];
-            date = Datestamp.dateToString(t.getDate());
-            System.out.printf("%s, %-30.30s %29s\n", date, "\"" + t.getDescription() + "\"",
-                    t.getClassString());
+        entries = services.findEntries(t);
+        for (j = 0; j < entries.length; j++) {
+            e = entries[j];
 
-            entries = services.findEntries(t);
-            for (j = 0; j < entries.length; j++) {
-                e = entries[j];
+            l = e.getParentLedger();
+            a = l.getParentAccount();
 
-                l = e.getParentLedger();
-                a = l.getParentAccount();
+            cents = e.getAmount();
+            code = e.getCurrency().getCode();
 
-                cents = e.getAmount();
-                code = e.getCurrency().getCode();
-
-                if (e instanceof Debit) {
-                    dr = Amount.numberToString(cents) + " " + code;
-                    cr = "";
-                } else if (e instanceof Credit) {
-                    dr = "";
-                    cr = Amount.numberToString(cents) + " " + code;
-                } else {
-                    throw new AssertionError();
-                }
-
-                System.out.printf("%-40.40s  %14s%14s\n", a.getTitle() + " » " + l.getName(), dr, cr);
+            if (e instanceof Debit) {
+                dr = Amount.numberToString(cents) + " " + code;
+                cr = "";
+            } else if (e instanceof Credit) {
+                dr = "";
+                cr = Amount.numberToString(cents) + " " + code;
+            } else {
+                throw new AssertionError();
             }
-            System.out.println();
+
+            System.out.printf("%-40.40s  %14s%14s\n", a.getTitle() + " » " + l.getName(), dr, cr);
         }
+        System.out.println();
     }
 
     public static void main(String[] args) throws NotFoundException {
@@ -92,7 +104,7 @@ public class ExploreListTransactions
 
         Gtk.init(args);
 
-        data = new DataStore("schema/accounts.db");
+        data = new DataStore("schema/accounts.db", true);
 
         list(data);
 
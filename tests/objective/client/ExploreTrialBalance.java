@@ -0,0 +1,78 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.client;
+
+import objective.persistence.DataStore;
+import objective.persistence.TrialBalance;
+
+import org.gnome.gtk.Gtk;
+
+/**
+ * Work out the trial balance of a book with increasing numbers of threads,
+ * reporting how long each took. Build the big mock book with
+ * <code>make -C schema large</code> first.
+ * 
+ * @author Andrew Cowie
+ */
+public class ExploreTrialBalance
+{
+    public static void main(String[] args) {
+        final String filename;
+        final DataStore data;
+        final int cores;
+        long start, finish;
+        TrialBalance trial;
+        int threads, i;
+
+        Gtk.init(args);
+
+        if (args.length > 0) {
+            filename = args[0];
+        } else {
+            filename = "schema/accounts-large.db";
+        }
+
+        data = new DataStore(filename, true);
+
+        start = System.currentTimeMillis();
+        data.trialBalance(1);
+        finish = System.currentTimeMillis();
+        System.out.println("Entries indexed in " + (finish - start) + " ms");
+
+        cores = Runtime.getRuntime().availableProcessors();
+        trial = null;
+
+        for (threads = 1; threads <= cores; threads *= 2) {
+            for (i = 0; i < 5; i++) {
+                trial = data.trialBalance(threads);
+            }
+
+            start = System.nanoTime();
+            trial = data.trialBalance(threads);
+            finish = System.nanoTime();
+
+            System.out.println(threads + " threads: " + (finish - start) / 1000000 + " ms");
+        }
+
+        System.out.println();
+        System.out.print(trial);
+
+        data.close();
+    }
+}
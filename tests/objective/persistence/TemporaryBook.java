@@ -0,0 +1,97 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+/**
+ * Make a scratch copy of the mock book from the schema scripts, for tests
+ * that need a real database to work against.
+ * 
+ * @author Andrew Cowie
+ */
+public final class TemporaryBook
+{
+    private TemporaryBook() {}
+
+    /**
+     * Create a new book in a temporary file, loaded from
+     * <code>schema/create.ddl</code> and <code>schema/mock.ddl</code>.
+     * 
+     * @return the filename of the new book, to be passed to DataStore.
+     */
+    public static String create() {
+        final File file;
+        final Database db;
+
+        try {
+            file = File.createTempFile("objective", ".db");
+            file.delete();
+            file.deleteOnExit();
+            new File(file.getPath() + ".snapshot").deleteOnExit();
+
+            db = new Database(file.getPath());
+            run(db, new File("schema/create.ddl"));
+            run(db, new File("schema/mock.ddl"));
+            db.close();
+
+            return file.getPath();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    /*
+     * The scripts have one statement per line, or statements spread over
+     * several lines ending with a semicolon; that's all this copes with.
+     */
+    private static void run(Database db, File script) throws IOException {
+        final BufferedReader in;
+        final StringBuilder buf;
+        String line;
+        Statement stmt;
+
+        in = new BufferedReader(new InputStreamReader(new FileInputStream(script), "UTF-8"));
+        buf = new StringBuilder();
+
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("--")) {
+                continue;
+            }
+            buf.append(line);
+            buf.append('\n');
+
+            if (line.trim().endsWith(";")) {
+                stmt = db.prepare(buf.toString());
+                stmt.step();
+                stmt.finish();
+                buf.setLength(0);
+            }
+        }
+
+        in.close();
+    }
+}
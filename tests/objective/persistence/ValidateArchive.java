@@ -0,0 +1,226 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.File;
+
+import objective.domain.Credit;
+import objective.domain.Currency;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+import objective.services.TransactionOperations;
+
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Archive the early years of the mock book and check that balances, sums
+ * and queries over all of history come out as they did before.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateArchive extends TestCase
+{
+    /**
+     * 1 January 2002, before anything in the mock book.
+     */
+    private static final long OPENING = 1009843200L;
+
+    /**
+     * 1 January 2004
+     */
+    private static final long CLOSING = 1072915200L;
+
+    private static final long[] DATES = new long[] {
+        1040256000L, CLOSING - 86400, CLOSING, 1088640000L, 1293840000L
+    };
+
+    private String filename;
+
+    private DataStore data;
+
+    public void setUp() {
+        filename = TemporaryBook.create();
+        data = new DataStore(filename, true);
+    }
+
+    public void tearDown() {
+        final Statement stmt;
+        final File dir;
+
+        dir = new File(filename).getAbsoluteFile().getParentFile();
+
+        stmt = data.prepare("SELECT filename FROM archives");
+        while (stmt.step()) {
+            new File(dir, stmt.columnText(0)).deleteOnExit();
+        }
+        data.finish(stmt);
+
+        data.close();
+    }
+
+    private long[] balances() {
+        final Ledger[] ledgers;
+        final long[] result;
+        int i, j;
+
+        ledgers = data.listLedgers();
+        result = new long[ledgers.length * DATES.length * 2];
+
+        j = 0;
+        for (Ledger ledger : ledgers) {
+            for (i = 0; i < DATES.length; i++) {
+                result[j++] = data.lookupBalance(ledger, DATES[i]);
+                result[j++] = data.sumLedger(ledger, DATES[0], DATES[i]);
+            }
+        }
+
+        return result;
+    }
+
+    private int countEntries() {
+        final Cursor<Entry> cursor;
+        int result;
+
+        cursor = data.iterateEntries(Long.MIN_VALUE, Long.MAX_VALUE);
+        result = 0;
+        while (cursor.next() != null) {
+            result++;
+        }
+
+        return result;
+    }
+
+    private int countTransactions() {
+        Transaction[] page;
+        Transaction last;
+        int result;
+
+        result = 0;
+        last = null;
+
+        while (true) {
+            page = data.listTransactions(Long.MIN_VALUE, Long.MAX_VALUE, 2, last);
+            if (page.length == 0) {
+                break;
+            }
+            result += page.length;
+            last = page[page.length - 1];
+        }
+
+        return result;
+    }
+
+    public final void testArchiveYear() {
+        final long[] before;
+        final int entries, transactions, live;
+        long[] after;
+        int i;
+
+        data.closePeriod(CLOSING);
+
+        before = balances();
+        entries = countEntries();
+        transactions = countTransactions();
+        live = data.count("transactions");
+
+        data.archiveYear(OPENING, CLOSING);
+
+        assertTrue(data.isArchived(CLOSING - 1));
+        assertFalse(data.isArchived(CLOSING));
+        assertTrue(data.count("transactions") < live);
+
+        /*
+         * Once with the registers not loaded, and once with.
+         */
+
+        after = balances();
+        for (i = 0; i < before.length; i++) {
+            assertEquals(before[i], after[i]);
+        }
+
+        for (Ledger ledger : data.listLedgers()) {
+            data.countEntries(ledger);
+        }
+
+        after = balances();
+        for (i = 0; i < before.length; i++) {
+            assertEquals(before[i], after[i]);
+        }
+
+        assertEquals(entries, countEntries());
+        assertEquals(transactions, countTransactions());
+
+        assertEquals(0, data.verifyBalances().length);
+    }
+
+    public final void testArchivedYearIsClosed() {
+        final Ledger l1, l2;
+        final Currency aud;
+        final TransactionOperations services;
+        Transaction t;
+        Entry e1, e2;
+
+        data.closePeriod(CLOSING);
+        data.archiveYear(OPENING, CLOSING);
+
+        l1 = data.lookupLedger(1);
+        l2 = data.lookupLedger(3);
+        aud = data.lookupCurrency("AUD");
+        services = new TransactionOperations(data);
+
+        t = new GenericTransaction(0);
+        t.setDate(CLOSING - 86400);
+        t.setDescription("Too late");
+
+        e1 = new Debit(0);
+        e1.setAmount(100);
+        e1.setCurrency(aud);
+        e1.setValue(100);
+        e1.setParentLedger(l1);
+        e1.setParentTransaction(t);
+
+        e2 = new Credit(0);
+        e2.setAmount(100);
+        e2.setCurrency(aud);
+        e2.setValue(100);
+        e2.setParentLedger(l2);
+        e2.setParentTransaction(t);
+
+        try {
+            services.postTransaction(t, e1, e2);
+            fail("Shouldn't be able to post into an archived year");
+        } catch (IllegalStateException ise) {
+            // good
+        }
+
+        t.setDate(CLOSING);
+        t.setID(0);
+        e1.setID(0);
+        e2.setID(0);
+        services.postTransaction(t, e1, e2);
+
+        assertTrue(t.getID() > 0);
+        assertFalse(data.isArchived(t.getDate()));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Back up and export the mock book while it is open, and check that the
+ * copies are complete.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateBackup extends TestCase
+{
+    private DataStore data;
+
+    private File target;
+
+    public void setUp() throws IOException {
+        data = new DataStore(TemporaryBook.create(), true);
+        target = File.createTempFile("backup", ".db");
+        target.deleteOnExit();
+    }
+
+    public void tearDown() {
+        data.close();
+        target.delete();
+    }
+
+    public final void testOnlineBackup() {
+        final Backup backup;
+        final long[] last;
+        final DataStore copy;
+
+        backup = new OnlineBackup(data, target);
+        last = new long[2];
+
+        backup.connect(new Backup.Progress() {
+            public void onProgress(Backup source, long done, long total) {
+                assertTrue(done > last[0]);
+                last[0] = done;
+                last[1] = total;
+            }
+        });
+
+        backup.start();
+        backup.await();
+
+        assertTrue(last[1] > 0);
+        assertEquals(last[1], last[0]);
+        assertFalse(new File(target.getPath() + ".tmp").exists());
+
+        copy = new DataStore(target.getPath(), true);
+        try {
+            assertEquals(data.count("transactions"), copy.count("transactions"));
+            assertEquals(data.count("entries"), copy.count("entries"));
+            assertEquals(data.count("ledger_balances"), copy.count("ledger_balances"));
+            assertEquals(data.listLedgers().length, copy.listLedgers().length);
+            assertEquals(1, copy.search("automation", 10).length);
+            assertEquals(data.searchLedgers("internode", 10).length,
+                    copy.searchLedgers("internode", 10).length);
+        } finally {
+            copy.close();
+        }
+    }
+
+    public final void testCancel() {
+        final Backup backup;
+
+        backup = new OnlineBackup(data, target);
+        backup.connect(new Backup.Progress() {
+            public void onProgress(Backup source, long done, long total) {
+                source.cancel();
+            }
+        });
+        target.delete();
+
+        backup.start();
+        try {
+            backup.await();
+            fail("Should have been cancelled");
+        } catch (IllegalStateException ise) {
+            // good
+        }
+
+        assertFalse(target.exists());
+        assertFalse(new File(target.getPath() + ".tmp").exists());
+    }
+
+    public final void testExport() throws IOException {
+        final Backup export;
+        final GZIPInputStream in;
+        final byte[] buf;
+        final String start;
+
+        export = new Export(data, target);
+        export.run();
+
+        assertEquals(export.getTotal(), export.getDone());
+
+        in = new GZIPInputStream(new FileInputStream(target));
+        buf = new byte[64];
+        in.read(buf);
+        in.close();
+
+        start = new String(buf, "UTF-8");
+        assertTrue(start.startsWith("PRAGMA foreign_keys = OFF;\nBEGIN TRANSACTION;\nCREATE TABLE"));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+
+import junit.framework.TestCase;
+
+/**
+ * Make sure the changes made in a database transaction are coalesced as
+ * advertised before being handed to listeners.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateChangeSet extends TestCase
+{
+    public final void testCoalescing() {
+        final ChangeSet changes;
+        final Transaction one, two, three;
+        final Entry e;
+
+        one = new GenericTransaction(1);
+        two = new GenericTransaction(2);
+        three = new GenericTransaction(3);
+        e = new Debit(10);
+
+        changes = new ChangeSet();
+        changes.add(ChangeSet.CREATED, one);
+        changes.add(ChangeSet.UPDATED, one);
+        changes.add(ChangeSet.UPDATED, two);
+        changes.add(ChangeSet.UPDATED, two);
+        changes.add(ChangeSet.UPDATED, three);
+        changes.add(ChangeSet.DELETED, three);
+        changes.add(ChangeSet.CREATED, e);
+        changes.add(ChangeSet.DELETED, e);
+        changes.coalesce();
+
+        assertEquals(1, changes.getCreatedTransactions().length);
+        assertSame(one, changes.getCreatedTransactions()[0]);
+        assertEquals(1, changes.getUpdatedTransactions().length);
+        assertSame(two, changes.getUpdatedTransactions()[0]);
+        assertEquals(1, changes.getDeletedTransactions().length);
+        assertSame(three, changes.getDeletedTransactions()[0]);
+
+        assertEquals(0, changes.getCreatedEntries().length);
+        assertEquals(0, changes.getDeletedEntries().length);
+        assertFalse(changes.isEmpty());
+    }
+
+    public final void testTruncate() {
+        final ChangeSet changes;
+        final Transaction one, two;
+        final int mark;
+
+        one = new GenericTransaction(1);
+        two = new GenericTransaction(2);
+
+        changes = new ChangeSet();
+        changes.add(ChangeSet.CREATED, one);
+        mark = changes.size();
+        changes.add(ChangeSet.CREATED, two);
+        changes.add(ChangeSet.DELETED, one);
+        changes.truncate(mark);
+        changes.coalesce();
+
+        assertEquals(1, changes.getCreatedTransactions().length);
+        assertSame(one, changes.getCreatedTransactions()[0]);
+        assertEquals(0, changes.getDeletedTransactions().length);
+    }
+
+    public final void testGrowing() {
+        final ChangeSet changes;
+        int i;
+
+        changes = new ChangeSet();
+        for (i = 1; i <= 1000; i++) {
+            changes.add(ChangeSet.CREATED, new GenericTransaction(i));
+        }
+        assertEquals(1000, changes.size());
+        changes.coalesce();
+
+        assertEquals(1000, changes.getCreatedTransactions().length);
+        assertEquals(0, changes.getUpdatedTransactions().length);
+    }
+
+    private static Transaction makeTransaction(long id, long date) {
+        final Transaction result;
+
+        result = new GenericTransaction(id);
+        result.setDate(date);
+
+        return result;
+    }
+
+    /*
+     * What a view showing a date range adds when Transactions are created:
+     * those within its range, and only as far as it has paged.
+     */
+    public final void testCreatedInRange() {
+        final ChangeSet changes;
+        final Transaction early, first, second, third, late;
+        Transaction[] found;
+
+        early = makeTransaction(5, 100);
+        first = makeTransaction(9, 200);
+        second = makeTransaction(3, 300);
+        third = makeTransaction(7, 300);
+        late = makeTransaction(4, 500);
+
+        changes = new ChangeSet();
+        changes.add(ChangeSet.CREATED, late);
+        changes.add(ChangeSet.CREATED, third);
+        changes.add(ChangeSet.CREATED, early);
+        changes.add(ChangeSet.CREATED, second);
+        changes.add(ChangeSet.CREATED, first);
+        changes.add(ChangeSet.UPDATED, makeTransaction(1, 200));
+        changes.coalesce();
+
+        found = changes.getCreatedTransactions(200, 400, null);
+        assertEquals(3, found.length);
+        assertSame(first, found[0]);
+        assertSame(second, found[1]);
+        assertSame(third, found[2]);
+
+        found = changes.getCreatedTransactions(200, 400, makeTransaction(6, 300));
+        assertEquals(2, found.length);
+        assertSame(first, found[0]);
+        assertSame(second, found[1]);
+
+        found = changes.getCreatedTransactions(200, 400, makeTransaction(8, 100));
+        assertEquals(0, found.length);
+
+        found = changes.getCreatedTransactions(0, 1000, third);
+        assertEquals(4, found.length);
+        assertSame(third, found[3]);
+    }
+
+    private int delivered;
+
+    public final void testDisconnect() {
+        final DataStore data;
+        final DataStore.Changed handler;
+        final Ledger meals;
+
+        data = new DataStore(TemporaryBook.create());
+
+        handler = new DataStore.Changed() {
+            public void onChanged(DataStore source, ChangeSet changes) {
+                delivered++;
+            }
+        };
+
+        delivered = 0;
+        data.connect(handler);
+
+        meals = data.lookupLedger(8);
+        meals.setName("Food");
+        data.updateLedger(meals);
+        assertEquals(1, delivered);
+
+        data.disconnect(handler);
+
+        meals.setName("Meals");
+        data.updateLedger(meals);
+        assertEquals(1, delivered);
+
+        data.close();
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Credit;
+import objective.domain.Currency;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+import objective.services.TransactionOperations;
+
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Run queries on the reader connections while Transactions are being posted
+ * through the writer, and write from two threads at once.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateConcurrentAccess extends TestCase
+{
+    private String filename;
+
+    private DataStore data;
+
+    private volatile boolean done;
+
+    private volatile boolean rolledBack;
+
+    public void setUp() {
+        filename = TemporaryBook.create();
+        data = new DataStore(filename);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    /**
+     * A read-only Operation, as a report would be.
+     */
+    private static class Counter extends Operation
+    {
+        Counter(DataStore data) {
+            super(data, true);
+        }
+
+        long countEntries() {
+            final Statement stmt;
+            final long result;
+
+            stmt = prepare("SELECT count() FROM entries");
+            stmt.step();
+            result = stmt.columnInteger(0);
+            finish(stmt);
+
+            return result;
+        }
+
+        void broken() {
+            prepare("SELECT count() FROM nonexistent");
+        }
+    }
+
+    private static void post(DataStore data, TransactionOperations services, int i) {
+        final Transaction t;
+        final Ledger l1, l2;
+        final Currency aud;
+        final Entry e1, e2;
+
+        aud = data.lookupCurrency("AUD");
+        l1 = data.lookupLedger(1);
+        l2 = data.lookupLedger(3);
+
+        t = new GenericTransaction(0);
+        t.setDate(1293235200L + i * 86400L);
+        t.setDescription("Concurrent " + i);
+
+        e1 = new Debit(0);
+        e1.setAmount(100 + i);
+        e1.setCurrency(aud);
+        e1.setValue(100 + i);
+        e1.setParentLedger(l1);
+        e1.setParentTransaction(t);
+
+        e2 = new Credit(0);
+        e2.setAmount(100 + i);
+        e2.setCurrency(aud);
+        e2.setValue(100 + i);
+        e2.setParentLedger(l2);
+        e2.setParentTransaction(t);
+
+        services.postTransaction(t, e1, e2);
+    }
+
+    public final void testReadersAlongsideWriter() throws InterruptedException {
+        final TransactionOperations services;
+        final long before;
+        final Thread[] readers;
+        final Throwable[] problems;
+        int i;
+
+        before = new Counter(data).countEntries();
+
+        services = new TransactionOperations(data);
+        readers = new Thread[6];
+        problems = new Throwable[readers.length];
+        done = false;
+
+        for (i = 0; i < readers.length; i++) {
+            final int which = i;
+
+            readers[i] = new Thread() {
+                public void run() {
+                    final Counter counter;
+                    long previous, current;
+
+                    counter = new Counter(data);
+                    previous = before;
+
+                    try {
+                        while (!done) {
+                            current = counter.countEntries();
+
+                            /*
+                             * Entries are committed two at a time, and
+                             * never go away.
+                             */
+                            assertTrue(current >= previous);
+                            assertEquals(0, (current - before) % 2);
+
+                            previous = current;
+                        }
+                    } catch (Throwable t) {
+                        problems[which] = t;
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        for (i = 0; i < 50; i++) {
+            post(data, services, i);
+        }
+
+        done = true;
+        for (i = 0; i < readers.length; i++) {
+            readers[i].join();
+            if (problems[i] != null) {
+                fail(problems[i].toString());
+            }
+        }
+
+        assertEquals(before + 100, new Counter(data).countEntries());
+    }
+
+    /*
+     * One thread's write mustn't land inside another's open transaction,
+     * where it would be thrown away when that transaction is rolled back.
+     */
+    public final void testWriteDuringAnotherTransaction() throws InterruptedException {
+        final Thread other;
+        final Throwable[] problem;
+        final Object started;
+        final Ledger meals;
+        final DataStore again;
+
+        problem = new Throwable[1];
+        started = new Object();
+        rolledBack = false;
+
+        other = new Thread() {
+            public void run() {
+                final Transaction t;
+
+                try {
+                    data.begin();
+
+                    t = new GenericTransaction(0);
+                    t.setDate(1293235200L);
+                    t.setDescription("Never committed");
+                    data.createTransaction(t);
+
+                    synchronized (started) {
+                        started.notify();
+                    }
+                    Thread.sleep(200);
+
+                    rolledBack = true;
+                    data.rollback();
+                } catch (Throwable oops) {
+                    problem[0] = oops;
+                    synchronized (started) {
+                        started.notify();
+                    }
+                }
+            }
+        };
+
+        synchronized (started) {
+            other.start();
+            started.wait();
+        }
+
+        meals = data.lookupLedger(8);
+        meals.setName("Food");
+        data.updateLedger(meals);
+
+        assertTrue(rolledBack);
+
+        other.join();
+        if (problem[0] != null) {
+            fail(problem[0].toString());
+        }
+
+        assertEquals(0, data.search("committed", 10).length);
+
+        again = new DataStore(filename, true);
+        assertEquals("Food", again.lookupLedger(8).getName());
+        assertEquals(0, again.search("committed", 10).length);
+        again.close();
+    }
+
+    public final void testTwoWriters() throws InterruptedException {
+        final TransactionOperations services;
+        final long before;
+        final Thread other;
+        final Throwable[] problem;
+        int i;
+
+        before = new Counter(data).countEntries();
+
+        services = new TransactionOperations(data);
+        problem = new Throwable[1];
+
+        other = new Thread() {
+            public void run() {
+                final TransactionOperations mine;
+                int j;
+
+                mine = new TransactionOperations(data);
+                try {
+                    for (j = 100; j < 150; j++) {
+                        post(data, mine, j);
+                    }
+                } catch (Throwable t) {
+                    problem[0] = t;
+                }
+            }
+        };
+        other.start();
+
+        for (i = 0; i < 50; i++) {
+            post(data, services, i);
+        }
+
+        other.join();
+        if (problem[0] != null) {
+            fail(problem[0].toString());
+        }
+
+        assertEquals(before + 200, new Counter(data).countEntries());
+        assertEquals(0, data.verifyBalances().length);
+    }
+
+    /*
+     * There are only a few reader connections; if a failed prepare kept
+     * hold of one, the count at the end would wait forever.
+     */
+    public final void testFailedPrepareReturnsReader() {
+        final Counter counter;
+        int i;
+
+        counter = new Counter(data);
+
+        for (i = 0; i < 10; i++) {
+            try {
+                counter.broken();
+                fail("Should have complained about the missing table");
+            } catch (IllegalStateException ise) {
+                // good
+            }
+        }
+
+        assertTrue(counter.countEntries() > 0);
+    }
+
+    /*
+     * Lists, searches, and the Entries of a Transaction are what windows
+     * show, so they go ahead while another thread is part way through a
+     * transaction, seeing what was committed before it.
+     */
+    private static void checkReadsWhileWriting(final DataStore data) throws InterruptedException {
+        final Transaction known, changing;
+        final Thread writer, reader;
+        final Object lock;
+        final boolean[] state;
+        final Throwable[] problem;
+
+        known = data.lookupTransaction(3);
+        changing = data.lookupTransaction(5);
+
+        lock = new Object();
+        state = new boolean[2];
+        problem = new Throwable[1];
+
+        writer = new Thread() {
+            public void run() {
+                data.begin();
+                try {
+                    data.updateTransaction(changing);
+                    synchronized (lock) {
+                        state[0] = true;
+                        lock.notifyAll();
+                        while (!state[1]) {
+                            lock.wait();
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    // fall through to roll back
+                } finally {
+                    data.rollback();
+                }
+            }
+        };
+        writer.start();
+
+        synchronized (lock) {
+            while (!state[0]) {
+                lock.wait();
+            }
+        }
+
+        reader = new Thread() {
+            public void run() {
+                try {
+                    assertEquals(2, data.listEntries(known).length);
+                    assertEquals(1, data.search("flight", 10).length);
+                    assertTrue(data.listTransactions(Long.MIN_VALUE, Long.MAX_VALUE, 100, null).length > 0);
+                } catch (Throwable t) {
+                    problem[0] = t;
+                }
+            }
+        };
+        reader.start();
+        reader.join(10000);
+
+        try {
+            if (reader.isAlive()) {
+                fail("Reads waited for the writer");
+            }
+            if (problem[0] != null) {
+                fail(problem[0].toString());
+            }
+        } finally {
+            synchronized (lock) {
+                state[1] = true;
+                lock.notifyAll();
+            }
+            writer.join();
+            reader.join();
+        }
+    }
+
+    public final void testReadsWhileWriting() throws InterruptedException {
+        final DataStore lazy;
+
+        checkReadsWhileWriting(data);
+
+        lazy = new DataStore(filename, true);
+        try {
+            checkReadsWhileWriting(lazy);
+        } finally {
+            lazy.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Entry;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Stream the mock book through Cursors and check the results against the
+ * array returning methods.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateCursor extends TestCase
+{
+    private DataStore data;
+
+    public void setUp() {
+        data = new DataStore(TemporaryBook.create(), true);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    public final void testTransactions() {
+        final Transaction[] all;
+        final Cursor<Transaction> cursor;
+        Transaction t;
+        int i;
+
+        all = data.listTransactions(Long.MIN_VALUE, Long.MAX_VALUE, 1000, null);
+
+        cursor = data.iterateTransactions(Long.MIN_VALUE, Long.MAX_VALUE);
+        i = 0;
+        while ((t = cursor.next()) != null) {
+            assertSame(all[i], t);
+            i++;
+        }
+        assertEquals(all.length, i);
+
+        assertNull(cursor.next());
+        cursor.close();
+    }
+
+    public final void testEntries() {
+        Cursor<Entry> cursor;
+        Entry e;
+        int total, count;
+
+        total = 0;
+
+        cursor = data.iterateEntries(Long.MIN_VALUE, Long.MAX_VALUE);
+        while ((e = cursor.next()) != null) {
+            assertSame(e, data.lookupEntry(e.getID()));
+            assertSame(e.getParentTransaction(), data.lookupTransaction(e.getParentTransaction().getID()));
+            total++;
+        }
+        assertEquals(data.count("entries"), total);
+
+        count = 0;
+        for (Ledger ledger : data.listLedgers()) {
+            cursor = data.iterateEntries(ledger);
+            while ((e = cursor.next()) != null) {
+                assertSame(ledger, e.getParentLedger());
+                count++;
+            }
+        }
+        assertEquals(total, count);
+    }
+
+    /*
+     * If stopping early didn't give the connection back, the pool would run
+     * dry and this would hang.
+     */
+    public final void testCloseEarly() {
+        Cursor<Transaction> cursor;
+        int i;
+
+        for (i = 0; i < 10; i++) {
+            cursor = data.iterateTransactions(Long.MIN_VALUE, Long.MAX_VALUE);
+            assertNotNull(cursor.next());
+            cursor.close();
+            cursor.close();
+        }
+    }
+
+    public final void testFailedQuery() {
+        Cursor<Transaction> cursor;
+        int i;
+
+        for (i = 0; i < 10; i++) {
+            try {
+                new Cursor<Transaction>(data, "SELECT transaction_id FROM nonexistent") {
+                    Transaction make(Statement stmt) {
+                        return null;
+                    }
+                };
+                fail("Should have complained about the missing table");
+            } catch (IllegalStateException ise) {
+                // good
+            }
+        }
+
+        cursor = data.iterateTransactions(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertNotNull(cursor.next());
+        cursor.close();
+    }
+}
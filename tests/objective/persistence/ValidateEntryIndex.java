@@ -0,0 +1,143 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Exercise the columnar Entry index, without a database behind it.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateEntryIndex extends TestCase
+{
+    public final void testRangeSum() {
+        final EntryIndex index;
+
+        index = new EntryIndex(0);
+
+        /*
+         * Ledger 10: debit 100 on day 1, credit 30 on day 2, debit 5 on day
+         * 4. Ledger 11 has a credit on day 2 that mustn't be counted.
+         */
+
+        index.insert(1, 10, 1, 86400, 100, 1);
+        index.insert(2, 11, 1, 86400 * 2, 100, -1);
+        index.insert(3, 10, 2, 86400 * 2, 30, -1);
+        index.insert(4, 10, 3, 86400 * 4, 5, 1);
+
+        assertEquals(4, index.size());
+
+        assertEquals(75, index.sum(10, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(100, index.sum(10, 86400, 86400));
+        assertEquals(70, index.sum(10, 86400, 86400 * 2));
+        assertEquals(-25, index.sum(10, 86400 * 2, 86400 * 4));
+        assertEquals(0, index.sum(10, 86400 * 5, Long.MAX_VALUE));
+        assertEquals(-100, index.sum(11, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(0, index.sum(12, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    public final void testOrdering() {
+        final EntryIndex index;
+        int i;
+
+        index = new EntryIndex(0);
+
+        index.insert(5, 2, 5, 300, 1, 1);
+        index.insert(4, 1, 4, 300, 1, 1);
+        index.insert(3, 2, 3, 100, 1, 1);
+        index.insert(2, 1, 2, 200, 1, 1);
+        index.insert(1, 2, 1, 300, 1, 1);
+
+        for (i = 1; i < index.size(); i++) {
+            assertTrue(index.getLedgerID(i - 1) <= index.getLedgerID(i));
+            if (index.getLedgerID(i - 1) == index.getLedgerID(i)) {
+                assertTrue(index.getDatestamp(i - 1) <= index.getDatestamp(i));
+            }
+        }
+
+        assertEquals(2, index.getEntryID(0));
+        assertEquals(4, index.getEntryID(1));
+        assertEquals(3, index.getEntryID(2));
+        assertEquals(1, index.getEntryID(3));
+        assertEquals(5, index.getEntryID(4));
+    }
+
+    public final void testRemove() {
+        final EntryIndex index;
+
+        index = new EntryIndex(0);
+
+        index.insert(1, 10, 1, 100, 50, 1);
+        index.insert(2, 10, 2, 200, 20, 1);
+
+        assertFalse(index.remove(2, 10, 100));
+        assertFalse(index.remove(2, 11, 200));
+        assertTrue(index.remove(2, 10, 200));
+        assertFalse(index.remove(2, 10, 200));
+
+        assertEquals(1, index.size());
+        assertEquals(50, index.sum(10, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    /*
+     * Compare against summing everything by brute force.
+     */
+    public final void testAgainstScan() {
+        final EntryIndex index;
+        final Random random;
+        final long[] ledger, date, value, direction;
+        long i, expected, from, to;
+        int j, k;
+
+        index = new EntryIndex(0);
+        random = new Random(42);
+
+        ledger = new long[2000];
+        date = new long[2000];
+        value = new long[2000];
+        direction = new long[2000];
+
+        for (j = 0; j < 2000; j++) {
+            i = j + 1;
+            ledger[j] = 1 + random.nextInt(20);
+            date[j] = random.nextInt(365) * 86400L;
+            value[j] = random.nextInt(100000);
+            direction[j] = random.nextBoolean() ? 1 : -1;
+
+            index.insert(i, ledger[j], i, date[j], value[j], direction[j]);
+        }
+
+        for (k = 0; k < 100; k++) {
+            from = random.nextInt(365) * 86400L;
+            to = from + random.nextInt(100) * 86400L;
+
+            expected = 0;
+            for (j = 0; j < 2000; j++) {
+                if ((ledger[j] == 7) && (date[j] >= from) && (date[j] <= to)) {
+                    expected += value[j] * direction[j];
+                }
+            }
+
+            assertEquals(expected, index.sum(7, from, to));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Exercise the rowid to object map used for DataStore's caches.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateIdentityMap extends TestCase
+{
+    public final void testPutAndGet() {
+        final IdentityMap<String> map;
+
+        map = new IdentityMap<String>();
+
+        assertNull(map.get(1));
+        assertEquals(0, map.size());
+
+        map.put(1, "one");
+        map.put(2, "two");
+        map.put(1000000, "million");
+
+        assertEquals("one", map.get(1));
+        assertEquals("two", map.get(2));
+        assertEquals("million", map.get(1000000));
+        assertNull(map.get(3));
+        assertEquals(3, map.size());
+
+        map.put(2, "deux");
+        assertEquals("deux", map.get(2));
+        assertEquals(3, map.size());
+    }
+
+    public final void testZeroNotStored() {
+        final IdentityMap<String> map;
+
+        map = new IdentityMap<String>();
+
+        assertNull(map.get(0));
+        map.remove(0);
+
+        try {
+            map.put(0, "nothing");
+            fail("Should have refused an ID of 0");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    public final void testGrowing() {
+        final IdentityMap<Long> map;
+        long i;
+
+        map = new IdentityMap<Long>(4);
+
+        for (i = 1; i <= 10000; i++) {
+            map.put(i, i);
+        }
+        assertEquals(10000, map.size());
+
+        for (i = 1; i <= 10000; i++) {
+            assertEquals(Long.valueOf(i), map.get(i));
+        }
+    }
+
+    /*
+     * Removal shuffles entries back along their probe run, so compare against
+     * HashMap with a random mix of operations to make sure nothing is lost.
+     */
+    public final void testRemoveAgainstHashMap() {
+        final IdentityMap<Long> map;
+        final HashMap<Long, Long> check;
+        final Random random;
+        long key;
+        int i;
+
+        map = new IdentityMap<Long>();
+        check = new HashMap<Long, Long>();
+        random = new Random(42);
+
+        for (i = 0; i < 100000; i++) {
+            key = random.nextInt(5000) + 1;
+            if (random.nextBoolean()) {
+                map.put(key, key);
+                check.put(key, key);
+            } else {
+                map.remove(key);
+                check.remove(key);
+            }
+        }
+
+        assertEquals(check.size(), map.size());
+
+        for (key = 1; key <= 5000; key++) {
+            assertEquals(check.get(key), map.get(key));
+        }
+    }
+
+    public final void testToArray() {
+        final IdentityMap<String> map;
+        String[] result;
+
+        map = new IdentityMap<String>();
+        map.put(7, "seven");
+        map.put(11, "eleven");
+
+        result = map.toArray(new String[map.size()]);
+        assertEquals(2, result.length);
+        assertTrue(result[0].equals("seven") || result[1].equals("seven"));
+        assertTrue(result[0].equals("eleven") || result[1].equals("eleven"));
+    }
+}
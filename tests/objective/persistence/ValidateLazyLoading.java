@@ -0,0 +1,180 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Entry;
+import objective.domain.Transaction;
+
+import junit.framework.TestCase;
+
+/**
+ * A DataStore that loads Transactions and Entries as they are asked for
+ * must give the same answers as one that loads everything up front, and
+ * hand back the same object each time the same one is asked for.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateLazyLoading extends TestCase
+{
+    private String filename;
+
+    private DataStore eager;
+
+    private DataStore lazy;
+
+    public void setUp() {
+        filename = TemporaryBook.create();
+        eager = new DataStore(filename, false);
+        lazy = new DataStore(filename, true);
+    }
+
+    public void tearDown() {
+        lazy.close();
+        eager.close();
+    }
+
+    private static void assertEquals(Entry expected, Entry actual) {
+        assertEquals(expected.getID(), actual.getID());
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getAmount(), actual.getAmount());
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getCurrency().getCode(), actual.getCurrency().getCode());
+        assertEquals(expected.getParentLedger().getID(), actual.getParentLedger().getID());
+        assertEquals(expected.getParentTransaction().getID(), actual.getParentTransaction().getID());
+    }
+
+    public final void testSameTransactions() {
+        final Transaction[] all, loaded;
+        Transaction expected, actual;
+        Entry[] before, after;
+        int i, j;
+
+        all = eager.listTransactions();
+        loaded = lazy.listTransactions();
+        assertEquals(all.length, loaded.length);
+        assertTrue(all.length > 0);
+
+        for (i = 0; i < all.length; i++) {
+            expected = all[i];
+            actual = lazy.lookupTransaction(expected.getID());
+
+            assertEquals(expected.getID(), actual.getID());
+            assertEquals(expected.getClass(), actual.getClass());
+            assertEquals(expected.getDate(), actual.getDate());
+            assertEquals(expected.getDescription(), actual.getDescription());
+            assertEquals(expected.getReference(), actual.getReference());
+            assertEquals(expected.getVersion(), actual.getVersion());
+
+            before = eager.listEntries(expected);
+            after = lazy.listEntries(actual);
+            assertEquals(before.length, after.length);
+
+            for (j = 0; j < before.length; j++) {
+                assertEquals(before[j], after[j]);
+                assertEquals(before[j], lazy.lookupEntry(before[j].getID()));
+            }
+        }
+    }
+
+    public final void testSameInstance() {
+        final Transaction t;
+        final Entry[] entries;
+        Entry e;
+
+        t = lazy.lookupTransaction(3);
+        assertSame(t, lazy.lookupTransaction(3));
+        assertSame(eager.lookupTransaction(3), eager.lookupTransaction(3));
+
+        entries = lazy.listEntries(t);
+        assertTrue(entries.length > 0);
+
+        for (Entry each : entries) {
+            e = lazy.lookupEntry(each.getID());
+            assertSame(each, e);
+            assertSame(t, e.getParentTransaction());
+        }
+
+        assertSame(entries[0], lazy.listEntries(t)[0]);
+        assertSame(eager.listEntries(eager.lookupTransaction(3))[0], eager.listEntries(eager
+                .lookupTransaction(3))[0]);
+    }
+
+    /*
+     * A deleted Entry is dropped from memory straight away, so rolling back
+     * has to put it back.
+     */
+    private static void checkDeleteRolledBack(DataStore data, boolean savepoint) {
+        final Transaction t;
+        final Entry[] before;
+        final Entry e;
+
+        t = data.lookupTransaction(3);
+        before = data.listEntries(t);
+        assertEquals(2, before.length);
+        e = before[0];
+
+        data.begin();
+        if (savepoint) {
+            data.savepoint();
+        }
+        data.deleteEntry(e);
+        assertEquals(1, data.listEntries(t).length);
+
+        if (savepoint) {
+            data.rollbackSavepoint();
+            data.commit();
+        } else {
+            data.rollback();
+        }
+
+        assertEquals(2, data.listEntries(t).length);
+        assertSame(e, data.listEntries(t)[0]);
+        assertSame(e, data.lookupEntry(e.getID()));
+    }
+
+    public final void testDeleteRolledBack() {
+        checkDeleteRolledBack(eager, false);
+        checkDeleteRolledBack(eager, true);
+        checkDeleteRolledBack(lazy, false);
+        checkDeleteRolledBack(lazy, true);
+    }
+
+    public final void testLoadingSetting() {
+        try {
+            System.clearProperty("LOADING");
+            assertFalse(DataStore.isLazyLoading());
+
+            System.setProperty("LOADING", "eager");
+            assertFalse(DataStore.isLazyLoading());
+
+            System.setProperty("LOADING", "lazy");
+            assertTrue(DataStore.isLazyLoading());
+
+            System.setProperty("LOADING", "sometimes");
+            try {
+                DataStore.isLazyLoading();
+                fail("Should have complained about the setting");
+            } catch (IllegalArgumentException iae) {
+                // good
+            }
+        } finally {
+            System.clearProperty("LOADING");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Credit;
+import objective.domain.Currency;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * The balances kept in ledger_balances must follow Entries as they are
+ * created, changed, moved to another Ledger, and deleted, and agree with
+ * adding up the entries table from scratch.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateLedgerBalances extends TestCase
+{
+    private String filename;
+
+    private DataStore data;
+
+    public void setUp() {
+        filename = TemporaryBook.create();
+        data = new DataStore(filename);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    private Entry makeEntry(Entry e, Transaction t, long ledgerId, long amount) {
+        final Currency aud;
+
+        aud = data.lookupCurrency("AUD");
+
+        e.setAmount(amount);
+        e.setCurrency(aud);
+        e.setValue(amount);
+        e.setParentLedger(data.lookupLedger(ledgerId));
+        e.setParentTransaction(t);
+
+        return e;
+    }
+
+    private Transaction makeTransaction(String description) {
+        final Transaction result;
+
+        result = new GenericTransaction(0);
+        result.setDate(1293235200L);
+        result.setDescription(description);
+
+        return result;
+    }
+
+    /*
+     * What the balance comes to adding up every Entry against the Ledger,
+     * in the Ledger's natural direction.
+     */
+    private static long sum(Database db, Ledger ledger) {
+        final Statement stmt;
+        final String[] sql;
+        final long result;
+
+        sql = new String[] {
+            "SELECT coalesce(sum(e.value * e.direction), 0) * l.direction",
+            "FROM ledgers l LEFT JOIN entries e ON e.ledger_id = l.ledger_id",
+            "WHERE l.ledger_id = ?",
+            "GROUP BY l.ledger_id"
+        };
+
+        stmt = db.prepare(DataStore.combine(sql));
+        stmt.bindInteger(1, ledger.getID());
+
+        if (stmt.step()) {
+            result = stmt.columnInteger(0);
+        } else {
+            result = 0;
+        }
+
+        stmt.finish();
+
+        return result;
+    }
+
+    private void assertBalances() {
+        final Database db;
+
+        db = new Database(filename);
+
+        for (Ledger ledger : data.listLedgers()) {
+            assertEquals(ledger.toString(), sum(db, ledger), data.lookupBalance(ledger));
+        }
+
+        db.close();
+
+        assertEquals(0, data.verifyBalances().length);
+    }
+
+    public final void testMaintained() {
+        final Transaction meal, flight, existing;
+        final Entry food, cash, fare, owed;
+        final Entry[] entries;
+        final long before;
+
+        assertBalances();
+
+        before = data.lookupBalance(data.lookupLedger(8));
+
+        /*
+         * Post two new Transactions
+         */
+
+        meal = makeTransaction("Lunch");
+        data.createTransaction(meal);
+        food = makeEntry(new Debit(0), meal, 8, 5000);
+        cash = makeEntry(new Credit(0), meal, 1, 5000);
+        data.createEntry(food);
+        data.createEntry(cash);
+
+        flight = makeTransaction("Flight to Melbourne");
+        data.createTransaction(flight);
+        fare = makeEntry(new Debit(0), flight, 7, 30000);
+        owed = makeEntry(new Credit(0), flight, 3, 30000);
+        data.createEntry(fare);
+        data.createEntry(owed);
+
+        assertEquals(before + 5000, data.lookupBalance(data.lookupLedger(8)));
+        assertBalances();
+
+        /*
+         * Change an amount, and move an Entry to another Ledger.
+         */
+
+        food.setAmount(6000);
+        food.setValue(6000);
+        food.setParentLedger(data.lookupLedger(6));
+        data.updateEntry(food);
+        cash.setAmount(6000);
+        cash.setValue(6000);
+        data.updateEntry(cash);
+
+        assertEquals(before, data.lookupBalance(data.lookupLedger(8)));
+        assertBalances();
+
+        existing = data.lookupTransaction(3);
+        entries = data.listEntries(existing);
+        for (Entry e : entries) {
+            e.setAmount(e.getAmount() + 100);
+            e.setValue(e.getValue() + 100);
+            data.updateEntry(e);
+        }
+        assertBalances();
+
+        /*
+         * And delete one Transaction outright.
+         */
+
+        data.deleteEntry(fare);
+        data.deleteEntry(owed);
+        data.deleteTransaction(flight);
+
+        assertBalances();
+    }
+}
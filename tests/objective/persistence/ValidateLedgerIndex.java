@@ -0,0 +1,167 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Exercise the per-Ledger register index and its running balances.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateLedgerIndex extends TestCase
+{
+    public final void testOrdering() {
+        final LedgerIndex index;
+
+        index = new LedgerIndex(0);
+
+        index.insert(1, 200, "B", "Lunch", 10);
+        index.insert(2, 100, "", "Rent", 20);
+        index.insert(3, 200, "A", "Taxi", 30);
+        index.insert(4, 200, "A", "Dinner", 40);
+        index.insert(5, 200, null, null, 50);
+
+        assertEquals(5, index.size());
+
+        assertEquals(2, index.getEntryID(0));
+        assertEquals(5, index.getEntryID(1));
+        assertEquals(4, index.getEntryID(2));
+        assertEquals(3, index.getEntryID(3));
+        assertEquals(1, index.getEntryID(4));
+    }
+
+    public final void testRunningBalance() {
+        final LedgerIndex index;
+
+        index = new LedgerIndex(0);
+
+        index.append(1, 86400, "", "", 100);
+        index.append(2, 86400 * 2, "", "", -30);
+        index.append(3, 86400 * 3, "", "", 5);
+
+        assertEquals(0, index.prefix(0));
+        assertEquals(100, index.prefix(1));
+        assertEquals(70, index.prefix(2));
+        assertEquals(75, index.prefix(3));
+
+        assertEquals(0, index.position(0));
+        assertEquals(1, index.position(86400 * 2));
+        assertEquals(3, index.position(86400 * 4));
+
+        /*
+         * Back dated, so the tree has to be rebuilt
+         */
+
+        index.insert(4, 0, "", "", 1000);
+        assertEquals(1000, index.prefix(1));
+        assertEquals(1075, index.prefix(4));
+
+        assertTrue(index.remove(2, 86400 * 2, "", ""));
+        assertFalse(index.remove(2, 86400 * 2, "", ""));
+        assertEquals(1105, index.prefix(3));
+
+        index.append(5, 86400 * 5, "", "", 1);
+        assertEquals(1106, index.prefix(4));
+    }
+
+    /*
+     * Random inserts and removals, checking every prefix sum against adding
+     * up the rows directly.
+     */
+    public final void testAgainstScan() {
+        final LedgerIndex index;
+        final Random random;
+        final ArrayList<long[]> rows;
+        long[] row;
+        long expected;
+        int i, j, k;
+
+        index = new LedgerIndex(0);
+        random = new Random(7);
+        rows = new ArrayList<long[]>();
+
+        for (k = 1; k <= 1000; k++) {
+            if ((rows.size() > 0) && (random.nextInt(4) == 0)) {
+                row = rows.remove(random.nextInt(rows.size()));
+                assertTrue(index.remove(row[0], row[1], "", ""));
+            } else {
+                row = new long[] {
+                    k,
+                    random.nextInt(100) * 86400L,
+                    random.nextInt(2000) - 1000
+                };
+                rows.add(row);
+                index.insert(row[0], row[1], "", "", row[2]);
+            }
+
+            if (k % 50 != 0) {
+                continue;
+            }
+
+            assertEquals(rows.size(), index.size());
+
+            for (i = 0; i <= index.size(); i += 7) {
+                expected = 0;
+                for (j = 0; j < i; j++) {
+                    expected += index.getValue(j);
+                }
+                assertEquals(expected, index.prefix(i));
+            }
+            for (i = 1; i < index.size(); i++) {
+                assertTrue(index.getDatestamp(i - 1) <= index.getDatestamp(i));
+            }
+        }
+    }
+
+    /*
+     * Only part of the tree is put right by each sum, so ask for sums at
+     * random points between back dated changes and appends.
+     */
+    public final void testPartialRepair() {
+        final LedgerIndex index;
+        final Random random;
+        long expected;
+        int i, j, k;
+
+        index = new LedgerIndex(0);
+        random = new Random(11);
+
+        for (k = 1; k <= 2000; k++) {
+            if ((index.size() > 0) && (random.nextInt(5) == 0)) {
+                i = random.nextInt(index.size());
+                assertTrue(index.remove(index.getEntryID(i), index.getDatestamp(i), "", ""));
+            } else if (random.nextInt(2) == 0) {
+                index.append(k, 1000 * 86400L + k, "", "", random.nextInt(2000) - 1000);
+            } else {
+                index.insert(k, random.nextInt(1000) * 86400L, "", "", random.nextInt(2000) - 1000);
+            }
+
+            i = random.nextInt(index.size() + 1);
+            expected = 0;
+            for (j = 0; j < i; j++) {
+                expected += index.getValue(j);
+            }
+            assertEquals(expected, index.prefix(i));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Account;
+import objective.domain.DebitPositiveLedger;
+import objective.domain.Ledger;
+
+import junit.framework.TestCase;
+
+/**
+ * Find the mock book's Ledgers by title and name, and check the indexes
+ * follow Ledgers and Accounts as they are added, renamed and deleted.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateLedgerNames extends TestCase
+{
+    private DataStore data;
+
+    public void setUp() {
+        data = new DataStore(TemporaryBook.create(), true);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    public final void testTitleAndName() {
+        Ledger[] found;
+
+        found = data.lookupLedgers("GST", "Collected");
+        assertEquals(1, found.length);
+        assertSame(data.lookupLedger(13), found[0]);
+
+        found = data.lookupLedgers("Trade Creditors", "Internode");
+        assertEquals(1, found.length);
+        assertEquals(3, found[0].getID());
+
+        assertEquals(0, data.lookupLedgers("GST", "collected").length);
+        assertEquals(0, data.lookupLedgers("Collected", "GST").length);
+        assertEquals(0, data.lookupLedgers(null, null).length);
+    }
+
+    public final void testName() {
+        Ledger[] found;
+
+        found = data.lookupLedgers("Andrew Cowie");
+        assertEquals(2, found.length);
+        assertEquals(11, found[0].getID());
+        assertEquals(18, found[1].getID());
+
+        found = data.lookupLedgers("Meals");
+        assertEquals(1, found.length);
+        assertEquals(8, found[0].getID());
+
+        assertEquals(0, data.lookupLedgers("Travel Expenses").length);
+    }
+
+    public final void testTitle() {
+        Account[] found;
+
+        found = data.lookupAccounts("Fees");
+        assertEquals(1, found.length);
+        assertSame(data.lookupAccount(8), found[0]);
+
+        found = data.lookupAccounts("Trade Creditors");
+        assertEquals(1, found.length);
+        assertEquals(3, found[0].getID());
+
+        assertEquals(0, data.lookupAccounts("fees").length);
+        assertEquals(0, data.lookupAccounts("Meals").length);
+    }
+
+    /*
+     * Renaming a Ledger files it again, but it keeps its place among others
+     * of the same name.
+     */
+    public final void testOrderAfterRename() {
+        final Ledger first;
+        final Ledger[] found;
+
+        first = data.lookupLedger(11);
+        first.setName("Cowie");
+        data.updateLedger(first);
+        first.setName("Andrew Cowie");
+        data.updateLedger(first);
+
+        found = data.lookupLedgers("Andrew Cowie");
+        assertEquals(2, found.length);
+        assertSame(first, found[0]);
+        assertEquals(18, found[1].getID());
+    }
+
+    public final void testPrefix() {
+        Ledger[] found;
+
+        found = data.completeLedgers("office");
+        assertEquals(2, found.length);
+        assertEquals(20, found[0].getID());
+        assertEquals(21, found[1].getID());
+
+        found = data.completeLedgers("FEE");
+        assertEquals(2, found.length);
+
+        found = data.completeLedgers("trav");
+        assertEquals(3, found.length);
+
+        assertEquals(20, data.completeLedgers("").length);
+        assertEquals(0, data.completeLedgers("zz").length);
+    }
+
+    public final void testFollowsChanges() {
+        final Ledger meals, extra;
+        final Account travel;
+
+        meals = data.lookupLedger(8);
+        meals.setName("Food");
+        data.updateLedger(meals);
+
+        assertEquals(0, data.lookupLedgers("Travel Expenses", "Meals").length);
+        assertSame(meals, data.lookupLedgers("Travel Expenses", "Food")[0]);
+        assertSame(meals, data.completeLedgers("foo")[0]);
+        assertEquals(0, data.completeLedgers("mea").length);
+
+        travel = meals.getParentAccount();
+        travel.setTitle("Trips");
+        data.updateAccount(travel);
+
+        assertEquals(0, data.lookupLedgers("Travel Expenses", "Food").length);
+        assertSame(meals, data.lookupLedgers("Trips", "Food")[0]);
+        assertEquals(3, data.completeLedgers("trip").length);
+        assertEquals(0, data.lookupAccounts("Travel Expenses").length);
+        assertSame(travel, data.lookupAccounts("Trips")[0]);
+
+        extra = new DebitPositiveLedger("Accommodation");
+        extra.setParentAccount(travel);
+        data.createLedger(extra);
+
+        assertTrue(extra.getID() != 0);
+        assertSame(extra, data.lookupLedgers("Trips", "Accommodation")[0]);
+        assertSame(extra, data.lookupLedger(extra.getID()));
+        assertEquals(4, data.completeLedgers("trip").length);
+
+        data.deleteLedger(extra);
+
+        assertEquals(0, data.lookupLedgers("Accommodation").length);
+        assertEquals(3, data.completeLedgers("trip").length);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * A book made from schema/create.ddl is at version 0 of the schema; opening
+ * it must bring it up to the latest version, and opening it again must
+ * change nothing.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateMigrations extends TestCase
+{
+    private String filename;
+
+    public void setUp() {
+        filename = TemporaryBook.create();
+    }
+
+    private long query(String sql) {
+        final Database db;
+        final Statement stmt;
+        final long result;
+
+        db = new Database(filename);
+        stmt = db.prepare(sql);
+        if (!stmt.step()) {
+            throw new AssertionError();
+        }
+        result = stmt.columnInteger(0);
+        stmt.finish();
+        db.close();
+
+        return result;
+    }
+
+    private String dump(String sql) {
+        final Database db;
+        final Statement stmt;
+        final StringBuilder buf;
+
+        db = new Database(filename);
+        stmt = db.prepare(sql);
+
+        buf = new StringBuilder();
+        while (stmt.step()) {
+            buf.append(stmt.columnText(0));
+            buf.append('\n');
+        }
+
+        stmt.finish();
+        db.close();
+
+        return buf.toString();
+    }
+
+    private boolean exists(String name) {
+        return query("SELECT count(*) FROM sqlite_master WHERE name = '" + name + "'") == 1;
+    }
+
+    private static void open(String filename) {
+        final DataStore data;
+
+        data = new DataStore(filename);
+        data.close();
+    }
+
+    public final void testUpgrade() {
+        final int latest;
+
+        assertFalse(exists("schema_version"));
+        assertFalse(exists("ledger_balances"));
+        assertFalse(exists("change_log"));
+
+        open(filename);
+
+        latest = Migrations.latest();
+        assertEquals(latest, query("SELECT max(version) FROM schema_version"));
+        assertEquals(latest, query("SELECT count(*) FROM schema_version"));
+
+        assertTrue(exists("ledger_balances"));
+        assertTrue(exists("entries_ledger"));
+        assertTrue(exists("closed_periods"));
+        assertTrue(exists("archives"));
+        assertTrue(exists("search_ledgers"));
+        assertTrue(exists("change_log"));
+
+        assertEquals(query("SELECT count(DISTINCT ledger_id) FROM entries"),
+                query("SELECT count(*) FROM ledger_balances"));
+        assertEquals(query("SELECT count(*) FROM ledgers"), query("SELECT count(*) FROM search_ledgers"));
+        assertEquals(query("SELECT count(*) FROM transactions"),
+                query("SELECT count(*) FROM transactions WHERE version = 1"));
+    }
+
+    public final void testIdempotent() {
+        final String versions, schema, balances;
+        final long ledgers;
+
+        open(filename);
+
+        versions = dump("SELECT version || ' ' || applied FROM schema_version ORDER BY version");
+        schema = dump("SELECT type || ' ' || name FROM sqlite_master ORDER BY name");
+        balances = dump("SELECT ledger_id || ' ' || amount || ' ' || value FROM ledger_balances ORDER BY ledger_id");
+        ledgers = query("SELECT count(*) FROM search_ledgers");
+
+        open(filename);
+
+        assertEquals(versions, dump("SELECT version || ' ' || applied FROM schema_version ORDER BY version"));
+        assertEquals(schema, dump("SELECT type || ' ' || name FROM sqlite_master ORDER BY name"));
+        assertEquals(balances,
+                dump("SELECT ledger_id || ' ' || amount || ' ' || value FROM ledger_balances ORDER BY ledger_id"));
+        assertEquals(ledgers, query("SELECT count(*) FROM search_ledgers"));
+    }
+}
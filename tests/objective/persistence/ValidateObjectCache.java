@@ -0,0 +1,183 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import junit.framework.TestCase;
+
+/**
+ * Exercise the bounded cache a lazy DataStore keeps Transactions and
+ * Entries in.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateObjectCache extends TestCase
+{
+    /*
+     * Every String costs 100 bytes all told, so the budget is in units of
+     * objects.
+     */
+    private static ObjectCache<String> create(int objects) {
+        return new ObjectCache<String>(objects * 100) {
+            long sizeOf(String str) {
+                return 100 - 80;
+            }
+        };
+    }
+
+    public final void testLeastRecentlyUsedGoes() {
+        final ObjectCache<String> cache;
+
+        cache = create(3);
+
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+        assertEquals(3, cache.getSize());
+        assertEquals(300, cache.getBytes());
+
+        assertEquals("one", cache.get(1));
+
+        cache.put(4, "four");
+        assertEquals(3, cache.getSize());
+        assertNull(cache.get(2));
+        assertEquals("one", cache.get(1));
+        assertEquals("three", cache.get(3));
+        assertEquals("four", cache.get(4));
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.getMisses());
+        assertEquals(4, cache.getHits());
+    }
+
+    public final void testPinnedStays() {
+        final ObjectCache<String> cache;
+
+        cache = create(2);
+
+        cache.put(1, "one");
+        cache.pin(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+        cache.put(4, "four");
+
+        assertEquals("one", cache.get(1));
+        assertNull(cache.get(2));
+        assertNull(cache.get(3));
+        assertTrue(cache.isPinned(1));
+
+        cache.unpin(1);
+        assertFalse(cache.isPinned(1));
+
+        cache.put(5, "five");
+        cache.put(6, "six");
+        assertNull(cache.get(1));
+
+        try {
+            cache.unpin(5);
+            fail("Should have complained about unpinning something not pinned");
+        } catch (IllegalStateException ise) {
+            // good
+        }
+    }
+
+    public final void testPinPutsIn() {
+        final ObjectCache<String> cache;
+
+        cache = create(2);
+
+        cache.pin(7, "seven");
+        assertEquals("seven", cache.get(7));
+
+        cache.pin(7, "other");
+        assertEquals("seven", cache.get(7));
+        cache.unpin(7);
+        assertTrue(cache.isPinned(7));
+        cache.unpin(7);
+        assertFalse(cache.isPinned(7));
+    }
+
+    public final void testShrinkingBudget() {
+        final ObjectCache<String> cache;
+        int i;
+
+        cache = create(100);
+
+        for (i = 1; i <= 100; i++) {
+            cache.put(i, "" + i);
+        }
+        assertEquals(100, cache.getSize());
+        assertEquals(0, cache.getEvictions());
+
+        cache.setBudget(1000);
+        assertEquals(10, cache.getSize());
+        assertEquals(90, cache.getEvictions());
+        assertEquals("100", cache.get(100));
+        assertNull(cache.get(90));
+
+        cache.remove(100);
+        assertEquals(9, cache.getSize());
+        assertEquals(900, cache.getBytes());
+    }
+
+    /*
+     * Odd numbers can't be evicted. They are passed over rather than
+     * holding up everything behind them, and the cache stays over budget
+     * once there is nothing else left to go.
+     */
+    public final void testUnevictablePassedOver() {
+        final ObjectCache<String> cache;
+        int i;
+
+        cache = new ObjectCache<String>(300) {
+            long sizeOf(String str) {
+                return 100 - 80;
+            }
+
+            boolean isEvictable(String str) {
+                return Integer.parseInt(str) % 2 == 0;
+            }
+        };
+
+        for (i = 1; i <= 4; i++) {
+            cache.put(i, "" + i);
+        }
+        assertEquals(3, cache.getSize());
+        assertEquals("1", cache.get(1));
+        assertNull(cache.get(2));
+
+        cache.put(5, "5");
+        cache.put(7, "7");
+        assertEquals(4, cache.getSize());
+        assertEquals(400, cache.getBytes());
+        assertNull(cache.get(4));
+        assertEquals(2, cache.getEvictions());
+
+        cache.put(6, "6");
+        assertEquals(4, cache.getSize());
+        assertNull(cache.get(6));
+        assertEquals(3, cache.getEvictions());
+
+        cache.pin(8, "8");
+        assertEquals(5, cache.getSize());
+        assertEquals(5, cache.ids().length);
+        cache.unpin(8);
+        assertEquals(4, cache.getSize());
+        assertNull(cache.get(8));
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Entry;
+import objective.domain.Transaction;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Two DataStores open on the same book, as two programs would be. Each has
+ * to notice what the other has written, and refuse to write over it.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateOptimisticConcurrency extends TestCase
+{
+    private String filename;
+
+    private DataStore one;
+
+    private DataStore two;
+
+    public void setUp() {
+        filename = TemporaryBook.create();
+    }
+
+    public void tearDown() {
+        if (one != null) {
+            one.close();
+            one = null;
+        }
+        if (two != null) {
+            two.close();
+            two = null;
+        }
+    }
+
+    private static void describe(DataStore data, Transaction t, String description) {
+        t.setDescription(description);
+
+        data.begin();
+        data.updateTransaction(t);
+        data.commit();
+    }
+
+    public final void testSuccessiveUpdates() {
+        final Transaction t;
+        final DataStore again;
+
+        one = new DataStore(filename, true);
+
+        t = one.lookupTransaction(3);
+        assertEquals(1, t.getVersion());
+
+        describe(one, t, "Calling card");
+        assertEquals(2, t.getVersion());
+        describe(one, t, "Phone card, again");
+        assertEquals(3, t.getVersion());
+
+        again = new DataStore(filename, true);
+        assertEquals(3, again.lookupTransaction(3).getVersion());
+        assertEquals("Phone card, again", again.lookupTransaction(3).getDescription());
+        again.close();
+    }
+
+    public final void testConflictWhileEditing() {
+        final Transaction first, second;
+
+        one = new DataStore(filename, true);
+        two = new DataStore(filename, true);
+
+        first = one.lookupTransaction(3);
+        second = two.lookupTransaction(3);
+        assertTrue(first != second);
+
+        one.pin(first);
+        first.setDescription("Ours");
+
+        describe(two, second, "Theirs");
+
+        one.begin();
+        try {
+            one.updateTransaction(first);
+            fail("Should have refused to write over the other change");
+        } catch (ConflictException ce) {
+            assertSame(first, ce.getObject());
+            one.rollback();
+        }
+
+        assertEquals("Ours", first.getDescription());
+        one.unpin(first);
+
+        /*
+         * Once no longer being edited it catches up.
+         */
+
+        assertSame(first, one.lookupTransaction(3));
+        assertEquals("Theirs", first.getDescription());
+        assertEquals(2, first.getVersion());
+
+        describe(one, first, "Ours after all");
+        assertEquals(3, first.getVersion());
+    }
+
+    public final void testRefreshInPlace() {
+        final Transaction first, second;
+        final ChangeSet[] seen;
+
+        one = new DataStore(filename, false);
+        two = new DataStore(filename, false);
+
+        seen = new ChangeSet[1];
+        one.connect(new DataStore.Changed() {
+            public void onChanged(DataStore source, ChangeSet changes) {
+                seen[0] = changes;
+            }
+        });
+
+        first = one.lookupTransaction(4);
+        second = two.lookupTransaction(4);
+
+        describe(two, second, "Flight to Sydney");
+
+        /*
+         * Looking up by ID doesn't catch up by itself.
+         */
+
+        assertEquals("Flight to SFO", one.lookupTransaction(4).getDescription());
+        one.refresh();
+
+        assertSame(first, one.lookupTransaction(4));
+        assertEquals("Flight to Sydney", first.getDescription());
+        assertEquals(2, first.getVersion());
+
+        assertNotNull(seen[0]);
+        assertEquals(1, seen[0].getUpdatedTransactions().length);
+        assertSame(first, seen[0].getUpdatedTransactions()[0]);
+
+        assertEquals(1, one.search("sydney", 10).length);
+    }
+
+    public final void testEntryRefresh() {
+        final Entry[] first, second;
+        final Entry e;
+
+        one = new DataStore(filename, false);
+        two = new DataStore(filename, false);
+
+        first = one.listEntries(one.lookupTransaction(3));
+        second = two.listEntries(two.lookupTransaction(3));
+
+        e = second[0];
+        e.setAmount(e.getAmount() + 100);
+        e.setValue(e.getValue() + 100);
+
+        two.begin();
+        two.updateEntry(e);
+        two.commit();
+
+        one.refresh();
+        assertSame(first[0], one.lookupEntry(e.getID()));
+        assertEquals(e.getAmount(), first[0].getAmount());
+        assertEquals(e.getValue(), first[0].getValue());
+        assertEquals(2, first[0].getVersion());
+    }
+
+    public final void testStaleDelete() {
+        final Entry[] first, second;
+
+        one = new DataStore(filename, true);
+        two = new DataStore(filename, true);
+
+        first = one.listEntries(one.lookupTransaction(5));
+        one.pin(first[0].getParentTransaction());
+
+        second = two.listEntries(two.lookupTransaction(5));
+        second[0].setAmount(second[0].getAmount() + 1);
+        two.begin();
+        two.updateEntry(second[0]);
+        two.commit();
+
+        one.begin();
+        try {
+            one.deleteEntry(first[0]);
+            fail("Should have refused to delete a changed Entry");
+        } catch (ConflictException ce) {
+            one.rollback();
+        }
+
+        assertEquals(2, two.lookupEntry(second[0].getID()).getVersion());
+    }
+
+    /*
+     * As another program pruning change_log would.
+     */
+    private void prune() {
+        final Database db;
+        final Statement stmt;
+
+        db = new Database(filename);
+        stmt = db.prepare("DELETE FROM change_log");
+        stmt.step();
+        stmt.finish();
+        db.close();
+    }
+
+    /*
+     * The changes one needed were pruned from the log before it got to
+     * them, but there were later ones after the gap.
+     */
+    public final void testPrunedLog() {
+        final Transaction first, second;
+        final Entry[] entries;
+
+        one = new DataStore(filename, true);
+        two = new DataStore(filename, true);
+
+        first = one.lookupTransaction(3);
+        second = two.lookupTransaction(3);
+        entries = one.listEntries(first);
+
+        describe(two, second, "Changed, then forgotten");
+        prune();
+        describe(two, two.lookupTransaction(4), "Changed after");
+
+        one.refresh();
+
+        assertSame(first, one.lookupTransaction(3));
+        assertEquals("Changed, then forgotten", first.getDescription());
+        assertEquals(2, first.getVersion());
+        assertEquals("Changed after", one.lookupTransaction(4).getDescription());
+        assertSame(entries[0], one.lookupEntry(entries[0].getID()));
+
+        describe(one, first, "Ours");
+        assertEquals(3, first.getVersion());
+    }
+
+    /*
+     * And with nothing left in the log at all, including deletions.
+     */
+    public final void testPrunedDeletes() {
+        final Transaction first, gone;
+        final Entry[] entries;
+        final int count;
+        final ChangeSet[] seen;
+
+        one = new DataStore(filename, false);
+        two = new DataStore(filename, false);
+
+        seen = new ChangeSet[1];
+        one.connect(new DataStore.Changed() {
+            public void onChanged(DataStore source, ChangeSet changes) {
+                seen[0] = changes;
+            }
+        });
+
+        count = one.listTransactions().length;
+        first = one.lookupTransaction(3);
+        gone = one.lookupTransaction(6);
+
+        describe(two, two.lookupTransaction(3), "Changed, then forgotten");
+
+        entries = two.listEntries(two.lookupTransaction(6));
+        two.begin();
+        for (Entry e : entries) {
+            two.deleteEntry(e);
+        }
+        two.deleteTransaction(two.lookupTransaction(6));
+        two.commit();
+
+        prune();
+
+        one.refresh();
+
+        assertEquals("Changed, then forgotten", first.getDescription());
+        assertEquals(count - 1, one.listTransactions().length);
+
+        assertNotNull(seen[0]);
+        assertEquals(1, seen[0].getDeletedTransactions().length);
+        assertSame(gone, seen[0].getDeletedTransactions()[0]);
+        assertEquals(entries.length, seen[0].getDeletedEntries().length);
+        assertEquals(1, seen[0].getUpdatedTransactions().length);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.File;
+
+import objective.domain.Credit;
+import objective.domain.Currency;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Transaction;
+
+import junit.framework.TestCase;
+
+/**
+ * Loading a book over several connections at once must give the same
+ * Transactions and Entries, linked up the same way, as loading it serially.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateParallelLoading extends TestCase
+{
+    private String filename;
+
+    /*
+     * Add enough to the mock book that the entries table is split into
+     * ranges with something in each, with gaps left by deleted rows and
+     * some rows at a version other than 1.
+     */
+    public void setUp() {
+        final DataStore data;
+        final Currency aud;
+        Transaction t;
+        Entry debit, credit;
+        int i;
+
+        filename = TemporaryBook.create();
+        data = new DataStore(filename, true);
+        aud = data.lookupCurrency("AUD");
+
+        data.begin();
+        for (i = 0; i < 500; i++) {
+            t = new GenericTransaction(0);
+            t.setDate(1293235200L + (i % 50) * 86400L);
+            t.setDescription("Transaction " + i);
+            data.createTransaction(t);
+
+            debit = new Debit(0);
+            debit.setAmount(100 + i);
+            debit.setCurrency(aud);
+            debit.setValue(100 + i);
+            debit.setParentLedger(data.lookupLedger(8));
+            debit.setParentTransaction(t);
+            data.createEntry(debit);
+
+            credit = new Credit(0);
+            credit.setAmount(100 + i);
+            credit.setCurrency(aud);
+            credit.setValue(100 + i);
+            credit.setParentLedger(data.lookupLedger(1));
+            credit.setParentTransaction(t);
+            data.createEntry(credit);
+
+            if (i % 7 == 0) {
+                data.deleteEntry(debit);
+                data.deleteEntry(credit);
+                data.deleteTransaction(t);
+            } else if (i % 11 == 0) {
+                debit.setParentLedger(data.lookupLedger(7));
+                data.updateEntry(debit);
+            }
+        }
+        data.commit();
+
+        data.close();
+    }
+
+    private static void assertAgree(DataStore expected, DataStore actual) {
+        final Transaction[] all;
+        Transaction u;
+        Entry[] before, after;
+        int i;
+
+        all = expected.listTransactions();
+        assertEquals(all.length, actual.listTransactions().length);
+        assertEquals(expected.count("entries"), actual.count("entries"));
+
+        for (Transaction t : all) {
+            u = actual.lookupTransaction(t.getID());
+
+            assertEquals(t.getClass(), u.getClass());
+            assertEquals(t.getDate(), u.getDate());
+            assertEquals(t.getDescription(), u.getDescription());
+            assertEquals(t.getVersion(), u.getVersion());
+
+            before = expected.listEntries(t);
+            after = actual.listEntries(u);
+            assertEquals(before.length, after.length);
+
+            for (i = 0; i < before.length; i++) {
+                assertEquals(before[i].getID(), after[i].getID());
+                assertEquals(before[i].getClass(), after[i].getClass());
+                assertEquals(before[i].getAmount(), after[i].getAmount());
+                assertEquals(before[i].getValue(), after[i].getValue());
+                assertEquals(before[i].getCurrency().getCode(), after[i].getCurrency().getCode());
+                assertEquals(before[i].getParentLedger().getID(), after[i].getParentLedger().getID());
+                assertEquals(before[i].getVersion(), after[i].getVersion());
+
+                assertSame(u, after[i].getParentTransaction());
+                assertSame(after[i], actual.lookupEntry(after[i].getID()));
+            }
+        }
+    }
+
+    /*
+     * Each parallel load leaves a snapshot behind as it is closed, which
+     * has to be removed or the next one would load from that instead.
+     */
+    public final void testSameAsSerial() {
+        final DataStore serial;
+        final int[] threads;
+        DataStore parallel;
+        int i;
+
+        serial = new DataStore(filename, false, 1);
+        assertFalse(serial.isFromSnapshot());
+
+        threads = new int[] {
+            2,
+            3,
+            8
+        };
+
+        for (i = 0; i < threads.length; i++) {
+            parallel = new DataStore(filename, false, threads[i]);
+            assertFalse(parallel.isFromSnapshot());
+            assertAgree(serial, parallel);
+            parallel.close();
+
+            new File(filename + ".snapshot").delete();
+        }
+
+        serial.close();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Credit;
+import objective.domain.Currency;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+import objective.services.TransactionOperations;
+
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Close periods in the mock book and check that balances worked out from the
+ * checkpoints agree with summing everything, including after a back-dated
+ * posting has invalidated some of them.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidatePeriodCheckpoints extends TestCase
+{
+    /**
+     * 1 January 2004
+     */
+    private static final long YEAR = 1072915200L;
+
+    /**
+     * 1 July 2004
+     */
+    private static final long HALF = 1088640000L;
+
+    private DataStore data;
+
+    public void setUp() {
+        data = new DataStore(TemporaryBook.create(), true);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    private int countCheckpoints(Ledger ledger) {
+        final Statement stmt;
+        final int result;
+
+        stmt = data.prepare("SELECT count() FROM period_checkpoints WHERE ledger_id = ?");
+        stmt.bindInteger(1, ledger.getID());
+        stmt.step();
+        result = (int) stmt.columnInteger(0);
+        data.finish(stmt);
+
+        return result;
+    }
+
+    private void assertBalances() {
+        final long[] dates;
+
+        dates = new long[] {
+            YEAR - 86400, YEAR, HALF - 86400, HALF, HALF + 30 * 86400, 1293840000L
+        };
+
+        for (Ledger ledger : data.listLedgers()) {
+            for (long date : dates) {
+                assertEquals(data.sumLedger(ledger, Long.MIN_VALUE, date + 86399),
+                        data.lookupBalance(ledger, date));
+            }
+        }
+    }
+
+    public final void testClosedPeriods() {
+        final Ledger[] ledgers;
+
+        assertBalances();
+        assertEquals(0, data.count("period_checkpoints"));
+
+        data.closePeriod(YEAR);
+        data.closePeriod(HALF);
+
+        ledgers = data.listLedgers();
+        assertEquals(2, data.count("closed_periods"));
+        assertEquals(2 * ledgers.length, data.count("period_checkpoints"));
+
+        assertBalances();
+    }
+
+    public final void testBackdatedPosting() {
+        final Ledger l1, l2;
+        final Currency aud;
+        final Transaction t;
+        final Entry e1, e2;
+
+        data.closePeriod(YEAR);
+        data.closePeriod(HALF);
+
+        l1 = data.lookupLedger(1);
+        l2 = data.lookupLedger(3);
+        aud = data.lookupCurrency("AUD");
+
+        assertEquals(2, countCheckpoints(l1));
+
+        t = new GenericTransaction(0);
+        t.setDate(1064966400L);
+        t.setDescription("Back-dated");
+
+        e1 = new Debit(0);
+        e1.setAmount(12345);
+        e1.setCurrency(aud);
+        e1.setValue(12345);
+        e1.setParentLedger(l1);
+        e1.setParentTransaction(t);
+
+        e2 = new Credit(0);
+        e2.setAmount(12345);
+        e2.setCurrency(aud);
+        e2.setValue(12345);
+        e2.setParentLedger(l2);
+        e2.setParentTransaction(t);
+
+        new TransactionOperations(data).postTransaction(t, e1, e2);
+
+        assertEquals(0, countCheckpoints(l1));
+        assertEquals(0, countCheckpoints(l2));
+        assertEquals(2, countCheckpoints(data.lookupLedger(16)));
+
+        /*
+         * Asking for balances after the closings puts them back.
+         */
+
+        assertBalances();
+
+        assertEquals(2, countCheckpoints(l1));
+        assertEquals(2, countCheckpoints(l2));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Account;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+
+import junit.framework.TestCase;
+
+/**
+ * Search the mock book's Transactions and Ledgers by the words in them, and
+ * check the search indexes keep up with changes.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateSearch extends TestCase
+{
+    private DataStore data;
+
+    public void setUp() {
+        data = new DataStore(TemporaryBook.create(), true);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    public final void testQueryText() {
+        assertNull(DataStore.toSearch(null, true));
+        assertNull(DataStore.toSearch("   ", true));
+        assertEquals("\"phone\"", DataStore.toSearch("phone", false));
+        assertEquals("\"phone\" \"card\"*", DataStore.toSearch(" phone  card ", true));
+        assertEquals("\"\"\"x\"\"\"", DataStore.toSearch("\"x\"", false));
+    }
+
+    public final void testSearchTransactions() {
+        Transaction[] found;
+
+        found = data.search("automation", 10);
+        assertEquals(1, found.length);
+        assertEquals(1, found[0].getID());
+        assertSame(data.lookupTransaction(1), found[0]);
+
+        found = data.search("Auto", 10);
+        assertEquals(1, found.length);
+
+        found = data.search("1033", 10);
+        assertEquals(2, found.length);
+
+        found = data.search("1033", 1);
+        assertEquals(1, found.length);
+
+        found = data.search("flight SFO", 10);
+        assertEquals(1, found.length);
+        assertEquals(4, found[0].getID());
+
+        assertEquals(0, data.search("flight chair", 10).length);
+        assertEquals(0, data.search("", 10).length);
+        assertEquals(0, data.search("\"NEAR(*", 10).length);
+    }
+
+    public final void testFollowsUpdates() {
+        final Transaction t;
+
+        assertEquals(1, data.search("phone", 10).length);
+
+        t = data.lookupTransaction(3);
+        t.setDescription("Calling card");
+
+        data.begin();
+        data.updateTransaction(t);
+        data.commit();
+
+        assertEquals(0, data.search("phone", 10).length);
+        assertEquals(1, data.search("calling", 10).length);
+        assertSame(t, data.search("calling", 10)[0]);
+    }
+
+    public final void testSearchLedgers() {
+        final Ledger internode;
+        final Account account;
+        Ledger[] found;
+
+        internode = data.lookupLedger(3);
+
+        found = data.searchLedgers("intern", 10);
+        assertTrue(found.length > 0);
+        assertSame(internode, found[0]);
+
+        account = internode.getParentAccount();
+        account.setTitle("Zanzibar Telecom");
+
+        data.begin();
+        data.updateAccount(account);
+        data.commit();
+
+        found = data.searchLedgers("zanzibar", 10);
+        assertTrue(found.length > 0);
+        for (Ledger ledger : found) {
+            assertSame(account, ledger.getParentAccount());
+        }
+    }
+}
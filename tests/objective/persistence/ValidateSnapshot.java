@@ -0,0 +1,168 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import java.io.File;
+
+import objective.domain.Entry;
+import objective.domain.Transaction;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * A book opened with everything loaded leaves a snapshot behind when it is
+ * closed. Opening it again must rebuild the same objects from that, unless
+ * the book has changed since, in which case they come from the database.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateSnapshot extends TestCase
+{
+    private String filename;
+
+    public void setUp() {
+        filename = TemporaryBook.create();
+    }
+
+    private void execute(String sql) {
+        final Database db;
+        final Statement stmt;
+
+        db = new Database(filename);
+        stmt = db.prepare(sql);
+        stmt.step();
+        stmt.finish();
+        db.close();
+    }
+
+    private static void assertAgree(DataStore expected, DataStore actual) {
+        final Transaction[] all;
+        Transaction t, u;
+        Entry[] before, after;
+        int i;
+
+        assertEquals(expected.listLedgers().length, actual.listLedgers().length);
+
+        all = expected.listTransactions();
+        assertEquals(all.length, actual.listTransactions().length);
+
+        for (Transaction each : all) {
+            t = each;
+            u = actual.lookupTransaction(t.getID());
+
+            assertEquals(t.getClass(), u.getClass());
+            assertEquals(t.getDate(), u.getDate());
+            assertEquals(t.getDescription(), u.getDescription());
+            assertEquals(t.getReference(), u.getReference());
+            assertEquals(t.getVersion(), u.getVersion());
+
+            before = expected.listEntries(t);
+            after = actual.listEntries(u);
+            assertEquals(before.length, after.length);
+
+            for (i = 0; i < before.length; i++) {
+                assertEquals(before[i].getID(), after[i].getID());
+                assertEquals(before[i].getClass(), after[i].getClass());
+                assertEquals(before[i].getAmount(), after[i].getAmount());
+                assertEquals(before[i].getValue(), after[i].getValue());
+                assertEquals(before[i].getParentLedger().getID(), after[i].getParentLedger().getID());
+                assertEquals(before[i].getVersion(), after[i].getVersion());
+            }
+        }
+    }
+
+    public final void testRoundTrip() {
+        DataStore data;
+        final DataStore lazy;
+
+        data = new DataStore(filename);
+        assertFalse(data.isFromSnapshot());
+        data.close();
+
+        assertTrue(new File(filename + ".snapshot").exists());
+
+        data = new DataStore(filename);
+        assertTrue(data.isFromSnapshot());
+
+        lazy = new DataStore(filename, true);
+        assertAgree(lazy, data);
+
+        lazy.close();
+        data.close();
+
+        /*
+         * Nothing changed, so the snapshot is still good.
+         */
+
+        data = new DataStore(filename);
+        assertTrue(data.isFromSnapshot());
+        data.close();
+    }
+
+    public final void testStale() throws InterruptedException {
+        DataStore data;
+
+        data = new DataStore(filename);
+        data.close();
+
+        /*
+         * Make sure the modification time moves on.
+         */
+
+        Thread.sleep(20);
+        execute("UPDATE transactions SET description = 'Changed elsewhere' WHERE transaction_id = 3");
+
+        data = new DataStore(filename);
+        assertFalse(data.isFromSnapshot());
+        assertEquals("Changed elsewhere", data.lookupTransaction(3).getDescription());
+        data.close();
+
+        data = new DataStore(filename);
+        assertTrue(data.isFromSnapshot());
+        assertEquals("Changed elsewhere", data.lookupTransaction(3).getDescription());
+        data.close();
+    }
+
+    /*
+     * Old change_log entries are dropped as the book is closed, so there's
+     * nothing left to write to it when it's next opened; doing that would
+     * make the snapshot look stale.
+     */
+    public final void testOldChanges() {
+        DataStore data;
+        final Transaction t;
+
+        data = new DataStore(filename);
+        t = data.lookupTransaction(3);
+        t.setDescription("Phone card, updated");
+        data.updateTransaction(t);
+
+        execute("UPDATE change_log SET changed = 0");
+        data.close();
+
+        data = new DataStore(filename);
+        assertTrue(data.isFromSnapshot());
+        assertEquals("Phone card, updated", data.lookupTransaction(3).getDescription());
+        assertEquals(2, data.lookupTransaction(3).getVersion());
+        data.close();
+    }
+}
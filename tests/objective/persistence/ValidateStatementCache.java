@@ -0,0 +1,132 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import com.operationaldynamics.sqlite.Database;
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Statements handed back to a StatementCache are reset and handed out again
+ * for the same SQL, and the hits and misses are counted as such.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateStatementCache extends TestCase
+{
+    private static final String SQL = "SELECT name FROM ledgers WHERE ledger_id = ?";
+
+    private Database db;
+
+    private StatementCache statements;
+
+    public void setUp() {
+        db = new Database(TemporaryBook.create());
+        statements = new StatementCache(db);
+    }
+
+    public void tearDown() {
+        statements.close();
+        db.close();
+    }
+
+    public final void testReuse() {
+        final Statement first, second, other;
+
+        first = statements.prepare(SQL);
+        assertEquals(0, statements.getHits());
+        assertEquals(1, statements.getMisses());
+
+        first.bindInteger(1, 8);
+        assertTrue(first.step());
+        assertEquals("Meals", first.columnText(0));
+        statements.finish(first);
+
+        second = statements.prepare(SQL);
+        assertSame(first, second);
+        assertEquals(1, statements.getHits());
+        assertEquals(1, statements.getMisses());
+
+        /*
+         * It was reset, so it can be bound and stepped from the start again.
+         */
+
+        second.bindInteger(1, 3);
+        assertTrue(second.step());
+        assertEquals("Internode", second.columnText(0));
+        assertFalse(second.step());
+        statements.finish(second);
+
+        other = statements.prepare("SELECT count(*) FROM ledgers");
+        assertTrue(other != first);
+        assertEquals(1, statements.getHits());
+        assertEquals(2, statements.getMisses());
+        statements.finish(other);
+    }
+
+    /*
+     * The same SQL asked for again while the first is still being stepped
+     * gets a Statement of its own; both are kept for reuse afterwards.
+     */
+    public final void testInUse() {
+        final Statement outer, inner, again;
+
+        outer = statements.prepare(SQL);
+        inner = statements.prepare(SQL);
+        assertTrue(outer != inner);
+        assertEquals(0, statements.getHits());
+        assertEquals(2, statements.getMisses());
+
+        outer.bindInteger(1, 8);
+        assertTrue(outer.step());
+        inner.bindInteger(1, 3);
+        assertTrue(inner.step());
+        assertEquals("Meals", outer.columnText(0));
+        assertEquals("Internode", inner.columnText(0));
+
+        statements.finish(inner);
+        statements.finish(outer);
+
+        again = statements.prepare(SQL);
+        assertTrue((again == outer) || (again == inner));
+        statements.prepare(SQL);
+        assertEquals(2, statements.getHits());
+        assertEquals(2, statements.getMisses());
+
+        statements.prepare(SQL);
+        assertEquals(2, statements.getHits());
+        assertEquals(3, statements.getMisses());
+    }
+
+    public final void testForeignStatement() {
+        final Statement stmt;
+
+        stmt = db.prepare(SQL);
+
+        try {
+            statements.finish(stmt);
+            fail("Should have refused a Statement it didn't prepare");
+        } catch (IllegalStateException ise) {
+            // good
+        }
+
+        stmt.finish();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Transaction;
+
+import junit.framework.TestCase;
+
+/**
+ * Page through the Transactions of the mock book and make sure each comes
+ * up once, in order.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateTransactionPaging extends TestCase
+{
+    private DataStore data;
+
+    public void setUp() {
+        data = new DataStore(TemporaryBook.create(), true);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    private static boolean before(Transaction a, Transaction b) {
+        if (a.getDate() != b.getDate()) {
+            return a.getDate() < b.getDate();
+        }
+        return a.getID() < b.getID();
+    }
+
+    public final void testPagesCoverAll() {
+        final Transaction[] all;
+        Transaction[] page;
+        Transaction last;
+        int count;
+
+        all = data.listTransactions();
+        assertTrue(all.length > 2);
+
+        count = 0;
+        last = null;
+
+        do {
+            page = data.listTransactions(Long.MIN_VALUE, Long.MAX_VALUE, 2, last);
+            assertTrue(page.length <= 2);
+
+            for (Transaction t : page) {
+                if (last != null) {
+                    assertTrue(before(last, t));
+                }
+                last = t;
+                count++;
+            }
+        } while (page.length == 2);
+
+        assertEquals(all.length, count);
+    }
+
+    public final void testRange() {
+        final Transaction[] all, page;
+        final long from, to;
+        int expected;
+
+        all = data.listTransactions();
+        from = all[1].getDate();
+        to = all[all.length - 2].getDate();
+
+        expected = 0;
+        for (Transaction t : all) {
+            if ((t.getDate() >= from) && (t.getDate() <= to)) {
+                expected++;
+            }
+        }
+
+        page = data.listTransactions(from, to, 100, null);
+        assertEquals(expected, page.length);
+
+        for (Transaction t : page) {
+            assertTrue(t.getDate() >= from);
+            assertTrue(t.getDate() <= to);
+            assertSame(t, data.lookupTransaction(t.getID()));
+        }
+
+        assertEquals(0, data.listTransactions(from, to, 100, page[page.length - 1]).length);
+    }
+}
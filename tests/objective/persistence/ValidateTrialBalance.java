@@ -0,0 +1,136 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.persistence;
+
+import objective.domain.Account;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+
+import com.operationaldynamics.sqlite.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Work out the trial balance of the mock book, with various numbers of
+ * threads, and check it against the database.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateTrialBalance extends TestCase
+{
+    private DataStore data;
+
+    public void setUp() {
+        data = new DataStore(TemporaryBook.create(), true);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    private long sumEntries(long direction) {
+        final Statement stmt;
+        final long result;
+
+        stmt = data.prepare("SELECT coalesce(sum(value), 0) FROM entries WHERE direction = ?");
+        stmt.bindInteger(1, direction);
+        stmt.step();
+        result = stmt.columnInteger(0);
+        data.finish(stmt);
+
+        return result;
+    }
+
+    public final void testBalanced() {
+        final TrialBalance trial;
+        long debits, credits;
+
+        trial = data.trialBalance(4);
+
+        assertTrue(trial.isBalanced());
+        assertEquals(0, trial.getUnbalanced().length);
+        assertEquals(sumEntries(1), trial.getDebits());
+        assertEquals(sumEntries(-1), trial.getCredits());
+        assertTrue(trial.getDebits() > 0);
+
+        debits = 0;
+        credits = 0;
+        for (Ledger ledger : data.listLedgers()) {
+            assertEquals(trial.getDebits(ledger) - trial.getCredits(ledger),
+                    data.getEntryIndex().sum(ledger.getID(), Long.MIN_VALUE, Long.MAX_VALUE));
+            assertEquals(trial.getDebits(ledger) - trial.getCredits(ledger), trial.getBalance(ledger));
+            debits += trial.getDebits(ledger);
+            credits += trial.getCredits(ledger);
+        }
+        assertEquals(trial.getDebits(), debits);
+        assertEquals(trial.getCredits(), credits);
+    }
+
+    public final void testThreads() {
+        final TrialBalance one, many;
+        Account account;
+
+        one = data.trialBalance(1);
+        many = data.trialBalance(7);
+
+        assertEquals(one.getDebits(), many.getDebits());
+        assertEquals(one.getCredits(), many.getCredits());
+
+        for (Ledger ledger : data.listLedgers()) {
+            account = ledger.getParentAccount();
+            assertEquals(one.getDebits(ledger), many.getDebits(ledger));
+            assertEquals(one.getCredits(ledger), many.getCredits(ledger));
+            assertEquals(one.getDebits(account), many.getDebits(account));
+            assertEquals(one.getCredits(account), many.getCredits(account));
+        }
+    }
+
+    public final void testUnbalanced() {
+        final Transaction t;
+        final Entry e;
+        final TrialBalance trial;
+
+        t = new GenericTransaction(0);
+        t.setDate(1064966400L);
+        t.setDescription("Only one side");
+
+        e = new Debit(0);
+        e.setAmount(500);
+        e.setCurrency(data.lookupCurrency("AUD"));
+        e.setValue(500);
+        e.setParentLedger(data.lookupLedger(1));
+        e.setParentTransaction(t);
+
+        data.begin();
+        data.createTransaction(t);
+        data.createEntry(e);
+        data.commit();
+
+        trial = data.trialBalance(3);
+
+        assertFalse(trial.isBalanced());
+        assertEquals(trial.getCredits() + 500, trial.getDebits());
+        assertEquals(1, trial.getUnbalanced().length);
+        assertEquals(t.getID(), trial.getUnbalanced()[0].getID());
+        assertEquals(500, trial.getImbalances()[0]);
+    }
+}
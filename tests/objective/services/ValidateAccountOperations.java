@@ -0,0 +1,107 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import objective.domain.Account;
+import objective.domain.Ledger;
+import objective.persistence.DataStore;
+import objective.persistence.TemporaryBook;
+
+import junit.framework.TestCase;
+
+/**
+ * Find Accounts and Ledgers by their exact title and name, and search for
+ * them by the words in those.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateAccountOperations extends TestCase
+{
+    private DataStore data;
+
+    private AccountOperations services;
+
+    public void setUp() {
+        data = new DataStore(TemporaryBook.create());
+        services = new AccountOperations(data);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    public final void testFindLedger() throws NotFoundException {
+        Ledger[] found;
+
+        found = services.findLedger("Meals");
+        assertEquals(1, found.length);
+        assertSame(data.lookupLedger(8), found[0]);
+
+        found = services.findLedger("Andrew Cowie");
+        assertEquals(2, found.length);
+        assertSame(data.lookupLedger(11), found[0]);
+        assertSame(data.lookupLedger(18), found[1]);
+
+        try {
+            services.findLedger("meals");
+            fail("Should only match the name exactly");
+        } catch (NotFoundException nfe) {
+            // good
+        }
+
+        try {
+            services.findLedger("Office");
+            fail("Should only match the name exactly");
+        } catch (NotFoundException nfe) {
+            // good
+        }
+    }
+
+    public final void testSearchLedgers() throws NotFoundException {
+        final Ledger[] found;
+
+        found = services.searchLedgers("office");
+        assertEquals(3, found.length);
+
+        try {
+            services.searchLedgers("zanzibar");
+            fail("Should have found nothing");
+        } catch (NotFoundException nfe) {
+            // good
+        }
+    }
+
+    public final void testFindAccount() throws NotFoundException {
+        Account[] found;
+
+        found = services.findAccount("Fees");
+        assertEquals(1, found.length);
+        assertSame(data.lookupAccount(8), found[0]);
+
+        try {
+            services.findAccount("Expenses");
+            fail("Should only match the title exactly");
+        } catch (NotFoundException nfe) {
+            // good
+        }
+
+        found = services.searchAccounts("expenses");
+        assertEquals(3, found.length);
+    }
+}
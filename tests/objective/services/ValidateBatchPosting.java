@@ -0,0 +1,201 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import objective.domain.Credit;
+import objective.domain.Currency;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+import objective.persistence.DataStore;
+import objective.persistence.TemporaryBook;
+
+import junit.framework.TestCase;
+
+/**
+ * Post several Transactions in one database transaction, some of which
+ * fail part way through being written.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateBatchPosting extends TestCase
+{
+    private String filename;
+
+    private DataStore data;
+
+    private TransactionOperations services;
+
+    public void setUp() {
+        filename = TemporaryBook.create();
+        data = new DataStore(filename);
+        services = new TransactionOperations(data);
+    }
+
+    public void tearDown() {
+        data.close();
+    }
+
+    /*
+     * An Entry that isn't in the book, marked for deletion by having no
+     * value. Deleting it fails, after everything before it in the Posting
+     * has been written.
+     */
+    private static Entry makeMissing(Transaction t) {
+        final Entry result;
+
+        result = new Debit(9999);
+        result.setValue(0);
+        result.setParentTransaction(t);
+
+        return result;
+    }
+
+    /*
+     * Rolling back to the savepoint undoes the updates in the database;
+     * the versions the objects carry have to go back with them, or the
+     * next save of the same Transaction is refused as a conflict.
+     */
+    public final void testFailedUpdateKeepsVersions() {
+        final Transaction t;
+        final Entry[] entries;
+        final Posting bad;
+        final Posting[] rejected;
+
+        t = data.lookupTransaction(3);
+        entries = data.listEntries(t);
+        assertEquals(2, entries.length);
+        assertEquals(1, t.getVersion());
+
+        t.setDescription("Phone card, updated");
+
+        bad = new Posting(t, entries[0], entries[1], makeMissing(t));
+
+        rejected = services.postTransactions(new Posting[] {
+            bad
+        });
+
+        assertEquals(1, rejected.length);
+        assertSame(bad, rejected[0]);
+        assertNotNull(bad.getProblem());
+
+        assertEquals(1, t.getVersion());
+        assertEquals(1, entries[0].getVersion());
+        assertEquals(1, entries[1].getVersion());
+
+        services.postTransaction(t, entries[0], entries[1]);
+
+        assertEquals(2, t.getVersion());
+        assertEquals(2, entries[0].getVersion());
+        assertEquals(1, data.search("updated", 10).length);
+    }
+
+    private Posting makePosting(String description, boolean broken) {
+        final Transaction t;
+        final Ledger l1, l2;
+        final Currency aud;
+        final Entry e1, e2;
+
+        aud = data.lookupCurrency("AUD");
+        l1 = data.lookupLedger(1);
+        l2 = data.lookupLedger(3);
+
+        t = new GenericTransaction(0);
+        t.setDate(1293235200L);
+        t.setDescription(description);
+
+        e1 = new Debit(0);
+        e1.setAmount(500);
+        e1.setCurrency(aud);
+        e1.setValue(500);
+        e1.setParentLedger(l1);
+        e1.setParentTransaction(t);
+
+        e2 = new Credit(0);
+        e2.setAmount(500);
+        e2.setCurrency(aud);
+        e2.setValue(500);
+        e2.setParentLedger(l2);
+        e2.setParentTransaction(t);
+
+        if (broken) {
+            return new Posting(t, e1, e2, makeMissing(t));
+        } else {
+            return new Posting(t, e1, e2);
+        }
+    }
+
+    /*
+     * The broken Posting fails after its Transaction and Entries have been
+     * inserted. Those are rolled back and their IDs cleared, so it can be
+     * fixed and posted again; the Postings either side of it are committed.
+     */
+    public final void testBadPostingInBatch() {
+        final Posting first, broken, last;
+        final Posting[] rejected;
+        final int before;
+        final DataStore again;
+        Entry[] entries;
+
+        before = data.listTransactions().length;
+
+        first = makePosting("Alpha", false);
+        broken = makePosting("Bravo", true);
+        last = makePosting("Charlie", false);
+
+        rejected = services.postTransactions(new Posting[] {
+            first,
+            broken,
+            last
+        });
+
+        assertEquals(1, rejected.length);
+        assertSame(broken, rejected[0]);
+        assertNotNull(broken.getProblem());
+        assertNull(first.getProblem());
+        assertNull(last.getProblem());
+
+        assertEquals(0, broken.getTransaction().getID());
+        entries = broken.getEntries();
+        assertEquals(0, entries[0].getID());
+        assertEquals(0, entries[1].getID());
+
+        assertTrue(first.getTransaction().getID() != 0);
+        assertTrue(last.getTransaction().getID() != 0);
+        assertEquals(before + 2, data.listTransactions().length);
+        assertEquals(0, data.search("bravo", 10).length);
+
+        again = new DataStore(filename);
+        assertEquals("Alpha", again.lookupTransaction(first.getTransaction().getID()).getDescription());
+        assertEquals("Charlie", again.lookupTransaction(last.getTransaction().getID()).getDescription());
+        assertEquals(0, again.search("bravo", 10).length);
+        assertEquals(0, again.verifyBalances().length);
+        again.close();
+
+        /*
+         * Once fixed, it goes through.
+         */
+
+        services.postTransaction(broken.getTransaction(), entries[0], entries[1]);
+        assertTrue(broken.getTransaction().getID() != 0);
+        assertEquals(1, data.search("bravo", 10).length);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import java.util.ArrayList;
+
+import objective.domain.Credit;
+import objective.domain.Currency;
+import objective.domain.Debit;
+import objective.domain.Entry;
+import objective.domain.GenericTransaction;
+import objective.domain.Ledger;
+import objective.domain.Transaction;
+import objective.persistence.DataStore;
+import objective.persistence.TemporaryBook;
+
+import junit.framework.TestCase;
+
+/**
+ * Post through the background queue and check that everything comes back
+ * in order.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidatePostingQueue extends TestCase
+{
+    private static Entry[] makeEntries(DataStore data, Transaction t, long debit, long credit) {
+        final Ledger l1, l2;
+        final Currency aud;
+        final Entry e1, e2;
+
+        aud = data.lookupCurrency("AUD");
+        l1 = data.lookupLedger(1);
+        l2 = data.lookupLedger(3);
+
+        e1 = new Debit(0);
+        e1.setAmount(debit);
+        e1.setCurrency(aud);
+        e1.setValue(debit);
+        e1.setParentLedger(l1);
+        e1.setParentTransaction(t);
+
+        e2 = new Credit(0);
+        e2.setAmount(credit);
+        e2.setCurrency(aud);
+        e2.setValue(credit);
+        e2.setParentLedger(l2);
+        e2.setParentTransaction(t);
+
+        return new Entry[] {
+            e1,
+            e2
+        };
+    }
+
+    public final void testOrderAndErrors() {
+        final String filename;
+        final DataStore data;
+        final PostingQueue queue;
+        final ArrayList<Posting> completed;
+        final Transaction[] transactions;
+        Transaction t;
+        Entry[] entries;
+        Posting posting;
+        long previous;
+        int i;
+
+        filename = TemporaryBook.create();
+        data = new DataStore(filename);
+
+        queue = PostingQueue.forStore(data);
+        assertSame(queue, PostingQueue.forStore(data));
+
+        completed = new ArrayList<Posting>();
+        transactions = new Transaction[20];
+
+        for (i = 0; i < 20; i++) {
+            t = new GenericTransaction(0);
+            t.setDate(1293235200L + i * 86400L);
+            t.setDescription("Queued " + i);
+
+            if (i == 7) {
+                entries = makeEntries(data, t, 100, 99);
+            } else {
+                entries = makeEntries(data, t, 100, 100);
+            }
+
+            transactions[i] = t;
+            queue.post(t, entries, new PostingQueue.Completed() {
+                public void onCompleted(Posting posting) {
+                    synchronized (completed) {
+                        completed.add(posting);
+                    }
+                }
+            });
+        }
+
+        /*
+         * Closing the DataStore drains the queue first.
+         */
+
+        data.close();
+
+        assertEquals(20, completed.size());
+
+        previous = 0;
+        for (i = 0; i < 20; i++) {
+            posting = completed.get(i);
+            assertSame(transactions[i], posting.getTransaction());
+
+            if (i == 7) {
+                assertNotNull(posting.getProblem());
+                assertEquals(0, posting.getTransaction().getID());
+            } else {
+                assertNull(posting.getProblem());
+                assertTrue(posting.getTransaction().getID() > previous);
+                previous = posting.getTransaction().getID();
+            }
+        }
+
+        try {
+            queue.post(transactions[7], new Entry[0], null);
+            fail("Should have refused a post after closing");
+        } catch (IllegalStateException ise) {
+            // good
+        }
+    }
+
+    /*
+     * An Entry missing its Currency, and a handler that throws, must neither
+     * stop the writer thread nor leave it holding the database.
+     */
+    public final void testBadEntryAndHandler() {
+        final String filename;
+        final DataStore data, again;
+        final PostingQueue queue;
+        final ArrayList<Posting> completed;
+        final ArrayList<Throwable> reported;
+        final Thread.UncaughtExceptionHandler previous;
+        final Transaction[] transactions;
+        Transaction t;
+        Entry[] entries;
+        int i;
+
+        filename = TemporaryBook.create();
+        data = new DataStore(filename);
+        queue = PostingQueue.forStore(data);
+
+        completed = new ArrayList<Posting>();
+        reported = new ArrayList<Throwable>();
+        transactions = new Transaction[3];
+
+        previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread thread, Throwable problem) {
+                synchronized (reported) {
+                    reported.add(problem);
+                }
+            }
+        });
+
+        try {
+            for (i = 0; i < 3; i++) {
+                t = new GenericTransaction(0);
+                t.setDate(1293235200L + i * 86400L);
+                t.setDescription("Troubled " + i);
+
+                entries = makeEntries(data, t, 100, 100);
+                if (i == 1) {
+                    entries[1].setCurrency(null);
+                }
+
+                transactions[i] = t;
+                queue.post(t, entries, new PostingQueue.Completed() {
+                    public void onCompleted(Posting posting) {
+                        synchronized (completed) {
+                            completed.add(posting);
+                        }
+                        if (posting.getTransaction().getDescription().equals("Troubled 0")) {
+                            throw new IllegalStateException("Handler failing");
+                        }
+                    }
+                });
+            }
+
+            data.close();
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+        }
+
+        assertEquals(3, completed.size());
+        assertEquals(1, reported.size());
+
+        assertNull(completed.get(0).getProblem());
+        assertNotNull(completed.get(1).getProblem());
+        assertEquals(0, transactions[1].getID());
+        assertNull(completed.get(2).getProblem());
+
+        again = new DataStore(filename);
+        assertEquals("Troubled 0", again.lookupTransaction(transactions[0].getID()).getDescription());
+        assertEquals("Troubled 2", again.lookupTransaction(transactions[2].getID()).getDescription());
+        again.close();
+    }
+}
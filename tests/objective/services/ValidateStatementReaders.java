@@ -0,0 +1,132 @@
+/*
+ * ObjectiveAccounts, accounting for small professional services firms.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted via http://research.operationaldynamics.com/projects/objective/.
+ */
+package objective.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Parse small CSV and OFX statements.
+ * 
+ * @author Andrew Cowie
+ */
+public class ValidateStatementReaders extends TestCase
+{
+    private static BufferedReader open(String str) {
+        return new BufferedReader(new StringReader(str));
+    }
+
+    public final void testDates() {
+        assertEquals(0L, StatementReader.toDatestamp(1970, 1, 1));
+        assertEquals(951782400L, StatementReader.toDatestamp(2000, 2, 29));
+        assertEquals(1293840000L, StatementReader.parseDate("2011-01-01"));
+        assertEquals(1293840000L, StatementReader.parseDate("20110101"));
+        assertEquals(1293840000L, StatementReader.parseDate("20110101120000[-5:EST]"));
+        assertEquals(1296432000L, StatementReader.parseDate("31/01/2011"));
+        assertEquals(1296432000L, StatementReader.parseDate("31/1/2011"));
+
+        try {
+            StatementReader.parseDate("Date");
+            fail("Should have refused");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    public final void testAmounts() {
+        assertEquals(1234L, StatementReader.parseAmount("12.34"));
+        assertEquals(-1234L, StatementReader.parseAmount("-12.34"));
+        assertEquals(123456L, StatementReader.parseAmount("$1,234.56"));
+        assertEquals(-500L, StatementReader.parseAmount("(5.00)"));
+        assertEquals(1200L, StatementReader.parseAmount("+12"));
+
+        try {
+            StatementReader.parseAmount("twelve");
+            fail("Should have refused");
+        } catch (NumberFormatException nfe) {
+            // good
+        }
+    }
+
+    public final void testCSV() throws IOException {
+        final StatementReader reader;
+        StatementLine line;
+
+        reader = new CsvStatementReader(open("Date,Amount,Description,Reference\n"
+                + "2011-01-31,-12.50,\"Coffee, Beans & Co\",1001\n" + "\n"
+                + "2011-02-01,100.00,\"Client \"\"A\"\"\"\n" + "tomorrow,1.00,Bad\n"));
+
+        line = reader.next();
+        assertNull(line.problem);
+        assertEquals(2, line.number);
+        assertEquals(1296432000L, line.datestamp);
+        assertEquals(-1250L, line.amount);
+        assertEquals("Coffee, Beans & Co", line.description);
+        assertEquals("1001", line.reference);
+
+        line = reader.next();
+        assertNull(line.problem);
+        assertEquals(4, line.number);
+        assertEquals(10000L, line.amount);
+        assertEquals("Client \"A\"", line.description);
+        assertEquals("", line.reference);
+
+        line = reader.next();
+        assertNotNull(line.problem);
+        assertEquals(5, line.number);
+
+        assertNull(reader.next());
+    }
+
+    public final void testOFX() throws IOException {
+        final StatementReader reader;
+        StatementLine line;
+
+        reader = new OfxStatementReader(open("OFXHEADER:100\nDATA:OFXSGML\n\n<OFX><BANKMSGSRSV1>"
+                + "<STMTTRNRS><STMTRS><BANKTRANLIST>\n" + "<STMTTRN>\n<TRNTYPE>DEBIT\n"
+                + "<DTPOSTED>20110131\n<TRNAMT>-12.50\n<FITID>ABC123\n<NAME>Coffee &amp; Co\n"
+                + "<MEMO>Beans\n</STMTTRN>\n" + "<STMTTRN><TRNTYPE>CREDIT</TRNTYPE>"
+                + "<DTPOSTED>20110201000000</DTPOSTED><TRNAMT>100.00</TRNAMT>"
+                + "<FITID>ABC124</FITID><NAME>Client</NAME></STMTTRN>\n"
+                + "<STMTTRN><TRNTYPE>OTHER\n<NAME>Nothing\n</STMTTRN>\n"
+                + "</BANKTRANLIST></STMTRS></STMTTRNRS></BANKMSGSRSV1></OFX>\n"));
+
+        line = reader.next();
+        assertNull(line.problem);
+        assertEquals(1296432000L, line.datestamp);
+        assertEquals(-1250L, line.amount);
+        assertEquals("Coffee & Co Beans", line.description);
+        assertEquals("ABC123", line.reference);
+
+        line = reader.next();
+        assertNull(line.problem);
+        assertEquals(1296518400L, line.datestamp);
+        assertEquals(10000L, line.amount);
+        assertEquals("Client", line.description);
+        assertEquals("ABC124", line.reference);
+
+        line = reader.next();
+        assertNotNull(line.problem);
+
+        assertNull(reader.next());
+    }
+}
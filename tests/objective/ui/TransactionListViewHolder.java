@@ -18,11 +18,14 @@
  */
 package objective.ui;
 
-import objective.domain.Transaction;
 import objective.persistence.DataStore;
 
 import org.gnome.gdk.Event;
+import org.gnome.gtk.Entry;
 import org.gnome.gtk.Gtk;
+import org.gnome.gtk.PolicyType;
+import org.gnome.gtk.ScrolledWindow;
+import org.gnome.gtk.VBox;
 import org.gnome.gtk.Widget;
 import org.gnome.gtk.Window;
 
@@ -34,15 +37,27 @@ class TransactionListViewHolder extends Window
 
     TransactionListViewHolder(DataStore data) {
         super();
-        Transaction[] transactions;
+        final ScrolledWindow scroll;
+        final Entry search;
+        final VBox top;
 
         window = this;
 
-        transactions = data.listTransactions();
+        view = new TransactionListView(data, Long.MIN_VALUE, Long.MAX_VALUE);
 
-        view = new TransactionListView(data, transactions);
+        scroll = new ScrolledWindow();
+        scroll.setPolicy(PolicyType.NEVER, PolicyType.AUTOMATIC);
+        scroll.add(view);
+        view.pageWith(scroll.getVAdjustment());
 
-        window.add(view);
+        search = new Entry();
+        view.searchWith(search);
+
+        top = new VBox(false, 3);
+        top.packStart(search, false, false, 0);
+        top.packStart(scroll, true, true, 0);
+
+        window.add(top);
         window.setTitle("Transaction List");
         window.setDefaultSize(700, 500);
         window.showAll();